@@ -0,0 +1,273 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.dockerpublish;
+
+import com.cloudbees.dockerpublish.DockerCLIHelper.InspectImageResponse;
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.model.TaskListener;
+import hudson.slaves.WorkspaceList;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import jenkins.security.MasterToSlaveCallable;
+import net.sf.json.JSONObject;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.apache.commons.io.output.TeeOutputStream;
+import org.jenkinsci.plugins.tokenmacro.MacroEvaluationException;
+
+/**
+ * Builds, tags and pushes an image on the agent, for {@link DockerBuildStep}.
+ * The docker commands are run by the agent, so that no controller thread waits for them.
+ * The commands go through a {@link DockerClient} running the docker CLI on the agent, the pushes being retried
+ * by {@link PushRetry} like the ones of {@link DockerBuilder}.
+ */
+final class AgentBuild extends MasterToSlaveCallable<AgentBuild.Outcome, IOException> {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Image built by an {@link AgentBuild}.
+     */
+    static final class Outcome implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final boolean result;
+        @CheckForNull
+        final String imageId;
+        @CheckForNull
+        final String parent;
+        final List<String> tags;
+        /** Digests of the pushed tags by tag. */
+        final Map<String, String> digests;
+
+        Outcome(boolean result, @CheckForNull String imageId, @CheckForNull String parent, @Nonnull List<String> tags,
+                @Nonnull Map<String, String> digests) {
+            this.result = result;
+            this.imageId = imageId;
+            this.parent = parent;
+            this.tags = tags;
+            this.digests = digests;
+        }
+    }
+
+    private final String dockerExecutable;
+    private final EnvVars env;
+    private final String workspace;
+    private final StepPlan plan;
+    private final String context;
+    private final boolean noCache;
+    private final boolean pull;
+    private final boolean useBuildKit;
+    private final boolean push;
+    private final PushRetry retry;
+    private final TaskListener listener;
+
+    AgentBuild(@Nonnull String dockerExecutable, @Nonnull EnvVars env, @Nonnull FilePath workspace, @Nonnull StepPlan plan,
+               @Nonnull FilePath context, boolean noCache, boolean pull, boolean useBuildKit, boolean push,
+               @Nonnull PushRetry retry, @Nonnull TaskListener listener) {
+        this.dockerExecutable = dockerExecutable;
+        this.env = env;
+        this.workspace = workspace.getRemote();
+        this.plan = plan;
+        this.context = context.getRemote();
+        this.noCache = noCache;
+        this.pull = pull;
+        this.useBuildKit = useBuildKit;
+        this.push = push;
+        this.retry = retry;
+        this.listener = listener;
+    }
+
+    @Override
+    public Outcome call() throws IOException {
+        try {
+            return run();
+        } catch (InterruptedException e) {
+            // the step was stopped, the docker process was killed
+            throw new IOException("Interrupted", e);
+        } catch (MacroEvaluationException e) {
+            // the plan is expanded on the controller already
+            throw new IOException(e);
+        }
+    }
+
+    private Outcome run() throws MacroEvaluationException, IOException, InterruptedException {
+        List<String> tags = new ArrayList<String>();
+        for (ImageTag tag : plan.getImageTags()) {
+            tags.add(tag.toString());
+        }
+        Map<String, String> digests = new LinkedHashMap<String, String>();
+        Charset charset = Charset.defaultCharset();
+        DockerClient client = new Cli(charset);
+        DockerClient.BuildResult built = client.build(new FilePath(new File(context)), plan.getImageTags().get(0));
+        if (!built.result) {
+            return new Outcome(false, null, null, tags, digests);
+        }
+        String image = built.imageId;
+        if (image == null) {
+            listener.error("Cannot find the ID of the image built");
+            return new Outcome(false, null, null, tags, digests);
+        }
+        listener.getLogger().println("Built image " + image);
+        for (ImageTag tag : plan.getImageTags().subList(1, plan.getImageTags().size())) {
+            if (!client.tag(image, tag)) {
+                return new Outcome(false, image, null, tags, digests);
+            }
+        }
+        if (push) {
+            for (ImageTag tag : plan.getImageTags()) {
+                DockerOutputParser parser = new DockerOutputParser(charset);
+                boolean pushed = retry.push(client, tag,
+                        new TeeOutputStream(new CloseShieldOutputStream(listener.getLogger()), parser), charset);
+                parser.close();
+                if (!pushed) {
+                    return new Outcome(false, image, null, tags, digests);
+                }
+                List<String> pushedDigests = parser.getDigests();
+                if (!pushedDigests.isEmpty()) {
+                    digests.put(tag.toString(), pushedDigests.get(pushedDigests.size() - 1));
+                }
+            }
+        }
+        InspectImageResponse response = client.inspect(image);
+        return new Outcome(true, image, response != null ? response.getParent() : null,
+                Collections.unmodifiableList(tags), digests);
+    }
+
+    /**
+     * Runs the docker CLI on the agent, its output being printed to the build log.
+     */
+    private final class Cli implements DockerClient {
+
+        private final Charset charset;
+
+        Cli(Charset charset) {
+            this.charset = charset;
+        }
+
+        @Override
+        public BuildResult build(FilePath context, ImageTag tag) throws IOException, InterruptedException {
+            FilePath tmp = WorkspaceList.tempDir(new FilePath(new File(workspace)));
+            tmp.mkdirs();
+            File output = new File(tmp.createTempFile("docker-build", useBuildKit ? ".json" : ".iid").getRemote());
+            try {
+                String cmd = useBuildKit
+                        ? DockerBuilder.buildxCommand(plan, tag, noCache, pull, false, output.getPath(), context.getRemote())
+                        : DockerBuilder.buildCommand(plan, tag, noCache, pull, output.getPath(), context.getRemote());
+                DockerOutputParser parser = new DockerOutputParser(charset);
+                if (!execute(cmd, new TeeOutputStream(new CloseShieldOutputStream(listener.getLogger()), parser), listener.getLogger())) {
+                    return new BuildResult(false, null);
+                }
+                String image = readImageId(output);
+                return new BuildResult(true, image != null ? image : parser.getImageBuilt());
+            } finally {
+                if (!output.delete()) {
+                    output.deleteOnExit();
+                }
+            }
+        }
+
+        @Override
+        public boolean tag(String image, ImageTag tag) throws IOException, InterruptedException {
+            return execute("tag " + image + " " + tag, new CloseShieldOutputStream(listener.getLogger()), listener.getLogger());
+        }
+
+        @Override
+        public boolean push(ImageTag tag, OutputStream log) throws IOException, InterruptedException {
+            return executeProgress("push " + tag, log);
+        }
+
+        @Override
+        public boolean pull(String image, OutputStream log) throws IOException, InterruptedException {
+            return executeProgress("pull " + image, log);
+        }
+
+        @Override
+        public InspectImageResponse inspect(String image) throws IOException, InterruptedException {
+            DockerOutputParser parser = new DockerOutputParser(charset, Integer.MAX_VALUE);
+            int status = launcher().launch().cmdAsSingleString(dockerExecutable + " inspect --type=image --format '"
+                    + InspectParser.FORMAT + "' " + image).envs(env).pwd(workspace)
+                    .stdout(parser).stderr(listener.getLogger()).start().join();
+            parser.close();
+            return status == 0 ? DockerCLIHelper.parseInspectImageResponse(parser.getTail()) : null;
+        }
+
+        /**
+         * Runs a command printing the progress of layer transfers, ie. push or pull, as summaries.
+         * Errors are printed to the log as they are, so that {@link PushRetry} sees them.
+         */
+        private boolean executeProgress(String cmd, OutputStream log) throws IOException, InterruptedException {
+            return execute(cmd, new ProgressLog(log, charset, null), log);
+        }
+
+        /**
+         * @param stdout Receives the standard output, closed once the command is over
+         * @param stderr Receives the standard error
+         */
+        private boolean execute(String cmd, OutputStream stdout, OutputStream stderr) throws IOException, InterruptedException {
+            boolean result;
+            try {
+                result = launcher().launch().cmdAsSingleString(dockerExecutable + " " + cmd).envs(env).pwd(workspace)
+                        .stdout(stdout).stderr(stderr).start().join() == 0;
+            } finally {
+                stdout.close();
+            }
+            if (!result) {
+                listener.error("docker " + cmd + " failed");
+            }
+            return result;
+        }
+    }
+
+    private Launcher launcher() {
+        return new Launcher.LocalLauncher(listener);
+    }
+
+    /**
+     * Reads the image ID written by {@code --iidfile}, or the build metadata written by {@code --metadata-file}.
+     */
+    @CheckForNull
+    private String readImageId(File output) throws IOException {
+        if (!output.isFile()) {
+            return null;
+        }
+        String content = Util.fixEmptyAndTrim(new FilePath(output).readToString());
+        if (content == null || !useBuildKit) {
+            return content;
+        }
+        return Util.fixEmpty(JSONObject.fromObject(content).optString("containerimage.config.digest"));
+    }
+}
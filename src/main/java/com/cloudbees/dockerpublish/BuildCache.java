@@ -0,0 +1,129 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.dockerpublish;
+
+import hudson.XmlFile;
+import hudson.model.Job;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import jenkins.model.Jenkins;
+
+/**
+ * Images built by a job, by {@link ContextDigest digest} of their build inputs.
+ * Stored in the job directory, only the most recently used entries being kept.
+ */
+final class BuildCache {
+
+    private static final Logger logger = Logger.getLogger(BuildCache.class.getName());
+
+    static final String FILE_NAME = "docker-build-cache.xml";
+
+    /**
+     * Number of images remembered per job.
+     */
+    static final int MAX_ENTRIES = 20;
+
+    /**
+     * Image IDs by digest, least recently used first.
+     */
+    private final LinkedHashMap<String, String> images = new LinkedHashMap<String, String>();
+
+    private BuildCache() {
+    }
+
+    /**
+     * @return Image previously built from the same inputs, null if there is none
+     */
+    @CheckForNull
+    static String get(@Nonnull Job<?, ?> job, @Nonnull String digest) {
+        synchronized (BuildCache.class) {
+            BuildCache cache = load(job);
+            String image = cache.images.remove(digest);
+            if (image != null) {
+                // most recently used last
+                cache.images.put(digest, image);
+                XmlFile file = file(job);
+                try {
+                    file.write(cache);
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Cannot write " + file, e);
+                }
+            }
+            return image;
+        }
+    }
+
+    /**
+     * Records the image built from some inputs.
+     */
+    static void put(@Nonnull Job<?, ?> job, @Nonnull String digest, @Nonnull String image) throws IOException {
+        synchronized (BuildCache.class) {
+            BuildCache cache = load(job);
+            cache.images.remove(digest);
+            cache.images.put(digest, image);
+            for (Iterator<?> i = cache.images.keySet().iterator(); cache.images.size() > MAX_ENTRIES; ) {
+                i.next();
+                i.remove();
+            }
+            file(job).write(cache);
+        }
+    }
+
+    /**
+     * Forgets an image, ie. because it was removed from the daemon.
+     */
+    static void remove(@Nonnull Job<?, ?> job, @Nonnull String digest) throws IOException {
+        synchronized (BuildCache.class) {
+            BuildCache cache = load(job);
+            if (cache.images.remove(digest) != null) {
+                file(job).write(cache);
+            }
+        }
+    }
+
+    private static BuildCache load(Job<?, ?> job) {
+        XmlFile file = file(job);
+        if (file.exists()) {
+            try {
+                Object cache = file.read();
+                if (cache instanceof BuildCache) {
+                    return (BuildCache) cache;
+                }
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Cannot read " + file, e);
+            }
+        }
+        return new BuildCache();
+    }
+
+    private static XmlFile file(Job<?, ?> job) {
+        return new XmlFile(Jenkins.XSTREAM2, new File(job.getRootDir(), FILE_NAME));
+    }
+}
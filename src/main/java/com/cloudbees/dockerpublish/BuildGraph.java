@@ -0,0 +1,136 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.dockerpublish;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * Dependencies between the images of a {@link DockerBuildMatrix}, inferred from the {@code FROM} lines of
+ * their Dockerfiles: an image built from an image tagged by another one of the matrix is built after it.
+ */
+final class BuildGraph {
+
+    private final List<Set<Integer>> dependencies;
+
+    private BuildGraph(@Nonnull List<Set<Integer>> dependencies) {
+        this.dependencies = dependencies;
+    }
+
+    /**
+     * @param images Names of the images tagged by each build, with their tag
+     * @param baseImages Images each build is built from, with their tag
+     */
+    @Nonnull
+    static BuildGraph infer(@Nonnull List<List<String>> images, @Nonnull List<List<String>> baseImages) {
+        List<Set<Integer>> dependencies = new ArrayList<Set<Integer>>();
+        for (int i = 0; i < baseImages.size(); i++) {
+            Set<Integer> dependsOn = new TreeSet<Integer>();
+            for (String base : baseImages.get(i)) {
+                String normalized = normalize(base);
+                for (int j = 0; j < images.size(); j++) {
+                    // an image may be built from a previous version of itself
+                    if (j == i) {
+                        continue;
+                    }
+                    for (String image : images.get(j)) {
+                        if (normalize(image).equals(normalized)) {
+                            dependsOn.add(j);
+                        }
+                    }
+                }
+            }
+            dependencies.add(Collections.unmodifiableSet(dependsOn));
+        }
+        return new BuildGraph(dependencies);
+    }
+
+    /**
+     * @return Indexes of the builds the build depends on
+     */
+    @Nonnull
+    Set<Integer> getDependencies(int build) {
+        return dependencies.get(build);
+    }
+
+    /**
+     * @return Builds depending on each other, null if there is no cycle
+     */
+    @CheckForNull
+    List<Integer> findCycle() {
+        int[] state = new int[dependencies.size()]; // 0 unvisited, 1 in progress, 2 done
+        List<Integer> path = new ArrayList<Integer>();
+        for (int i = 0; i < dependencies.size(); i++) {
+            List<Integer> cycle = visit(i, state, path);
+            if (cycle != null) {
+                return cycle;
+            }
+        }
+        return null;
+    }
+
+    private List<Integer> visit(int build, int[] state, List<Integer> path) {
+        if (state[build] == 2) {
+            return null;
+        }
+        if (state[build] == 1) {
+            return new ArrayList<Integer>(path.subList(path.indexOf(build), path.size()));
+        }
+        state[build] = 1;
+        path.add(build);
+        for (int dependency : dependencies.get(build)) {
+            List<Integer> cycle = visit(dependency, state, path);
+            if (cycle != null) {
+                return cycle;
+            }
+        }
+        path.remove(path.size() - 1);
+        state[build] = 2;
+        return null;
+    }
+
+    /**
+     * Removes the implicit Docker Hub registry and {@code library} namespace, so that {@code ubuntu:20.04}
+     * and {@code docker.io/library/ubuntu:20.04} match.
+     */
+    @Nonnull
+    static String normalize(@Nonnull String image) {
+        String normalized = image;
+        for (String registry : new String[] { "docker.io/", "index.docker.io/", "registry-1.docker.io/" }) {
+            if (normalized.startsWith(registry)) {
+                normalized = normalized.substring(registry.length());
+                break;
+            }
+        }
+        if (normalized.startsWith("library/")) {
+            normalized = normalized.substring("library/".length());
+        }
+        return normalized;
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.dockerpublish;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Dockerfile steps of an image build, as reported by its output: duration, cache hit and layer produced.
+ */
+@ExportedBean(defaultVisibility = 2)
+@Restricted(NoExternalUse.class)
+public final class BuildTimeline implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final List<Step> steps = new ArrayList<Step>();
+    @CheckForNull
+    private String image;
+
+    /**
+     * A Dockerfile step.
+     */
+    @ExportedBean(defaultVisibility = 3)
+    public static final class Step implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int number;
+        private final String instruction;
+        private boolean cached;
+        @CheckForNull
+        private String layer;
+        private long durationMillis;
+
+        Step(int number, @Nonnull String instruction) {
+            this.number = number;
+            this.instruction = instruction;
+        }
+
+        /**
+         * @return Number of the step as printed by docker, starting at 0 or 1 depending on its version
+         */
+        @Exported
+        public int getNumber() {
+            return number;
+        }
+
+        @Exported
+        @Nonnull
+        public String getInstruction() {
+            return instruction;
+        }
+
+        /**
+         * @return Whether the layer was taken from the build cache
+         */
+        @Exported
+        public boolean isCached() {
+            return cached;
+        }
+
+        /**
+         * @return Short ID of the layer produced by the step, null if it was not reported
+         */
+        @Exported
+        @CheckForNull
+        public String getLayer() {
+            return layer;
+        }
+
+        @Exported
+        public long getDurationMillis() {
+            return durationMillis;
+        }
+
+        void setCached(boolean cached) {
+            this.cached = cached;
+        }
+
+        void setLayer(@Nonnull String layer) {
+            this.layer = layer;
+        }
+
+        void setDurationMillis(long durationMillis) {
+            this.durationMillis = durationMillis;
+        }
+    }
+
+    /**
+     * Slowest occurrences of a Dockerfile instruction over several builds.
+     */
+    @ExportedBean(defaultVisibility = 3)
+    public static final class InstructionStats {
+
+        private final String instruction;
+        private int count;
+        private int cacheHits;
+        private long totalMillis;
+        private long maxMillis;
+
+        InstructionStats(@Nonnull String instruction) {
+            this.instruction = instruction;
+        }
+
+        void add(@Nonnull Step step) {
+            count++;
+            if (step.cached) {
+                cacheHits++;
+            }
+            totalMillis += step.durationMillis;
+            maxMillis = Math.max(maxMillis, step.durationMillis);
+        }
+
+        @Exported
+        @Nonnull
+        public String getInstruction() {
+            return instruction;
+        }
+
+        /**
+         * @return Number of times the instruction was run
+         */
+        @Exported
+        public int getCount() {
+            return count;
+        }
+
+        @Exported
+        public int getCacheHits() {
+            return cacheHits;
+        }
+
+        @Exported
+        public long getAverageMillis() {
+            return count == 0 ? 0 : totalMillis / count;
+        }
+
+        @Exported
+        public long getMaxMillis() {
+            return maxMillis;
+        }
+    }
+
+    /**
+     * @return Image built, short or full ID, null if the build failed
+     */
+    @Exported
+    @CheckForNull
+    public String getImage() {
+        return image;
+    }
+
+    void setImage(@CheckForNull String image) {
+        this.image = image;
+    }
+
+    @Exported
+    @Nonnull
+    public List<Step> getSteps() {
+        return Collections.unmodifiableList(steps);
+    }
+
+    /**
+     * @return Number of steps whose layer was taken from the build cache
+     */
+    @Exported
+    public int getCacheHits() {
+        int hits = 0;
+        for (Step step : steps) {
+            if (step.cached) {
+                hits++;
+            }
+        }
+        return hits;
+    }
+
+    /**
+     * @return Share of the steps taken from the build cache, between 0 and 1
+     */
+    @Exported
+    public double getCacheHitRatio() {
+        return steps.isEmpty() ? 0 : (double) getCacheHits() / steps.size();
+    }
+
+    /**
+     * @return Total duration of the steps
+     */
+    @Exported
+    public long getDurationMillis() {
+        long total = 0;
+        for (Step step : steps) {
+            total += step.durationMillis;
+        }
+        return total;
+    }
+
+    /**
+     * @return The longest step, null if there is none
+     */
+    @CheckForNull
+    public Step getSlowestStep() {
+        Step slowest = null;
+        for (Step step : steps) {
+            if (slowest == null || step.durationMillis > slowest.durationMillis) {
+                slowest = step;
+            }
+        }
+        return slowest;
+    }
+
+    @Nonnull
+    Step start(int number, @Nonnull String instruction) {
+        Step step = new Step(number, instruction);
+        steps.add(step);
+        return step;
+    }
+
+    /**
+     * Aggregates the steps of several builds by instruction.
+     * @param timelines Builds to aggregate
+     * @param limit Maximum number of instructions returned
+     * @return Instructions with the highest maximum duration first
+     */
+    @Nonnull
+    static List<InstructionStats> slowestInstructions(@Nonnull Iterable<BuildTimeline> timelines, int limit) {
+        Map<String, InstructionStats> stats = new LinkedHashMap<String, InstructionStats>();
+        for (BuildTimeline timeline : timelines) {
+            for (Step step : timeline.steps) {
+                InstructionStats s = stats.get(step.instruction);
+                if (s == null) {
+                    s = new InstructionStats(step.instruction);
+                    stats.put(step.instruction, s);
+                }
+                s.add(step);
+            }
+        }
+        List<InstructionStats> result = new ArrayList<InstructionStats>(stats.values());
+        Collections.sort(result, new Comparator<InstructionStats>() {
+            @Override
+            public int compare(InstructionStats a, InstructionStats b) {
+                return Long.compare(b.maxMillis, a.maxMillis);
+            }
+        });
+        return result.size() > limit ? new ArrayList<InstructionStats>(result.subList(0, limit)) : result;
+    }
+}
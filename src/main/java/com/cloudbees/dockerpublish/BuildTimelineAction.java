@@ -0,0 +1,89 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.dockerpublish;
+
+import hudson.model.Action;
+import hudson.model.Api;
+import hudson.model.Run;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import javax.annotation.Nonnull;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Dockerfile steps of the images built by a build: {@code docker-build-steps/} and
+ * {@code docker-build-steps/api/json}, also part of the remote API of the build.
+ */
+@ExportedBean
+@Restricted(NoExternalUse.class)
+public class BuildTimelineAction implements Action {
+
+    private final List<BuildTimeline> timelines = new ArrayList<BuildTimeline>();
+
+    /**
+     * Records the steps of an image built by a build.
+     */
+    static void add(@Nonnull Run<?, ?> run, @Nonnull BuildTimeline timeline) {
+        synchronized (BuildTimelineAction.class) {
+            BuildTimelineAction action = run.getAction(BuildTimelineAction.class);
+            if (action == null) {
+                action = new BuildTimelineAction();
+                run.addAction(action);
+            }
+            action.timelines.add(timeline);
+        }
+    }
+
+    @Override
+    public String getIconFileName() {
+        return "notepad.png";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Docker Build Steps";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "docker-build-steps";
+    }
+
+    public Api getApi() {
+        return new Api(this);
+    }
+
+    /**
+     * @return Images built, in order
+     */
+    @Exported
+    @Nonnull
+    public List<BuildTimeline> getTimelines() {
+        return Collections.unmodifiableList(timelines);
+    }
+}
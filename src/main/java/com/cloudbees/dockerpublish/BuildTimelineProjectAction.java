@@ -0,0 +1,194 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.dockerpublish;
+
+import hudson.model.Action;
+import hudson.model.Api;
+import hudson.model.Job;
+import hudson.model.Run;
+import java.util.ArrayList;
+import java.util.List;
+import javax.annotation.Nonnull;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Trend of the Dockerfile steps over the last builds of a job, to find the instructions slowing them down:
+ * {@code docker-build-steps/} and {@code docker-build-steps/api/json}.
+ */
+@ExportedBean
+@Restricted(NoExternalUse.class)
+public class BuildTimelineProjectAction implements Action {
+
+    /**
+     * Number of builds looked at.
+     */
+    static final int MAX_BUILDS = Integer.getInteger(BuildTimelineProjectAction.class.getName() + ".maxBuilds", 20);
+
+    /**
+     * Number of instructions listed as the slowest.
+     */
+    static final int MAX_INSTRUCTIONS = 10;
+
+    /**
+     * Number of builds looked at to decide whether to show the link, the last ones being loaded anyway.
+     */
+    static final int ICON_BUILDS = 3;
+
+    private final Job<?, ?> job;
+
+    BuildTimelineProjectAction(@Nonnull Job<?, ?> job) {
+        this.job = job;
+    }
+
+    /**
+     * Steps of a build.
+     */
+    @ExportedBean(defaultVisibility = 2)
+    public static final class BuildEntry {
+        private final Run<?, ?> run;
+        private final List<BuildTimeline> timelines;
+
+        BuildEntry(@Nonnull Run<?, ?> run, @Nonnull List<BuildTimeline> timelines) {
+            this.run = run;
+            this.timelines = timelines;
+        }
+
+        @Exported
+        public int getNumber() {
+            return run.getNumber();
+        }
+
+        @Nonnull
+        public Run<?, ?> getRun() {
+            return run;
+        }
+
+        @Exported
+        public int getSteps() {
+            int steps = 0;
+            for (BuildTimeline timeline : timelines) {
+                steps += timeline.getSteps().size();
+            }
+            return steps;
+        }
+
+        @Exported
+        public int getCacheHits() {
+            int hits = 0;
+            for (BuildTimeline timeline : timelines) {
+                hits += timeline.getCacheHits();
+            }
+            return hits;
+        }
+
+        /**
+         * @return Share of the steps of all the images taken from the build cache, between 0 and 1
+         */
+        @Exported
+        public double getCacheHitRatio() {
+            int steps = getSteps();
+            return steps == 0 ? 0 : (double) getCacheHits() / steps;
+        }
+
+        @Exported
+        public long getDurationMillis() {
+            long total = 0;
+            for (BuildTimeline timeline : timelines) {
+                total += timeline.getDurationMillis();
+            }
+            return total;
+        }
+    }
+
+    /**
+     * @return Icon, or null to hide the link when none of the last builds built an image, ie. when the step was
+     * just added or always fails before building
+     */
+    @Override
+    public String getIconFileName() {
+        return hasRecentTimeline() ? "notepad.png" : null;
+    }
+
+    private boolean hasRecentTimeline() {
+        int n = 0;
+        for (Run<?, ?> run = job.getLastCompletedBuild(); run != null && n < ICON_BUILDS; run = run.getPreviousCompletedBuild(), n++) {
+            if (run.getAction(BuildTimelineAction.class) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Docker Build Steps Trend";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "docker-build-steps";
+    }
+
+    public Api getApi() {
+        return new Api(this);
+    }
+
+    @Nonnull
+    public Job<?, ?> getJob() {
+        return job;
+    }
+
+    /**
+     * @return Last builds which built images, newest first
+     */
+    @Exported
+    @Nonnull
+    public List<BuildEntry> getBuilds() {
+        List<BuildEntry> builds = new ArrayList<BuildEntry>();
+        int n = 0;
+        for (Run<?, ?> run = job.getLastCompletedBuild(); run != null && n < MAX_BUILDS; run = run.getPreviousCompletedBuild(), n++) {
+            BuildTimelineAction action = run.getAction(BuildTimelineAction.class);
+            if (action != null) {
+                builds.add(new BuildEntry(run, action.getTimelines()));
+            }
+        }
+        return builds;
+    }
+
+    /**
+     * @return Instructions of the last builds with the highest maximum duration first
+     */
+    @Exported
+    @Nonnull
+    public List<BuildTimeline.InstructionStats> getSlowestInstructions() {
+        List<BuildTimeline> timelines = new ArrayList<BuildTimeline>();
+        for (BuildEntry build : getBuilds()) {
+            timelines.addAll(build.timelines);
+        }
+        return BuildTimeline.slowestInstructions(timelines, MAX_INSTRUCTIONS);
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.dockerpublish;
+
+import hudson.remoting.VirtualChannel;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Serializable;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * Digest of everything a {@code docker build} depends on in the build context: the files sent to the daemon
+ * once the {@code .dockerignore} patterns are applied, the Dockerfile and the build arguments.
+ * <p>
+ * Content hashes are kept in an index next to the workspace and reused while the size and modification time
+ * of a file do not change, so only the files touched since the previous build are read again.
+ */
+final class ContextDigest implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final String INDEX_HEADER = "# docker-build-publish context index v1";
+
+    private final String digest;
+    private final int files;
+    private final int hashed;
+
+    private ContextDigest(String digest, int files, int hashed) {
+        this.digest = digest;
+        this.files = files;
+        this.hashed = hashed;
+    }
+
+    /**
+     * @return {@code sha256:} digest of the build inputs
+     */
+    @Nonnull
+    String getDigest() {
+        return digest;
+    }
+
+    /**
+     * @return Number of files in the context
+     */
+    int getFiles() {
+        return files;
+    }
+
+    /**
+     * @return Number of files whose content was read, the other hashes coming from the index
+     */
+    int getHashed() {
+        return hashed;
+    }
+
+    /**
+     * Computes the digest of a build context.
+     * @param context Build context directory
+     * @param dockerfile Dockerfile path relative to the build context, null for the default one
+     * @param buildArgs Build arguments affecting the image
+     * @param options Other build options affecting the image, ie. the daemon building it
+     * @param index File keeping the content hashes between builds, null to read every file
+     */
+    @Nonnull
+    static ContextDigest compute(@Nonnull File context, @CheckForNull String dockerfile, @Nonnull String buildArgs,
+                                 @Nonnull String options, @CheckForNull File index) throws IOException {
+        String dockerfilePath = DockerIgnore.clean(dockerfile != null ? dockerfile : "Dockerfile");
+        Map<String, Entry> previous = index != null ? readIndex(index) : new HashMap<String, Entry>();
+        Walk walk = new Walk(context, DockerIgnore.load(context), dockerfilePath, previous);
+        walk.update("dockerfile", dockerfilePath);
+        walk.update("args", buildArgs);
+        walk.update("options", options);
+        walk.walk(context, "");
+        // entries of deleted files are dropped as well
+        if (index != null && (walk.hashed > 0 || previous.size() != walk.entries.size())) {
+            writeIndex(index, walk.entries);
+        }
+        return new ContextDigest("sha256:" + toHex(walk.digest.digest()), walk.entries.size(), walk.hashed);
+    }
+
+    /**
+     * Hash of a file as recorded in the index.
+     */
+    private static final class Entry {
+        final long size;
+        final long modified;
+        final String hash;
+
+        Entry(long size, long modified, String hash) {
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
+        }
+    }
+
+    private static final class Walk {
+        private final File context;
+        private final DockerIgnore ignore;
+        private final String dockerfile;
+        private final Map<String, Entry> previous;
+        final Map<String, Entry> entries = new HashMap<String, Entry>();
+        final MessageDigest digest = sha256();
+        int hashed;
+
+        Walk(File context, DockerIgnore ignore, String dockerfile, Map<String, Entry> previous) {
+            this.context = context;
+            this.ignore = ignore;
+            this.dockerfile = dockerfile;
+            this.previous = previous;
+        }
+
+        void update(String kind, String value) {
+            digest.update(kind.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(value.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) '\n');
+        }
+
+        void walk(File dir, String prefix) throws IOException {
+            String[] names = dir.list();
+            if (names == null) {
+                return;
+            }
+            // the order must not depend on the file system
+            Arrays.sort(names);
+            for (String name : names) {
+                String path = prefix + name;
+                boolean ignored = ignore.isExcluded(path, dockerfile);
+                Path file = new File(dir, name).toPath();
+                BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                if (attributes.isSymbolicLink()) {
+                    if (!ignored) {
+                        update("link", path + "\u0000" + Files.readSymbolicLink(file));
+                    }
+                } else if (attributes.isDirectory()) {
+                    if (!ignored) {
+                        update("dir", path);
+                    }
+                    if (!ignored || ignore.isWalked(path, dockerfile)) {
+                        walk(file.toFile(), path + "/");
+                    }
+                } else if (!ignored) {
+                    long size = attributes.size();
+                    long modified = attributes.lastModifiedTime().toMillis();
+                    Entry entry = previous.get(path);
+                    if (entry == null || entry.size != size || entry.modified != modified) {
+                        entry = new Entry(size, modified, hash(file));
+                        hashed++;
+                    }
+                    entries.put(path, entry);
+                    update(file.toFile().canExecute() ? "exec" : "file", path + "\u0000" + entry.hash);
+                }
+            }
+        }
+    }
+
+    private static String hash(Path file) throws IOException {
+        MessageDigest digest = sha256();
+        byte[] buffer = new byte[64 * 1024];
+        InputStream in = Files.newInputStream(file);
+        try {
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        return toHex(digest.digest());
+    }
+
+    private static Map<String, Entry> readIndex(File index) {
+        Map<String, Entry> entries = new HashMap<String, Entry>();
+        if (!index.isFile()) {
+            return entries;
+        }
+        try {
+            BufferedReader reader = Files.newBufferedReader(index.toPath(), StandardCharsets.UTF_8);
+            try {
+                if (!INDEX_HEADER.equals(reader.readLine())) {
+                    return entries;
+                }
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    // hash size modified path, the path being last as it may contain spaces
+                    String[] fields = line.split(" ", 4);
+                    if (fields.length == 4) {
+                        entries.put(fields[3], new Entry(Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[0]));
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            // a broken index only means hashing the files again
+            entries.clear();
+        } catch (NumberFormatException e) {
+            entries.clear();
+        }
+        return entries;
+    }
+
+    private static void writeIndex(File index, Map<String, Entry> entries) throws IOException {
+        File parent = index.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Cannot create " + parent);
+        }
+        // concurrent builds of the job may share the index, replace it atomically
+        File tmp = File.createTempFile(index.getName(), ".tmp", parent);
+        try {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(tmp.toPath()), StandardCharsets.UTF_8));
+            try {
+                writer.write(INDEX_HEADER);
+                writer.write('\n');
+                for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                    Entry e = entry.getValue();
+                    writer.write(e.hash + " " + e.size + " " + e.modified + " " + entry.getKey() + "\n");
+                }
+            } finally {
+                writer.close();
+            }
+            Files.move(tmp.toPath(), index.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Computes the digest of the build context on the node running the build.
+     */
+    static final class Callable extends MasterToSlaveFileCallable<ContextDigest> {
+        private static final long serialVersionUID = 1L;
+        private final String dockerfile;
+        private final String buildArgs;
+        private final String options;
+        private final String index;
+
+        /**
+         * @param index Remote path of the index file, null to read every file
+         */
+        Callable(@CheckForNull String dockerfile, @Nonnull String buildArgs, @Nonnull String options, @CheckForNull String index) {
+            this.dockerfile = dockerfile;
+            this.buildArgs = buildArgs;
+            this.options = options;
+            this.index = index;
+        }
+
+        @Override
+        public ContextDigest invoke(File context, VirtualChannel channel) throws IOException {
+            return compute(context, dockerfile, buildArgs, options, index != null ? new File(index) : null);
+        }
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.dockerpublish;
+
+import hudson.model.TaskListener;
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nonnull;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Limits the number of builds and pushes running at the same time against a Docker daemon,
+ * across all the builds of the controller.
+ * Waiting builds are served in arrival order.
+ * A daemon is tracked while operations run or wait against it, so that the daemons of ephemeral agents are
+ * forgotten once idle.
+ */
+@Restricted(NoExternalUse.class)
+public final class DaemonGovernor {
+
+    private static final DaemonGovernor INSTANCE = new DaemonGovernor();
+
+    /**
+     * Operations limited separately.
+     */
+    public enum Operation {
+        BUILD, PUSH;
+
+        String label() {
+            return name().toLowerCase(Locale.ENGLISH);
+        }
+    }
+
+    private final ConcurrentMap<String, Lane> lanes = new ConcurrentHashMap<String, Lane>();
+
+    DaemonGovernor() {
+    }
+
+    @Nonnull
+    static DaemonGovernor get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Waits for a slot to run an operation against a daemon.
+     * @param daemon Key of the daemon, see {@link DockerBuilder}
+     * @param operation Operation to run
+     * @param limit Maximum number of these operations running at the same time against the daemon, 0 for no limit
+     * @param listener Build listener, told when the build has to wait
+     * @return Slot to be closed once the operation is over
+     */
+    @Nonnull
+    Slot acquire(@Nonnull String daemon, @Nonnull Operation operation, int limit, @Nonnull TaskListener listener) throws InterruptedException {
+        String key = daemon + '\n' + operation;
+        Lane lane;
+        do {
+            lane = lanes.get(key);
+            if (lane == null) {
+                Lane created = new Lane(daemon, operation);
+                lane = lanes.putIfAbsent(key, created);
+                if (lane == null) {
+                    lane = created;
+                }
+            }
+            // a lane removed meanwhile is replaced
+        } while (!lane.enter());
+        boolean acquired = false;
+        try {
+            long start = System.nanoTime();
+            if (!lane.tryAcquire(limit)) {
+                listener.getLogger().println("Waiting for daemon slot: " + lane.getRunning() + " "
+                        + operation.label() + "(s) running and " + lane.getQueued() + " waiting on " + daemon);
+                lane.acquire();
+                listener.getLogger().println("Got daemon slot after "
+                        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+            }
+            lane.acquired(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            acquired = true;
+            return new Slot(this, key, lane);
+        } finally {
+            if (!acquired) {
+                leave(key, lane);
+            }
+        }
+    }
+
+    /**
+     * Forgets a lane once no operation runs nor waits on it.
+     */
+    private void leave(String key, Lane lane) {
+        if (lane.exit()) {
+            lanes.remove(key, lane);
+        }
+    }
+
+    /**
+     * @return Number of operations running or waiting for a slot on a daemon
+     */
+    int getOutstanding(@Nonnull String daemon, @Nonnull Operation operation) {
+        Lane lane = lanes.get(daemon + '\n' + operation);
+        return lane == null ? 0 : lane.getRunning() + lane.getQueued();
+    }
+
+    /**
+     * @return Usage of each daemon, ordered by daemon and operation
+     */
+    @Nonnull
+    List<Lane> getLanes() {
+        List<Lane> result = new ArrayList<Lane>(lanes.values());
+        Collections.sort(result, new Comparator<Lane>() {
+            @Override
+            public int compare(Lane a, Lane b) {
+                int c = a.daemon.compareTo(b.daemon);
+                return c != 0 ? c : a.operation.compareTo(b.operation);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Operation running against a daemon.
+     */
+    static final class Slot implements Closeable {
+        private final DaemonGovernor governor;
+        private final String key;
+        private final Lane lane;
+        private boolean released;
+
+        private Slot(DaemonGovernor governor, String key, Lane lane) {
+            this.governor = governor;
+            this.key = key;
+            this.lane = lane;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (released) {
+                return;
+            }
+            released = true;
+            lane.release();
+            governor.leave(key, lane);
+        }
+    }
+
+    /**
+     * Usage of a daemon for an operation.
+     */
+    @ExportedBean(defaultVisibility = 2)
+    public static final class Lane {
+        private final String daemon;
+        private final Operation operation;
+        private int limit;
+        /** Operations running, including the ones started while there was no limit. Updated with the lane locked. */
+        private final AtomicInteger running = new AtomicInteger();
+        private final AtomicInteger queued = new AtomicInteger();
+        /** Operations waiting for a slot, in arrival order. */
+        private final Deque<Object> waiters = new ArrayDeque<Object>();
+        private final AtomicLong acquisitions = new AtomicLong();
+        private final AtomicLong totalWaitMillis = new AtomicLong();
+        private final AtomicLong maxWaitMillis = new AtomicLong();
+        /** Operations running or waiting, including the ones about to. Updated with the lane locked. */
+        private int users;
+        /** Whether the lane was removed, it cannot be used anymore. */
+        private boolean removed;
+
+        Lane(String daemon, Operation operation) {
+            this.daemon = daemon;
+            this.operation = operation;
+        }
+
+        /**
+         * Registers an operation about to run or wait.
+         * @return false if the lane was removed, another one has to be used
+         */
+        synchronized boolean enter() {
+            if (removed) {
+                return false;
+            }
+            users++;
+            return true;
+        }
+
+        /**
+         * Unregisters an operation which ran or gave up waiting.
+         * @return true if the lane is idle, it is then removed
+         */
+        synchronized boolean exit() {
+            if (--users == 0) {
+                removed = true;
+            }
+            return removed;
+        }
+
+        /**
+         * Applies the configured limit, which may change at any time.
+         * Running operations are not affected, the waiting ones are started if the new limit allows it.
+         */
+        synchronized void setLimit(int newLimit) {
+            limit = Math.max(0, newLimit);
+            notifyAll();
+        }
+
+        /**
+         * Starts an operation if no other one is waiting and the limit allows it.
+         * @param newLimit Configured limit, see {@link #setLimit}
+         * @return true if the operation was started
+         */
+        synchronized boolean tryAcquire(int newLimit) {
+            setLimit(newLimit);
+            if (waiters.isEmpty() && (limit == 0 || running.get() < limit)) {
+                running.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Waits for the operations which arrived earlier to start, then for the limit to allow one more operation.
+         */
+        synchronized void acquire() throws InterruptedException {
+            Object waiter = new Object();
+            waiters.add(waiter);
+            queued.incrementAndGet();
+            try {
+                while (waiters.peek() != waiter || (limit != 0 && running.get() >= limit)) {
+                    wait();
+                }
+                running.incrementAndGet();
+            } finally {
+                waiters.remove(waiter);
+                queued.decrementAndGet();
+                // the next waiter may start as well
+                notifyAll();
+            }
+        }
+
+        synchronized void release() {
+            running.decrementAndGet();
+            notifyAll();
+        }
+
+        void acquired(long waitMillis) {
+            acquisitions.incrementAndGet();
+            totalWaitMillis.addAndGet(waitMillis);
+            long max;
+            while ((max = maxWaitMillis.get()) < waitMillis && !maxWaitMillis.compareAndSet(max, waitMillis)) {
+                // retry
+            }
+        }
+
+        @Exported
+        public String getDaemon() {
+            return daemon;
+        }
+
+        @Exported
+        public String getOperation() {
+            return operation.label();
+        }
+
+        /**
+         * @return Maximum number of operations running at the same time, 0 for no limit
+         */
+        @Exported
+        public synchronized int getLimit() {
+            return limit;
+        }
+
+        @Exported
+        public int getRunning() {
+            return running.get();
+        }
+
+        /**
+         * @return Number of builds waiting for a slot
+         */
+        @Exported
+        public int getQueued() {
+            return queued.get();
+        }
+
+        @Exported
+        public long getAcquisitions() {
+            return acquisitions.get();
+        }
+
+        @Exported
+        public long getTotalWaitMillis() {
+            return totalWaitMillis.get();
+        }
+
+        @Exported
+        public long getAverageWaitMillis() {
+            long n = acquisitions.get();
+            return n == 0 ? 0 : totalWaitMillis.get() / n;
+        }
+
+        @Exported
+        public long getMaxWaitMillis() {
+            return maxWaitMillis.get();
+        }
+    }
+}
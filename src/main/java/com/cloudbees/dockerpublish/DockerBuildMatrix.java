@@ -0,0 +1,387 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.dockerpublish;
+
+import hudson.Extension;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.console.LineTransformationOutputStream;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.BuildListener;
+import hudson.model.StreamBuildListener;
+import hudson.tasks.BuildStepDescriptor;
+import hudson.tasks.Builder;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.FormValidation;
+import hudson.util.NamingThreadFactory;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import org.jenkinsci.plugins.docker.commons.credentials.DockerRegistryEndpoint;
+import org.jenkinsci.plugins.docker.commons.credentials.DockerServerEndpoint;
+import org.jenkinsci.plugins.tokenmacro.MacroEvaluationException;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+
+/**
+ * Builds and pushes several images in a single step.
+ * The images built from another image of the matrix, according to the {@code FROM} lines of their Dockerfile,
+ * are built after it. The other ones are built in parallel, and an image is pushed while the next ones build.
+ */
+public class DockerBuildMatrix extends Builder {
+
+    private final List<DockerImageSpec> images;
+    private int maxParallelBuilds = 2;
+    private DockerServerEndpoint server = new DockerServerEndpoint(null, null);
+    private DockerRegistryEndpoint registry = new DockerRegistryEndpoint(null, null);
+    @CheckForNull
+    private String dockerToolName;
+    private boolean noCache;
+    private boolean forcePull;
+    private boolean skipPush;
+    private boolean skipTagLatest;
+    private boolean createFingerprint = true;
+    private boolean useBuildKit;
+
+    @DataBoundConstructor
+    public DockerBuildMatrix(List<DockerImageSpec> images) {
+        this.images = images != null ? new ArrayList<DockerImageSpec>(images) : new ArrayList<DockerImageSpec>();
+    }
+
+    public List<DockerImageSpec> getImages() {
+        return Collections.unmodifiableList(images);
+    }
+
+    /**
+     * @return Maximum number of images built at the same time, pushes are not limited
+     */
+    public int getMaxParallelBuilds() {
+        return Math.max(1, maxParallelBuilds);
+    }
+
+    @DataBoundSetter
+    public void setMaxParallelBuilds(int maxParallelBuilds) {
+        this.maxParallelBuilds = maxParallelBuilds;
+    }
+
+    public DockerServerEndpoint getServer() {
+        return server;
+    }
+
+    @DataBoundSetter
+    public void setServer(DockerServerEndpoint server) {
+        this.server = server;
+    }
+
+    public DockerRegistryEndpoint getRegistry() {
+        return registry;
+    }
+
+    @DataBoundSetter
+    public void setRegistry(DockerRegistryEndpoint registry) {
+        this.registry = registry;
+    }
+
+    public String getDockerToolName() {
+        return dockerToolName;
+    }
+
+    @DataBoundSetter
+    public void setDockerToolName(String dockerToolName) {
+        this.dockerToolName = Util.fixEmpty(dockerToolName);
+    }
+
+    public boolean isNoCache() {
+        return noCache;
+    }
+
+    @DataBoundSetter
+    public void setNoCache(boolean noCache) {
+        this.noCache = noCache;
+    }
+
+    public boolean isForcePull() {
+        return forcePull;
+    }
+
+    @DataBoundSetter
+    public void setForcePull(boolean forcePull) {
+        this.forcePull = forcePull;
+    }
+
+    public boolean isSkipPush() {
+        return skipPush;
+    }
+
+    @DataBoundSetter
+    public void setSkipPush(boolean skipPush) {
+        this.skipPush = skipPush;
+    }
+
+    public boolean isSkipTagLatest() {
+        return skipTagLatest;
+    }
+
+    @DataBoundSetter
+    public void setSkipTagLatest(boolean skipTagLatest) {
+        this.skipTagLatest = skipTagLatest;
+    }
+
+    public boolean isCreateFingerprint() {
+        return createFingerprint;
+    }
+
+    @DataBoundSetter
+    public void setCreateFingerprint(boolean createFingerprint) {
+        this.createFingerprint = createFingerprint;
+    }
+
+    public boolean isUseBuildKit() {
+        return useBuildKit;
+    }
+
+    @DataBoundSetter
+    public void setUseBuildKit(boolean useBuildKit) {
+        this.useBuildKit = useBuildKit;
+    }
+
+    /**
+     * Outcome of the build and push of an image.
+     */
+    private static final class Outcome {
+        final int index;
+        final boolean result;
+
+        Outcome(int index, boolean result) {
+            this.index = index;
+            this.result = result;
+        }
+    }
+
+    /**
+     * Output of the build and push of an image, copied to the build log as it comes, each line prefixed by the image.
+     */
+    static final class PrefixedLog extends LineTransformationOutputStream {
+        private final PrintStream out;
+        private final Charset charset;
+        private volatile byte[] prefix = new byte[0];
+
+        PrefixedLog(@Nonnull PrintStream out, @Nonnull Charset charset) {
+            this.out = out;
+            this.charset = charset;
+        }
+
+        /**
+         * @param image Name of the image, once known
+         */
+        void setImage(@Nonnull String image) {
+            prefix = ("[" + image + "] ").getBytes(charset);
+        }
+
+        @Override
+        protected void eol(byte[] b, int len) throws IOException {
+            byte[] p = prefix;
+            byte[] line = new byte[p.length + len];
+            System.arraycopy(p, 0, line, 0, p.length);
+            System.arraycopy(b, 0, line, p.length, len);
+            // a single write so the lines of concurrent images do not interleave
+            out.write(line);
+        }
+    }
+
+    @Override
+    public boolean perform(final AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException {
+        int count = images.size();
+        if (count == 0) {
+            return true;
+        }
+        final List<DockerBuilder.Perform> performs = new ArrayList<DockerBuilder.Perform>();
+        final List<PrefixedLog> logs = new ArrayList<PrefixedLog>();
+        List<String> names = new ArrayList<String>();
+        List<List<String>> imageNames = new ArrayList<List<String>>();
+        List<List<String>> baseImages = new ArrayList<List<String>>();
+        try {
+            for (DockerImageSpec spec : images) {
+                PrefixedLog log = new PrefixedLog(listener.getLogger(), build.getCharset());
+                log.setImage(spec.getRepoName());
+                DockerBuilder.Perform perform = spec.toBuilder(this).prepare(build, launcher,
+                        new StreamBuildListener(log, build.getCharset()));
+                performs.add(perform);
+                logs.add(log);
+                List<String> tags = perform.getImageNames();
+                imageNames.add(tags);
+                names.add(tags.isEmpty() ? spec.getRepoName() : tags.get(0));
+                log.setImage(names.get(names.size() - 1));
+                baseImages.add(perform.getBaseImages());
+            }
+        } catch (IOException e) {
+            e.printStackTrace(listener.error("Cannot read the images of the matrix"));
+            return false;
+        } catch (MacroEvaluationException e) {
+            listener.error(e.getMessage());
+            return false;
+        }
+
+        final BuildGraph graph = BuildGraph.infer(imageNames, baseImages);
+        List<Integer> cycle = graph.findCycle();
+        if (cycle != null) {
+            List<String> cyclic = new ArrayList<String>();
+            for (int i : cycle) {
+                cyclic.add(names.get(i));
+            }
+            listener.error("The images are built from each other: " + cyclic);
+            return false;
+        }
+        for (int i = 0; i < count; i++) {
+            if (!graph.getDependencies(i).isEmpty()) {
+                List<String> dependencies = new ArrayList<String>();
+                for (int dependency : graph.getDependencies(i)) {
+                    dependencies.add(names.get(dependency));
+                }
+                listener.getLogger().println(names.get(i) + " is built after " + dependencies);
+            }
+        }
+        listener.getLogger().println("Building " + count + " images, " + getMaxParallelBuilds() + " at a time");
+
+        final Semaphore builds = new Semaphore(getMaxParallelBuilds());
+        final CountDownLatch[] built = new CountDownLatch[count];
+        final boolean[] builtOk = new boolean[count];
+        for (int i = 0; i < count; i++) {
+            built[i] = new CountDownLatch(1);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(count,
+                new NamingThreadFactory(new DaemonThreadFactory(), "DockerBuildMatrix " + build.getFullDisplayName()));
+        try {
+            CompletionService<Outcome> completion = new ExecutorCompletionService<Outcome>(executor);
+            for (int n = 0; n < count; n++) {
+                final int index = n;
+                completion.submit(new Callable<Outcome>() {
+                    @Override
+                    public Outcome call() throws Exception {
+                        BuildListener log = new StreamBuildListener(logs.get(index), build.getCharset());
+                        try {
+                            for (int dependency : graph.getDependencies(index)) {
+                                built[dependency].await();
+                                synchronized (builtOk) {
+                                    if (!builtOk[dependency]) {
+                                        log.error("Not built as an image it is built from failed");
+                                        return new Outcome(index, false);
+                                    }
+                                }
+                            }
+                            builds.acquire();
+                            final boolean[] released = new boolean[1];
+                            try {
+                                boolean result = performs.get(index).exec(new DockerBuilder.BuiltListener() {
+                                    @Override
+                                    public void built(boolean result) {
+                                        markBuilt(result);
+                                        released[0] = true;
+                                        // the next build starts while the image is pushed
+                                        builds.release();
+                                    }
+                                });
+                                return new Outcome(index, result);
+                            } finally {
+                                if (!released[0]) {
+                                    builds.release();
+                                }
+                            }
+                        } finally {
+                            markBuilt(false);
+                            // the last line may not be terminated
+                            logs.get(index).close();
+                        }
+                    }
+
+                    /**
+                     * Lets the images built from this one start, the first call wins.
+                     */
+                    private void markBuilt(boolean result) {
+                        synchronized (builtOk) {
+                            if (built[index].getCount() > 0) {
+                                builtOk[index] = result;
+                                built[index].countDown();
+                            }
+                        }
+                    }
+                });
+            }
+            boolean result = true;
+            for (int n = 0; n < count; n++) {
+                Outcome outcome;
+                try {
+                    outcome = completion.take().get();
+                } catch (ExecutionException e) {
+                    e.getCause().printStackTrace(listener.error("Docker build matrix failed"));
+                    return false;
+                }
+                if (!outcome.result) {
+                    listener.error(names.get(outcome.index) + " failed");
+                    result = false;
+                }
+            }
+            return result;
+        } finally {
+            // interrupts the builds still running if the step was aborted
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Descriptor for {@link DockerBuildMatrix}.
+     */
+    @Extension
+    public static final class DescriptorImpl extends BuildStepDescriptor<Builder> {
+
+        public FormValidation doCheckMaxParallelBuilds(@QueryParameter String value) {
+            return FormValidation.validatePositiveInteger(value);
+        }
+
+        @Override
+        public boolean isApplicable(Class<? extends AbstractProject> aClass) {
+            return true;
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Docker Build and Publish Matrix";
+        }
+    }
+}
@@ -0,0 +1,463 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.dockerpublish;
+
+import com.google.common.collect.ImmutableSet;
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import jenkins.util.Timer;
+import org.jenkinsci.Symbol;
+import org.jenkinsci.plugins.docker.commons.credentials.DockerRegistryEndpoint;
+import org.jenkinsci.plugins.docker.commons.credentials.DockerServerEndpoint;
+import org.jenkinsci.plugins.docker.commons.credentials.KeyMaterial;
+import org.jenkinsci.plugins.docker.commons.fingerprint.DockerFingerprints;
+import org.jenkinsci.plugins.docker.commons.tools.DockerTool;
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+/**
+ * Pipeline step building, tagging and pushing an image, ie. {@code def image = dockerBuildPublish repoName: 'acme/app'}.
+ * The docker commands run on the agent and the step waits for them without holding a controller thread.
+ * Unlike {@link DockerBuilder}, the tags are pushed one after another even if the registry has them, with the CLI
+ * rather than the Engine API, and the per-daemon limits do not apply: see the help of the step.
+ * Returns a map with the {@code imageId}, its {@code parent}, the {@code tags} and the {@code digests} of the
+ * pushed tags by tag.
+ */
+public class DockerBuildStep extends Step {
+
+    private static final Logger logger = Logger.getLogger(DockerBuildStep.class.getName());
+
+    /**
+     * Delay between two checks of the agent, in milliseconds.
+     */
+    static final long POLL_MILLIS = 1000;
+
+    private final String repoName;
+    @CheckForNull
+    private String repoTag;
+    @CheckForNull
+    private String buildContext;
+    @CheckForNull
+    private String dockerfilePath;
+    private String buildAdditionalArgs = "";
+    private boolean noCache;
+    private boolean forcePull;
+    private boolean skipPush;
+    private boolean skipTagLatest;
+    private boolean createFingerprint = true;
+    private boolean useBuildKit;
+    @CheckForNull
+    private String cacheFrom;
+    @CheckForNull
+    private String cacheTo;
+    @CheckForNull
+    private Integer pushRetries;
+    private DockerServerEndpoint server = new DockerServerEndpoint(null, null);
+    private DockerRegistryEndpoint registry = new DockerRegistryEndpoint(null, null);
+    @CheckForNull
+    private String dockerToolName;
+
+    @DataBoundConstructor
+    public DockerBuildStep(String repoName) {
+        this.repoName = repoName;
+    }
+
+    public String getRepoName() {
+        return repoName;
+    }
+
+    public String getRepoTag() {
+        return repoTag;
+    }
+
+    @DataBoundSetter
+    public void setRepoTag(String repoTag) {
+        this.repoTag = Util.fixEmptyAndTrim(repoTag);
+    }
+
+    public String getBuildContext() {
+        return buildContext;
+    }
+
+    @DataBoundSetter
+    public void setBuildContext(String buildContext) {
+        this.buildContext = Util.fixEmptyAndTrim(buildContext);
+    }
+
+    public String getDockerfilePath() {
+        return dockerfilePath;
+    }
+
+    @DataBoundSetter
+    public void setDockerfilePath(String dockerfilePath) {
+        this.dockerfilePath = Util.fixEmptyAndTrim(dockerfilePath);
+    }
+
+    public String getBuildAdditionalArgs() {
+        return buildAdditionalArgs == null ? "" : buildAdditionalArgs;
+    }
+
+    @DataBoundSetter
+    public void setBuildAdditionalArgs(String buildAdditionalArgs) {
+        this.buildAdditionalArgs = Util.fixNull(buildAdditionalArgs);
+    }
+
+    public boolean isNoCache() {
+        return noCache;
+    }
+
+    @DataBoundSetter
+    public void setNoCache(boolean noCache) {
+        this.noCache = noCache;
+    }
+
+    public boolean isForcePull() {
+        return forcePull;
+    }
+
+    @DataBoundSetter
+    public void setForcePull(boolean forcePull) {
+        this.forcePull = forcePull;
+    }
+
+    public boolean isSkipPush() {
+        return skipPush;
+    }
+
+    @DataBoundSetter
+    public void setSkipPush(boolean skipPush) {
+        this.skipPush = skipPush;
+    }
+
+    public boolean isSkipTagLatest() {
+        return skipTagLatest;
+    }
+
+    @DataBoundSetter
+    public void setSkipTagLatest(boolean skipTagLatest) {
+        this.skipTagLatest = skipTagLatest;
+    }
+
+    public boolean isCreateFingerprint() {
+        return createFingerprint;
+    }
+
+    @DataBoundSetter
+    public void setCreateFingerprint(boolean createFingerprint) {
+        this.createFingerprint = createFingerprint;
+    }
+
+    public boolean isUseBuildKit() {
+        return useBuildKit;
+    }
+
+    @DataBoundSetter
+    public void setUseBuildKit(boolean useBuildKit) {
+        this.useBuildKit = useBuildKit;
+    }
+
+    public String getCacheFrom() {
+        return cacheFrom;
+    }
+
+    @DataBoundSetter
+    public void setCacheFrom(String cacheFrom) {
+        this.cacheFrom = Util.fixEmptyAndTrim(cacheFrom);
+    }
+
+    public String getCacheTo() {
+        return cacheTo;
+    }
+
+    @DataBoundSetter
+    public void setCacheTo(String cacheTo) {
+        this.cacheTo = Util.fixEmptyAndTrim(cacheTo);
+    }
+
+    /**
+     * @return Number of times a push failing because of the registry or the network is retried
+     */
+    public int getPushRetries() {
+        return pushRetries != null ? Math.max(0, pushRetries) : DockerBuilder.DEFAULT_PUSH_RETRIES;
+    }
+
+    @DataBoundSetter
+    public void setPushRetries(int pushRetries) {
+        this.pushRetries = pushRetries;
+    }
+
+    public DockerServerEndpoint getServer() {
+        return server;
+    }
+
+    @DataBoundSetter
+    public void setServer(DockerServerEndpoint server) {
+        this.server = server;
+    }
+
+    public DockerRegistryEndpoint getRegistry() {
+        return registry;
+    }
+
+    @DataBoundSetter
+    public void setRegistry(DockerRegistryEndpoint registry) {
+        this.registry = registry;
+    }
+
+    public String getDockerToolName() {
+        return dockerToolName;
+    }
+
+    @DataBoundSetter
+    public void setDockerToolName(String dockerToolName) {
+        this.dockerToolName = Util.fixEmpty(dockerToolName);
+    }
+
+    @Override
+    public StepExecution start(StepContext context) throws Exception {
+        return new Execution(this, context);
+    }
+
+    /**
+     * Starts the build on the agent and checks for its completion from a timer, so that no thread waits for it.
+     * A build cannot survive a restart of Jenkins, the step then fails.
+     */
+    static final class Execution extends StepExecution {
+
+        private static final long serialVersionUID = 1L;
+
+        private final transient DockerBuildStep step;
+        private transient volatile Future<AgentBuild.Outcome> outcome;
+        private transient volatile KeyMaterial keys;
+        private transient boolean stopped;
+
+        Execution(@Nonnull DockerBuildStep step, @Nonnull StepContext context) {
+            super(context);
+            this.step = step;
+        }
+
+        /**
+         * Resolves the docker tool and the credentials from a background thread: installing the tool or logging
+         * in the registry runs on the agent, the Pipeline thread does not wait for it.
+         */
+        @Override
+        public boolean start() throws Exception {
+            Computer.threadPoolForRemoting.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        launch();
+                    } catch (Exception e) {
+                        closeKeys();
+                        getContext().onFailure(e);
+                    }
+                }
+            });
+            return false;
+        }
+
+        /**
+         * Starts the build on the agent once the tool and the credentials are ready.
+         */
+        private void launch() throws Exception {
+            Run<?, ?> run = getContext().get(Run.class);
+            FilePath workspace = getContext().get(FilePath.class);
+            Launcher launcher = getContext().get(Launcher.class);
+            TaskListener listener = getContext().get(TaskListener.class);
+            EnvVars env = getContext().get(EnvVars.class);
+            VirtualChannel channel = workspace.getChannel();
+
+            StepPlan plan = new StepPlan(step.getRegistry().imageName(step.getRepoName()), step.getRepoTag(),
+                    !step.isSkipTagLatest(), step.getBuildContext(), step.getDockerfilePath(),
+                    step.getBuildAdditionalArgs(), step.getRegistry().getEffectiveUrl().toString(),
+                    step.getCacheFrom(), step.getCacheTo());
+            String executable = dockerExecutable(workspace, listener, env);
+            keys = step.getRegistry().newKeyMaterialFactory(run, workspace, launcher, env, listener, executable)
+                    .plus(step.getServer().newKeyMaterialFactory(run, channel))
+                    .materialize();
+            EnvVars commandEnv = new EnvVars(env);
+            commandEnv.putAll(keys.env());
+            FilePath context = plan.getBuildContext() != null ? workspace.child(plan.getBuildContext()) : workspace;
+            synchronized (this) {
+                if (stopped) {
+                    // the failure was already reported
+                    closeKeys();
+                    return;
+                }
+                outcome = channel.callAsync(new AgentBuild(executable, commandEnv, workspace, plan, context,
+                        step.isNoCache(), step.isForcePull(), step.isUseBuildKit(), !step.isSkipPush(), new PushRetry(step.getPushRetries()), listener));
+            }
+            schedule();
+        }
+
+        private String dockerExecutable(FilePath workspace, TaskListener listener, EnvVars env) throws IOException, InterruptedException {
+            String toolName = step.getDockerToolName();
+            if (toolName == null) {
+                return "docker";
+            }
+            Computer computer = workspace.toComputer();
+            Node node = computer != null ? computer.getNode() : null;
+            String executable = ExecutableCache.get(toolName, node);
+            if (executable == null) {
+                executable = DockerTool.getExecutable(toolName, node, listener, env);
+                ExecutableCache.put(toolName, node, executable);
+            }
+            return executable;
+        }
+
+        private void schedule() {
+            Timer.get().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    check();
+                }
+            }, POLL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Completes the step if the build is over, checks again later otherwise.
+         */
+        private void check() {
+            Future<AgentBuild.Outcome> future = outcome;
+            if (future == null || future.isCancelled()) {
+                return; // stopped
+            }
+            if (!future.isDone()) {
+                schedule();
+                return;
+            }
+            try {
+                AgentBuild.Outcome result = future.get();
+                closeKeys();
+                if (!result.result) {
+                    getContext().onFailure(new AbortException("Docker build and publish of " + step.getRepoName() + " failed"));
+                    return;
+                }
+                if (step.isCreateFingerprint() && result.imageId != null) {
+                    DockerFingerprints.addFromFacet(Util.fixEmpty(result.parent), result.imageId, getContext().get(Run.class));
+                }
+                getContext().onSuccess(toMap(result));
+            } catch (ExecutionException e) {
+                closeKeys();
+                getContext().onFailure(e.getCause());
+            } catch (Exception e) {
+                closeKeys();
+                getContext().onFailure(e);
+            }
+        }
+
+        @Override
+        public void stop(@Nonnull Throwable cause) throws Exception {
+            Future<AgentBuild.Outcome> future;
+            synchronized (this) {
+                stopped = true;
+                future = outcome;
+            }
+            if (future != null) {
+                // interrupts the docker command on the agent
+                future.cancel(true);
+            }
+            closeKeys();
+            getContext().onFailure(cause);
+        }
+
+        @Override
+        public void onResume() {
+            getContext().onFailure(new AbortException("The docker build was interrupted by a restart of Jenkins"));
+        }
+
+        private void closeKeys() {
+            KeyMaterial k = keys;
+            keys = null;
+            if (k != null) {
+                try {
+                    k.close();
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Failed to clean up Docker credentials", e);
+                }
+            }
+        }
+
+        @Override
+        public String getStatus() {
+            Future<AgentBuild.Outcome> future = outcome;
+            return future == null ? "resolving the docker tool and the credentials" : future.isDone() ? "completed" : "running docker on the agent";
+        }
+
+        private static Map<String, Object> toMap(AgentBuild.Outcome result) {
+            Map<String, Object> map = new HashMap<String, Object>();
+            map.put("imageId", result.imageId);
+            map.put("parent", result.parent);
+            map.put("tags", new ArrayList<String>(result.tags));
+            map.put("digests", new LinkedHashMap<String, String>(result.digests));
+            return map;
+        }
+    }
+
+    @Extension
+    @Symbol("dockerBuildPublish")
+    public static class DescriptorImpl extends StepDescriptor {
+
+        @Override
+        public Set<? extends Class<?>> getRequiredContext() {
+            return ImmutableSet.of(Run.class, FilePath.class, Launcher.class, TaskListener.class, EnvVars.class);
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "dockerBuildPublish";
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Docker Build and Publish";
+        }
+    }
+}
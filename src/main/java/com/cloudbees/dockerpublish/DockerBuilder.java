@@ -2,42 +2,69 @@ package com.cloudbees.dockerpublish;
 
 import com.cloudbees.dockerpublish.DockerCLIHelper.InspectImageResponse;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import hudson.AbortException;
 import hudson.DescriptorExtensionList;
 import hudson.EnvVars;
 import hudson.Extension;
 import hudson.FilePath;
+import hudson.Functions;
 import hudson.Launcher;
 import hudson.Util;
+import hudson.model.Action;
 import hudson.model.BuildListener;
 import hudson.model.Node;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
+import hudson.remoting.VirtualChannel;
+import hudson.slaves.WorkspaceList;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
 import hudson.tools.ToolDescriptor;
 import hudson.tools.ToolInstallation;
+import hudson.util.DaemonThreadFactory;
 import hudson.util.FormValidation;
+import hudson.util.NamingThreadFactory;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectStreamException;
 import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
 
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import javax.servlet.ServletException;
+import net.sf.json.JSONObject;
 
+import org.apache.commons.io.output.CloseShieldOutputStream;
 import org.apache.commons.io.output.TeeOutputStream;
 import org.jenkinsci.plugins.docker.commons.credentials.KeyMaterial;
+import org.jenkinsci.plugins.docker.commons.credentials.KeyMaterialFactory;
 import org.jenkinsci.plugins.docker.commons.credentials.DockerRegistryEndpoint;
+import org.jenkinsci.plugins.docker.commons.credentials.DockerRegistryToken;
 import org.jenkinsci.plugins.docker.commons.credentials.DockerServerEndpoint;
 import org.jenkinsci.plugins.docker.commons.fingerprint.DockerFingerprints;
 import org.jenkinsci.plugins.docker.commons.tools.DockerTool;
@@ -48,6 +75,7 @@ import org.kohsuke.accmod.restrictions.NoExternalUse;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
 
 
 /**
@@ -58,9 +86,34 @@ import org.kohsuke.stapler.QueryParameter;
  */
 public class DockerBuilder extends Builder {
 
-    private static final Logger logger = Logger.getLogger(DockerBuilder.class.getName());
+    /**
+     * Time given to a daemon of the server pool to answer.
+     */
+    private static final long HEALTH_CHECK_TIMEOUT_SECONDS = Long.getLong(DockerBuilder.class.getName() + ".healthCheckTimeout", 10);
+
+    /**
+     * Maximum number of base images pulled at the same time.
+     */
+    private static final int MAX_CONCURRENT_PULLS = 4;
+
+    /**
+     * Size of the output of a concurrent push or pull kept until it is printed.
+     */
+    private static final long MAX_SECTION_BYTES = 10 * 1024 * 1024;
+
+    /**
+     * Time given to the concurrent pushes to stop once cancelled, before their output is printed.
+     */
+    private static final long CANCEL_TIMEOUT_SECONDS = 30;
+
+    static final int DEFAULT_PUSH_RETRIES = 3;
+
+    /**
+     * Directory of the build keeping the raw output of the commands until it is archived.
+     */
+    private static final String RAW_LOG_DIR = "docker-raw-logs";
 
-    private static final Pattern IMAGE_BUILT_PATTERN = Pattern.compile("Successfully built ([0-9a-f]{12,})");
+    private static final Logger logger = Logger.getLogger(DockerBuilder.class.getName());
 
     private DockerServerEndpoint server;
     private DockerRegistryEndpoint registry;
@@ -80,6 +133,29 @@ public class DockerBuilder extends Builder {
     private boolean skipTagLatest;
     private String buildAdditionalArgs = "";
     private boolean forceTag = false;
+    private int pushConcurrency = 1;
+    @CheckForNull
+    private Integer pushRetries;
+    private boolean useEngineApi;
+    private boolean skipUnchangedBuild;
+    private boolean skipUnchangedPush;
+    private boolean minimalContext;
+    private boolean fullProgressLog;
+    private boolean archiveRawLog;
+    private boolean compactDecorate;
+    private boolean registryRetag;
+    @CheckForNull
+    private String retagSource;
+    @CheckForNull
+    private List<DockerServerEndpoint> additionalServers;
+    @CheckForNull
+    private ServerSelectionStrategy serverSelection;
+    private boolean useBuildKit;
+    @CheckForNull
+    private String cacheFrom;
+    @CheckForNull
+    private String cacheTo;
+    private boolean inlineCache;
     
     @CheckForNull
     private String dockerToolName;
@@ -234,6 +310,186 @@ public class DockerBuilder extends Builder {
         this.forceTag = forceTag;
     }
     
+    /**
+     * @return Number of tags pushed in parallel, 1 when they are pushed one after another
+     */
+    public int getPushConcurrency() {
+        return Math.max(1, pushConcurrency);
+    }
+
+    @DataBoundSetter
+    public void setPushConcurrency(int pushConcurrency) {
+        this.pushConcurrency = pushConcurrency;
+    }
+
+    /**
+     * @return Number of times a push failing because of the registry or the network is retried
+     */
+    public int getPushRetries() {
+        return pushRetries != null ? Math.max(0, pushRetries) : DEFAULT_PUSH_RETRIES;
+    }
+
+    @DataBoundSetter
+    public void setPushRetries(int pushRetries) {
+        this.pushRetries = pushRetries;
+    }
+
+    public boolean isUseEngineApi() {
+        return useEngineApi;
+    }
+
+    @DataBoundSetter
+    public void setUseEngineApi(boolean useEngineApi) {
+        this.useEngineApi = useEngineApi;
+    }
+
+    /**
+     * @return Servers the builds are spread over together with {@link #getServer()}
+     */
+    @Nonnull
+    public List<DockerServerEndpoint> getAdditionalServers() {
+        return additionalServers != null ? additionalServers : Collections.<DockerServerEndpoint>emptyList();
+    }
+
+    @DataBoundSetter
+    public void setAdditionalServers(@CheckForNull List<DockerServerEndpoint> additionalServers) {
+        this.additionalServers = additionalServers == null || additionalServers.isEmpty() ? null
+                : new ArrayList<DockerServerEndpoint>(additionalServers);
+    }
+
+    /**
+     * @return How a server of the pool is chosen when there are additional servers
+     */
+    @Nonnull
+    public ServerSelectionStrategy getServerSelection() {
+        return serverSelection != null ? serverSelection : new ServerSelectionStrategy.LeastOutstandingBuilds();
+    }
+
+    @DataBoundSetter
+    public void setServerSelection(@CheckForNull ServerSelectionStrategy serverSelection) {
+        this.serverSelection = serverSelection;
+    }
+
+    public boolean isUseBuildKit() {
+        return useBuildKit;
+    }
+
+    @DataBoundSetter
+    public void setUseBuildKit(boolean useBuildKit) {
+        this.useBuildKit = useBuildKit;
+    }
+
+    /**
+     * @return BuildKit cache sources separated by white space, ie. {@code type=registry,ref=acme/app:cache}
+     */
+    @CheckForNull
+    public String getCacheFrom() {
+        return cacheFrom;
+    }
+
+    @DataBoundSetter
+    public void setCacheFrom(String cacheFrom) {
+        this.cacheFrom = Util.fixEmptyAndTrim(cacheFrom);
+    }
+
+    /**
+     * @return BuildKit cache destinations separated by white space, ie. {@code type=local,dest=/var/cache/buildkit}
+     */
+    @CheckForNull
+    public String getCacheTo() {
+        return cacheTo;
+    }
+
+    @DataBoundSetter
+    public void setCacheTo(String cacheTo) {
+        this.cacheTo = Util.fixEmptyAndTrim(cacheTo);
+    }
+
+    public boolean isInlineCache() {
+        return inlineCache;
+    }
+
+    @DataBoundSetter
+    public void setInlineCache(boolean inlineCache) {
+        this.inlineCache = inlineCache;
+    }
+
+    public boolean isRegistryRetag() {
+        return registryRetag;
+    }
+
+    @DataBoundSetter
+    public void setRegistryRetag(boolean registryRetag) {
+        this.registryRetag = registryRetag;
+    }
+
+    /**
+     * @return Tag or digest copied to the tags by {@link #isRegistryRetag}, null for {@code latest}
+     */
+    @CheckForNull
+    public String getRetagSource() {
+        return retagSource;
+    }
+
+    @DataBoundSetter
+    public void setRetagSource(String retagSource) {
+        this.retagSource = Util.fixEmptyAndTrim(retagSource);
+    }
+
+    public boolean isCompactDecorate() {
+        return compactDecorate;
+    }
+
+    @DataBoundSetter
+    public void setCompactDecorate(boolean compactDecorate) {
+        this.compactDecorate = compactDecorate;
+    }
+
+    public boolean isSkipUnchangedBuild() {
+        return skipUnchangedBuild;
+    }
+
+    @DataBoundSetter
+    public void setSkipUnchangedBuild(boolean skipUnchangedBuild) {
+        this.skipUnchangedBuild = skipUnchangedBuild;
+    }
+
+    public boolean isSkipUnchangedPush() {
+        return skipUnchangedPush;
+    }
+
+    @DataBoundSetter
+    public void setSkipUnchangedPush(boolean skipUnchangedPush) {
+        this.skipUnchangedPush = skipUnchangedPush;
+    }
+
+    public boolean isMinimalContext() {
+        return minimalContext;
+    }
+
+    @DataBoundSetter
+    public void setMinimalContext(boolean minimalContext) {
+        this.minimalContext = minimalContext;
+    }
+
+    public boolean isFullProgressLog() {
+        return fullProgressLog;
+    }
+
+    @DataBoundSetter
+    public void setFullProgressLog(boolean fullProgressLog) {
+        this.fullProgressLog = fullProgressLog;
+    }
+
+    public boolean isArchiveRawLog() {
+        return archiveRawLog;
+    }
+
+    @DataBoundSetter
+    public void setArchiveRawLog(boolean archiveRawLog) {
+        this.archiveRawLog = archiveRawLog;
+    }
+
     public String getDockerToolName() {
 		return dockerToolName;
 	}
@@ -257,30 +513,158 @@ public class DockerBuilder extends Builder {
         return s != null && !s.trim().isEmpty();
     }
     
+    @Override
+    public Action getProjectAction(AbstractProject<?, ?> project) {
+        return new BuildTimelineProjectAction(project);
+    }
+
     @Override
     public boolean perform(AbstractBuild build, Launcher launcher, BuildListener listener)  {
-        return new Perform(build, launcher, listener).exec();
+        return new Perform(build, launcher, listener).exec(null);
+    }
+
+    /**
+     * Prepares a run of the step, for {@link DockerBuildMatrix} which runs several of them concurrently.
+     */
+    @Nonnull
+    Perform prepare(@Nonnull AbstractBuild<?, ?> build, @Nonnull Launcher launcher, @Nonnull BuildListener listener) {
+        return new Perform(build, launcher, listener);
+    }
+
+    /**
+     * Notified by a run of the step once its image is built and tagged, before it is pushed.
+     */
+    interface BuiltListener {
+        /**
+         * @param result Whether the image was built and tagged
+         */
+        void built(boolean result);
     }
     
     private static class Result {
         final boolean result;
+        final @CheckForNull String imageBuilt;
+        final @Nonnull BuildTimeline timeline;
         final @Nonnull String stdout;
         final @Nonnull String stderr;
 
         private Result() {
-            this(true, "", "");
+            this.result = true;
+            this.imageBuilt = null;
+            this.timeline = new BuildTimeline();
+            this.stdout = "";
+            this.stderr = "";
+        }
+
+        private Result(boolean result, @Nonnull DockerOutputParser stdout, @Nonnull DockerOutputParser stderr) {
+            this.result = result;
+            this.imageBuilt = stdout.getImageBuilt();
+            // BuildKit writes its progress to stderr
+            this.timeline = stdout.getTimeline().getSteps().isEmpty() ? stderr.getTimeline() : stdout.getTimeline();
+            this.stdout = stdout.getTail();
+            this.stderr = stderr.getTail();
+        }
+    }
+
+    /**
+     * Output of a command run concurrently with others, spooled to a temporary file of the controller until it is
+     * printed. The output above {@link #MAX_SECTION_BYTES} is counted and omitted.
+     */
+    private static class Section {
+        final @Nonnull String cmd;
+        private final File spool;
+        private final OutputStream out;
+        private long written;
+        private long omitted;
+        private volatile boolean complete;
+        private volatile boolean result;
+        private boolean printed;
+        private boolean discarded;
+
+        Section(@Nonnull String cmd) throws IOException {
+            this.cmd = cmd;
+            this.spool = File.createTempFile("docker-section", ".log");
+            this.out = new FileOutputStream(spool);
+        }
+
+        /**
+         * @return Stream receiving the output of the command
+         */
+        OutputStream getLog() {
+            return new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[] {(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    synchronized (Section.this) {
+                        int kept = (int) Math.min(MAX_SECTION_BYTES - written, len);
+                        out.write(b, off, kept);
+                        written += kept;
+                        omitted += len - kept;
+                    }
+                }
+            };
         }
 
-        private Result(boolean result, @CheckForNull String stdout, @CheckForNull String stderr) {
+        /**
+         * Records the outcome of the command.
+         */
+        void complete(boolean result) {
             this.result = result;
-            this.stdout = hudson.Util.fixNull(stdout);
-                this.stderr = hudson.Util.fixNull(stderr);
+            this.complete = true;
+        }
+
+        boolean isComplete() {
+            return complete;
+        }
+
+        boolean getResult() {
+            return result;
+        }
+
+        /**
+         * Prints the output received so far, marking it as cancelled if the command did not complete.
+         */
+        synchronized void print(PrintStream logger) throws IOException {
+            if (discarded) {
+                return;
+            }
+            printed = true;
+            logger.println("--- docker " + cmd + (complete ? "" : " (cancelled)") + " ---");
+            Files.copy(spool.toPath(), logger);
+            if (omitted > 0) {
+                // the kept output may end in the middle of a line
+                logger.println();
+                logger.println("[" + omitted + " bytes of output omitted]");
+            }
+        }
+
+        synchronized boolean isPrinted() {
+            return printed;
+        }
+
+        /**
+         * Deletes the spooled output.
+         */
+        synchronized void discard() {
+            discarded = true;
+            try {
+                out.close();
+            } catch (IOException e) {
+                // only the spool is lost
+            }
+            if (!spool.delete()) {
+                spool.deleteOnExit();
+            }
         }
     }
 
     @CheckForNull
     static String getImageBuiltFromStdout(CharSequence stdout) {
-        Matcher m = IMAGE_BUILT_PATTERN.matcher(stdout);
+        Matcher m = DockerOutputParser.IMAGE_BUILT_PATTERN.matcher(stdout);
         String lastmatch = null;
         while (m.find()) {
             lastmatch = m.group(1);
@@ -288,28 +672,134 @@ public class DockerBuilder extends Builder {
         return lastmatch;
     }
     
-    private class Perform {
+    /**
+     * Assembles the arguments of {@code docker build}.
+     * @param iidFile File receiving the image ID, null if none
+     * @param context Build context path
+     */
+    @Nonnull
+    static String buildCommand(@Nonnull StepPlan plan, @Nonnull ImageTag tag, boolean noCache, boolean pull,
+                               @CheckForNull String iidFile, @Nonnull String context) {
+        return "build " + plan.getBuildAdditionalArgs() + " -t " + tag
+            + ((noCache) ? " --no-cache=true " : "") + " "
+            + ((pull) ? " --pull=true " : "") + " "
+            + (plan.getDockerfilePath() != null ? " --file=" + plan.getDockerfilePath() : "") + " "
+            + (iidFile != null ? " --iidfile '" + iidFile + "' " : "")
+            + "'" + context + "'";
+    }
+
+    /**
+     * Assembles the arguments of {@code docker buildx build}.
+     * The image is loaded in the daemon to be tagged and pushed like the ones built by {@code docker build}.
+     * @param inlineCache Whether the cache metadata is embedded in the image, to be used as a cache source once pushed
+     * @param metadataFile File receiving the build metadata, null if none
+     * @param context Build context path
+     */
+    @Nonnull
+    static String buildxCommand(@Nonnull StepPlan plan, @Nonnull ImageTag tag, boolean noCache, boolean pull,
+                                boolean inlineCache, @CheckForNull String metadataFile, @Nonnull String context) {
+        StringBuilder cmd = new StringBuilder("buildx build --load --progress=plain ")
+            .append(plan.getBuildAdditionalArgs()).append(" -t ").append(tag)
+            .append(noCache ? " --no-cache" : "")
+            .append(pull ? " --pull" : "")
+            .append(plan.getDockerfilePath() != null ? " --file=" + plan.getDockerfilePath() : "");
+        for (String spec : plan.getCacheFrom()) {
+            cmd.append(" --cache-from '").append(spec).append('\'');
+        }
+        for (String spec : plan.getCacheTo()) {
+            cmd.append(" --cache-to '").append(spec).append('\'');
+        }
+        if (inlineCache && !plan.getCacheTo().contains("type=inline")) {
+            cmd.append(" --cache-to type=inline");
+        }
+        if (metadataFile != null) {
+            cmd.append(" --metadata-file '").append(metadataFile).append('\'');
+        }
+        return cmd.append(" '").append(context).append('\'').toString();
+    }
+
+    class Perform {
         private final AbstractBuild build;
         private final Launcher launcher;
         private final BuildListener listener;
+        private final KeyMaterialSession credentials;
+        private final Charset charset;
+        private final PhaseTimer timer = new PhaseTimer();
+        private StepPlan plan;
+        @CheckForNull
+        private Dockerfile dockerfile;
+        @CheckForNull
+        private FingerprintBatch fingerprints;
+        @CheckForNull
+        private String dockerExecutable;
+        private DockerClient client;
+        /** ID of the image built and tagged, null if unknown. */
+        @CheckForNull
+        private String builtImage;
+        /** Names of the raw output files to archive. */
+        private final List<String> rawLogs = new ArrayList<String>();
+        private DockerServerEndpoint selectedServer;
+        private boolean serverSelected;
 
         private Perform(AbstractBuild build, Launcher launcher, BuildListener listener) {
             this.build = build;
             this.launcher = launcher;
             this.listener = listener;
+            // resolved on the executor thread, commands may run on other threads
+            this.charset = DockerCLIHelper.getConsoleCharset();
+            this.credentials = new KeyMaterialSession() {
+                @Override
+                protected KeyMaterialFactory newKeyMaterialFactory() throws MacroEvaluationException, IOException, InterruptedException {
+                    DockerRegistryEndpoint expandedRegistry = new DockerRegistryEndpoint(
+                        plan().getRegistryUrl(),
+                        getRegistry().getCredentialsId());
+                    return
+                        // Docker registry credentials
+                        expandedRegistry.newKeyMaterialFactory(Perform.this.build)
+                    .plus(
+                        // Docker server credentials. If server is null (right after upgrading) do not use credentials
+                        server() == null ? null : server().newKeyMaterialFactory(Perform.this.build));
+                }
+
+                @Override
+                protected void materialized(long millis) {
+                    timer.recordMillis(StepPhase.CREDENTIALS, millis);
+                }
+            };
         }
 
-        private boolean exec() {
+        /**
+         * @param built Notified once the image is built and tagged, null if none
+         */
+        boolean exec(@CheckForNull BuiltListener built) {
+            long start = System.currentTimeMillis();
             try {
                 if (!isSkipDecorate()) {
-                    for (ImageTag imageTag : getImageTags()) {
-                        build.setDisplayName(build.getDisplayName() + " " + imageTag);
-                    }
+                    // each update saves the build, decorate it once
+                    build.setDisplayName(build.getDisplayName() + plan().getDecoration(isCompactDecorate()));
+                }
+
+                if (isSkipBuild() && isRegistryRetag() && !isSkipPush()) {
+                    return retagInRegistry();
                 }
 
-                return
-                    (isSkipBuild() ? maybeTagOnly() : buildAndTag()) &&
-                    (isSkipPush() || dockerPushCommand());
+                boolean result = isSkipBuild() ? maybeTagOnly() : buildAndTag();
+                if (built != null) {
+                    built.built(result);
+                }
+                if (result && !isSkipPush()) {
+                    boolean pushed = false;
+                    try {
+                        result = pushed = dockerPushCommand(plan().getImageTags());
+                    } finally {
+                        // also when the push throws or the build is aborted
+                        if (!pushed) {
+                            offerPushRecovery();
+                        }
+                    }
+                }
+                recordFingerprints();
+                return result;
 
             } catch (IOException e) {
                 return recordException(e);
@@ -317,115 +807,1022 @@ public class DockerBuilder extends Builder {
                 return recordException(e);
             } catch (MacroEvaluationException e) {
                 return recordException(e);
+            } finally {
+                if (fingerprints != null) {
+                    fingerprints.cancel();
+                }
+                archiveRawLogs();
+                closeCredentials();
+                recordPhases(System.currentTimeMillis() - start);
             }
         }
 
-        private String expandAll(String s) throws MacroEvaluationException, IOException, InterruptedException {
-            return TokenMacro.expandAll(build, listener, s);
-        }
-
         /**
-         * This tag is what is used to build, tag and push the registry.
+         * Offers to push the image again from the build page, see {@link PushRecoveryAction}.
+         * The digests the registry has for the tags are kept, so that the tags moved since are not pushed back.
          */
-        private List<ImageTag> getImageTags() throws MacroEvaluationException, IOException, InterruptedException {
-            List<ImageTag> tags = new ArrayList<ImageTag>();
-            if (!defined(getRepoTag())) {
-                tags.add(new ImageTag(expandAll(getRepo())));
-            } else {
-                for (String rt : expandAll(getRepoTag()).trim().split(",")) {
-                    tags.add(new ImageTag(expandAll(getRepo()), expandAll(rt)));
-                }
-                if (!isSkipTagLatest()) {
-                    tags.add(new ImageTag(expandAll(getRepo()), "latest"));
+        private void offerPushRecovery() {
+            try {
+                StepPlan plan = plan();
+                Map<String, String> digests = null;
+                try {
+                    digests = remoteDigests(plan.getImageTags());
+                } catch (IOException e) {
+                    listener.getLogger().println("Cannot get the digests of the tags from the registry: " + e.getMessage());
+                } catch (InterruptedException e) {
+                    listener.getLogger().println("Interrupted while getting the digests of the tags from the registry");
+                    Thread.currentThread().interrupt();
                 }
+                PushRecoveryAction.add(build, DockerBuilder.this, server(), plan, builtImage, digests);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Cannot offer to push the image of " + build + " again", e);
+            } catch (InterruptedException e) {
+                logger.log(Level.WARNING, "Cannot offer to push the image of " + build + " again", e);
+                Thread.currentThread().interrupt();
+            } catch (MacroEvaluationException e) {
+                logger.log(Level.WARNING, "Cannot offer to push the image of " + build + " again", e);
             }
-            return tags;
-        }
-        
-        private boolean maybeTagOnly() throws MacroEvaluationException, IOException, InterruptedException {
-            if (!defined(getRepoTag())) {
-                listener.getLogger().println("Nothing to build or tag");
-                return true;
-            }
-            List<String> result = new ArrayList<String>();
-            for (ImageTag imageTag : getImageTags()) {
-                result.add("tag " + (isForceTag() ? "--force=true " : "") + getRepo() + " " + imageTag);
-            }
-            return executeCmd(result);
         }
 
-        private boolean buildAndTag() throws MacroEvaluationException, IOException, InterruptedException {
-            FilePath context;
-            if (defined(expandAll(getBuildContext()))) {
-            	Node builtOn = build.getBuiltOn();
-            	
-                if (builtOn != null) {
-                    context = builtOn.createPath(expandAll(getBuildContext()));
-                } else {
-                    context = new FilePath(new File(expandAll(getBuildContext())));
-                }
-            } else {
-                context = build.getWorkspace();
-            }
-            Iterator<ImageTag> i = getImageTags().iterator();
-            Result lastResult = new Result();
-            if (i.hasNext()) {
-                lastResult = executeCmd("build " + expandAll(getBuildAdditionalArgs()) + " -t " + i.next()
-                    + ((isNoCache()) ? " --no-cache=true " : "") + " "
-                    + ((isForcePull()) ? " --pull=true " : "") + " "
-                    + (defined(getDockerfilePath()) ? " --file=" + expandAll(getDockerfilePath()) : "") + " "
-                    + "'" + context + "'");
-            }
-            // get the image to save rebuilding it to apply the other tags
-            String image = getImageBuiltFromStdout(lastResult.stdout);
-            if (image != null) {
-                // we know the image name so apply the tags directly
-                while (lastResult.result && i.hasNext()) {
-                    lastResult = executeCmd("tag "
-                            + (isForceTag() ? "--force=true " : "")
-                            + image + " " + i.next());
-                }
-                processFingerprints(image);
-            } else {
-                // we don't know the image name so rebuild the image for each tag
-                while (lastResult.result && i.hasNext()) {
-                    lastResult = executeCmd("build " + expandAll(getBuildAdditionalArgs()) +" -t " + i.next()
-                        + ((isNoCache()) ? " --no-cache=true " : "") + " "
-                        + ((isForcePull()) ? " --pull=true " : "") + " "
-                        + (defined(getDockerfilePath()) ? " --file=" + getDockerfilePath() : "") + " "
-                        + "'" + context + "'");
-                    processFingerprintsFromStdout(lastResult.stdout);
+        /**
+         * Pushes the image of a build whose push failed, without building it again.
+         * The image is tagged again first, the daemon may have moved the tags since.
+         * @param plan Plan of the build
+         * @param image ID of the image built, null to push the tags as they are
+         * @param tags Tags to be pushed, among the ones of the plan
+         */
+        boolean pushOnly(@Nonnull StepPlan plan, @CheckForNull String image, @Nonnull List<ImageTag> tags) {
+            this.plan = plan;
+            try {
+                boolean result = true;
+                if (image != null) {
+                    Iterator<ImageTag> i = tags.iterator();
+                    while (result && i.hasNext()) {
+                        result = client().tag(image, i.next());
+                    }
                 }
+                return result && dockerPushCommand(tags);
+            } catch (IOException e) {
+                return recordException(e);
+            } catch (InterruptedException e) {
+                return recordException(e);
+            } catch (MacroEvaluationException e) {
+                return recordException(e);
+            } finally {
+                archiveRawLogs();
+                closeCredentials();
             }
-            return lastResult.result;
         }
 
-        private boolean dockerPushCommand() throws InterruptedException, MacroEvaluationException, IOException {
-            List<String> result = new ArrayList<String>();
-            for (ImageTag imageTag : getImageTags()) {
-                result.add("push " + imageTag.toString());
+        /**
+         * Attaches the time spent in each phase to the build and summarizes it in the log.
+         */
+        private void recordPhases(long millis) {
+            List<PhaseTimer.Timing> timings = timer.getTimings();
+            if (timings.isEmpty()) {
+                return;
             }
-            return executeCmd(result);
+            PhaseTimingsAction.add(build, getRepoName(), millis, timer);
+            StringBuilder summary = new StringBuilder("Docker step took ").append(millis).append(" ms:");
+            for (PhaseTimer.Timing timing : timings) {
+                summary.append(' ').append(timing.getPhase().label()).append(' ').append(timing.getMillis()).append(" ms");
+            }
+            listener.getLogger().println(summary);
         }
 
-        private boolean executeCmd(List<String> cmds) throws MacroEvaluationException, IOException, InterruptedException {
-            Iterator<String> i = cmds.iterator();
-            Result lastResult = new Result();
-            // if a command fails, do not continue
-            while (lastResult.result && i.hasNext()) {
-                lastResult = executeCmd(i.next());
+        /**
+         * @return Compressed file receiving the raw output of a command, archived at the end of the step
+         */
+        private synchronized OutputStream rawLog(String cmd) throws IOException {
+            File dir = new File(build.getRootDir(), RAW_LOG_DIR);
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Cannot create " + dir);
             }
-            return lastResult.result;
+            String base = cmd.replaceAll("[^A-Za-z0-9._-]+", "_");
+            String name = base + ".log.gz";
+            for (int n = 2; rawLogs.contains(name) || new File(dir, name).exists(); n++) {
+                name = base + "-" + n + ".log.gz";
+            }
+            rawLogs.add(name);
+            return new GZIPOutputStream(new FileOutputStream(new File(dir, name)));
         }
 
         /**
-         * Runs Docker command using Docker CLI.
-         * In this default implementation STDOUT and STDERR outputs will be printed to build logs.
-         * Use {@link #executeCmd(java.lang.String, boolean, boolean)} to alter the behavior.
-         * @param cmd Command to be executed
-         * @return Execution result
-         * @throws IOException Execution error
-         * @throws InterruptedException The build has been interrupted
+         * Archives the raw output of the commands as artifacts of the build, under {@code docker/}.
+         */
+        private synchronized void archiveRawLogs() {
+            if (rawLogs.isEmpty()) {
+                return;
+            }
+            File dir = new File(build.getRootDir(), RAW_LOG_DIR);
+            Map<String, String> artifacts = new LinkedHashMap<String, String>();
+            for (String name : rawLogs) {
+                artifacts.put("docker/" + name, name);
+            }
+            try {
+                build.pickArtifactManager().archive(new FilePath(dir), launcher, listener, artifacts);
+                listener.getLogger().println("Archived the raw output of " + rawLogs.size() + " docker commands");
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to archive the docker output", e);
+            } catch (InterruptedException e) {
+                logger.log(Level.WARNING, "Failed to archive the docker output", e);
+            } finally {
+                rawLogs.clear();
+                try {
+                    Util.deleteRecursive(dir);
+                } catch (IOException e) {
+                    logger.log(Level.FINE, "Failed to delete " + dir, e);
+                }
+            }
+        }
+
+        private void closeCredentials() {
+            try {
+                credentials.close();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to clean up Docker credentials", e);
+            }
+            logger.log(Level.FINE, "Reused Docker credentials {0} times in {1}",
+                    new Object[] { credentials.getMaterializationsAvoided(), build });
+        }
+
+        private String expandAll(String s) throws MacroEvaluationException, IOException, InterruptedException {
+            return TokenMacro.expandAll(build, listener, s);
+        }
+
+        /**
+         * Expands the configuration of the step on first use, it is then reused by all the commands.
+         */
+        private StepPlan plan() throws MacroEvaluationException, IOException, InterruptedException {
+            if (plan == null) {
+                long start = System.nanoTime();
+                plan = new StepPlan(
+                        expandAll(getRepo()),
+                        defined(getRepoTag()) ? expandAll(getRepoTag()) : null,
+                        !isSkipTagLatest(),
+                        defined(getBuildContext()) ? Util.fixEmptyAndTrim(expandAll(getBuildContext())) : null,
+                        defined(getDockerfilePath()) ? expandAll(getDockerfilePath()) : null,
+                        Util.fixNull(expandAll(getBuildAdditionalArgs())),
+                        expandAll(getRegistry().getEffectiveUrl().toString()),
+                        defined(getCacheFrom()) ? expandAll(getCacheFrom()) : null,
+                        defined(getCacheTo()) ? expandAll(getCacheTo()) : null);
+                timer.record(StepPhase.EXPAND, start);
+            }
+            return plan;
+        }
+        
+        /**
+         * Gets the client running the docker operations, the docker CLI unless the Engine API can be used.
+         */
+        private DockerClient client() throws MacroEvaluationException, IOException, InterruptedException {
+            if (client == null) {
+                if (isUseEngineApi() && isUseBuildKit()) {
+                    listener.getLogger().println("BuildKit builds use the docker CLI");
+                }
+                client = isUseEngineApi() && !isUseBuildKit() ? createEngineClient() : null;
+                if (client == null) {
+                    client = new CliClient();
+                }
+                client = new MeteredClient(client, timer, MeteredClient.registryHost(new URL(plan().getRegistryUrl())), charset);
+                DescriptorImpl descriptor = getDescriptor();
+                client = new GovernedClient(client, daemonKey(server()), descriptor.getMaxConcurrentBuilds(),
+                        descriptor.getMaxConcurrentPushes(), listener);
+            }
+            return client;
+        }
+
+        /**
+         * Gets the Docker server running the commands, selected from the pool on first use.
+         * @return Server or null right after upgrading
+         */
+        @CheckForNull
+        private DockerServerEndpoint server() throws MacroEvaluationException, IOException, InterruptedException {
+            if (!serverSelected) {
+                selectedServer = selectServer();
+                serverSelected = true;
+            }
+            return selectedServer;
+        }
+
+        @CheckForNull
+        private DockerServerEndpoint selectServer() throws MacroEvaluationException, IOException, InterruptedException {
+            List<DockerServerEndpoint> additional = getAdditionalServers();
+            if (additional.isEmpty()) {
+                return server;
+            }
+            List<ServerSelectionStrategy.Candidate> candidates = new ArrayList<ServerSelectionStrategy.Candidate>();
+            List<DockerServerEndpoint> pool = new ArrayList<DockerServerEndpoint>();
+            if (server != null) {
+                pool.add(server);
+            }
+            pool.addAll(additional);
+            for (DockerServerEndpoint candidate : pool) {
+                String daemon = daemonKey(candidate);
+                candidates.add(new ServerSelectionStrategy.Candidate(candidate, daemon,
+                        DaemonGovernor.get().getOutstanding(daemon, DaemonGovernor.Operation.BUILD)));
+            }
+            return ServerPool.get().select(candidates, getServerSelection(), plan().getRepo(), new ServerPool.HealthCheck() {
+                @Override
+                public boolean isHealthy(DockerServerEndpoint candidate) throws IOException, InterruptedException {
+                    return ping(candidate);
+                }
+            }, listener).getServer();
+        }
+
+        /**
+         * Checks that the daemon of a server answers {@code docker version}.
+         */
+        private boolean ping(@Nonnull DockerServerEndpoint candidate) throws IOException, InterruptedException {
+            KeyMaterial keys = candidate.newKeyMaterialFactory(build).materialize();
+            try {
+                EnvVars env = new EnvVars();
+                env.putAll(build.getEnvironment(listener));
+                env.putAll(keys.env());
+                return launcher.launch()
+                        .envs(env)
+                        .pwd(build.getWorkspace())
+                        .stdout(new ByteArrayOutputStream())
+                        .stderr(new ByteArrayOutputStream())
+                        .quiet(true)
+                        .cmdAsSingleString(dockerExecutable(env) + " version --format '{{.Server.Version}}'")
+                        .start().joinWithTimeout(HEALTH_CHECK_TIMEOUT_SECONDS, TimeUnit.SECONDS, listener) == 0;
+            } finally {
+                keys.close();
+            }
+        }
+
+        /**
+         * @return Docker host of a server, null for the default one
+         */
+        @CheckForNull
+        private String dockerHost(@CheckForNull DockerServerEndpoint endpoint) throws IOException, InterruptedException {
+            String host = endpoint != null ? Util.fixEmptyAndTrim(endpoint.getUri()) : null;
+            if (host == null) {
+                host = Util.fixEmptyAndTrim(build.getEnvironment(listener).get("DOCKER_HOST"));
+            }
+            return host;
+        }
+
+        /**
+         * Identifies the daemon of a server, local sockets being qualified by the node.
+         */
+        @Nonnull
+        private String daemonKey(@CheckForNull DockerServerEndpoint endpoint) throws IOException, InterruptedException {
+            String host = dockerHost(endpoint);
+            if (host == null) {
+                host = DockerEngineApi.DEFAULT_HOST;
+            }
+            if (host.startsWith("unix://") || host.startsWith("npipe://")) {
+                Node node = build.getBuiltOn();
+                String nodeName = node != null ? node.getNodeName() : null;
+                host += " on " + (nodeName == null || nodeName.isEmpty() ? "(built-in)" : nodeName);
+            }
+            return host;
+        }
+
+        @CheckForNull
+        private DockerClient createEngineClient() throws MacroEvaluationException, IOException, InterruptedException {
+            DockerServerEndpoint server = server();
+            if (server != null && server.getCredentialsId() != null) {
+                listener.getLogger().println("The Docker Engine API cannot be used with TLS client certificates, using the docker CLI");
+                return null;
+            }
+            DockerEngineApi api = new DockerEngineApi(dockerHost(server));
+            VirtualChannel channel = launcher.getChannel();
+            if (channel == null || !DockerEngineClient.isSupported(api, channel)) {
+                listener.getLogger().println("Cannot reach " + api.getHost() + " with the Docker Engine API, using the docker CLI");
+                return null;
+            }
+            StepPlan plan = plan();
+            return new DockerEngineClient(api, channel, listener,
+                    DockerEngineClient.buildParams(plan.getBuildAdditionalArgs(), isNoCache(), isForcePull()),
+                    plan.getDockerfilePath(),
+                    getRegistry().getToken(build.getParent()),
+                    plan.getRegistryUrl());
+        }
+
+        private boolean maybeTagOnly() throws MacroEvaluationException, IOException, InterruptedException {
+            StepPlan plan = plan();
+            if (!plan.isTagged()) {
+                listener.getLogger().println("Nothing to build or tag");
+                return true;
+            }
+            Iterator<ImageTag> i = plan.getImageTags().iterator();
+            boolean result = true;
+            // if a command fails, do not continue
+            while (result && i.hasNext()) {
+                result = client().tag(plan.getRepo(), i.next());
+            }
+            return result;
+        }
+
+        /**
+         * Copies the tags in the registry without involving the Docker daemon.
+         */
+        private boolean retagInRegistry() throws MacroEvaluationException, IOException, InterruptedException {
+            StepPlan plan = plan();
+            if (!plan.isTagged()) {
+                listener.getLogger().println("Nothing to build or tag");
+                return true;
+            }
+            String source = defined(getRetagSource()) ? Util.fixEmptyAndTrim(expandAll(getRetagSource())) : null;
+            if (source == null) {
+                source = "latest";
+            }
+            List<String> references = new ArrayList<String>();
+            for (ImageTag imageTag : plan.getImageTags()) {
+                references.add(RegistryClient.reference(imageTag));
+            }
+            URL registryUrl = new URL(plan.getRegistryUrl());
+            Map<String, String> digests = channel().call(new RegistryClient.Retag(registryClient(registryUrl),
+                    RegistryClient.repository(plan.getRepo(), registryUrl), source, references, listener, pushRetry()));
+            if (digests == null) {
+                return false;
+            }
+            for (int n = 0; n < references.size(); n++) {
+                String reference = references.get(n);
+                String digest = digests.get(reference);
+                if (digest != null) {
+                    // the source tag is left as it is
+                    ImageDigestsAction.add(build, plan.getImageTags().get(n).toString(), digest, !reference.equals(source));
+                }
+            }
+            return true;
+        }
+
+        private RegistryClient registryClient(URL registryUrl) throws IOException {
+            DockerRegistryToken token = getRegistry().getToken(build.getParent());
+            return new RegistryClient(RegistryClient.endpoint(registryUrl), token != null ? token.getToken() : null);
+        }
+
+        private VirtualChannel channel() throws AbortException {
+            VirtualChannel channel = launcher.getChannel();
+            if (channel == null) {
+                throw new AbortException("Node is offline");
+            }
+            return channel;
+        }
+
+        /**
+         * @return Names of the images tagged by the step, with their tag
+         */
+        @Nonnull
+        List<String> getImageNames() throws MacroEvaluationException, IOException, InterruptedException {
+            List<String> names = new ArrayList<String>();
+            for (ImageTag tag : plan().getImageTags()) {
+                names.add(Dockerfile.qualify(tag.toString()));
+            }
+            return names;
+        }
+
+        /**
+         * @return Images the Dockerfile is built from, empty if it cannot be read
+         */
+        @Nonnull
+        List<String> getBaseImages() throws MacroEvaluationException, IOException, InterruptedException {
+            FilePath context = context();
+            Dockerfile parsed = context != null ? dockerfile(context) : null;
+            return parsed != null ? parsed.getBaseImages() : Collections.<String>emptyList();
+        }
+
+        /**
+         * @return Build context directory or null if the workspace is not available
+         */
+        @CheckForNull
+        private FilePath context() throws MacroEvaluationException, IOException, InterruptedException {
+            StepPlan plan = plan();
+            if (plan.getBuildContext() != null) {
+            	Node builtOn = build.getBuiltOn();
+            	
+                if (builtOn != null) {
+                    return builtOn.createPath(plan.getBuildContext());
+                } else {
+                    return new FilePath(new File(plan.getBuildContext()));
+                }
+            } else {
+                return build.getWorkspace();
+            }
+        }
+
+        private boolean buildAndTag() throws MacroEvaluationException, IOException, InterruptedException {
+            StepPlan plan = plan();
+            FilePath context = context();
+            Iterator<ImageTag> i = plan.getImageTags().iterator();
+            String digest = null;
+            String image = null;
+            FilePath minimal = null;
+            BaseImagePulls pulls = isForcePull() && !isUseBuildKit() && context != null && i.hasNext()
+                    ? startPulls(context) : null;
+            boolean result = true;
+            try {
+                try {
+                    if (isSkipUnchangedBuild() && !isNoCache() && context != null && i.hasNext()) {
+                        digest = digestContext(context);
+                        image = digest != null ? cachedImage(digest) : null;
+                    }
+                    if (image != null) {
+                        listener.getLogger().println("Build context, Dockerfile and arguments unchanged, reusing image " + image);
+                        if (pulls != null) {
+                            pulls.cancel();
+                            pulls = null;
+                        }
+                    } else if (i.hasNext()) {
+                        if (isMinimalContext() && context != null) {
+                            minimal = minimalContext(context);
+                        }
+                        DockerClient.BuildResult lastResult = client().build(minimal != null ? minimal : context, i.next());
+                        recordTimeline(lastResult);
+                        result = lastResult.result;
+                        // get the image to save rebuilding it to apply the other tags
+                        image = lastResult.imageId;
+                        if (result && image != null && digest != null) {
+                            BuildCache.put(build.getParent(), digest, image);
+                        }
+                    }
+                } finally {
+                    if (pulls != null) {
+                        pulls.finish();
+                    }
+                }
+                if (image == null) {
+                    // we don't know the image name so rebuild the image for each tag
+                    while (result && i.hasNext()) {
+                        DockerClient.BuildResult lastResult = client().build(minimal != null ? minimal : context, i.next());
+                        recordTimeline(lastResult);
+                        result = lastResult.result;
+                        if (lastResult.imageId != null) {
+                            builtImage = lastResult.imageId;
+                            processFingerprints(lastResult.imageId, builtImageParent());
+                        }
+                    }
+                }
+            } finally {
+                deleteMinimalContext(minimal);
+            }
+            if (image != null) {
+                // we know the image name so apply the tags directly
+                while (result && i.hasNext()) {
+                    result = client().tag(image, i.next());
+                }
+                builtImage = image;
+                processFingerprints(image, builtImageParent());
+            }
+            return result;
+        }
+
+        /**
+         * @return Parsed Dockerfile of the build context, null if it cannot be read
+         */
+        @CheckForNull
+        private Dockerfile dockerfile(@Nonnull FilePath context) throws MacroEvaluationException, IOException, InterruptedException {
+            if (dockerfile == null) {
+                String dockerfilePath = plan().getDockerfilePath();
+                FilePath file = context.child(dockerfilePath != null ? dockerfilePath : "Dockerfile");
+                try {
+                    dockerfile = Dockerfile.parse(file.readToString());
+                } catch (IOException e) {
+                    logger.log(Level.FINE, "Cannot read " + file, e);
+                    return null; // docker build reports it
+                }
+            }
+            return dockerfile;
+        }
+
+        /**
+         * Links the files the Dockerfile copies to a directory next to the workspace, to send the daemon
+         * only these files rather than the whole build context.
+         * @return Minimal build context or null if the whole context must be sent
+         */
+        @CheckForNull
+        private FilePath minimalContext(@Nonnull FilePath context) throws MacroEvaluationException, IOException, InterruptedException {
+            FilePath workspace = build.getWorkspace();
+            Dockerfile parsed = dockerfile(context);
+            List<String> sources = parsed != null ? MinimalContext.sources(parsed) : null;
+            if (workspace == null || sources == null) {
+                listener.getLogger().println("The Dockerfile may use any file of the build context, sending the whole context");
+                return null;
+            }
+            FilePath tmp = WorkspaceList.tempDir(workspace);
+            tmp.mkdirs();
+            FilePath target = tmp.createTempDir("docker-context", "");
+            // createTempDir creates the directory, the minimal context is created inside it
+            FilePath minimal = target.child("context");
+            long start = System.nanoTime();
+            try {
+                MinimalContext stats = context.act(new MinimalContext.Callable(plan().getDockerfilePath(), sources, minimal.getRemote()));
+                listener.getLogger().println("Minimal build context: " + stats.getFiles() + " of " + stats.getContextFiles()
+                        + " files, " + Functions.humanReadableByteSize(stats.getBytes()) + " instead of "
+                        + Functions.humanReadableByteSize(stats.getContextBytes()) + " ("
+                        + Functions.humanReadableByteSize(stats.getContextBytes() - stats.getBytes()) + " saved) in "
+                        + timer.record(StepPhase.CONTEXT, start) + " ms");
+                return minimal;
+            } catch (IOException e) {
+                timer.record(StepPhase.CONTEXT, start);
+                e.printStackTrace(listener.error("Cannot create the minimal build context, sending the whole context"));
+                target.deleteRecursive();
+                return null;
+            }
+        }
+
+        private void deleteMinimalContext(@CheckForNull FilePath minimal) {
+            if (minimal == null) {
+                return;
+            }
+            try {
+                minimal.getParent().deleteRecursive();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Cannot delete " + minimal, e);
+            } catch (InterruptedException e) {
+                logger.log(Level.WARNING, "Cannot delete " + minimal, e);
+            }
+        }
+
+        /**
+         * Starts pulling the base images of the Dockerfile, so that they are pulled while the build context
+         * is prepared and sent rather than after. The daemon shares the layer downloads with the pull of
+         * {@code docker build --pull}.
+         * @return Pulls or null if there is nothing to pull
+         */
+        @CheckForNull
+        private BaseImagePulls startPulls(@Nonnull FilePath context) throws MacroEvaluationException, IOException, InterruptedException {
+            Dockerfile parsed = dockerfile(context);
+            List<String> images = parsed != null ? parsed.getBaseImages() : Collections.<String>emptyList();
+            if (images.isEmpty()) {
+                return null;
+            }
+            listener.getLogger().println("Pulling " + images + " while the build context is sent");
+            return new BaseImagePulls(client(), images);
+        }
+
+        /**
+         * Pulls of base images running concurrently with the build.
+         * The build does not wait for them, the output of each pull is printed as soon as it completes.
+         */
+        private class BaseImagePulls {
+            private final ExecutorService executor;
+            private final List<Future<Void>> pulls = new ArrayList<Future<Void>>();
+            private final List<Section> sections = new ArrayList<Section>();
+
+            BaseImagePulls(@Nonnull final DockerClient client, @Nonnull List<String> images) {
+                executor = Executors.newFixedThreadPool(Math.min(images.size(), MAX_CONCURRENT_PULLS),
+                        new NamingThreadFactory(new DaemonThreadFactory(), "DockerBuilder pull " + build.getFullDisplayName()));
+                for (final String image : images) {
+                    final Section section;
+                    try {
+                        section = new Section("pull " + image);
+                    } catch (IOException e) {
+                        listener.getLogger().println("Not pulling " + image + ": " + e);
+                        continue;
+                    }
+                    sections.add(section);
+                    pulls.add(executor.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws Exception {
+                            boolean result;
+                            try {
+                                result = client.pull(image, section.getLog());
+                            } catch (IOException e) {
+                                listener.getLogger().println("Base image pull failed: " + e);
+                                return null;
+                            } catch (MacroEvaluationException e) {
+                                listener.getLogger().println("Base image pull failed: " + e);
+                                return null;
+                            }
+                            section.complete(result);
+                            print(section);
+                            return null;
+                        }
+                    }));
+                }
+            }
+
+            /**
+             * Prints the output of a pull in one piece, in the middle of the build output.
+             * A failed pull does not fail the step, the build pulls the image itself.
+             */
+            private void print(Section section) throws IOException {
+                PrintStream logger = listener.getLogger();
+                synchronized (logger) {
+                    section.print(logger);
+                    if (!section.getResult()) {
+                        logger.println("docker " + section.cmd + " failed");
+                    }
+                }
+            }
+
+            /**
+             * Waits for the pulls still running once the build is over, so that their output is printed.
+             */
+            void finish() throws InterruptedException {
+                try {
+                    for (Future<Void> pull : pulls) {
+                        try {
+                            pull.get();
+                        } catch (ExecutionException e) {
+                            listener.getLogger().println("Base image pull failed: " + e.getCause());
+                        }
+                    }
+                } finally {
+                    cancel();
+                }
+            }
+
+            /**
+             * Interrupts the pulls, ie. when the image does not need to be built.
+             */
+            void cancel() {
+                executor.shutdownNow();
+                for (Section section : sections) {
+                    section.discard();
+                }
+            }
+        }
+
+        /**
+         * Attaches the Dockerfile steps of a build to the Jenkins build and summarizes them in the log.
+         */
+        private void recordTimeline(@Nonnull DockerClient.BuildResult buildResult) {
+            BuildTimeline timeline = buildResult.timeline;
+            if (timeline == null || timeline.getSteps().isEmpty()) {
+                return;
+            }
+            timeline.setImage(buildResult.imageId);
+            BuildTimelineAction.add(build, timeline);
+            BuildTimeline.Step slowest = timeline.getSlowestStep();
+            listener.getLogger().println(timeline.getSteps().size() + " Dockerfile steps, " + timeline.getCacheHits()
+                    + " from the build cache, slowest: Step " + slowest.getNumber() + " " + slowest.getInstruction()
+                    + " (" + slowest.getDurationMillis() + " ms)");
+        }
+
+        /**
+         * Computes the digest of the build inputs on the node running the build.
+         * @return Digest or null if it cannot be computed, in which case the image is built
+         */
+        @CheckForNull
+        private String digestContext(@Nonnull FilePath context) throws MacroEvaluationException, IOException, InterruptedException {
+            StepPlan plan = plan();
+            FilePath workspace = build.getWorkspace();
+            // keep the content hashes between builds, one index per context
+            FilePath index = workspace == null ? null : WorkspaceList.tempDir(workspace)
+                    .child("docker-context-" + Util.getDigestOf(context.getRemote()).substring(0, 8) + ".index");
+            long start = System.nanoTime();
+            try {
+                // the same inputs give another image with BuildKit, with newer base images or on another daemon
+                String options = "buildkit=" + isUseBuildKit() + " pull=" + isForcePull() + " daemon=" + daemonKey(server());
+                ContextDigest digest = context.act(new ContextDigest.Callable(plan.getDockerfilePath(),
+                        plan.getBuildAdditionalArgs(), options, index != null ? index.getRemote() : null));
+                listener.getLogger().println("Build context digest " + digest.getDigest() + " computed in "
+                        + timer.record(StepPhase.CONTEXT, start) + " ms, " + digest.getHashed() + " of "
+                        + digest.getFiles() + " files read");
+                return digest.getDigest();
+            } catch (IOException e) {
+                timer.record(StepPhase.CONTEXT, start);
+                e.printStackTrace(listener.error("Cannot compute the digest of the build context, building the image"));
+                return null;
+            }
+        }
+
+        /**
+         * @return Image previously built by the job from the same inputs and still known to the daemon, null if none
+         */
+        @CheckForNull
+        private String cachedImage(@Nonnull String digest) throws MacroEvaluationException, IOException, InterruptedException {
+            String image = BuildCache.get(build.getParent(), digest);
+            if (image == null) {
+                return null;
+            }
+            if (client().inspect(image) == null) {
+                listener.getLogger().println("Image " + image + " built from the same inputs was removed, building it again");
+                BuildCache.remove(build.getParent(), digest);
+                return null;
+            }
+            return image;
+        }
+
+        /**
+         * Creates a temporary file on the node running the build, next to its workspace.
+         * @return Temporary file or null if the workspace is not available
+         */
+        @CheckForNull
+        private FilePath createTempFile(String prefix, String suffix) throws IOException, InterruptedException {
+            FilePath workspace = build.getWorkspace();
+            if (workspace == null) {
+                return null;
+            }
+            FilePath tmp = WorkspaceList.tempDir(workspace);
+            tmp.mkdirs();
+            return tmp.createTempFile("docker-" + prefix, suffix);
+        }
+
+        /**
+         * Reads the image ID written by {@code docker build --iidfile}.
+         * @return Image ID or null if it was not written (docker versions before 17.05)
+         */
+        @CheckForNull
+        private String readImageId(@CheckForNull FilePath iidFile) throws IOException, InterruptedException {
+            if (iidFile == null || !iidFile.exists()) {
+                return null;
+            }
+            return Util.fixEmptyAndTrim(iidFile.readToString());
+        }
+
+        /**
+         * Reads the metadata written by {@code docker buildx build --metadata-file}.
+         * @return Metadata or null if it was not written
+         */
+        @CheckForNull
+        private JSONObject readBuildMetadata(@CheckForNull FilePath metadataFile) throws IOException, InterruptedException {
+            if (metadataFile == null || !metadataFile.exists()) {
+                return null;
+            }
+            String json = Util.fixEmptyAndTrim(metadataFile.readToString());
+            return json != null ? JSONObject.fromObject(json) : null;
+        }
+
+        private PushRetry pushRetry() {
+            return new PushRetry(getPushRetries());
+        }
+
+        /**
+         * @param tags Tags to be pushed
+         */
+        private boolean dockerPushCommand(List<ImageTag> tags) throws InterruptedException, MacroEvaluationException, IOException {
+            if (isSkipUnchangedPush()) {
+                tags = changedTags(tags);
+            }
+            int concurrency = Math.min(getPushConcurrency(), tags.size());
+            if (concurrency > 1) {
+                return pushInParallel(tags, concurrency);
+            }
+            Iterator<ImageTag> i = tags.iterator();
+            boolean result = true;
+            // if a push fails, do not continue
+            while (result && i.hasNext()) {
+                result = push(client(), pushRetry(), i.next(), listener.getLogger());
+            }
+            return result;
+        }
+
+        /**
+         * Pushes a tag and records the digest of its manifest in the registry.
+         */
+        private boolean push(DockerClient client, PushRetry retry, ImageTag tag, OutputStream log)
+                throws MacroEvaluationException, IOException, InterruptedException {
+            DockerOutputParser output = new DockerOutputParser(charset);
+            boolean result = retry.push(client, tag, new TeeOutputStream(new CloseShieldOutputStream(log), output), charset);
+            output.close();
+            List<String> digests = output.getDigests();
+            if (result && !digests.isEmpty()) {
+                ImageDigestsAction.add(build, tag.toString(), digests.get(digests.size() - 1), true);
+            }
+            return result;
+        }
+
+        /**
+         * @param name Repository of the image, ie. {@code docker.acme.com/jdoe/app}
+         * @return true if the daemon knows the image as the manifest of the repository with this digest
+         */
+        private boolean hasRepoDigest(InspectImageResponse image, String name, String digest) {
+            for (String repoDigest : image.getRepoDigests()) {
+                int at = repoDigest.indexOf('@');
+                if (at > 0 && repoDigest.substring(at + 1).equals(digest)
+                        && BuildGraph.normalize(repoDigest.substring(0, at)).equals(BuildGraph.normalize(name))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Leaves out the tags whose manifest in the registry is the one of the image, as the daemon knows it from
+         * a previous push or pull: the registry already has the image under these tags.
+         * @return Tags to be pushed
+         */
+        private List<ImageTag> changedTags(List<ImageTag> tags) throws MacroEvaluationException, IOException, InterruptedException {
+            if (tags.isEmpty()) {
+                return tags;
+            }
+            InspectImageResponse image = client().inspect(builtImage != null ? builtImage : tags.get(0).toString());
+            if (image == null || image.getRepoDigests().isEmpty()) {
+                return tags; // never pushed nor pulled
+            }
+            Map<String, String> remote;
+            try {
+                remote = remoteDigests(tags);
+            } catch (IOException e) {
+                listener.getLogger().println("Cannot get the digests of the tags from the registry, pushing them: " + e.getMessage());
+                return tags;
+            }
+            List<ImageTag> changed = new ArrayList<ImageTag>();
+            for (ImageTag tag : tags) {
+                String digest = remote.get(RegistryClient.reference(tag));
+                if (digest != null && hasRepoDigest(image, tag.getName(), digest)) {
+                    listener.getLogger().println("Registry already has " + tag + " as " + digest + ", not pushing it");
+                    ImageDigestsAction.add(build, tag.toString(), digest, false);
+                } else {
+                    changed.add(tag);
+                }
+            }
+            return changed;
+        }
+
+        /**
+         * Gets the digests of the manifests the registry has for tags, from the node.
+         * @return Digests by tag reference, the tags missing from the registry being left out
+         */
+        private Map<String, String> remoteDigests(List<ImageTag> tags) throws MacroEvaluationException, IOException, InterruptedException {
+            StepPlan plan = plan();
+            URL registryUrl = new URL(plan.getRegistryUrl());
+            List<String> references = new ArrayList<String>();
+            for (ImageTag tag : tags) {
+                references.add(RegistryClient.reference(tag));
+            }
+            return channel().call(new RegistryClient.Digests(registryClient(registryUrl),
+                    RegistryClient.repository(plan.getRepo(), registryUrl), references));
+        }
+
+        /**
+         * Pushes tags concurrently.
+         * The output of each push is spooled to a file and printed as a separate section of the build log once it
+         * is complete. If a push fails, the other ones are cancelled and the output they printed so far is printed.
+         * @param tags Tags to be pushed
+         * @param concurrency Maximum number of pushes running at the same time
+         * @return true if all the tags were pushed
+         */
+        private boolean pushInParallel(List<ImageTag> tags, int concurrency) throws MacroEvaluationException, IOException, InterruptedException {
+            final DockerClient client = client();
+            final PushRetry retry = pushRetry();
+            ExecutorService executor = Executors.newFixedThreadPool(concurrency,
+                    new NamingThreadFactory(new DaemonThreadFactory(), "DockerBuilder " + build.getFullDisplayName()));
+            List<Section> sections = new ArrayList<Section>();
+            try {
+                CompletionService<Section> completion = new ExecutorCompletionService<Section>(executor);
+                for (final ImageTag tag : tags) {
+                    final Section section = new Section("push " + tag);
+                    sections.add(section);
+                    completion.submit(new Callable<Section>() {
+                        @Override
+                        public Section call() throws Exception {
+                            section.complete(push(client, retry, tag, section.getLog()));
+                            return section;
+                        }
+                    });
+                }
+                for (int n = 0; n < tags.size(); n++) {
+                    Section section;
+                    try {
+                        section = completion.take().get();
+                    } catch (ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        if (cause instanceof IOException) {
+                            throw (IOException) cause;
+                        } else if (cause instanceof InterruptedException) {
+                            throw (InterruptedException) cause;
+                        } else if (cause instanceof MacroEvaluationException) {
+                            throw (MacroEvaluationException) cause;
+                        }
+                        throw new IOException(cause);
+                    }
+                    section.print(listener.getLogger());
+                    if (!section.getResult()) {
+                        listener.error("docker " + section.cmd + " failed, cancelling the other pushes");
+                        executor.shutdownNow();
+                        executor.awaitTermination(CANCEL_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                        for (Section other : sections) {
+                            if (!other.isPrinted()) {
+                                other.print(listener.getLogger());
+                            }
+                        }
+                        return false;
+                    }
+                }
+                return true;
+            } finally {
+                // interrupts the pushes still running if one failed
+                executor.shutdownNow();
+                for (Section section : sections) {
+                    section.discard();
+                }
+            }
+        }
+
+        /**
+         * Runs the docker operations with the docker CLI.
+         */
+        private class CliClient implements DockerClient {
+
+            @Override
+            public BuildResult build(FilePath context, ImageTag tag) throws MacroEvaluationException, IOException, InterruptedException {
+                if (isUseBuildKit()) {
+                    return buildx(context, tag);
+                }
+                StepPlan plan = plan();
+                // have docker write the image ID to a file rather than relying on its output
+                FilePath iidFile = createTempFile("build", ".iid");
+                try {
+                    Result result = executeCmd(buildCommand(plan, tag, isNoCache(), isForcePull(),
+                            iidFile != null ? iidFile.getRemote() : null, String.valueOf(context)));
+                    String image = null;
+                    if (result.result) {
+                        image = readImageId(iidFile);
+                        if (image == null) {
+                            // last resort, scrape it from the build output
+                            image = result.imageBuilt;
+                        }
+                    }
+                    return new BuildResult(result.result, image, result.timeline);
+                } finally {
+                    if (iidFile != null) {
+                        iidFile.delete();
+                    }
+                }
+            }
+
+            /**
+             * Builds with BuildKit, the image ID being read from the build metadata rather than the output.
+             */
+            private BuildResult buildx(FilePath context, ImageTag tag) throws MacroEvaluationException, IOException, InterruptedException {
+                FilePath metadataFile = createTempFile("build", ".json");
+                try {
+                    Result result = executeCmd(buildxCommand(plan(), tag, isNoCache(), isForcePull(), isInlineCache(),
+                            metadataFile != null ? metadataFile.getRemote() : null, String.valueOf(context)));
+                    String image = null;
+                    if (result.result) {
+                        JSONObject metadata = readBuildMetadata(metadataFile);
+                        if (metadata != null) {
+                            image = Util.fixEmpty(metadata.optString("containerimage.config.digest"));
+                            String digest = Util.fixEmpty(metadata.optString("containerimage.digest"));
+                            if (image != null) {
+                                listener.getLogger().println("Built image " + image + (digest != null ? ", digest " + digest : ""));
+                            }
+                        }
+                    }
+                    return new BuildResult(result.result, image, result.timeline);
+                } finally {
+                    if (metadataFile != null) {
+                        metadataFile.delete();
+                    }
+                }
+            }
+
+            @Override
+            public boolean tag(String image, ImageTag tag) throws MacroEvaluationException, IOException, InterruptedException {
+                return executeCmd("tag " + (isForceTag() ? "--force=true " : "") + image + " " + tag).result;
+            }
+
+            @Override
+            public boolean push(ImageTag tag, OutputStream log) throws MacroEvaluationException, IOException, InterruptedException {
+                return executeProgressCmd("push " + tag, log);
+            }
+
+            @Override
+            public boolean pull(String image, OutputStream log) throws MacroEvaluationException, IOException, InterruptedException {
+                return executeProgressCmd("pull " + image, log);
+            }
+
+            /**
+             * Runs a command printing the progress of layer transfers, ie. push or pull.
+             * Errors are printed to the log as they are, only the standard output is filtered.
+             */
+            private boolean executeProgressCmd(String cmd, OutputStream log) throws MacroEvaluationException, IOException, InterruptedException {
+                OutputStream raw = isArchiveRawLog() ? rawLog(cmd) : null;
+                OutputStream stdout;
+                if (!isFullProgressLog()) {
+                    stdout = new ProgressLog(log, charset, raw);
+                } else if (raw != null) {
+                    stdout = new TeeOutputStream(new CloseShieldOutputStream(log), raw);
+                } else {
+                    stdout = log;
+                }
+                try {
+                    return executeCmd(cmd, stdout, log).result;
+                } finally {
+                    if (stdout != log) {
+                        stdout.close();
+                    }
+                }
+            }
+
+            @Override
+            public InspectImageResponse inspect(String image) throws MacroEvaluationException, IOException, InterruptedException {
+                // only print the fields which are read
+                final Result response = executeCmd("inspect --type=image --format '" + InspectParser.FORMAT + "' " + image, false, true);
+                if (!response.result) {
+                    return null; // Bad result, cannot do anything
+                }
+                logger.log(Level.FINEST, "Inspect image {0}: {1}", new Object[] { image, response.stdout });
+                return DockerCLIHelper.parseInspectImageResponse(response.stdout);
+            }
+        }
+
+        /**
+         * Runs Docker command using Docker CLI.
+         * In this default implementation STDOUT and STDERR outputs will be printed to build logs.
+         * Use {@link #executeCmd(java.lang.String, boolean, boolean)} to alter the behavior.
+         * @param cmd Command to be executed
+         * @return Execution result
+         * @throws IOException Execution error
+         * @throws InterruptedException The build has been interrupted
          */
         private Result executeCmd(String cmd) throws MacroEvaluationException, IOException, InterruptedException {
             return executeCmd(cmd, true, true);
@@ -433,103 +1830,155 @@ public class DockerBuilder extends Builder {
         
         /**
          * Runs Docker command using Docker CLI.
+         * Outputs are parsed as they stream, only their tail is kept unless they are not logged.
          * @param cmd Command to be executed (Docker command will be prefixed)
-         * @param logStdOut If true, propagate STDOUT to the build log
-         * @param logStdErr If true, propagate STDERR to the build log
+         * @param logStdOut If true, propagate STDOUT to the build log, otherwise capture it in full
+         * @param logStdErr If true, propagate STDERR to the build log, otherwise capture it in full
          * @return Execution result
          * @throws IOException Execution error
          * @throws InterruptedException The build has been interrupted
          */
         private @Nonnull Result executeCmd( @Nonnull String cmd, 
                 boolean logStdOut, boolean logStdErr) throws MacroEvaluationException, IOException, InterruptedException {
-            ByteArrayOutputStream baosStdOut = new ByteArrayOutputStream();
-            ByteArrayOutputStream baosStdErr = new ByteArrayOutputStream();
-            OutputStream stdout = logStdOut ? 
-                    new TeeOutputStream(listener.getLogger(), baosStdOut) : baosStdOut;
-            OutputStream stderr = logStdErr ? 
-                    new TeeOutputStream(listener.getLogger(), baosStdErr) : baosStdErr;
-
-            DockerRegistryEndpoint expandedRegistry = new DockerRegistryEndpoint(
-                expandAll(getRegistry().getEffectiveUrl().toString()),
-                getRegistry().getCredentialsId());
-            KeyMaterial dockerKeys = 
-                // Docker registry credentials
-                expandedRegistry.newKeyMaterialFactory(build)
-            .plus(
-                // Docker server credentials. If server is null (right after upgrading) do not use credentials
-                server == null ? null : server.newKeyMaterialFactory(build))
-            .materialize();
+            return executeCmd(cmd, logStdOut ? listener.getLogger() : null, logStdErr ? listener.getLogger() : null);
+        }
+
+        /**
+         * Runs Docker command using Docker CLI.
+         * @param cmd Command to be executed (Docker command will be prefixed)
+         * @param stdoutLog Where to propagate STDOUT, if null it is captured in full
+         * @param stderrLog Where to propagate STDERR, if null it is captured in full
+         * @return Execution result
+         * @throws IOException Execution error
+         * @throws InterruptedException The build has been interrupted
+         */
+        private @Nonnull Result executeCmd( @Nonnull String cmd,
+                @CheckForNull OutputStream stdoutLog, @CheckForNull OutputStream stderrLog) throws MacroEvaluationException, IOException, InterruptedException {
+            DockerOutputParser parsedStdOut = new DockerOutputParser(charset,
+                    stdoutLog != null ? DockerOutputParser.DEFAULT_TAIL_LINES : Integer.MAX_VALUE);
+            DockerOutputParser parsedStdErr = new DockerOutputParser(charset,
+                    stderrLog != null ? DockerOutputParser.DEFAULT_TAIL_LINES : Integer.MAX_VALUE);
+            OutputStream stdout = stdoutLog != null ?
+                    new TeeOutputStream(stdoutLog, parsedStdOut) : parsedStdOut;
+            OutputStream stderr = stderrLog != null ?
+                    new TeeOutputStream(stderrLog, parsedStdErr) : parsedStdErr;
+
+            KeyMaterial dockerKeys = credentials.get();
 
             EnvVars env = new EnvVars();
             env.putAll(build.getEnvironment(listener));
             env.putAll(dockerKeys.env());
 
+            cmd = dockerExecutable(env) + " " +cmd;
+            
+            logger.log(Level.FINER, "Executing: {0}", cmd);
+
+            boolean result = launcher.launch()
+                    .envs(env)
+                    .pwd(build.getWorkspace())
+                    .stdout(stdout)
+                    .stderr(stderr)
+                    .cmdAsSingleString(cmd)
+                    .start().join() == 0;
+
+            // flush any partial last line into the parsers
+            parsedStdOut.close();
+            parsedStdErr.close();
+            if (!result) {
+                logger.log(Level.FINE, "Failed: {0}\n{1}", new Object[] { cmd, parsedStdErr.getTail() });
+            }
+            return new Result(result, parsedStdOut, parsedStdErr);
+        }
+        
+        /**
+         * Resolves the docker executable once per step, or once per node across builds when the tool allows it,
+         * rather than for each command.
+         */
+        private synchronized String dockerExecutable(EnvVars env) {
+            if (dockerExecutable != null) {
+                return dockerExecutable;
+            }
             String dockerCmd = "docker";
             
             if (getDockerToolName() != null) {
+                Node builtOn = build.getBuiltOn();
+                String cached = ExecutableCache.get(getDockerToolName(), builtOn);
+                if (cached != null) {
+                    return dockerExecutable = cached;
+                }
+	            long start = System.nanoTime();
 	            try {
-	          		dockerCmd = DockerTool.getExecutable(getDockerToolName(), build.getBuiltOn(), listener, env);
+	          		dockerCmd = DockerTool.getExecutable(getDockerToolName(), builtOn, listener, env);
+	          		ExecutableCache.put(getDockerToolName(), builtOn, dockerCmd);
 	            } catch (Exception e) {
 	            	logger.log(Level.WARNING, "Something failed", e);
+	            } finally {
+	            	timer.record(StepPhase.TOOL, start);
 	            }
             }
-            
-            cmd = dockerCmd + " " +cmd;
-            
-            logger.log(Level.FINER, "Executing: {0}", cmd);
-
-            try {
-                
-                boolean result = launcher.launch()
-                        .envs(env)
-                        .pwd(build.getWorkspace())
-                        .stdout(stdout)
-                        .stderr(stderr)
-                        .cmdAsSingleString(cmd)
-                        .start().join() == 0;
-
-                // capture the stdout so it can be parsed later on
-                final String stdOutStr = DockerCLIHelper.getConsoleOutput(baosStdOut, logger);
-                final String stdErrStr = DockerCLIHelper.getConsoleOutput(baosStdErr, logger);
-                return new Result(result, stdOutStr, stdErrStr);
-
-            } finally {
-                dockerKeys.close();
-            }
+            return dockerExecutable = dockerCmd;
         }
-        
-        void processFingerprintsFromStdout(@Nonnull String stdout) throws MacroEvaluationException, IOException, InterruptedException {
+
+        /**
+         * Queues the fingerprint of an image, recorded by {@link #recordFingerprints()} once the image is pushed.
+         * @param parent Parent image ID, {@code ""} if the image has none, null if it must be inspected
+         */
+        void processFingerprints(@Nonnull String image, @CheckForNull String parent) {
             if (!createFingerprint) {
                 return;
             }
-            
-            final String image = getImageBuiltFromStdout(stdout);
-            if (image == null) {
-                return;
+            if (fingerprints == null) {
+                fingerprints = new FingerprintBatch("DockerBuilder fingerprints " + build.getFullDisplayName()) {
+                    @Override
+                    protected InspectImageResponse inspect(String image) throws IOException, InterruptedException {
+                        try {
+                            // Retrieve full image ID using another call
+                            return client().inspect(image);
+                        } catch (MacroEvaluationException e) {
+                            throw new IOException(e);
+                        }
+                    }
+
+                    @Override
+                    protected void record(InspectImageResponse image) throws IOException {
+                        //  Create or retrieve the fingerprint
+                        // parent can be ""
+                        DockerFingerprints.addFromFacet(Util.fixEmpty(image.getParent()), image.getId(), build);
+                    }
+
+                    @Override
+                    protected void failed(String image, IOException e) {
+                        listener.getLogger().println("Cannot fingerprint " + image + ": " + e.getMessage());
+                        logger.log(Level.FINE, "Cannot fingerprint " + image, e);
+                    }
+                };
             }
-            processFingerprints(image);
+            fingerprints.add(image, parent);
         }
-        
-        void processFingerprints(@Nonnull String image) throws MacroEvaluationException, IOException, InterruptedException {
-            if (!createFingerprint) {
+
+        /**
+         * @return Parent of the images built by the step if it is known without inspecting them, null otherwise.
+         *         BuildKit images have none, the classic builder reports truncated layer IDs only.
+         */
+        @CheckForNull
+        private String builtImageParent() {
+            return isUseBuildKit() ? "" : null;
+        }
+
+        /**
+         * Writes the fingerprints of the images of the step, once per image.
+         */
+        private void recordFingerprints() throws InterruptedException {
+            if (fingerprints == null) {
                 return;
             }
-            
-            // Retrieve full image ID using another call
-            final Result response = executeCmd("inspect " + image, false, true);
-            if (!response.result) {
-                return; // Bad result, cannot do anything
-            }
-            final InspectImageResponse rsp = DockerCLIHelper.parseInspectImageResponse(response.stdout);
-            logger.log(Level.FINEST, "Inspect image {0}: {1}", new Object[] { image, response.stdout });
-            if (rsp == null) {
-                return; // Cannot process the data
+            long start = System.nanoTime();
+            try {
+                int recorded = fingerprints.finish();
+                logger.log(Level.FINE, "Recorded {0} image fingerprints for {1}", new Object[] { recorded, build });
+            } finally {
+                timer.record(StepPhase.FINGERPRINT, start);
             }
-            
-            //  Create or retrieve the fingerprint
-            // parent can be ""
-            DockerFingerprints.addFromFacet(Util.fixEmpty(rsp.getParent()), rsp.getId(), build);
-            
         }
 
         private boolean recordException(Exception e) {
@@ -574,6 +2023,9 @@ public class DockerBuilder extends Builder {
         @SuppressWarnings("unused")
         private transient String registryUrl;
 
+        private int maxConcurrentBuilds;
+        private int maxConcurrentPushes;
+
         /**
          * In order to load the persisted global configuration, you have to 
          * call load() in the constructor.
@@ -582,6 +2034,45 @@ public class DockerBuilder extends Builder {
             load();
         }
 
+        /**
+         * @return Maximum number of builds running at the same time against a daemon, 0 for no limit
+         */
+        public int getMaxConcurrentBuilds() {
+            return maxConcurrentBuilds;
+        }
+
+        @DataBoundSetter
+        public void setMaxConcurrentBuilds(int maxConcurrentBuilds) {
+            this.maxConcurrentBuilds = Math.max(0, maxConcurrentBuilds);
+        }
+
+        /**
+         * @return Maximum number of pushes running at the same time through a daemon, 0 for no limit
+         */
+        public int getMaxConcurrentPushes() {
+            return maxConcurrentPushes;
+        }
+
+        @DataBoundSetter
+        public void setMaxConcurrentPushes(int maxConcurrentPushes) {
+            this.maxConcurrentPushes = Math.max(0, maxConcurrentPushes);
+        }
+
+        @Override
+        public boolean configure(StaplerRequest req, JSONObject json) throws FormException {
+            req.bindJSON(this, json);
+            save();
+            return true;
+        }
+
+        public FormValidation doCheckMaxConcurrentBuilds(@QueryParameter String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+
+        public FormValidation doCheckMaxConcurrentPushes(@QueryParameter String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+
         // Using docker-commons now, methods left for backwards compatibility
 
         @SuppressFBWarnings(value = "UWF_UNWRITTEN_FIELD", justification = "Methods left for backwards compatibility")
@@ -617,6 +2108,10 @@ public class DockerBuilder extends Builder {
             return FormValidation.ok();
         }
 
+        public FormValidation doCheckPushConcurrency(@QueryParameter String value) {
+            return FormValidation.validatePositiveInteger(value);
+        }
+
         public boolean isApplicable(Class<? extends AbstractProject> aClass) {
             // Indicates that this builder can be used with all kinds of project types 
             return true;
@@ -24,12 +24,12 @@
 package com.cloudbees.dockerpublish;
 
 import hudson.model.Computer;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.io.StringReader;
 import java.nio.charset.Charset;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import net.sf.json.JSONArray;
@@ -50,29 +50,18 @@ public final class DockerCLIHelper {
     }
 
     /**
-     * Parses console output from a {@link ByteArrayOutputStream}.
-     * @param output Output stream
-     * @param logger Logger
-     * @return Retrieved string or null if cannot retrieve it
-     * @throws IOException Buffer flush error
+     * Gets the charset of the console output of launched commands.
+     * @return Default charset of the current computer, or the platform default if it cannot be determined
      */
-    /*package*/ static @CheckForNull String getConsoleOutput(
-            @Nonnull ByteArrayOutputStream output, @Nonnull Logger logger) throws IOException {
-        String res = null;
-        try {
-            Computer computer = Computer.currentComputer();
-            if (computer != null) {
-                Charset charset = computer.getDefaultCharset();
-                if (charset != null) {
-                    output.flush();
-                    res = output.toString(charset.name());
-                }
+    /*package*/ static @Nonnull Charset getConsoleCharset() {
+        Computer computer = Computer.currentComputer();
+        if (computer != null) {
+            Charset charset = computer.getDefaultCharset();
+            if (charset != null) {
+                return charset;
             }
-        } catch (UnsupportedEncodingException e) {
-            // we couldn't parse, ignore
-            logger.log(Level.FINE, "Unable to get a console output from launched command: {}", e);
         }
-        return res;
+        return Charset.defaultCharset();
     }
 
     /**
@@ -84,12 +73,20 @@ public final class DockerCLIHelper {
      */
     @CheckForNull
     public static InspectImageResponse parseInspectImageResponse(@Nonnull String stdout) throws IOException {
-        JSONArray array = JSONArray.fromObject(stdout);
-        if (array != null && array.size() > 0) {
-            return new InspectImageResponse(array.getJSONObject(0));
-        } else {
-            return null;
-        }     
+        List<InspectImageResponse> images = parseInspectImageResponses(stdout);
+        return images.isEmpty() ? null : images.get(0);
+    }
+
+    /**
+     * Retrieves the info about several images from command-line outputs, ie. {@code docker inspect a b}.
+     * Only the fields of {@link InspectImageResponse} are read, the rest of the output is skipped.
+     * @param stdout Data output to be parsed, in the default or {@link InspectParser#FORMAT} format
+     * @return Images in the order of the output
+     * @throws IOException Cannot parse the response
+     */
+    @Nonnull
+    public static List<InspectImageResponse> parseInspectImageResponses(@Nonnull String stdout) throws IOException {
+        return InspectParser.parse(new StringReader(stdout));
     }
 
     @Restricted(NoExternalUse.class)
@@ -97,15 +94,39 @@ public final class DockerCLIHelper {
 
         private final String parent;
         private final String id;
+        private final List<String> repoDigests;
+        private final long size;
+        private final List<String> layers;
 
         public InspectImageResponse(JSONObject inspectImageResponse) throws IOException {
             this.parent = inspectImageResponse.getString("Parent");
             this.id = inspectImageResponse.getString("Id");
+            this.repoDigests = strings(inspectImageResponse.optJSONArray("RepoDigests"));
+            this.size = inspectImageResponse.optLong("Size");
+            JSONObject rootFs = inspectImageResponse.optJSONObject("RootFS");
+            this.layers = strings(rootFs != null ? rootFs.optJSONArray("Layers") : null);
         }
         
         public InspectImageResponse(String parent, String id) {
+            this(parent, id, Collections.<String>emptyList(), 0, Collections.<String>emptyList());
+        }
+
+        public InspectImageResponse(String parent, String id, List<String> repoDigests, long size, List<String> layers) {
             this.parent = parent;
             this.id = id;
+            this.repoDigests = Collections.unmodifiableList(repoDigests);
+            this.size = size;
+            this.layers = Collections.unmodifiableList(layers);
+        }
+
+        private static List<String> strings(@CheckForNull JSONArray array) {
+            List<String> strings = new ArrayList<String>();
+            if (array != null) {
+                for (int i = 0; i < array.size(); i++) {
+                    strings.add(array.getString(i));
+                }
+            }
+            return strings;
         }
 
         public String getParent() {
@@ -115,5 +136,26 @@ public final class DockerCLIHelper {
         public String getId() {
             return id;
         }
+
+        /**
+         * @return Digests of the image in the registries it was pushed to or pulled from, ie. {@code jdoe/busybox@sha256:...}
+         */
+        public List<String> getRepoDigests() {
+            return repoDigests;
+        }
+
+        /**
+         * @return Size of the image in bytes
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return Digests of the layers of the image, base layer first
+         */
+        public List<String> getLayers() {
+            return layers;
+        }
     }
 }
@@ -0,0 +1,106 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.dockerpublish;
+
+import com.cloudbees.dockerpublish.DockerCLIHelper.InspectImageResponse;
+import hudson.FilePath;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import org.jenkinsci.plugins.tokenmacro.MacroEvaluationException;
+
+/**
+ * Docker operations run by {@link DockerBuilder}, either with the docker CLI or the Docker Engine API.
+ * Build options come from the configuration of the step.
+ */
+interface DockerClient {
+
+    /**
+     * Builds an image.
+     * @param context Build context
+     * @param tag Tag of the image
+     * @return Outcome of the build
+     */
+    @Nonnull
+    BuildResult build(@Nonnull FilePath context, @Nonnull ImageTag tag) throws MacroEvaluationException, IOException, InterruptedException;
+
+    /**
+     * Tags an image.
+     * @param image Image ID or name
+     * @param tag New tag
+     * @return true if the image was tagged
+     */
+    boolean tag(@Nonnull String image, @Nonnull ImageTag tag) throws MacroEvaluationException, IOException, InterruptedException;
+
+    /**
+     * Pushes a tag to its registry.
+     * @param tag Tag to be pushed
+     * @param log Where the progress is written
+     * @return true if the tag was pushed
+     */
+    boolean push(@Nonnull ImageTag tag, @Nonnull OutputStream log) throws MacroEvaluationException, IOException, InterruptedException;
+
+    /**
+     * Pulls an image from its registry.
+     * @param image Image reference, including its tag or digest
+     * @param log Where the progress is written
+     * @return true if the image was pulled
+     */
+    boolean pull(@Nonnull String image, @Nonnull OutputStream log) throws MacroEvaluationException, IOException, InterruptedException;
+
+    /**
+     * Retrieves information about an image.
+     * @param image Image ID or name
+     * @return Image information or null if it cannot be retrieved
+     */
+    @CheckForNull
+    InspectImageResponse inspect(@Nonnull String image) throws MacroEvaluationException, IOException, InterruptedException;
+
+    /**
+     * Outcome of {@link #build(FilePath, ImageTag)}.
+     */
+    final class BuildResult implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        final boolean result;
+        final @CheckForNull String imageId;
+        final @CheckForNull BuildTimeline timeline;
+
+        BuildResult(boolean result, @CheckForNull String imageId) {
+            this(result, imageId, null);
+        }
+
+        /**
+         * @param timeline Dockerfile steps parsed from the build output, null if it was not parsed
+         */
+        BuildResult(boolean result, @CheckForNull String imageId, @CheckForNull BuildTimeline timeline) {
+            this.result = result;
+            this.imageId = imageId;
+            this.timeline = timeline;
+        }
+    }
+}
@@ -0,0 +1,752 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.dockerpublish;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import net.sf.json.JSONException;
+import net.sf.json.JSONObject;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.io.output.TeeOutputStream;
+
+/**
+ * Minimal client of the Docker Engine HTTP API.
+ * It is used on the node which runs the build, where the daemon endpoint is reachable,
+ * and speaks HTTP/1.1 directly over a TCP or unix socket.
+ * Unix sockets need a Java 16 or newer runtime on that node.
+ */
+final class DockerEngineApi implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    static final String DEFAULT_HOST = "unix:///var/run/docker.sock";
+
+    private static final int DEFAULT_PORT = 2375;
+
+    /** Timeout of the connection to a TCP endpoint, in milliseconds. */
+    static final int CONNECT_TIMEOUT = 10 * 1000;
+
+    /** Timeout of the reads of the requests answered at once, ie. ping, inspect or tag, in milliseconds. */
+    static final int READ_TIMEOUT = 60 * 1000;
+
+    /** {@code UnixDomainSocketAddress.of(String)}, null before Java 16. */
+    private static final Method UNIX_ADDRESS_OF;
+    /** {@code SocketChannel.open(ProtocolFamily)}, null before Java 16. */
+    private static final Method OPEN_CHANNEL;
+    private static final ProtocolFamily UNIX_FAMILY;
+
+    static {
+        Method of = null;
+        Method open = null;
+        ProtocolFamily family = null;
+        try {
+            of = Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class);
+            open = SocketChannel.class.getMethod("open", ProtocolFamily.class);
+            family = StandardProtocolFamily.valueOf("UNIX");
+        } catch (ClassNotFoundException e) {
+            of = null;
+        } catch (NoSuchMethodException e) {
+            of = null;
+        } catch (IllegalArgumentException e) {
+            of = null;
+        }
+        UNIX_ADDRESS_OF = of;
+        OPEN_CHANNEL = open;
+        UNIX_FAMILY = family;
+    }
+
+    private final String host;
+    private final int connectTimeout;
+    private final int readTimeout;
+
+    /**
+     * @param host Daemon endpoint, ie. {@code unix:///var/run/docker.sock} or {@code tcp://docker.acme.com:2375},
+     *             null for the default unix socket
+     */
+    DockerEngineApi(@CheckForNull String host) {
+        this(host, CONNECT_TIMEOUT, READ_TIMEOUT);
+    }
+
+    /**
+     * @param connectTimeout Timeout of the connection to a TCP endpoint, in milliseconds
+     * @param readTimeout Timeout of the reads of the requests answered at once, in milliseconds; builds, pushes and
+     *                    pulls stream their progress for as long as they run and have none
+     */
+    DockerEngineApi(@CheckForNull String host, int connectTimeout, int readTimeout) {
+        this.host = host == null || host.trim().isEmpty() ? DEFAULT_HOST : host.trim();
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+    }
+
+    @Nonnull
+    String getHost() {
+        return host;
+    }
+
+    /**
+     * @return Whether the endpoint can be reached from this JVM
+     */
+    boolean isSupported() {
+        if (host.startsWith("tcp://") || host.startsWith("http://")) {
+            return true;
+        }
+        return host.startsWith("unix://") && UNIX_ADDRESS_OF != null;
+    }
+
+    /**
+     * @return Whether the daemon answers
+     */
+    boolean ping() throws IOException {
+        Response response = request("GET", "/_ping", null, null, readTimeout);
+        try {
+            return response.status == 200;
+        } finally {
+            response.close();
+        }
+    }
+
+    /**
+     * Builds an image, streaming the build context to the daemon.
+     * @param context Build context directory, honoring its {@code .dockerignore}
+     * @param dockerfile Dockerfile path relative to the context, null for the default one
+     * @param params Query parameters of the build
+     * @param registryConfig {@code X-Registry-Config} header, null if there are no credentials
+     * @param log Where the build output is written
+     * @return Outcome of the build
+     */
+    @Nonnull
+    DockerClient.BuildResult build(@Nonnull final File context, @CheckForNull String dockerfile, @Nonnull Map<String, String> params,
+                                   @CheckForNull String registryConfig, @Nonnull OutputStream log) throws IOException {
+        final DockerIgnore ignore = DockerIgnore.load(context);
+        final String dockerfilePath = DockerIgnore.clean(dockerfile != null ? dockerfile : "Dockerfile");
+        Map<String, String> query = new LinkedHashMap<String, String>(params);
+        query.put("dockerfile", dockerfilePath);
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        headers.put("Content-Type", "application/x-tar");
+        if (registryConfig != null) {
+            headers.put("X-Registry-Config", registryConfig);
+        }
+        Response response = request("POST", "/build" + query(query), headers, new Body() {
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                writeContext(context, ignore, dockerfilePath, out);
+            }
+        });
+        try {
+            if (response.status != 200) {
+                println(log, "Docker Engine API error " + response.status + ": " + response.readString());
+                return new DockerClient.BuildResult(false, null);
+            }
+            DockerOutputParser parser = new DockerOutputParser(StandardCharsets.UTF_8);
+            Progress progress = readProgress(response.body, new TeeOutputStream(log, parser));
+            parser.close();
+            String imageId = progress.id != null ? progress.id : parser.getImageBuilt();
+            return new DockerClient.BuildResult(progress.error == null, imageId, parser.getTimeline());
+        } finally {
+            response.close();
+        }
+    }
+
+    /**
+     * Tags an image.
+     * @return true if the image was tagged
+     */
+    boolean tag(@Nonnull String image, @Nonnull String repo, @CheckForNull String tag, @Nonnull OutputStream log) throws IOException {
+        Map<String, String> query = new LinkedHashMap<String, String>();
+        query.put("repo", repo);
+        if (tag != null) {
+            query.put("tag", tag);
+        }
+        Response response = request("POST", "/images/" + image + "/tag" + query(query), null, null, readTimeout);
+        try {
+            if (response.status != 201 && response.status != 200) {
+                println(log, "Docker Engine API error " + response.status + ": " + response.readString());
+                return false;
+            }
+            return true;
+        } finally {
+            response.close();
+        }
+    }
+
+    /**
+     * Pushes a tag.
+     * @param registryAuth {@code X-Registry-Auth} header, null if there are no credentials
+     * @return true if the tag was pushed
+     */
+    boolean push(@Nonnull String name, @Nonnull String tag, @CheckForNull String registryAuth, @Nonnull OutputStream log) throws IOException {
+        // the header is mandatory even without credentials
+        Map<String, String> headers = Collections.singletonMap("X-Registry-Auth", registryAuth != null ? registryAuth : "e30=");
+        Response response = request("POST", "/images/" + name + "/push" + query(Collections.singletonMap("tag", tag)), headers, null);
+        try {
+            if (response.status != 200) {
+                println(log, "Docker Engine API error " + response.status + ": " + response.readString());
+                return false;
+            }
+            return readProgress(response.body, log).error == null;
+        } finally {
+            response.close();
+        }
+    }
+
+    /**
+     * Pulls an image.
+     * @param image Image reference, including its tag or digest: the daemon pulls all the tags otherwise
+     * @param registryAuth {@code X-Registry-Auth} header, null if there are no credentials
+     * @return true if the image was pulled
+     */
+    boolean pull(@Nonnull String image, @CheckForNull String registryAuth, @Nonnull OutputStream log) throws IOException {
+        Map<String, String> headers = registryAuth != null ? Collections.singletonMap("X-Registry-Auth", registryAuth) : null;
+        Response response = request("POST", "/images/create" + query(Collections.singletonMap("fromImage", image)), headers, null);
+        try {
+            if (response.status != 200) {
+                println(log, "Docker Engine API error " + response.status + ": " + response.readString());
+                return false;
+            }
+            return readProgress(response.body, log).error == null;
+        } finally {
+            response.close();
+        }
+    }
+
+    /**
+     * Inspects an image.
+     * @return JSON description of the image, null if there is no such image
+     */
+    @CheckForNull
+    String inspect(@Nonnull String image) throws IOException {
+        Response response = request("GET", "/images/" + image + "/json", null, null, readTimeout);
+        try {
+            if (response.status == 404) {
+                return null;
+            }
+            String body = response.readString();
+            if (response.status != 200) {
+                throw new IOException("Docker Engine API error " + response.status + ": " + body);
+            }
+            return body;
+        } finally {
+            response.close();
+        }
+    }
+
+    /**
+     * Writes a build context as a tar archive.
+     * The Dockerfile and {@code .dockerignore} are always sent, like the docker CLI does.
+     */
+    static void writeContext(@Nonnull File context, @Nonnull DockerIgnore ignore, @Nonnull String dockerfile,
+                             @Nonnull OutputStream out) throws IOException {
+        TarArchiveOutputStream tar = new TarArchiveOutputStream(out);
+        tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+        tar.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+        addToContext(tar, context, "", ignore, dockerfile);
+        tar.finish();
+    }
+
+    private static void addToContext(TarArchiveOutputStream tar, File dir, String prefix, DockerIgnore ignore, String dockerfile) throws IOException {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        Arrays.sort(children);
+        for (File child : children) {
+            String path = prefix + child.getName();
+            boolean ignored = ignore.isExcluded(path, dockerfile);
+            Path file = child.toPath();
+            if (Files.isSymbolicLink(file)) {
+                if (!ignored) {
+                    TarArchiveEntry entry = new TarArchiveEntry(path, TarArchiveEntry.LF_SYMLINK);
+                    entry.setLinkName(Files.readSymbolicLink(file).toString());
+                    tar.putArchiveEntry(entry);
+                    tar.closeArchiveEntry();
+                }
+            } else if (child.isDirectory()) {
+                if (!ignored) {
+                    TarArchiveEntry entry = new TarArchiveEntry(path + "/");
+                    entry.setMode(TarArchiveEntry.DEFAULT_DIR_MODE);
+                    entry.setModTime(child.lastModified());
+                    tar.putArchiveEntry(entry);
+                    tar.closeArchiveEntry();
+                }
+                if (!ignored || ignore.isWalked(path, dockerfile)) {
+                    addToContext(tar, child, path + "/", ignore, dockerfile);
+                }
+            } else if (!ignored) {
+                TarArchiveEntry entry = new TarArchiveEntry(path);
+                entry.setMode(child.canExecute() ? 0100755 : TarArchiveEntry.DEFAULT_FILE_MODE);
+                entry.setModTime(child.lastModified());
+                entry.setSize(child.length());
+                tar.putArchiveEntry(entry);
+                Files.copy(file, tar);
+                tar.closeArchiveEntry();
+            }
+        }
+    }
+
+    /**
+     * Messages read from a JSON progress stream.
+     */
+    static final class Progress {
+        /** Image ID reported by a build. */
+        String id;
+        /** Manifest digest reported by a push. */
+        String digest;
+        /** Error message, null if the operation succeeded. */
+        String error;
+        /** Size of the layers uploaded by a push. */
+        long bytesPushed;
+    }
+
+    /**
+     * Reads a JSON progress stream, writing its human readable messages to the log.
+     * Progress bar updates are skipped, the size of the uploaded layers is added to their {@code Pushed} message.
+     * @throws IOException if a line is not a JSON message
+     */
+    @Nonnull
+    static Progress readProgress(@Nonnull InputStream body, @Nonnull OutputStream log) throws IOException {
+        Progress progress = new Progress();
+        Map<String, Long> layerSizes = new HashMap<String, Long>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            JSONObject message;
+            try {
+                message = JSONObject.fromObject(line);
+            } catch (JSONException e) {
+                // ie. an HTML error page of a proxy in front of the daemon
+                throw new IOException("Unexpected output from the Docker daemon: " + line, e);
+            }
+            if (message.has("error")) {
+                progress.error = message.getString("error");
+                println(log, progress.error);
+            } else if (message.has("stream")) {
+                log.write(message.getString("stream").getBytes(StandardCharsets.UTF_8));
+            } else if (message.has("status") && !message.has("progress")) {
+                String id = message.optString("id", null);
+                String status = message.getString("status");
+                Long size = id != null && status.equals("Pushed") ? layerSizes.remove(id) : null;
+                if (size != null) {
+                    progress.bytesPushed += size;
+                    status += " (" + size + " bytes)";
+                }
+                println(log, (id != null ? id + ": " : "") + status);
+            } else if (message.has("id") && "Pushing".equals(message.optString("status"))) {
+                JSONObject detail = message.optJSONObject("progressDetail");
+                if (detail != null && detail.has("total")) {
+                    layerSizes.put(message.getString("id"), detail.getLong("total"));
+                }
+            }
+            JSONObject aux = message.optJSONObject("aux");
+            if (aux != null) {
+                if (aux.has("ID")) {
+                    progress.id = aux.getString("ID");
+                }
+                if (aux.has("Digest")) {
+                    progress.digest = aux.getString("Digest");
+                }
+            }
+        }
+        log.flush();
+        return progress;
+    }
+
+    private static void println(OutputStream log, String s) throws IOException {
+        log.write((s + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Nonnull
+    static String query(@Nonnull Map<String, String> params) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> param : params.entrySet()) {
+            sb.append(sb.length() == 0 ? '?' : '&')
+                    .append(URLEncoder.encode(param.getKey(), "UTF-8"))
+                    .append('=')
+                    .append(URLEncoder.encode(param.getValue(), "UTF-8"));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Request body, sent with chunked transfer encoding.
+     */
+    interface Body {
+        void writeTo(@Nonnull OutputStream out) throws IOException;
+    }
+
+    /**
+     * Sends a request to the daemon.
+     * @param method HTTP method
+     * @param path Path and query of the request
+     * @param headers Additional headers
+     * @param body Body of the request, null if there is none
+     * @return Response, to be closed by the caller
+     */
+    @Nonnull
+    Response request(@Nonnull String method, @Nonnull String path, @CheckForNull Map<String, String> headers,
+                     @CheckForNull Body body) throws IOException {
+        return request(method, path, headers, body, 0);
+    }
+
+    /**
+     * Sends a request to the daemon.
+     * @param readTimeout Timeout of each read of the response from a TCP endpoint in milliseconds, 0 for none
+     * @return Response, to be closed by the caller
+     */
+    @Nonnull
+    Response request(@Nonnull String method, @Nonnull String path, @CheckForNull Map<String, String> headers,
+                     @CheckForNull Body body, int readTimeout) throws IOException {
+        Connection connection = connect(readTimeout);
+        boolean ok = false;
+        try {
+            OutputStream out = new BufferedOutputStream(connection.out, 8192);
+            StringBuilder head = new StringBuilder();
+            head.append(method).append(' ').append(path).append(" HTTP/1.1\r\n");
+            head.append("Host: docker\r\n");
+            head.append("User-Agent: docker-build-publish\r\n");
+            head.append("Connection: close\r\n");
+            if (headers != null) {
+                for (Map.Entry<String, String> header : headers.entrySet()) {
+                    head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+                }
+            }
+            if (body != null) {
+                head.append("Transfer-Encoding: chunked\r\n");
+            }
+            head.append("\r\n");
+            out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+            if (body != null) {
+                ChunkedOutputStream chunked = new ChunkedOutputStream(out);
+                OutputStream buffered = new BufferedOutputStream(chunked, 32 * 1024);
+                body.writeTo(buffered);
+                buffered.flush();
+                chunked.finish();
+            }
+            out.flush();
+            Response response = readResponse(connection);
+            ok = true;
+            return response;
+        } finally {
+            if (!ok) {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * @param readTimeout Timeout of the reads from a TCP endpoint, a unix socket being local
+     */
+    private Connection connect(int readTimeout) throws IOException {
+        if (host.startsWith("unix://")) {
+            if (UNIX_ADDRESS_OF == null) {
+                throw new IOException("Unix sockets need Java 16 or newer: " + host);
+            }
+            try {
+                SocketChannel channel = (SocketChannel) OPEN_CHANNEL.invoke(null, UNIX_FAMILY);
+                try {
+                    channel.connect((SocketAddress) UNIX_ADDRESS_OF.invoke(null, host.substring("unix://".length())));
+                } catch (IOException e) {
+                    channel.close();
+                    throw e;
+                }
+                return new Connection(Channels.newInputStream(channel), Channels.newOutputStream(channel), channel);
+            } catch (IllegalAccessException e) {
+                throw new IOException("Cannot connect to " + host, e);
+            } catch (InvocationTargetException e) {
+                throw new IOException("Cannot connect to " + host, e.getCause());
+            }
+        }
+        URI uri = URI.create(host);
+        Socket socket = new Socket();
+        try {
+            // an unreachable daemon fails quickly, the CLI being used instead
+            socket.connect(new InetSocketAddress(uri.getHost(), uri.getPort() == -1 ? DEFAULT_PORT : uri.getPort()), connectTimeout);
+            socket.setSoTimeout(readTimeout);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return new Connection(socket.getInputStream(), socket.getOutputStream(), socket);
+    }
+
+    private static Response readResponse(Connection connection) throws IOException {
+        InputStream in = new BufferedInputStream(connection.in);
+        int status;
+        Map<String, String> headers;
+        do {
+            String statusLine = readLine(in);
+            String[] parts = statusLine.split(" ", 3);
+            if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+                throw new IOException("Unexpected response from the Docker daemon: " + statusLine);
+            }
+            status = Integer.parseInt(parts[1]);
+            headers = new LinkedHashMap<String, String>();
+            for (String line = readLine(in); !line.isEmpty(); line = readLine(in)) {
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ENGLISH), line.substring(colon + 1).trim());
+                }
+            }
+        } while (status / 100 == 1); // skip interim responses
+
+        InputStream body;
+        if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+            body = new ChunkedInputStream(in);
+        } else if (headers.containsKey("content-length")) {
+            body = new LimitedInputStream(in, Long.parseLong(headers.get("content-length")));
+        } else {
+            body = in;
+        }
+        return new Response(status, headers, body, connection);
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) {
+                throw new EOFException("Connection closed by the Docker daemon");
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return new String(line.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Response of the daemon.
+     */
+    static final class Response implements Closeable {
+        final int status;
+        final Map<String, String> headers;
+        final InputStream body;
+        private final Closeable connection;
+
+        Response(int status, Map<String, String> headers, InputStream body, Closeable connection) {
+            this.status = status;
+            this.headers = headers;
+            this.body = body;
+            this.connection = connection;
+        }
+
+        @Nonnull
+        String readString() throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = body.read(buf)) != -1) {
+                out.write(buf, 0, n);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void close() throws IOException {
+            connection.close();
+        }
+    }
+
+    private static final class Connection implements Closeable {
+        final InputStream in;
+        final OutputStream out;
+        private final Closeable socket;
+
+        Connection(InputStream in, OutputStream out, Closeable socket) {
+            this.in = in;
+            this.out = out;
+            this.socket = socket;
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    private static final class ChunkedOutputStream extends FilterOutputStream {
+        ChunkedOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            out.write((Integer.toHexString(len) + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            out.write(b, off, len);
+            out.write('\r');
+            out.write('\n');
+        }
+
+        void finish() throws IOException {
+            out.write("0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            // the connection is closed with the response
+        }
+    }
+
+    private static final class ChunkedInputStream extends InputStream {
+        private final InputStream in;
+        private long remaining;
+        private boolean eof;
+
+        ChunkedInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        private boolean nextChunk() throws IOException {
+            if (eof) {
+                return false;
+            }
+            if (remaining == 0) {
+                String size = readLine(in);
+                if (size.isEmpty()) { // end of the previous chunk
+                    size = readLine(in);
+                }
+                int semicolon = size.indexOf(';');
+                remaining = Long.parseLong((semicolon >= 0 ? size.substring(0, semicolon) : size).trim(), 16);
+                if (remaining == 0) {
+                    // trailers
+                    while (!readLine(in).isEmpty()) {
+                        continue;
+                    }
+                    eof = true;
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!nextChunk()) {
+                return -1;
+            }
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException("Truncated chunk");
+            }
+            remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!nextChunk()) {
+                return -1;
+            }
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n == -1) {
+                throw new EOFException("Truncated chunk");
+            }
+            remaining -= n;
+            return n;
+        }
+    }
+
+    private static final class LimitedInputStream extends InputStream {
+        private final InputStream in;
+        private long remaining;
+
+        LimitedInputStream(InputStream in, long length) {
+            this.in = in;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b != -1) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n != -1) {
+                remaining -= n;
+            }
+            return n;
+        }
+    }
+}
@@ -0,0 +1,320 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.dockerpublish;
+
+import com.cloudbees.dockerpublish.DockerCLIHelper.InspectImageResponse;
+import hudson.AbortException;
+import hudson.FilePath;
+import hudson.model.TaskListener;
+import hudson.remoting.RemoteOutputStream;
+import hudson.remoting.VirtualChannel;
+import hudson.util.QuotedStringTokenizer;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.security.MasterToSlaveCallable;
+import net.sf.json.JSONObject;
+import org.jenkinsci.plugins.docker.commons.credentials.DockerRegistryEndpoint;
+import org.jenkinsci.plugins.docker.commons.credentials.DockerRegistryToken;
+
+/**
+ * {@link DockerClient} talking to the Docker Engine API from the node running the build,
+ * instead of forking the docker CLI for every command.
+ */
+final class DockerEngineClient implements DockerClient {
+
+    private final DockerEngineApi api;
+    private final VirtualChannel channel;
+    private final TaskListener listener;
+    private final Map<String, String> buildParams;
+    @CheckForNull
+    private final String dockerfile;
+    @CheckForNull
+    private final String registryAuth;
+    @CheckForNull
+    private final String registryConfig;
+    private final String registryUrl;
+
+    /**
+     * @param api Daemon endpoint
+     * @param channel Channel of the node running the build
+     * @param listener Build listener
+     * @param buildParams Query parameters of the builds, see {@link #buildParams(String, boolean, boolean)}
+     * @param dockerfile Dockerfile path relative to the build context, null for the default one
+     * @param token Registry credentials, null if there are none
+     * @param registryUrl Registry URL
+     */
+    DockerEngineClient(@Nonnull DockerEngineApi api, @Nonnull VirtualChannel channel, @Nonnull TaskListener listener,
+                       @Nonnull Map<String, String> buildParams, @CheckForNull String dockerfile,
+                       @CheckForNull DockerRegistryToken token, @Nonnull String registryUrl) {
+        this.api = api;
+        this.channel = channel;
+        this.listener = listener;
+        this.buildParams = buildParams;
+        this.dockerfile = dockerfile;
+        this.registryUrl = registryUrl;
+        if (token != null) {
+            this.registryConfig = encode(new JSONObject().element(registryUrl, authConfig(token)));
+            this.registryAuth = encode(authConfig(token).element("serveraddress", registryUrl));
+        } else {
+            this.registryConfig = null;
+            this.registryAuth = null;
+        }
+    }
+
+    /**
+     * Checks that the daemon endpoint can be reached from the node running the build.
+     */
+    static boolean isSupported(@Nonnull DockerEngineApi api, @Nonnull VirtualChannel channel) throws IOException, InterruptedException {
+        return channel.call(new PingCallable(api));
+    }
+
+    /**
+     * Translates the build options, including the supported additional arguments of docker build, to API parameters.
+     * @throws AbortException if an additional argument cannot be translated
+     */
+    @Nonnull
+    static Map<String, String> buildParams(@Nonnull String additionalArgs, boolean noCache, boolean pull) throws AbortException {
+        Map<String, String> params = new LinkedHashMap<String, String>();
+        if (noCache) {
+            params.put("nocache", "1");
+        }
+        if (pull) {
+            params.put("pull", "1");
+        }
+        JSONObject buildArgs = new JSONObject();
+        JSONObject labels = new JSONObject();
+        String[] args = QuotedStringTokenizer.tokenize(additionalArgs);
+        for (int i = 0; i < args.length; i++) {
+            String name = args[i];
+            String value = null;
+            int eq = name.indexOf('=');
+            if (name.startsWith("--") && eq > 0) {
+                value = name.substring(eq + 1);
+                name = name.substring(0, eq);
+            }
+            if (!name.equals("--build-arg") && !name.equals("--label") && !name.equals("--target")
+                    && !name.equals("--network") && !name.equals("--platform")) {
+                throw new AbortException("docker build argument not supported with the Docker Engine API: " + args[i]);
+            }
+            if (value == null) {
+                if (i + 1 == args.length) {
+                    throw new AbortException("Missing value of docker build argument " + name);
+                }
+                value = args[++i];
+            }
+            if (name.equals("--build-arg") || name.equals("--label")) {
+                int kv = value.indexOf('=');
+                if (kv <= 0) {
+                    throw new AbortException("Expected KEY=VALUE for docker build argument " + name + ": " + value);
+                }
+                (name.equals("--build-arg") ? buildArgs : labels).put(value.substring(0, kv), value.substring(kv + 1));
+            } else {
+                params.put(name.substring(2).equals("network") ? "networkmode" : name.substring(2), value);
+            }
+        }
+        if (!buildArgs.isEmpty()) {
+            params.put("buildargs", buildArgs.toString());
+        }
+        if (!labels.isEmpty()) {
+            params.put("labels", labels.toString());
+        }
+        return params;
+    }
+
+    @Override
+    public BuildResult build(FilePath context, ImageTag tag) throws IOException, InterruptedException {
+        Map<String, String> params = new LinkedHashMap<String, String>(buildParams);
+        params.put("t", tag.toString());
+        return context.act(new BuildCallable(api, dockerfile, params, registryConfig, listener));
+    }
+
+    @Override
+    public boolean tag(String image, ImageTag tag) throws IOException, InterruptedException {
+        return channel.call(new TagCallable(api, image, tag.getName(), tag.getTag(), listener));
+    }
+
+    @Override
+    public boolean push(ImageTag tag, OutputStream log) throws IOException, InterruptedException {
+        return channel.call(new PushCallable(api, tag.getName(), tag.getTag() != null ? tag.getTag() : "latest",
+                registryAuth, new RemoteOutputStream(log)));
+    }
+
+    @Override
+    public boolean pull(String image, OutputStream log) throws IOException, InterruptedException {
+        // only send the credentials to the registry they are for
+        boolean sameRegistry = DockerRegistryEndpoint.fromImageName(image, null).getEffectiveUrl().toString().equals(registryUrl);
+        return channel.call(new PullCallable(api, image, sameRegistry ? registryAuth : null, new RemoteOutputStream(log)));
+    }
+
+    @Override
+    public InspectImageResponse inspect(String image) throws IOException, InterruptedException {
+        String json = channel.call(new InspectCallable(api, image));
+        return json == null ? null : DockerCLIHelper.parseInspectImageResponse(json);
+    }
+
+    private static JSONObject authConfig(DockerRegistryToken token) {
+        String credentials = new String(Base64.getDecoder().decode(token.getToken()), StandardCharsets.UTF_8);
+        int colon = credentials.indexOf(':');
+        JSONObject auth = new JSONObject();
+        auth.put("username", colon >= 0 ? credentials.substring(0, colon) : credentials);
+        auth.put("password", colon >= 0 ? credentials.substring(colon + 1) : "");
+        return auth;
+    }
+
+    private static String encode(JSONObject json) {
+        return Base64.getUrlEncoder().encodeToString(json.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static final class PingCallable extends MasterToSlaveCallable<Boolean, IOException> {
+        private static final long serialVersionUID = 1L;
+        private final DockerEngineApi api;
+
+        PingCallable(DockerEngineApi api) {
+            this.api = api;
+        }
+
+        @Override
+        public Boolean call() throws IOException {
+            if (!api.isSupported()) {
+                return false;
+            }
+            try {
+                return api.ping();
+            } catch (IOException e) {
+                // unreachable, the CLI is used instead
+                return false;
+            }
+        }
+    }
+
+    private static final class BuildCallable extends MasterToSlaveFileCallable<BuildResult> {
+        private static final long serialVersionUID = 1L;
+        private final DockerEngineApi api;
+        private final String dockerfile;
+        private final Map<String, String> params;
+        private final String registryConfig;
+        private final TaskListener listener;
+
+        BuildCallable(DockerEngineApi api, String dockerfile, Map<String, String> params, String registryConfig, TaskListener listener) {
+            this.api = api;
+            this.dockerfile = dockerfile;
+            this.params = params;
+            this.registryConfig = registryConfig;
+            this.listener = listener;
+        }
+
+        @Override
+        public BuildResult invoke(File context, VirtualChannel channel) throws IOException {
+            return api.build(context, dockerfile, params, registryConfig, listener.getLogger());
+        }
+    }
+
+    private static final class TagCallable extends MasterToSlaveCallable<Boolean, IOException> {
+        private static final long serialVersionUID = 1L;
+        private final DockerEngineApi api;
+        private final String image;
+        private final String repo;
+        private final String tag;
+        private final TaskListener listener;
+
+        TagCallable(DockerEngineApi api, String image, String repo, String tag, TaskListener listener) {
+            this.api = api;
+            this.image = image;
+            this.repo = repo;
+            this.tag = tag;
+            this.listener = listener;
+        }
+
+        @Override
+        public Boolean call() throws IOException {
+            return api.tag(image, repo, tag, listener.getLogger());
+        }
+    }
+
+    private static final class PushCallable extends MasterToSlaveCallable<Boolean, IOException> {
+        private static final long serialVersionUID = 1L;
+        private final DockerEngineApi api;
+        private final String name;
+        private final String tag;
+        private final String registryAuth;
+        private final OutputStream log;
+
+        PushCallable(DockerEngineApi api, String name, String tag, String registryAuth, OutputStream log) {
+            this.api = api;
+            this.name = name;
+            this.tag = tag;
+            this.registryAuth = registryAuth;
+            this.log = log;
+        }
+
+        @Override
+        public Boolean call() throws IOException {
+            return api.push(name, tag, registryAuth, log);
+        }
+    }
+
+    private static final class PullCallable extends MasterToSlaveCallable<Boolean, IOException> {
+        private static final long serialVersionUID = 1L;
+        private final DockerEngineApi api;
+        private final String image;
+        private final String registryAuth;
+        private final OutputStream log;
+
+        PullCallable(DockerEngineApi api, String image, String registryAuth, OutputStream log) {
+            this.api = api;
+            this.image = image;
+            this.registryAuth = registryAuth;
+            this.log = log;
+        }
+
+        @Override
+        public Boolean call() throws IOException {
+            return api.pull(image, registryAuth, log);
+        }
+    }
+
+    private static final class InspectCallable extends MasterToSlaveCallable<String, IOException> {
+        private static final long serialVersionUID = 1L;
+        private final DockerEngineApi api;
+        private final String image;
+
+        InspectCallable(DockerEngineApi api, String image) {
+            this.api = api;
+            this.image = image;
+        }
+
+        @Override
+        public String call() throws IOException {
+            return api.inspect(image);
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.dockerpublish;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.regex.Pattern;
+import javax.annotation.Nonnull;
+
+/**
+ * Matcher for the patterns of a {@code .dockerignore} file, following the rules of the docker CLI:
+ * the last matching pattern wins, {@code !} re-includes paths, and a pattern matching a directory
+ * matches everything below it.
+ */
+final class DockerIgnore implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    static final String FILE_NAME = ".dockerignore";
+
+    private final List<Pattern> patterns = new ArrayList<Pattern>();
+    private final List<Boolean> exclusions = new ArrayList<Boolean>();
+
+    /**
+     * Parses the content of a {@code .dockerignore} file.
+     */
+    @Nonnull
+    static DockerIgnore parse(@Nonnull String content) {
+        DockerIgnore ignore = new DockerIgnore();
+        for (String line : content.split("\r?\n")) {
+            String pattern = line.trim();
+            if (pattern.isEmpty() || pattern.startsWith("#")) {
+                continue;
+            }
+            boolean exclusion = false;
+            if (pattern.startsWith("!")) {
+                exclusion = true;
+                pattern = pattern.substring(1).trim();
+            }
+            pattern = clean(pattern);
+            if (pattern.isEmpty()) {
+                continue;
+            }
+            ignore.patterns.add(Pattern.compile(toRegex(pattern)));
+            ignore.exclusions.add(exclusion);
+        }
+        return ignore;
+    }
+
+    /**
+     * Loads the {@code .dockerignore} file of a build context.
+     * @param context Build context directory
+     * @return Patterns of the file, none if there is no such file
+     */
+    @Nonnull
+    static DockerIgnore load(@Nonnull File context) throws IOException {
+        File file = new File(context, FILE_NAME);
+        if (!file.isFile()) {
+            return new DockerIgnore();
+        }
+        return parse(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param path Path relative to the build context, using {@code /} as separator
+     * @return Whether the path is excluded from the build context
+     */
+    boolean isIgnored(@Nonnull String path) {
+        path = clean(path);
+        boolean matched = false;
+        for (int i = 0; i < patterns.size(); i++) {
+            boolean exclusion = exclusions.get(i);
+            if (exclusion != matched) {
+                continue; // cannot change the outcome
+            }
+            Pattern pattern = patterns.get(i);
+            boolean match = pattern.matcher(path).matches();
+            // a pattern matching a parent directory matches its content too
+            for (int slash = path.indexOf('/'); !match && slash > 0; slash = path.indexOf('/', slash + 1)) {
+                match = pattern.matcher(path.substring(0, slash)).matches();
+            }
+            if (match) {
+                matched = !exclusion;
+            }
+        }
+        return matched;
+    }
+
+    /**
+     * @param path Path relative to the build context, using {@code /} as separator
+     * @param dockerfile Cleaned Dockerfile path relative to the build context
+     * @return Whether the path is left out of the context sent to the daemon, the Dockerfile and
+     *         {@code .dockerignore} being always sent
+     */
+    boolean isExcluded(@Nonnull String path, @Nonnull String dockerfile) {
+        return isIgnored(path) && !path.equals(dockerfile) && !path.equals(FILE_NAME);
+    }
+
+    /**
+     * @param dir Excluded directory relative to the build context
+     * @param dockerfile Cleaned Dockerfile path relative to the build context
+     * @return Whether the directory must still be walked as it may contain re-included files or the Dockerfile
+     */
+    boolean isWalked(@Nonnull String dir, @Nonnull String dockerfile) {
+        return hasExceptions() || dockerfile.startsWith(dir + "/");
+    }
+
+    /**
+     * @return Whether some patterns re-include paths, in which case ignored directories still need to be walked
+     */
+    boolean hasExceptions() {
+        return exclusions.contains(Boolean.TRUE);
+    }
+
+    /**
+     * @return Whether there are no patterns at all
+     */
+    boolean isEmpty() {
+        return patterns.isEmpty();
+    }
+
+    /**
+     * Normalizes a path the way Go's {@code filepath.Clean} does, without any leading {@code /}.
+     */
+    @Nonnull
+    static String clean(@Nonnull String path) {
+        Deque<String> parts = new ArrayDeque<String>();
+        for (String part : path.split("/")) {
+            if (part.isEmpty() || part.equals(".")) {
+                continue;
+            }
+            if (part.equals("..")) {
+                if (!parts.isEmpty() && !parts.peekLast().equals("..")) {
+                    parts.removeLast();
+                }
+                continue;
+            }
+            parts.addLast(part);
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String part : parts) {
+            if (sb.length() > 0) {
+                sb.append('/');
+            }
+            sb.append(part);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Converts a cleaned pattern to a regular expression, {@code **} matching any number of directories.
+     */
+    @Nonnull
+    static String toRegex(@Nonnull String pattern) {
+        StringBuilder regex = new StringBuilder("^");
+        int length = pattern.length();
+        for (int i = 0; i < length; i++) {
+            char ch = pattern.charAt(i);
+            if (ch == '*') {
+                if (i + 1 < length && pattern.charAt(i + 1) == '*') {
+                    i++;
+                    if (i + 1 < length && pattern.charAt(i + 1) == '/') {
+                        i++;
+                    }
+                    regex.append(i + 1 < length ? "(.*/)?" : ".*");
+                } else {
+                    regex.append("[^/]*");
+                }
+            } else if (ch == '?') {
+                regex.append("[^/]");
+            } else if (ch == '\\' && i + 1 < length) {
+                regex.append(Pattern.quote(String.valueOf(pattern.charAt(++i))));
+            } else if (ch == '[' || ch == ']') {
+                regex.append(ch);
+            } else if (".$^+(){}|".indexOf(ch) >= 0) {
+                regex.append('\\').append(ch);
+            } else {
+                regex.append(ch);
+            }
+        }
+        return regex.append('$').toString();
+    }
+}
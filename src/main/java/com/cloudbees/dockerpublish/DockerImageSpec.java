@@ -0,0 +1,135 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.dockerpublish;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.util.FormValidation;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+
+/**
+ * An image of a {@link DockerBuildMatrix}: where it is built from and how it is tagged.
+ * The other options are shared by the images of the matrix.
+ */
+public class DockerImageSpec extends AbstractDescribableImpl<DockerImageSpec> {
+
+    private final String repoName;
+    @CheckForNull
+    private String repoTag;
+    @CheckForNull
+    private String buildContext;
+    @CheckForNull
+    private String dockerfilePath;
+    private String buildAdditionalArgs = "";
+
+    @DataBoundConstructor
+    public DockerImageSpec(String repoName) {
+        this.repoName = repoName;
+    }
+
+    public String getRepoName() {
+        return repoName;
+    }
+
+    public String getRepoTag() {
+        return repoTag;
+    }
+
+    @DataBoundSetter
+    public void setRepoTag(String repoTag) {
+        this.repoTag = Util.fixEmptyAndTrim(repoTag);
+    }
+
+    public String getBuildContext() {
+        return buildContext;
+    }
+
+    @DataBoundSetter
+    public void setBuildContext(String buildContext) {
+        this.buildContext = Util.fixEmptyAndTrim(buildContext);
+    }
+
+    public String getDockerfilePath() {
+        return dockerfilePath;
+    }
+
+    @DataBoundSetter
+    public void setDockerfilePath(String dockerfilePath) {
+        this.dockerfilePath = Util.fixEmptyAndTrim(dockerfilePath);
+    }
+
+    public String getBuildAdditionalArgs() {
+        return buildAdditionalArgs == null ? "" : buildAdditionalArgs;
+    }
+
+    @DataBoundSetter
+    public void setBuildAdditionalArgs(String buildAdditionalArgs) {
+        this.buildAdditionalArgs = Util.fixNull(buildAdditionalArgs);
+    }
+
+    /**
+     * Creates the build step building the image with the options of the matrix.
+     */
+    @Nonnull
+    DockerBuilder toBuilder(@Nonnull DockerBuildMatrix matrix) {
+        DockerBuilder builder = new DockerBuilder(repoName);
+        builder.setRepoTag(repoTag);
+        builder.setBuildContext(buildContext);
+        builder.setDockerfilePath(dockerfilePath);
+        builder.setBuildAdditionalArgs(getBuildAdditionalArgs());
+        builder.setServer(matrix.getServer());
+        builder.setRegistry(matrix.getRegistry());
+        builder.setDockerToolName(matrix.getDockerToolName());
+        builder.setNoCache(matrix.isNoCache());
+        builder.setForcePull(matrix.isForcePull());
+        builder.setSkipPush(matrix.isSkipPush());
+        builder.setSkipTagLatest(matrix.isSkipTagLatest());
+        builder.setCreateFingerprint(matrix.isCreateFingerprint());
+        builder.setUseBuildKit(matrix.isUseBuildKit());
+        // the builds of the matrix run concurrently, each update would save the build
+        builder.setSkipDecorate(true);
+        return builder;
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<DockerImageSpec> {
+        @Override
+        public String getDisplayName() {
+            return "Image";
+        }
+
+        public FormValidation doCheckRepoName(@QueryParameter String value) {
+            if (value.trim().isEmpty()) {
+                return FormValidation.error("Please set a name");
+            }
+            return FormValidation.ok();
+        }
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.dockerpublish;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Line-oriented sink for the output of a docker CLI command.
+ * The events {@link DockerBuilder} needs are picked out as lines arrive, and only a bounded
+ * tail of the output is retained for error reporting, so memory use does not depend on the
+ * size of the log.
+ */
+@Restricted(NoExternalUse.class)
+public class DockerOutputParser extends OutputStream {
+
+    /**
+     * Number of trailing lines kept by default.
+     */
+    static final int DEFAULT_TAIL_LINES = 50;
+
+    /**
+     * Longer lines are truncated unless the whole output is kept, progress bars can produce huge lines.
+     */
+    static final int MAX_LINE_LENGTH = 8192;
+
+    static final Pattern IMAGE_BUILT_PATTERN = Pattern.compile("Successfully built ([0-9a-f]{12,})");
+    static final Pattern STEP_PATTERN = Pattern.compile("^Step (\\d+)(?:/\\d+)? ?: (.*)$");
+    static final Pattern DIGEST_PATTERN = Pattern.compile("digest: (sha256:[0-9a-f]{64})");
+    static final Pattern LAYER_PATTERN = Pattern.compile("^ ---> ([0-9a-f]{12,64})$");
+    static final String USING_CACHE = " ---> Using cache";
+    static final Pattern BUILDKIT_STEP_PATTERN = Pattern.compile("^#(\\d+) \\[(?:[^\\]]* )?(\\d+)/\\d+\\] (.*)$");
+    static final Pattern BUILDKIT_CACHED_PATTERN = Pattern.compile("^#(\\d+) CACHED$");
+    static final Pattern BUILDKIT_DONE_PATTERN = Pattern.compile("^#(\\d+) DONE (\\d+(?:\\.\\d+)?)s$");
+    static final Pattern PUSHED_PATTERN = Pattern.compile("^[0-9a-f]{12,64}: Pushed(?: \\((\\d+) bytes\\))?$");
+
+    private final Charset charset;
+    private final int maxTailLines;
+    private final ArrayDeque<String> tail = new ArrayDeque<String>();
+    private final List<String> digests = new ArrayList<String>();
+    private int layersPushed;
+    private long bytesPushed;
+
+    private byte[] line = new byte[256];
+    private int lineLength;
+    private boolean lineTruncated;
+    private long lineCount;
+
+    private String imageBuilt;
+    private int stepCount;
+    private String lastStep;
+
+    private final BuildTimeline timeline = new BuildTimeline();
+    private BuildTimeline.Step currentStep;
+    private long currentStepStart;
+    /** BuildKit steps by vertex, they run concurrently. */
+    private final Map<String, BuildTimeline.Step> vertices = new HashMap<String, BuildTimeline.Step>();
+
+    /**
+     * Creates a parser keeping the {@link #DEFAULT_TAIL_LINES} last lines.
+     * @param charset Charset of the console output
+     */
+    public DockerOutputParser(@Nonnull Charset charset) {
+        this(charset, DEFAULT_TAIL_LINES);
+    }
+
+    /**
+     * @param charset Charset of the console output
+     * @param maxTailLines Number of trailing lines kept, {@link Integer#MAX_VALUE} to keep the whole output
+     */
+    public DockerOutputParser(@Nonnull Charset charset, int maxTailLines) {
+        this.charset = charset;
+        this.maxTailLines = maxTailLines;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (b == '\n' || b == '\r') {
+            eol();
+        } else {
+            append((byte) b);
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        int end = off + len;
+        for (int i = off; i < end; i++) {
+            byte c = b[i];
+            if (c == '\n' || c == '\r') {
+                eol();
+            } else {
+                append(c);
+            }
+        }
+    }
+
+    private void append(byte b) {
+        boolean bounded = maxTailLines != Integer.MAX_VALUE;
+        if (bounded && lineLength == MAX_LINE_LENGTH) {
+            lineTruncated = true;
+            return;
+        }
+        if (lineLength == line.length) {
+            byte[] grown = new byte[bounded ? Math.min(line.length * 2, MAX_LINE_LENGTH) : line.length * 2];
+            System.arraycopy(line, 0, grown, 0, lineLength);
+            line = grown;
+        }
+        line[lineLength++] = b;
+    }
+
+    private void eol() {
+        if (lineLength == 0 && !lineTruncated) {
+            return; // \r\n or blank line
+        }
+        String s = new String(line, 0, lineLength, charset);
+        if (lineTruncated) {
+            s += "...";
+        }
+        lineLength = 0;
+        lineTruncated = false;
+        onLine(s);
+    }
+
+    /**
+     * Processes a complete line of output.
+     * @param s Line without the end of line characters
+     */
+    protected void onLine(@Nonnull String s) {
+        lineCount++;
+        Matcher m = IMAGE_BUILT_PATTERN.matcher(s);
+        if (m.find()) {
+            imageBuilt = m.group(1);
+            endStep();
+        }
+        m = STEP_PATTERN.matcher(s);
+        if (m.matches()) {
+            stepCount++;
+            lastStep = m.group(2);
+            endStep();
+            currentStep = timeline.start(Integer.parseInt(m.group(1)), lastStep);
+            currentStepStart = currentTimeMillis();
+        } else if (currentStep != null) {
+            if (s.equals(USING_CACHE)) {
+                currentStep.setCached(true);
+            } else {
+                m = LAYER_PATTERN.matcher(s);
+                if (m.matches()) {
+                    currentStep.setLayer(m.group(1));
+                }
+            }
+        }
+        if (s.startsWith("#")) {
+            onBuildKitLine(s);
+        }
+        m = DIGEST_PATTERN.matcher(s);
+        if (m.find()) {
+            digests.add(m.group(1));
+        }
+        m = PUSHED_PATTERN.matcher(s);
+        if (m.matches()) {
+            layersPushed++;
+            if (m.group(1) != null) {
+                bytesPushed += Long.parseLong(m.group(1));
+            }
+        }
+        tail.addLast(s);
+        if (tail.size() > maxTailLines) {
+            tail.removeFirst();
+        }
+    }
+
+    /**
+     * Processes any pending partial line.
+     */
+    @Override
+    public void close() throws IOException {
+        eol();
+        endStep();
+    }
+
+    /**
+     * Processes a line of the plain BuildKit progress output, where the steps are timed by BuildKit itself.
+     */
+    private void onBuildKitLine(String s) {
+        Matcher m = BUILDKIT_STEP_PATTERN.matcher(s);
+        if (m.matches()) {
+            // the header is printed again when the output of a step resumes
+            if (!vertices.containsKey(m.group(1))) {
+                vertices.put(m.group(1), timeline.start(Integer.parseInt(m.group(2)), m.group(3)));
+            }
+            return;
+        }
+        m = BUILDKIT_CACHED_PATTERN.matcher(s);
+        if (m.matches()) {
+            BuildTimeline.Step step = vertices.get(m.group(1));
+            if (step != null) {
+                step.setCached(true);
+            }
+            return;
+        }
+        m = BUILDKIT_DONE_PATTERN.matcher(s);
+        if (m.matches()) {
+            BuildTimeline.Step step = vertices.get(m.group(1));
+            if (step != null) {
+                step.setDurationMillis(Math.round(Double.parseDouble(m.group(2)) * 1000));
+            }
+        }
+    }
+
+    private void endStep() {
+        if (currentStep != null) {
+            currentStep.setDurationMillis(Math.max(0, currentTimeMillis() - currentStepStart));
+            currentStep = null;
+        }
+    }
+
+    /**
+     * @return Current time, used to time the Dockerfile steps
+     */
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Last image reported as {@code Successfully built}.
+     * @return Short or full image ID, null if none was reported
+     */
+    @CheckForNull
+    public String getImageBuilt() {
+        return imageBuilt;
+    }
+
+    /**
+     * @return Number of Dockerfile steps seen so far
+     */
+    public int getStepCount() {
+        return stepCount;
+    }
+
+    /**
+     * @return Instruction of the last Dockerfile step seen, null if none
+     */
+    @CheckForNull
+    public String getLastStep() {
+        return lastStep;
+    }
+
+    /**
+     * Dockerfile steps seen so far, a step being timed from its {@code Step} line to the next one
+     * or to the end of the build. With BuildKit, the steps are the ones of its plain progress output,
+     * timed by BuildKit; the internal steps, ie. loading the Dockerfile, are left out.
+     * @return Timeline of the build, without steps if the output is not the one of a build
+     */
+    @Nonnull
+    public BuildTimeline getTimeline() {
+        return timeline;
+    }
+
+    /**
+     * @return Manifest digests reported by {@code docker push}, in order
+     */
+    @Nonnull
+    public List<String> getDigests() {
+        return Collections.unmodifiableList(digests);
+    }
+
+    /**
+     * @return Number of layers reported as {@code Pushed}, the ones already in the registry are not counted
+     */
+    public int getLayersPushed() {
+        return layersPushed;
+    }
+
+    /**
+     * @return Size of the pushed layers, 0 if not reported: only the Docker Engine API client reports it
+     */
+    public long getBytesPushed() {
+        return bytesPushed;
+    }
+
+    /**
+     * @return Total number of lines seen
+     */
+    public long getLineCount() {
+        return lineCount;
+    }
+
+    /**
+     * @return Whether lines were dropped from the retained tail
+     */
+    public boolean isTruncated() {
+        return lineCount > tail.size();
+    }
+
+    /**
+     * Retained trailing lines, joined by new lines.
+     * @return Tail of the output, the whole output when it fits in the tail
+     */
+    @Nonnull
+    public String getTail() {
+        StringBuilder sb = new StringBuilder();
+        for (String s : tail) {
+            sb.append(s).append('\n');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.dockerpublish;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.annotation.Nonnull;
+
+/**
+ * Instructions of a Dockerfile, as far as the plugin needs to understand them.
+ * Line continuations, comments and the {@code escape} parser directive are handled, heredocs are not.
+ */
+final class Dockerfile {
+
+    private static final Pattern ESCAPE_DIRECTIVE = Pattern.compile("^#\\s*escape\\s*=\\s*([\\\\`])\\s*$", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * An instruction of the Dockerfile.
+     */
+    static final class Instruction {
+        final String keyword;
+        final String arguments;
+
+        Instruction(@Nonnull String keyword, @Nonnull String arguments) {
+            this.keyword = keyword;
+            this.arguments = arguments;
+        }
+
+        /**
+         * @return Upper case keyword, ie. {@code FROM}
+         */
+        @Nonnull
+        String getKeyword() {
+            return keyword;
+        }
+
+        /**
+         * @return Arguments, continuation lines joined
+         */
+        @Nonnull
+        String getArguments() {
+            return arguments;
+        }
+
+        @Override
+        public String toString() {
+            return keyword + " " + arguments;
+        }
+    }
+
+    private final List<Instruction> instructions;
+
+    private Dockerfile(@Nonnull List<Instruction> instructions) {
+        this.instructions = Collections.unmodifiableList(instructions);
+    }
+
+    @Nonnull
+    static Dockerfile parse(@Nonnull String content) {
+        List<Instruction> instructions = new ArrayList<Instruction>();
+        char escape = '\\';
+        boolean directives = true;
+        StringBuilder current = null;
+        for (String line : content.split("\r?\n")) {
+            String trimmed = line.trim();
+            if (directives) {
+                Matcher m = ESCAPE_DIRECTIVE.matcher(trimmed);
+                if (m.matches()) {
+                    escape = m.group(1).charAt(0);
+                    continue;
+                }
+                directives = trimmed.startsWith("#") && trimmed.contains("=");
+            }
+            if (trimmed.startsWith("#") || trimmed.isEmpty()) {
+                continue; // also between continuation lines
+            }
+            boolean continued = trimmed.length() > 0 && trimmed.charAt(trimmed.length() - 1) == escape;
+            if (continued) {
+                trimmed = trimmed.substring(0, trimmed.length() - 1);
+            }
+            if (current == null) {
+                current = new StringBuilder(trimmed);
+            } else {
+                current.append(' ').append(trimmed);
+            }
+            if (!continued) {
+                add(instructions, current.toString());
+                current = null;
+            }
+        }
+        if (current != null) {
+            add(instructions, current.toString());
+        }
+        return new Dockerfile(instructions);
+    }
+
+    private static void add(List<Instruction> instructions, String line) {
+        line = line.trim();
+        if (line.isEmpty()) {
+            return;
+        }
+        String[] parts = line.split("\\s+", 2);
+        instructions.add(new Instruction(parts[0].toUpperCase(Locale.ENGLISH), parts.length > 1 ? parts[1].trim() : ""));
+    }
+
+    @Nonnull
+    List<Instruction> getInstructions() {
+        return instructions;
+    }
+
+    /**
+     * Images the stages are built from, leaving out {@code scratch}, the stages built from a previous stage
+     * and the images depending on build arguments.
+     * @return Image references, without duplicates, in order
+     */
+    @Nonnull
+    List<String> getBaseImages() {
+        List<String> images = new ArrayList<String>();
+        Set<String> stages = new HashSet<String>();
+        for (Instruction instruction : instructions) {
+            if (!instruction.keyword.equals("FROM")) {
+                continue;
+            }
+            List<String> args = new ArrayList<String>();
+            for (String arg : instruction.arguments.split("\\s+")) {
+                if (!arg.startsWith("--")) { // ie. --platform
+                    args.add(arg);
+                }
+            }
+            if (args.isEmpty()) {
+                continue;
+            }
+            String image = args.get(0);
+            if (!image.contains("$") && !image.equalsIgnoreCase("scratch") && !stages.contains(image.toLowerCase(Locale.ENGLISH))) {
+                image = qualify(image);
+                if (!images.contains(image)) {
+                    images.add(image);
+                }
+            }
+            if (args.size() >= 3 && args.get(1).equalsIgnoreCase("AS")) {
+                stages.add(args.get(2).toLowerCase(Locale.ENGLISH));
+            }
+        }
+        return images;
+    }
+
+    /**
+     * Adds the {@code latest} tag to an image reference without tag or digest, like docker does.
+     */
+    @Nonnull
+    static String qualify(@Nonnull String image) {
+        if (image.contains("@") || image.lastIndexOf(':') > image.lastIndexOf('/')) {
+            return image;
+        }
+        return image + ":latest";
+    }
+}
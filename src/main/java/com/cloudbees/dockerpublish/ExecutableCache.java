@@ -0,0 +1,132 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.dockerpublish;
+
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.remoting.VirtualChannel;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.docker.commons.tools.DockerTool;
+
+/**
+ * Docker executables resolved by {@link DockerTool#getExecutable}, by node and tool, reused across builds.
+ * An entry is valid while the tool installation, the node and its connection are the same: saving the tool
+ * or node configuration replaces them, and a reconnection, which may come with a new file system, replaces
+ * the channel.
+ */
+final class ExecutableCache {
+
+    private static final class Entry {
+        final WeakReference<DockerTool> tool;
+        final WeakReference<Node> node;
+        final WeakReference<VirtualChannel> channel;
+        final String executable;
+
+        Entry(DockerTool tool, Node node, VirtualChannel channel, String executable) {
+            this.tool = new WeakReference<DockerTool>(tool);
+            this.node = new WeakReference<Node>(node);
+            this.channel = new WeakReference<VirtualChannel>(channel);
+            this.executable = executable;
+        }
+
+        boolean isValid(DockerTool tool, Node node, VirtualChannel channel) {
+            return this.tool.get() == tool && this.node.get() == node && this.channel.get() == channel;
+        }
+    }
+
+    /**
+     * Entries by node and tool name.
+     */
+    private static final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    private ExecutableCache() {
+    }
+
+    /**
+     * @return Executable previously resolved for the tool on the node, null if it must be resolved
+     */
+    @CheckForNull
+    static String get(@Nonnull String toolName, @CheckForNull Node node) {
+        DockerTool tool = cacheableTool(toolName);
+        VirtualChannel channel = channel(node);
+        if (tool == null || channel == null) {
+            return null;
+        }
+        synchronized (entries) {
+            Entry entry = entries.get(key(toolName, node));
+            return entry != null && entry.isValid(tool, node, channel) ? entry.executable : null;
+        }
+    }
+
+    /**
+     * Remembers the executable resolved for the tool on the node.
+     */
+    static void put(@Nonnull String toolName, @CheckForNull Node node, @Nonnull String executable) {
+        DockerTool tool = cacheableTool(toolName);
+        VirtualChannel channel = channel(node);
+        if (tool == null || channel == null) {
+            return;
+        }
+        synchronized (entries) {
+            entries.put(key(toolName, node), new Entry(tool, node, channel, executable));
+        }
+    }
+
+    /**
+     * @return Tool installation or null if there is none or its home depends on the build environment
+     */
+    @CheckForNull
+    private static DockerTool cacheableTool(String toolName) {
+        Jenkins jenkins = Jenkins.getInstanceOrNull();
+        if (jenkins == null) {
+            return null;
+        }
+        DockerTool.DescriptorImpl descriptor = jenkins.getDescriptorByType(DockerTool.DescriptorImpl.class);
+        if (descriptor == null) {
+            return null;
+        }
+        for (DockerTool tool : descriptor.getInstallations()) {
+            if (tool.getName().equals(toolName)) {
+                String home = tool.getHome();
+                return home != null && home.contains("$") ? null : tool;
+            }
+        }
+        return null;
+    }
+
+    @CheckForNull
+    private static VirtualChannel channel(@CheckForNull Node node) {
+        Computer computer = node != null ? node.toComputer() : null;
+        return computer != null ? computer.getChannel() : null;
+    }
+
+    private static String key(String toolName, Node node) {
+        return node.getNodeName() + '\0' + toolName;
+    }
+}
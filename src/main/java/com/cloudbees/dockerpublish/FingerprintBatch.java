@@ -0,0 +1,165 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.dockerpublish;
+
+import com.cloudbees.dockerpublish.DockerCLIHelper.InspectImageResponse;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * Fingerprints of the images of a build step, recorded off the critical path.
+ * Images whose ID or parent is not known from the build are inspected in the background while the step
+ * tags and pushes. The fingerprints are written once per distinct image when the step finishes.
+ */
+abstract class FingerprintBatch {
+
+    private static final Logger logger = Logger.getLogger(FingerprintBatch.class.getName());
+
+    private static final Pattern FULL_ID = Pattern.compile("^(sha256:)?[0-9a-f]{64}$");
+
+    private final ExecutorService executor;
+    /** Images by the name or ID they were added with, to inspect each once. */
+    private final Map<String, Future<InspectImageResponse>> images = new LinkedHashMap<String, Future<InspectImageResponse>>();
+
+    /**
+     * @param name Name of the background thread
+     */
+    FingerprintBatch(@Nonnull String name) {
+        executor = Executors.newSingleThreadExecutor(new NamingThreadFactory(new DaemonThreadFactory(), name));
+    }
+
+    /**
+     * Inspects an image, called on a background thread.
+     * @return ID and parent of the image or null if it does not exist
+     */
+    @CheckForNull
+    protected abstract InspectImageResponse inspect(@Nonnull String image) throws IOException, InterruptedException;
+
+    /**
+     * Writes the fingerprint of an image, called once per distinct image ID by {@link #finish()}.
+     */
+    protected abstract void record(@Nonnull InspectImageResponse image) throws IOException;
+
+    /**
+     * Called by {@link #finish()} when an image could not be inspected, its fingerprint is not written.
+     */
+    protected void failed(@Nonnull String image, @Nonnull IOException e) {
+        logger.log(Level.WARNING, "Cannot inspect " + image + " to fingerprint it", e);
+    }
+
+    /**
+     * Adds an image to fingerprint.
+     * @param image Image name or ID
+     * @param parent Parent image ID, {@code ""} if the image has none, null if unknown
+     */
+    synchronized void add(@Nonnull final String image, @CheckForNull String parent) {
+        if (images.containsKey(image)) {
+            return;
+        }
+        if (parent != null && FULL_ID.matcher(image).matches()) {
+            // no need to ask the daemon
+            final InspectImageResponse known = new InspectImageResponse(parent, image);
+            images.put(image, executor.submit(new Callable<InspectImageResponse>() {
+                @Override
+                public InspectImageResponse call() {
+                    return known;
+                }
+            }));
+            return;
+        }
+        images.put(image, executor.submit(new Callable<InspectImageResponse>() {
+            @Override
+            public InspectImageResponse call() throws Exception {
+                return inspect(image);
+            }
+        }));
+    }
+
+    /**
+     * Waits for the inspections and writes the fingerprints, once per image ID.
+     * An image which cannot be inspected or fingerprinted is skipped and reported to {@link #failed}.
+     * @return Number of images fingerprinted
+     */
+    int finish() throws InterruptedException {
+        List<Map.Entry<String, Future<InspectImageResponse>>> pending;
+        synchronized (this) {
+            pending = new ArrayList<Map.Entry<String, Future<InspectImageResponse>>>(images.entrySet());
+        }
+        try {
+            Set<String> recorded = new LinkedHashSet<String>();
+            for (Map.Entry<String, Future<InspectImageResponse>> entry : pending) {
+                InspectImageResponse image;
+                try {
+                    image = entry.getValue().get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof InterruptedException) {
+                        throw (InterruptedException) cause;
+                    }
+                    // the image may already be pushed, do not fail the build for its fingerprint
+                    failed(entry.getKey(), cause instanceof IOException ? (IOException) cause : new IOException(cause));
+                    continue;
+                }
+                if (image != null && recorded.add(normalize(image.getId()))) {
+                    try {
+                        record(image);
+                    } catch (IOException e) {
+                        failed(entry.getKey(), e);
+                    }
+                }
+            }
+            return recorded.size();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Interrupts the pending inspections without writing any fingerprint.
+     */
+    void cancel() {
+        executor.shutdownNow();
+    }
+
+    private static String normalize(String id) {
+        return id.startsWith("sha256:") ? id.substring("sha256:".length()) : id;
+    }
+}
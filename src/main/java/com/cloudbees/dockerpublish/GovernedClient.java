@@ -0,0 +1,94 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.dockerpublish;
+
+import com.cloudbees.dockerpublish.DaemonGovernor.Operation;
+import com.cloudbees.dockerpublish.DockerCLIHelper.InspectImageResponse;
+import hudson.FilePath;
+import hudson.model.TaskListener;
+import java.io.IOException;
+import java.io.OutputStream;
+import javax.annotation.Nonnull;
+import org.jenkinsci.plugins.tokenmacro.MacroEvaluationException;
+
+/**
+ * {@link DockerClient} waiting for a {@link DaemonGovernor} slot before building or pushing.
+ */
+final class GovernedClient implements DockerClient {
+
+    private final DockerClient delegate;
+    private final String daemon;
+    private final int maxBuilds;
+    private final int maxPushes;
+    private final TaskListener listener;
+
+    /**
+     * @param daemon Key of the daemon the operations run against
+     * @param maxBuilds Maximum number of concurrent builds against the daemon, 0 for no limit
+     * @param maxPushes Maximum number of concurrent pushes through the daemon, 0 for no limit
+     */
+    GovernedClient(@Nonnull DockerClient delegate, @Nonnull String daemon, int maxBuilds, int maxPushes,
+                   @Nonnull TaskListener listener) {
+        this.delegate = delegate;
+        this.daemon = daemon;
+        this.maxBuilds = maxBuilds;
+        this.maxPushes = maxPushes;
+        this.listener = listener;
+    }
+
+    @Override
+    public BuildResult build(FilePath context, ImageTag tag) throws MacroEvaluationException, IOException, InterruptedException {
+        DaemonGovernor.Slot slot = DaemonGovernor.get().acquire(daemon, Operation.BUILD, maxBuilds, listener);
+        try {
+            return delegate.build(context, tag);
+        } finally {
+            slot.close();
+        }
+    }
+
+    @Override
+    public boolean tag(String image, ImageTag tag) throws MacroEvaluationException, IOException, InterruptedException {
+        return delegate.tag(image, tag);
+    }
+
+    @Override
+    public boolean push(ImageTag tag, OutputStream log) throws MacroEvaluationException, IOException, InterruptedException {
+        DaemonGovernor.Slot slot = DaemonGovernor.get().acquire(daemon, Operation.PUSH, maxPushes, listener);
+        try {
+            return delegate.push(tag, log);
+        } finally {
+            slot.close();
+        }
+    }
+
+    @Override
+    public boolean pull(String image, OutputStream log) throws MacroEvaluationException, IOException, InterruptedException {
+        return delegate.pull(image, log);
+    }
+
+    @Override
+    public InspectImageResponse inspect(String image) throws MacroEvaluationException, IOException, InterruptedException {
+        return delegate.inspect(image);
+    }
+}
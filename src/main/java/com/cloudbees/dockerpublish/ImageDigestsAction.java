@@ -0,0 +1,133 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.dockerpublish;
+
+import hudson.model.Action;
+import hudson.model.Api;
+import hudson.model.Run;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import javax.annotation.Nonnull;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Digests of the manifests of the tags pushed by a build, or found in the registry when the push was skipped:
+ * {@code docker-digests/} and {@code docker-digests/api/json}, also part of the remote API of the build.
+ */
+@ExportedBean
+@Restricted(NoExternalUse.class)
+public class ImageDigestsAction implements Action {
+
+    /**
+     * Digest of a tag.
+     */
+    @ExportedBean(defaultVisibility = 2)
+    public static final class Entry implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String image;
+        private final String digest;
+        private final boolean pushed;
+
+        Entry(@Nonnull String image, @Nonnull String digest, boolean pushed) {
+            this.image = image;
+            this.digest = digest;
+            this.pushed = pushed;
+        }
+
+        /**
+         * @return Image name with its tag
+         */
+        @Exported
+        public String getImage() {
+            return image;
+        }
+
+        @Exported
+        public String getDigest() {
+            return digest;
+        }
+
+        /**
+         * @return false if the registry already had the image, so it was not pushed
+         */
+        @Exported
+        public boolean isPushed() {
+            return pushed;
+        }
+    }
+
+    private final List<Entry> entries = new ArrayList<Entry>();
+
+    /**
+     * Records the digest of a tag in the registry.
+     * @param pushed false if the push was skipped
+     */
+    static void add(@Nonnull Run<?, ?> run, @Nonnull String image, @Nonnull String digest, boolean pushed) {
+        synchronized (ImageDigestsAction.class) {
+            ImageDigestsAction action = run.getAction(ImageDigestsAction.class);
+            if (action == null) {
+                action = new ImageDigestsAction();
+                run.addAction(action);
+            }
+            action.entries.add(new Entry(image, digest, pushed));
+        }
+    }
+
+    @Override
+    public String getIconFileName() {
+        return "fingerprint.png";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Docker Image Digests";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "docker-digests";
+    }
+
+    public Api getApi() {
+        return new Api(this);
+    }
+
+    /**
+     * @return Digests in the order the tags were pushed
+     */
+    @Exported
+    @Nonnull
+    public List<Entry> getEntries() {
+        synchronized (ImageDigestsAction.class) {
+            return Collections.unmodifiableList(new ArrayList<Entry>(entries));
+        }
+    }
+}
@@ -24,6 +24,7 @@
 
 package com.cloudbees.dockerpublish;
 
+import java.io.Serializable;
 import org.jenkinsci.plugins.docker.commons.credentials.DockerRegistryEndpoint;
 
 /**
@@ -32,7 +33,9 @@ import org.jenkinsci.plugins.docker.commons.credentials.DockerRegistryEndpoint;
  * @author Carlos Sanchez carlos@apache.org
  *
  */
-public class ImageTag {
+public class ImageTag implements Serializable {
+
+    private static final long serialVersionUID = 1L;
 
     private String name;
     private String tag;
@@ -0,0 +1,321 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.dockerpublish;
+
+import com.cloudbees.dockerpublish.DockerCLIHelper.InspectImageResponse;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * Streaming parser of {@code docker inspect} output reading only the fields of {@link InspectImageResponse}.
+ * The other values, ie. {@code Config} or {@code ContainerConfig}, are skipped without being materialized.
+ * Accepts the array printed by {@code docker inspect}, a single object as returned by the Engine API, and
+ * the objects printed one per line by {@code docker inspect --format} with {@link #FORMAT}.
+ */
+final class InspectParser {
+
+    /**
+     * Template of {@code docker inspect --format} printing only the parsed fields.
+     */
+    static final String FORMAT = "{\"Id\":{{json .Id}},\"Parent\":{{json .Parent}},\"RepoDigests\":{{json .RepoDigests}},"
+            + "\"Size\":{{json .Size}},\"RootFS\":{\"Layers\":{{json .RootFS.Layers}}}}";
+
+    private final Reader reader;
+    private int next = -2;
+
+    private InspectParser(@Nonnull Reader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * Parses the description of one or more images.
+     * @return Images in the order of the output
+     * @throws IOException Malformed output
+     */
+    @Nonnull
+    static List<InspectImageResponse> parse(@Nonnull Reader reader) throws IOException {
+        return new InspectParser(reader).images();
+    }
+
+    private List<InspectImageResponse> images() throws IOException {
+        List<InspectImageResponse> images = new ArrayList<InspectImageResponse>();
+        int c = peek();
+        if (c == '[') {
+            read();
+            if (peek() == ']') {
+                read();
+                return images;
+            }
+            do {
+                images.add(image());
+            } while (separator(']'));
+        } else {
+            while (c == '{') {
+                images.add(image());
+                c = peek();
+            }
+        }
+        if (peek() != -1) {
+            throw new IOException("Unexpected " + describe(peek()) + " after the images");
+        }
+        return images;
+    }
+
+    private InspectImageResponse image() throws IOException {
+        String id = null;
+        String parent = "";
+        List<String> repoDigests = Collections.emptyList();
+        long size = 0;
+        List<String> layers = Collections.emptyList();
+        expect('{');
+        if (peek() == '}') {
+            read();
+        } else {
+            do {
+                String key = string();
+                expect(':');
+                if (key.equals("Id")) {
+                    id = nullableString();
+                } else if (key.equals("Parent")) {
+                    String value = nullableString();
+                    parent = value != null ? value : "";
+                } else if (key.equals("RepoDigests")) {
+                    repoDigests = strings();
+                } else if (key.equals("Size")) {
+                    size = number();
+                } else if (key.equals("RootFS")) {
+                    layers = rootFsLayers();
+                } else {
+                    skipValue();
+                }
+            } while (separator('}'));
+        }
+        if (id == null) {
+            throw new IOException("No Id in the image description");
+        }
+        return new InspectImageResponse(parent, id, repoDigests, size, layers);
+    }
+
+    private List<String> rootFsLayers() throws IOException {
+        List<String> layers = Collections.emptyList();
+        if (nullLiteral()) {
+            return layers;
+        }
+        expect('{');
+        if (peek() == '}') {
+            read();
+            return layers;
+        }
+        do {
+            String key = string();
+            expect(':');
+            if (key.equals("Layers")) {
+                layers = strings();
+            } else {
+                skipValue();
+            }
+        } while (separator('}'));
+        return layers;
+    }
+
+    private List<String> strings() throws IOException {
+        if (nullLiteral()) {
+            return Collections.emptyList();
+        }
+        List<String> strings = new ArrayList<String>();
+        expect('[');
+        if (peek() == ']') {
+            read();
+            return strings;
+        }
+        do {
+            strings.add(string());
+        } while (separator(']'));
+        return strings;
+    }
+
+    @CheckForNull
+    private String nullableString() throws IOException {
+        return nullLiteral() ? null : string();
+    }
+
+    private long number() throws IOException {
+        if (nullLiteral()) {
+            return 0;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int c = peek(); c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E' || (c >= '0' && c <= '9'); c = peekRaw()) {
+            sb.append((char) read());
+        }
+        try {
+            return (long) Double.parseDouble(sb.toString());
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed number " + sb);
+        }
+    }
+
+    private String string() throws IOException {
+        expect('"');
+        StringBuilder sb = new StringBuilder();
+        for (;;) {
+            int c = readRaw();
+            if (c == '"') {
+                return sb.toString();
+            }
+            if (c != '\\') {
+                sb.append((char) c);
+                continue;
+            }
+            c = readRaw();
+            switch (c) {
+                case 'b': sb.append('\b'); break;
+                case 'f': sb.append('\f'); break;
+                case 'n': sb.append('\n'); break;
+                case 'r': sb.append('\r'); break;
+                case 't': sb.append('\t'); break;
+                case 'u':
+                    char[] hex = new char[4];
+                    for (int i = 0; i < hex.length; i++) {
+                        hex[i] = (char) readRaw();
+                    }
+                    try {
+                        sb.append((char) Integer.parseInt(new String(hex), 16));
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Malformed escape \\u" + new String(hex));
+                    }
+                    break;
+                default: sb.append((char) c);
+            }
+        }
+    }
+
+    /**
+     * Skips a value, nested objects and arrays included, without keeping it.
+     */
+    private void skipValue() throws IOException {
+        int depth = 0;
+        do {
+            int c = read();
+            if (c == -1) {
+                throw new EOFException("Truncated image description");
+            }
+            if (c == '"') {
+                for (c = readRaw(); c != '"'; c = readRaw()) {
+                    if (c == '\\') {
+                        readRaw();
+                    }
+                }
+            } else if (c == '{' || c == '[') {
+                depth++;
+            } else if (c == '}' || c == ']') {
+                depth--;
+            } else if (depth == 0) {
+                // literal, ends before the separator
+                for (c = peekRaw(); c != -1 && c != ',' && c != '}' && c != ']' && !Character.isWhitespace(c); c = peekRaw()) {
+                    readRaw();
+                }
+            }
+        } while (depth > 0);
+    }
+
+    private boolean nullLiteral() throws IOException {
+        if (peek() != 'n') {
+            return false;
+        }
+        for (char expected : "null".toCharArray()) {
+            if (readRaw() != expected) {
+                throw new IOException("Malformed null literal");
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if a comma follows, false if the end of the object or array follows
+     */
+    private boolean separator(char end) throws IOException {
+        int c = read();
+        if (c == ',') {
+            return true;
+        }
+        if (c == end) {
+            return false;
+        }
+        throw new IOException("Expected , or " + end + " but got " + describe(c));
+    }
+
+    private void expect(char expected) throws IOException {
+        int c = read();
+        if (c != expected) {
+            throw new IOException("Expected " + expected + " but got " + describe(c));
+        }
+    }
+
+    private static String describe(int c) {
+        return c == -1 ? "end of output" : "'" + (char) c + "'";
+    }
+
+    /**
+     * @return Next character which is not whitespace, without consuming it
+     */
+    private int peek() throws IOException {
+        int c = peekRaw();
+        while (c != -1 && Character.isWhitespace(c)) {
+            next = -2;
+            c = peekRaw();
+        }
+        return c;
+    }
+
+    private int peekRaw() throws IOException {
+        if (next == -2) {
+            next = reader.read();
+        }
+        return next;
+    }
+
+    /**
+     * @return Next character which is not whitespace
+     */
+    private int read() throws IOException {
+        int c = peek();
+        next = -2;
+        return c;
+    }
+
+    private int readRaw() throws IOException {
+        int c = peekRaw();
+        if (c == -1) {
+            throw new EOFException("Truncated image description");
+        }
+        next = -2;
+        return c;
+    }
+}
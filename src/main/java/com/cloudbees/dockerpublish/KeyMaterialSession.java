@@ -0,0 +1,93 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.dockerpublish;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nonnull;
+import org.jenkinsci.plugins.docker.commons.credentials.KeyMaterial;
+import org.jenkinsci.plugins.docker.commons.credentials.KeyMaterialFactory;
+import org.jenkinsci.plugins.tokenmacro.MacroEvaluationException;
+
+/**
+ * Docker credentials shared by all the commands of a build step.
+ * The key material is only materialized when first needed and is closed once, when the step is done.
+ */
+abstract class KeyMaterialSession implements Closeable {
+
+    private KeyMaterial material;
+    private int uses;
+    private boolean closed;
+
+    /**
+     * Creates the factory of the credentials, called at most once.
+     */
+    @Nonnull
+    protected abstract KeyMaterialFactory newKeyMaterialFactory() throws MacroEvaluationException, IOException, InterruptedException;
+
+    /**
+     * Called once the key material was materialized.
+     * @param millis Time taken to create and materialize the factory
+     */
+    protected void materialized(long millis) {
+    }
+
+    /**
+     * Gets the key material, materializing it on first use.
+     * @return Key material, must not be closed by the caller
+     */
+    @Nonnull
+    synchronized KeyMaterial get() throws MacroEvaluationException, IOException, InterruptedException {
+        if (closed) {
+            throw new IllegalStateException("Docker credentials session is already closed");
+        }
+        if (material == null) {
+            long start = System.nanoTime();
+            material = newKeyMaterialFactory().materialize();
+            materialized(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+        uses++;
+        return material;
+    }
+
+    /**
+     * @return Number of times the key material was reused instead of being materialized again
+     */
+    synchronized int getMaterializationsAvoided() {
+        return Math.max(0, uses - 1);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (material != null) {
+            material.close();
+            material = null;
+        }
+    }
+}
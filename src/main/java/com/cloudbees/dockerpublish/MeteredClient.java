@@ -0,0 +1,124 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.dockerpublish;
+
+import com.cloudbees.dockerpublish.DockerCLIHelper.InspectImageResponse;
+import hudson.FilePath;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.charset.Charset;
+import javax.annotation.Nonnull;
+import org.apache.commons.io.output.TeeOutputStream;
+import org.jenkinsci.plugins.tokenmacro.MacroEvaluationException;
+
+/**
+ * {@link DockerClient} timing the operations in a {@link PhaseTimer} and recording the pushes in {@link StepMetrics}.
+ */
+final class MeteredClient implements DockerClient {
+
+    private final DockerClient delegate;
+    private final PhaseTimer timer;
+    private final String registry;
+    private final Charset charset;
+
+    /**
+     * @param registry Host of the registry the tags are pushed to, see {@link #registryHost}
+     * @param charset Charset of the push output
+     */
+    MeteredClient(@Nonnull DockerClient delegate, @Nonnull PhaseTimer timer, @Nonnull String registry, @Nonnull Charset charset) {
+        this.delegate = delegate;
+        this.timer = timer;
+        this.registry = registry;
+        this.charset = charset;
+    }
+
+    /**
+     * Gets the host reported to the {@link StepMetricsListener}s for a registry.
+     * @param registryUrl Effective registry URL, ie. {@code https://index.docker.io/v1/} for Docker Hub
+     * @return Host and port of the registry, {@code docker.io} for Docker Hub
+     */
+    @Nonnull
+    static String registryHost(@Nonnull URL registryUrl) {
+        if (registryUrl.getHost().equals("index.docker.io")) {
+            return "docker.io";
+        }
+        return registryUrl.getAuthority();
+    }
+
+    @Override
+    public BuildResult build(FilePath context, ImageTag tag) throws MacroEvaluationException, IOException, InterruptedException {
+        long start = System.nanoTime();
+        try {
+            return delegate.build(context, tag);
+        } finally {
+            timer.record(StepPhase.BUILD, start);
+        }
+    }
+
+    @Override
+    public boolean tag(String image, ImageTag tag) throws MacroEvaluationException, IOException, InterruptedException {
+        long start = System.nanoTime();
+        try {
+            return delegate.tag(image, tag);
+        } finally {
+            timer.record(StepPhase.TAG, start);
+        }
+    }
+
+    @Override
+    public boolean push(ImageTag tag, OutputStream log) throws MacroEvaluationException, IOException, InterruptedException {
+        DockerOutputParser parser = new DockerOutputParser(charset, 0);
+        boolean result = false;
+        long start = System.nanoTime();
+        try {
+            result = delegate.push(tag, new TeeOutputStream(log, parser));
+            return result;
+        } finally {
+            long millis = timer.record(StepPhase.PUSH, start);
+            parser.close();
+            StepMetrics.get().push(registry, millis, parser.getLayersPushed(), parser.getBytesPushed(), result);
+        }
+    }
+
+    @Override
+    public boolean pull(String image, OutputStream log) throws MacroEvaluationException, IOException, InterruptedException {
+        long start = System.nanoTime();
+        try {
+            return delegate.pull(image, log);
+        } finally {
+            timer.record(StepPhase.PULL, start);
+        }
+    }
+
+    @Override
+    public InspectImageResponse inspect(String image) throws MacroEvaluationException, IOException, InterruptedException {
+        long start = System.nanoTime();
+        try {
+            return delegate.inspect(image);
+        } finally {
+            timer.record(StepPhase.INSPECT, start);
+        }
+    }
+}
@@ -0,0 +1,322 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.dockerpublish;
+
+import hudson.remoting.VirtualChannel;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import jenkins.MasterToSlaveFileCallable;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONException;
+
+/**
+ * Build context reduced to the files the Dockerfile copies, the Dockerfile and {@code .dockerignore}.
+ * The files are hard linked, or copied when they cannot be, to a directory sent to the daemon instead
+ * of the whole context.
+ */
+final class MinimalContext implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int files;
+    private final long bytes;
+    private final int contextFiles;
+    private final long contextBytes;
+
+    private MinimalContext(int files, long bytes, int contextFiles, long contextBytes) {
+        this.files = files;
+        this.bytes = bytes;
+        this.contextFiles = contextFiles;
+        this.contextBytes = contextBytes;
+    }
+
+    /**
+     * @return Number of files of the minimal context
+     */
+    int getFiles() {
+        return files;
+    }
+
+    /**
+     * @return Size of the files of the minimal context
+     */
+    long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return Number of files of the whole context, once {@code .dockerignore} is applied
+     */
+    int getContextFiles() {
+        return contextFiles;
+    }
+
+    /**
+     * @return Size of the files of the whole context, once {@code .dockerignore} is applied
+     */
+    long getContextBytes() {
+        return contextBytes;
+    }
+
+    /**
+     * Finds the context paths used by a Dockerfile, the sources of its {@code COPY} and {@code ADD} instructions.
+     * @return Cleaned source patterns relative to the context, null if the whole context may be used:
+     *         a source is the context root or depends on a build argument, a heredoc is used, or a
+     *         {@code RUN --mount} binds the context
+     */
+    @CheckForNull
+    static List<String> sources(@Nonnull Dockerfile dockerfile) {
+        List<String> sources = new ArrayList<String>();
+        for (Dockerfile.Instruction instruction : dockerfile.getInstructions()) {
+            String keyword = instruction.getKeyword();
+            String arguments = instruction.getArguments();
+            if (keyword.equals("RUN")) {
+                for (String arg : arguments.split("\\s+")) {
+                    if (arg.startsWith("--mount=") && (arg.contains("type=bind") || !arg.contains("type=")) && !arg.contains("from=")) {
+                        return null;
+                    }
+                }
+                continue;
+            }
+            if (!keyword.equals("COPY") && !keyword.equals("ADD")) {
+                continue;
+            }
+            if (arguments.contains("<<")) {
+                return null;
+            }
+            List<String> args = arguments(arguments);
+            if (args == null) {
+                return null;
+            }
+            boolean fromStage = false;
+            for (Iterator<String> i = args.iterator(); i.hasNext(); ) {
+                String arg = i.next();
+                if (arg.startsWith("--")) {
+                    fromStage |= arg.startsWith("--from=");
+                    i.remove();
+                }
+            }
+            if (fromStage) {
+                continue;
+            }
+            // the last argument is the destination
+            for (String source : args.subList(0, Math.max(0, args.size() - 1))) {
+                String lower = source.toLowerCase(Locale.ENGLISH);
+                if (keyword.equals("ADD") && (lower.startsWith("http://") || lower.startsWith("https://") || lower.startsWith("git@"))) {
+                    continue;
+                }
+                if (source.contains("$")) {
+                    return null;
+                }
+                String cleaned = DockerIgnore.clean(source);
+                if (cleaned.isEmpty() || cleaned.startsWith("..")) {
+                    return null;
+                }
+                if (!sources.contains(cleaned)) {
+                    sources.add(cleaned);
+                }
+            }
+        }
+        return sources;
+    }
+
+    /**
+     * Splits the arguments of {@code COPY} or {@code ADD}, in the shell or JSON form.
+     * @return Arguments, null if they cannot be parsed
+     */
+    @CheckForNull
+    private static List<String> arguments(String arguments) {
+        List<String> args = new ArrayList<String>();
+        List<String> flags = new ArrayList<String>();
+        String rest = arguments.trim();
+        // flags come before the JSON array
+        while (rest.startsWith("--")) {
+            String[] parts = rest.split("\\s+", 2);
+            flags.add(parts[0]);
+            rest = parts.length > 1 ? parts[1].trim() : "";
+        }
+        if (rest.startsWith("[")) {
+            try {
+                JSONArray array = JSONArray.fromObject(rest);
+                for (int i = 0; i < array.size(); i++) {
+                    args.add(array.getString(i));
+                }
+            } catch (JSONException e) {
+                return null;
+            }
+        } else if (!rest.isEmpty()) {
+            args.addAll(Arrays.asList(rest.split("\\s+")));
+        }
+        args.addAll(0, flags);
+        return args;
+    }
+
+    /**
+     * Links the files of a build context matching the sources into a directory.
+     * @param context Build context directory
+     * @param dockerfile Dockerfile path relative to the context, null for the default one
+     * @param sources Source patterns, see {@link #sources(Dockerfile)}
+     * @param target Directory receiving the minimal context, must not exist
+     */
+    @Nonnull
+    static MinimalContext create(@Nonnull File context, @CheckForNull String dockerfile, @Nonnull List<String> sources,
+                                 @Nonnull File target) throws IOException {
+        String dockerfilePath = DockerIgnore.clean(dockerfile != null ? dockerfile : "Dockerfile");
+        List<Pattern> patterns = new ArrayList<Pattern>();
+        for (String source : sources) {
+            patterns.add(Pattern.compile(DockerIgnore.toRegex(source)));
+        }
+        Files.createDirectories(target.toPath());
+        Walk walk = new Walk(context, DockerIgnore.load(context), dockerfilePath, patterns, target);
+        walk.walk(context, "");
+        return new MinimalContext(walk.files, walk.bytes, walk.contextFiles, walk.contextBytes);
+    }
+
+    private static final class Walk {
+        private final File context;
+        private final DockerIgnore ignore;
+        private final String dockerfile;
+        private final List<Pattern> sources;
+        private final File target;
+        int files;
+        long bytes;
+        int contextFiles;
+        long contextBytes;
+
+        Walk(File context, DockerIgnore ignore, String dockerfile, List<Pattern> sources, File target) {
+            this.context = context;
+            this.ignore = ignore;
+            this.dockerfile = dockerfile;
+            this.sources = sources;
+            this.target = target;
+        }
+
+        /**
+         * @return Whether the path or one of its parent directories matches a source
+         */
+        boolean isSelected(String path) {
+            if (path.equals(dockerfile) || path.equals(DockerIgnore.FILE_NAME)) {
+                return true;
+            }
+            for (Pattern source : sources) {
+                if (source.matcher(path).matches()) {
+                    return true;
+                }
+                for (int slash = path.indexOf('/'); slash > 0; slash = path.indexOf('/', slash + 1)) {
+                    if (source.matcher(path.substring(0, slash)).matches()) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        void walk(File dir, String prefix) throws IOException {
+            String[] names = dir.list();
+            if (names == null) {
+                return;
+            }
+            Arrays.sort(names);
+            for (String name : names) {
+                String path = prefix + name;
+                boolean ignored = ignore.isExcluded(path, dockerfile);
+                Path file = new File(dir, name).toPath();
+                BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                if (attributes.isDirectory()) {
+                    if (!ignored && isSelected(path)) {
+                        // keep empty directories which are copied
+                        Files.createDirectories(target.toPath().resolve(path));
+                    }
+                    if (!ignored || ignore.isWalked(path, dockerfile)) {
+                        walk(file.toFile(), path + "/");
+                    }
+                    continue;
+                }
+                if (ignored) {
+                    continue;
+                }
+                contextFiles++;
+                contextBytes += attributes.size();
+                if (!isSelected(path)) {
+                    continue;
+                }
+                files++;
+                bytes += attributes.size();
+                Path link = target.toPath().resolve(path);
+                Files.createDirectories(link.getParent());
+                if (attributes.isSymbolicLink()) {
+                    Files.createSymbolicLink(link, Files.readSymbolicLink(file));
+                } else {
+                    try {
+                        Files.createLink(link, file);
+                    } catch (IOException e) {
+                        // ie. another file system
+                        Files.copy(file, link, StandardCopyOption.COPY_ATTRIBUTES);
+                    } catch (UnsupportedOperationException e) {
+                        Files.copy(file, link, StandardCopyOption.COPY_ATTRIBUTES);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates the minimal context on the node running the build.
+     */
+    static final class Callable extends MasterToSlaveFileCallable<MinimalContext> {
+        private static final long serialVersionUID = 1L;
+        private final String dockerfile;
+        private final List<String> sources;
+        private final String target;
+
+        /**
+         * @param target Remote path of the directory receiving the minimal context
+         */
+        Callable(@CheckForNull String dockerfile, @Nonnull List<String> sources, @Nonnull String target) {
+            this.dockerfile = dockerfile;
+            this.sources = new ArrayList<String>(sources);
+            this.target = target;
+        }
+
+        @Override
+        public MinimalContext invoke(File context, VirtualChannel channel) throws IOException {
+            return create(context, dockerfile, Collections.unmodifiableList(sources), new File(target));
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.dockerpublish;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nonnull;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Time spent by a build step in each of its phases.
+ * A phase run several times, ie. one push per tag, is accumulated, so concurrent pushes can add up to
+ * more than the time the step took.
+ */
+@Restricted(NoExternalUse.class)
+public final class PhaseTimer {
+
+    private final Map<StepPhase, long[]> phases = new EnumMap<StepPhase, long[]>(StepPhase.class);
+
+    /**
+     * Records that a phase ran.
+     * @param start {@link System#nanoTime()} when the phase started
+     * @return Duration of the phase in milliseconds
+     */
+    long record(@Nonnull StepPhase phase, long start) {
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        recordMillis(phase, millis);
+        return millis;
+    }
+
+    /**
+     * Records that a phase ran.
+     */
+    synchronized void recordMillis(@Nonnull StepPhase phase, long millis) {
+        long[] total = phases.get(phase);
+        if (total == null) {
+            total = new long[2];
+            phases.put(phase, total);
+        }
+        total[0]++;
+        total[1] += millis;
+        StepMetrics.get().phase(phase, millis);
+    }
+
+    /**
+     * @return Phases which ran, in the order of {@link StepPhase}
+     */
+    @Nonnull
+    synchronized List<Timing> getTimings() {
+        List<Timing> timings = new ArrayList<Timing>();
+        for (Map.Entry<StepPhase, long[]> e : phases.entrySet()) {
+            timings.add(new Timing(e.getKey(), (int) e.getValue()[0], e.getValue()[1]));
+        }
+        return timings;
+    }
+
+    /**
+     * Time spent in a phase.
+     */
+    @ExportedBean(defaultVisibility = 3)
+    public static final class Timing implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final StepPhase phase;
+        private final int count;
+        private final long millis;
+
+        Timing(@Nonnull StepPhase phase, int count, long millis) {
+            this.phase = phase;
+            this.count = count;
+            this.millis = millis;
+        }
+
+        @Exported
+        @Nonnull
+        public StepPhase getPhase() {
+            return phase;
+        }
+
+        /**
+         * @return Number of times the phase ran
+         */
+        @Exported
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * @return Total time spent in the phase
+         */
+        @Exported
+        public long getMillis() {
+            return millis;
+        }
+    }
+}
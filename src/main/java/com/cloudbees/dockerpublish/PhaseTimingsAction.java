@@ -0,0 +1,128 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.dockerpublish;
+
+import hudson.model.Action;
+import hudson.model.Api;
+import hudson.model.Run;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import javax.annotation.Nonnull;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Time spent by the Docker build steps of a build in each phase: {@code docker-phases/} and
+ * {@code docker-phases/api/json}, also part of the remote API of the build.
+ */
+@ExportedBean
+@Restricted(NoExternalUse.class)
+public class PhaseTimingsAction implements Action {
+
+    private final List<StepTimings> steps = new ArrayList<StepTimings>();
+
+    /**
+     * Phases of a build step.
+     */
+    @ExportedBean(defaultVisibility = 2)
+    public static final class StepTimings {
+        private final String repo;
+        private final long millis;
+        private final List<PhaseTimer.Timing> phases;
+
+        StepTimings(@Nonnull String repo, long millis, @Nonnull List<PhaseTimer.Timing> phases) {
+            this.repo = repo;
+            this.millis = millis;
+            this.phases = phases;
+        }
+
+        /**
+         * @return Repository of the step, before token macro expansion
+         */
+        @Exported
+        @Nonnull
+        public String getRepo() {
+            return repo;
+        }
+
+        /**
+         * @return Duration of the step
+         */
+        @Exported
+        public long getMillis() {
+            return millis;
+        }
+
+        @Exported
+        @Nonnull
+        public List<PhaseTimer.Timing> getPhases() {
+            return Collections.unmodifiableList(phases);
+        }
+    }
+
+    /**
+     * Records the phases of a build step.
+     */
+    static void add(@Nonnull Run<?, ?> run, @Nonnull String repo, long millis, @Nonnull PhaseTimer timer) {
+        synchronized (PhaseTimingsAction.class) {
+            PhaseTimingsAction action = run.getAction(PhaseTimingsAction.class);
+            if (action == null) {
+                action = new PhaseTimingsAction();
+                run.addAction(action);
+            }
+            action.steps.add(new StepTimings(repo, millis, timer.getTimings()));
+        }
+    }
+
+    @Override
+    public String getIconFileName() {
+        return null; // not in the side panel
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Docker Step Phases";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "docker-phases";
+    }
+
+    public Api getApi() {
+        return new Api(this);
+    }
+
+    /**
+     * @return Docker build steps of the build, in order
+     */
+    @Exported
+    @Nonnull
+    public List<StepTimings> getSteps() {
+        return Collections.unmodifiableList(steps);
+    }
+}
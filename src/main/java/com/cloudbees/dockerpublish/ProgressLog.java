@@ -0,0 +1,317 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.dockerpublish;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * Filter between the output of {@code docker push} or {@code docker pull} and the build log.
+ * The progress updates of each layer, printed many times per second for large layers, are collapsed into a
+ * summary of the layers in progress printed at most once per interval. The other lines are printed as they
+ * arrive, up to a number of lines per interval, the lines above it are counted and omitted.
+ * The raw output can be copied to another stream, ie. a compressed file archived with the build.
+ */
+class ProgressLog extends OutputStream {
+
+    static final long DEFAULT_INTERVAL_MILLIS = 10000;
+
+    static final int DEFAULT_MAX_LINES = 500;
+
+    static final Pattern ANSI_PATTERN = Pattern.compile("\u001B\\[[0-9;?]*[A-Za-z]");
+    static final Pattern PROGRESS_PATTERN = Pattern.compile(
+            "^([0-9a-f]{12,64}): (Pushing|Downloading|Extracting|Uploading)\\b.*?(?:(\\d+(?:\\.\\d+)?\\s*[kKMGT]?B)/(\\d+(?:\\.\\d+)?\\s*[kKMGT]?B))?\\s*$");
+    static final Pattern WAITING_PATTERN = Pattern.compile(
+            "^([0-9a-f]{12,64}): (?:Preparing|Waiting|Pulling fs layer|Verifying Checksum)\\s*$");
+    static final Pattern LAYER_PATTERN = Pattern.compile("^([0-9a-f]{12,64}): ");
+    static final Pattern SIZE_PATTERN = Pattern.compile("(\\d+(?:\\.\\d+)?)\\s*([kKMGT]?)B");
+
+    /**
+     * Number of layers detailed in a summary.
+     */
+    private static final int SUMMARY_LAYERS = 3;
+
+    private static final class Layer {
+        String status;
+        long current;
+        long total;
+        long reported;
+    }
+
+    private final OutputStream out;
+    private final Charset charset;
+    @CheckForNull
+    private final OutputStream raw;
+    private final long intervalMillis;
+    private final int maxLines;
+
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+    private boolean lineTruncated;
+    private boolean afterCarriageReturn;
+
+    private final Map<String, Layer> layers = new LinkedHashMap<String, Layer>();
+    private boolean progressed;
+    private long lastSummary;
+
+    private long windowStart;
+    private int windowLines;
+    private long omitted;
+    private long progressLines;
+
+    /**
+     * @param out Build log, not closed by {@link #close()}
+     * @param charset Charset of the output
+     * @param raw Receives the unfiltered output and is closed with this stream, null if none
+     */
+    ProgressLog(@Nonnull OutputStream out, @Nonnull Charset charset, @CheckForNull OutputStream raw) {
+        this(out, charset, raw, DEFAULT_INTERVAL_MILLIS, DEFAULT_MAX_LINES);
+    }
+
+    /**
+     * @param intervalMillis Minimum delay between two summaries, and period of the line limit
+     * @param maxLines Number of lines other than progress printed per interval
+     */
+    ProgressLog(@Nonnull OutputStream out, @Nonnull Charset charset, @CheckForNull OutputStream raw,
+                long intervalMillis, int maxLines) {
+        this.out = out;
+        this.charset = charset;
+        this.raw = raw;
+        this.intervalMillis = intervalMillis;
+        this.maxLines = maxLines;
+        this.lastSummary = this.windowStart = now();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (raw != null) {
+            raw.write(b);
+        }
+        accept((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (raw != null) {
+            raw.write(b, off, len);
+        }
+        int end = off + len;
+        for (int i = off; i < end; i++) {
+            accept(b[i]);
+        }
+    }
+
+    private void accept(byte b) throws IOException {
+        if (b == '\n' && afterCarriageReturn) {
+            // end of a \r\n line already processed
+            afterCarriageReturn = false;
+            return;
+        }
+        afterCarriageReturn = b == '\r';
+        if (b == '\n' || b == '\r') {
+            eol();
+        } else if (line.size() < DockerOutputParser.MAX_LINE_LENGTH) {
+            line.write(b);
+        } else {
+            lineTruncated = true;
+        }
+    }
+
+    private void eol() throws IOException {
+        byte[] bytes = line.toByteArray();
+        boolean truncated = lineTruncated;
+        line.reset();
+        lineTruncated = false;
+        process(bytes, truncated);
+    }
+
+    private void process(byte[] bytes, boolean truncated) throws IOException {
+        long now = now();
+        String text = ANSI_PATTERN.matcher(new String(bytes, charset)).replaceAll("").trim();
+        Matcher progress = PROGRESS_PATTERN.matcher(text);
+        if (progress.matches()) {
+            Layer layer = layer(progress.group(1));
+            layer.status = progress.group(2);
+            if (progress.group(3) != null) {
+                layer.current = parseSize(progress.group(3));
+                layer.total = parseSize(progress.group(4));
+            }
+            progressed = true;
+            progressLines++;
+        } else if (WAITING_PATTERN.matcher(text).matches()) {
+            progressLines++;
+        } else {
+            Matcher done = LAYER_PATTERN.matcher(text);
+            if (done.find()) {
+                // any other status of a layer ends its progress
+                layers.remove(done.group(1));
+            }
+            if (now - windowStart >= intervalMillis) {
+                printOmitted();
+                windowStart = now;
+                windowLines = 0;
+            }
+            if (windowLines < maxLines) {
+                windowLines++;
+                out.write(bytes);
+                if (truncated) {
+                    out.write("...".getBytes(charset));
+                }
+                out.write('\n');
+            } else {
+                omitted++;
+            }
+        }
+        if (progressed && now - lastSummary >= intervalMillis) {
+            printSummary(now);
+        }
+    }
+
+    private Layer layer(String id) {
+        Layer layer = layers.get(id);
+        if (layer == null) {
+            layer = new Layer();
+            layers.put(id, layer);
+        }
+        return layer;
+    }
+
+    private void printSummary(long now) throws IOException {
+        long current = 0;
+        long total = 0;
+        long transferred = 0;
+        StringBuilder details = new StringBuilder();
+        int detailed = 0;
+        for (Iterator<Map.Entry<String, Layer>> i = layers.entrySet().iterator(); i.hasNext(); ) {
+            Map.Entry<String, Layer> entry = i.next();
+            Layer layer = entry.getValue();
+            current += layer.current;
+            total += layer.total;
+            transferred += Math.max(0, layer.current - layer.reported);
+            layer.reported = layer.current;
+            if (detailed < SUMMARY_LAYERS && layer.status != null) {
+                details.append(detailed == 0 ? " (" : ", ").append(entry.getKey(), 0, Math.min(12, entry.getKey().length()))
+                        .append(' ').append(layer.status);
+                if (layer.total > 0) {
+                    details.append(' ').append(formatSize(layer.current)).append('/').append(formatSize(layer.total));
+                }
+                detailed++;
+            }
+        }
+        if (detailed > 0) {
+            if (layers.size() > detailed) {
+                details.append(", ...");
+            }
+            details.append(')');
+        }
+        long elapsed = Math.max(1, now - lastSummary);
+        println("Progress: " + layers.size() + (layers.size() == 1 ? " layer, " : " layers, ")
+                + formatSize(current) + " of " + formatSize(total) + " at " + formatSize(transferred * 1000 / elapsed) + "/s"
+                + details);
+        lastSummary = now;
+        progressed = false;
+    }
+
+    private void printOmitted() throws IOException {
+        if (omitted > 0) {
+            println("[" + omitted + (omitted == 1 ? " line" : " lines") + " of output omitted]");
+            omitted = 0;
+        }
+    }
+
+    private void println(String message) throws IOException {
+        out.write((message + "\n").getBytes(charset));
+    }
+
+    /**
+     * @return Number of progress lines collapsed into summaries
+     */
+    long getProgressLines() {
+        return progressLines;
+    }
+
+    /**
+     * Prints the last line if it is not terminated and the number of omitted lines, the build log is only flushed.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (line.size() > 0 || lineTruncated) {
+                eol();
+            }
+            printOmitted();
+            out.flush();
+        } finally {
+            if (raw != null) {
+                raw.close();
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    long now() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Parses a size printed by docker, which uses decimal units, ie. {@code 12.5MB}.
+     */
+    static long parseSize(String size) {
+        Matcher m = SIZE_PATTERN.matcher(size);
+        if (!m.find()) {
+            return 0;
+        }
+        double value = Double.parseDouble(m.group(1));
+        String unit = m.group(2).toUpperCase(Locale.ENGLISH);
+        int exponent = unit.isEmpty() ? 0 : "KMGT".indexOf(unit) + 1;
+        return (long) (value * Math.pow(1000, exponent));
+    }
+
+    static String formatSize(long bytes) {
+        if (bytes < 1000) {
+            return bytes + " B";
+        }
+        String[] units = {"kB", "MB", "GB", "TB"};
+        double value = bytes;
+        int unit = -1;
+        do {
+            value /= 1000;
+            unit++;
+        } while (value >= 1000 && unit < units.length - 1);
+        return String.format(Locale.ENGLISH, "%.1f %s", value, units[unit]);
+    }
+}
@@ -0,0 +1,410 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.dockerpublish;
+
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.Computer;
+import hudson.model.Item;
+import hudson.model.Node;
+import hudson.model.Run;
+import hudson.model.StreamBuildListener;
+import hudson.remoting.VirtualChannel;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import jenkins.model.RunAction2;
+import org.apache.commons.io.FileUtils;
+import org.jenkinsci.plugins.docker.commons.credentials.DockerRegistryEndpoint;
+import org.jenkinsci.plugins.docker.commons.credentials.DockerRegistryToken;
+import org.jenkinsci.plugins.docker.commons.credentials.DockerServerEndpoint;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+
+/**
+ * Pushes again the image of a build whose push failed, ie. because the registry was unavailable, without running
+ * the build again: {@code docker-push/}. The image is pushed from the node which built it, with the plan of the
+ * step and its push settings at the time of the build, the output is kept next to the build log.
+ * <p>
+ * Only the tags the build still owns are pushed: {@code latest} is left to the builds which came after this one,
+ * and so are the tags whose manifest in the registry changed since the push failed. The registry is queried from
+ * the node which built the image, when pushing or when asked to check the tags, not when the page is rendered.
+ */
+@Restricted(NoExternalUse.class)
+public class PushRecoveryAction implements RunAction2 {
+
+    private static final Logger logger = Logger.getLogger(PushRecoveryAction.class.getName());
+
+    private final StepPlan plan;
+    @CheckForNull
+    private final String imageId;
+    /** Digests of the manifests of the tags in the registry when the push failed, null if they could not be read. */
+    @CheckForNull
+    private final Map<String, String> registryDigests;
+    private final int index;
+    @CheckForNull
+    private final DockerServerEndpoint server;
+    @CheckForNull
+    private final String credentialsId;
+    @CheckForNull
+    private final String dockerToolName;
+    private final boolean forceTag;
+    private final int pushRetries;
+    private final int pushConcurrency;
+    private final boolean useEngineApi;
+    private final boolean fullProgressLog;
+    private volatile boolean pushed;
+
+    private transient Run<?, ?> run;
+    private transient volatile boolean pushing;
+    private transient volatile boolean checking;
+    @CheckForNull
+    private transient volatile List<TagStatus> tagStatuses;
+
+    private PushRecoveryAction(@Nonnull DockerBuilder builder, @CheckForNull DockerServerEndpoint server,
+                               @Nonnull StepPlan plan, @CheckForNull String imageId,
+                               @CheckForNull Map<String, String> registryDigests, int index) {
+        this.plan = plan;
+        this.imageId = imageId;
+        this.registryDigests = registryDigests != null ? new LinkedHashMap<String, String>(registryDigests) : null;
+        this.index = index;
+        this.server = server;
+        this.credentialsId = builder.getRegistry().getCredentialsId();
+        this.dockerToolName = builder.getDockerToolName();
+        this.forceTag = builder.isForceTag();
+        this.pushRetries = builder.getPushRetries();
+        this.pushConcurrency = builder.getPushConcurrency();
+        this.useEngineApi = builder.isUseEngineApi();
+        this.fullProgressLog = builder.isFullProgressLog();
+    }
+
+    /**
+     * Offers to push again the image of a step whose push failed.
+     * @param server Docker server which built the image, null right after upgrading
+     * @param plan Plan of the step
+     * @param imageId ID of the image built, null if the tags are pushed as they are
+     * @param registryDigests Digests of the tags in the registry by tag reference, null if they could not be read
+     */
+    static void add(@Nonnull Run<?, ?> run, @Nonnull DockerBuilder builder, @CheckForNull DockerServerEndpoint server,
+                    @Nonnull StepPlan plan, @CheckForNull String imageId, @CheckForNull Map<String, String> registryDigests) {
+        synchronized (PushRecoveryAction.class) {
+            run.addAction(new PushRecoveryAction(builder, server, plan, imageId, registryDigests,
+                    run.getActions(PushRecoveryAction.class).size()));
+        }
+    }
+
+    @Override
+    public void onAttached(Run<?, ?> r) {
+        this.run = r;
+    }
+
+    @Override
+    public void onLoad(Run<?, ?> r) {
+        this.run = r;
+    }
+
+    public Run<?, ?> getRun() {
+        return run;
+    }
+
+    @Override
+    public String getIconFileName() {
+        return "redo.png";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Push Docker Image" + (index > 0 ? " " + (index + 1) : "");
+    }
+
+    @Override
+    public String getUrlName() {
+        return index > 0 ? "docker-push-" + (index + 1) : "docker-push";
+    }
+
+    @CheckForNull
+    public String getImageId() {
+        return imageId;
+    }
+
+    /**
+     * @return Names of the images the step tagged, with their tag
+     */
+    @Nonnull
+    public List<String> getTags() {
+        List<String> names = new ArrayList<String>();
+        for (ImageTag tag : plan.getImageTags()) {
+            names.add(Dockerfile.qualify(tag.toString()));
+        }
+        return names;
+    }
+
+    public boolean isPushed() {
+        return pushed;
+    }
+
+    public boolean isPushing() {
+        return pushing;
+    }
+
+    public boolean isChecking() {
+        return checking;
+    }
+
+    /**
+     * @return Whether each tag of the step is pushed as of the last check, null if the tags were not checked
+     */
+    @CheckForNull
+    public List<TagStatus> getTagStatuses() {
+        return tagStatuses;
+    }
+
+    /**
+     * Checks the tags against the registry from the node which built the image, as the push would.
+     * @return Whether each tag of the step is pushed, in the order of the step
+     */
+    @Nonnull
+    List<TagStatus> checkTags() throws InterruptedException {
+        Node node = node();
+        VirtualChannel channel = node != null ? node.getChannel() : null;
+        Map<String, String> current = null;
+        String error = "the node which built the image is not available";
+        if (channel != null) {
+            try {
+                URL registryUrl = new URL(plan.getRegistryUrl());
+                DockerRegistryToken token = new DockerRegistryEndpoint(plan.getRegistryUrl(), credentialsId).getToken(run.getParent());
+                List<String> references = new ArrayList<String>();
+                for (ImageTag tag : plan.getImageTags()) {
+                    references.add(RegistryClient.reference(tag));
+                }
+                current = channel.call(new RegistryClient.Digests(
+                        new RegistryClient(RegistryClient.endpoint(registryUrl), token != null ? token.getToken() : null),
+                        RegistryClient.repository(plan.getRepo(), registryUrl), references));
+            } catch (IOException e) {
+                error = e.getMessage();
+            }
+        }
+        List<TagStatus> statuses = statuses(plan.getImageTags(), registryDigests, current, error);
+        tagStatuses = statuses;
+        return statuses;
+    }
+
+    /**
+     * Decides which tags the build still owns.
+     * @param expected Digests of the tags in the registry when the push failed, null if unknown
+     * @param current Digests of the tags in the registry now, null if unknown
+     * @param error Why the current digests are unknown
+     */
+    @Nonnull
+    static List<TagStatus> statuses(@Nonnull List<ImageTag> tags, @CheckForNull Map<String, String> expected,
+                                    @CheckForNull Map<String, String> current, @CheckForNull String error) {
+        List<TagStatus> statuses = new ArrayList<TagStatus>();
+        for (ImageTag tag : tags) {
+            String reference = RegistryClient.reference(tag);
+            String reason = null;
+            if (reference.equals("latest")) {
+                reason = "latest is left to the builds which came after this one";
+            } else if (current == null) {
+                reason = "cannot check the tag in the registry: " + error;
+            } else if (expected == null) {
+                if (current.get(reference) != null) {
+                    reason = "the registry has the tag, it cannot be told whether it moved since the build";
+                }
+            } else {
+                String before = expected.get(reference);
+                if (before == null ? current.get(reference) != null : !before.equals(current.get(reference))) {
+                    reason = "the tag moved in the registry since the push failed";
+                }
+            }
+            statuses.add(new TagStatus(tag, reason));
+        }
+        return statuses;
+    }
+
+    private File getLogFile() {
+        return new File(run.getRootDir(), getUrlName() + ".log");
+    }
+
+    /**
+     * @return Output of the last push, empty if none
+     */
+    @Nonnull
+    public String getLog() throws IOException {
+        File file = getLogFile();
+        return file.isFile() ? FileUtils.readFileToString(file, StandardCharsets.UTF_8) : "";
+    }
+
+    /**
+     * Starts checking which tags would be pushed.
+     */
+    @RequirePOST
+    public synchronized HttpResponse doCheck() {
+        run.checkPermission(Item.BUILD);
+        if (!pushing && !checking) {
+            checking = true;
+            Computer.threadPoolForRemoting.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        checkTags();
+                    } catch (InterruptedException e) {
+                        logger.log(Level.FINE, "Interrupted while checking the tags of " + run, e);
+                    } finally {
+                        checking = false;
+                    }
+                }
+            });
+        }
+        return HttpResponses.redirectToDot();
+    }
+
+    /**
+     * Starts pushing the image from the node which built it.
+     */
+    @RequirePOST
+    public synchronized HttpResponse doPush() {
+        run.checkPermission(Item.BUILD);
+        if (!pushing && !pushed) {
+            pushing = true;
+            Computer.threadPoolForRemoting.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        push();
+                    } finally {
+                        pushing = false;
+                    }
+                }
+            });
+        }
+        return HttpResponses.redirectToDot();
+    }
+
+    void push() {
+        try {
+            StreamBuildListener listener = new StreamBuildListener(new FileOutputStream(getLogFile()), StandardCharsets.UTF_8);
+            try {
+                Node node = node();
+                if (node == null) {
+                    listener.error("The node which built the image is not available");
+                    return;
+                }
+                List<ImageTag> owned = new ArrayList<ImageTag>();
+                for (TagStatus status : checkTags()) {
+                    if (status.isPushable()) {
+                        owned.add(status.tag);
+                    } else {
+                        listener.getLogger().println("Not pushing " + status.getName() + ": " + status.getReason());
+                    }
+                }
+                if (owned.isEmpty()) {
+                    listener.error("No tag left to push");
+                    return;
+                }
+                Launcher launcher = node.createLauncher(listener);
+                pushed = builder().prepare((AbstractBuild<?, ?>) run, launcher, listener).pushOnly(plan, imageId, owned);
+                listener.getLogger().println(pushed ? "Pushed " + owned : "Push failed");
+            } finally {
+                listener.getLogger().close();
+            }
+            if (pushed) {
+                run.save();
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to push the image of " + run, e);
+        } catch (InterruptedException e) {
+            logger.log(Level.WARNING, "Interrupted while pushing the image of " + run, e);
+        }
+    }
+
+    /**
+     * @return Node which built the image if it is online, null otherwise
+     */
+    @CheckForNull
+    private Node node() {
+        Node node = run instanceof AbstractBuild ? ((AbstractBuild<?, ?>) run).getBuiltOn() : null;
+        Computer computer = node != null ? node.toComputer() : null;
+        return computer != null && computer.isOnline() ? node : null;
+    }
+
+    /**
+     * @return Step pushing with the settings of the build
+     */
+    private DockerBuilder builder() {
+        DockerBuilder builder = new DockerBuilder(plan.getRepo());
+        builder.setServer(server);
+        builder.setRegistry(new DockerRegistryEndpoint(plan.getRegistryUrl(), credentialsId));
+        builder.setDockerToolName(dockerToolName);
+        builder.setForceTag(forceTag);
+        builder.setPushRetries(pushRetries);
+        builder.setPushConcurrency(pushConcurrency);
+        builder.setUseEngineApi(useEngineApi);
+        builder.setFullProgressLog(fullProgressLog);
+        return builder;
+    }
+
+    /**
+     * Whether a tag would be pushed.
+     */
+    public static final class TagStatus {
+        private final ImageTag tag;
+        @CheckForNull
+        private final String reason;
+
+        TagStatus(@Nonnull ImageTag tag, @CheckForNull String reason) {
+            this.tag = tag;
+            this.reason = reason;
+        }
+
+        @Nonnull
+        public String getName() {
+            return Dockerfile.qualify(tag.toString());
+        }
+
+        public boolean isPushable() {
+            return reason == null;
+        }
+
+        /**
+         * @return Why the tag is not pushed, null if it is
+         */
+        @CheckForNull
+        public String getReason() {
+            return reason;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.dockerpublish;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Serializable;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.regex.Pattern;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.apache.commons.io.output.TeeOutputStream;
+import org.jenkinsci.plugins.tokenmacro.MacroEvaluationException;
+
+/**
+ * Retries of the pushes failing because of the registry or the network, ie. a 503 response or a reset
+ * connection, with an exponential backoff. Other failures, ie. denied access, are not retried.
+ * A retried {@code docker push} only uploads the layers the registry does not have yet.
+ */
+class PushRetry implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    static final long INITIAL_DELAY_MILLIS = 2000;
+
+    static final long MAX_DELAY_MILLIS = 60000;
+
+    /**
+     * Output of docker or registry errors denoting a transient failure: server errors, rate limiting, registry
+     * error codes and network errors.
+     */
+    static final Pattern TRANSIENT_PATTERN = Pattern.compile(
+            "received unexpected HTTP status: (?:5\\d\\d|429)"
+            + "|\\breturned (?:5\\d\\d|429)\\b"
+            + "|\\b(?:500 Internal Server Error|502 Bad Gateway|503 Service Unavailable|504 Gateway Time-?out|429 Too Many Requests)\\b"
+            + "|\"code\"\\s*:\\s*\"(?:UNAVAILABLE|TOOMANYREQUESTS)\""
+            + "|(?i:toomanyrequests:)"
+            + "|(?i:connection reset by peer|broken pipe|i/o timeout|TLS handshake timeout|unexpected EOF"
+            + "|connection refused|server misbehaving|temporary failure in name resolution"
+            + "|net/http: request canceled|Client\\.Timeout exceeded)");
+
+    private final int attempts;
+    private final long initialDelayMillis;
+    private final long maxDelayMillis;
+    private transient Random random;
+
+    /**
+     * @param retries Number of retries after the first attempt, 0 for none
+     */
+    PushRetry(int retries) {
+        this(retries, INITIAL_DELAY_MILLIS, MAX_DELAY_MILLIS);
+    }
+
+    PushRetry(int retries, long initialDelayMillis, long maxDelayMillis) {
+        this.attempts = Math.max(0, retries) + 1;
+        this.initialDelayMillis = initialDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * @param retry Number of the retry, from 1
+     * @return Delay before the retry: between half and all of the exponentially growing delay, so that the
+     * builds which failed together do not retry together
+     */
+    long delay(int retry) {
+        long delay = initialDelayMillis;
+        for (int i = 1; i < retry && delay < maxDelayMillis; i++) {
+            delay *= 2;
+        }
+        delay = Math.min(delay, maxDelayMillis);
+        if (delay <= 1) {
+            return delay;
+        }
+        synchronized (this) {
+            if (random == null) {
+                random = new Random();
+            }
+            return delay / 2 + (long) (random.nextDouble() * (delay - delay / 2));
+        }
+    }
+
+    void sleep(long millis) throws InterruptedException {
+        Thread.sleep(millis);
+    }
+
+    /**
+     * @param output Output of the failed command or error message
+     * @return true if the failure is worth a retry
+     */
+    static boolean isTransient(@CheckForNull String output) {
+        return output != null && TRANSIENT_PATTERN.matcher(output).find();
+    }
+
+    static boolean isTransient(@Nonnull IOException e) {
+        return e instanceof SocketTimeoutException || e instanceof ConnectException || e instanceof SocketException
+                || isTransient(e.getMessage());
+    }
+
+    /**
+     * Pushes a tag, retrying the transient failures.
+     * @param log Where the output of each attempt and the retries are written
+     * @return true if the tag was pushed
+     */
+    boolean push(@Nonnull DockerClient client, @Nonnull ImageTag tag, @Nonnull OutputStream log, @Nonnull Charset charset)
+            throws MacroEvaluationException, IOException, InterruptedException {
+        for (int attempt = 1; ; attempt++) {
+            DockerOutputParser output = new DockerOutputParser(charset);
+            boolean result = client.push(tag, new TeeOutputStream(new CloseShieldOutputStream(log), output));
+            output.close();
+            if (result) {
+                return true;
+            }
+            if (attempt >= attempts || !isTransient(output.getTail())) {
+                return false;
+            }
+            long delay = delay(attempt);
+            log.write(("Push of " + tag + " failed with a transient error, retrying in " + delay + " ms (attempt "
+                    + (attempt + 1) + " of " + attempts + ")\n").getBytes(charset));
+            sleep(delay);
+        }
+    }
+
+    /**
+     * Sends a request to a registry, retrying the transient failures.
+     * @param description Request, printed when it is retried
+     */
+    <T> T call(@Nonnull Callable<T> request, @Nonnull String description, @Nonnull PrintStream log) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return request.call();
+            } catch (IOException e) {
+                if (attempt >= attempts || !isTransient(e)) {
+                    throw e;
+                }
+                long delay = delay(attempt);
+                log.println(description + " failed: " + e.getMessage() + ", retrying in " + delay + " ms (attempt "
+                        + (attempt + 1) + " of " + attempts + ")");
+                try {
+                    sleep(delay);
+                } catch (InterruptedException x) {
+                    throw (IOException) new InterruptedIOException().initCause(x);
+                }
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,427 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.dockerpublish;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Serializable;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import jenkins.security.MasterToSlaveCallable;
+import hudson.model.TaskListener;
+import net.sf.json.JSONObject;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Minimal client of the Docker Registry HTTP API v2, copying manifests between tags
+ * without going through a Docker daemon, so no layer is pulled or pushed.
+ */
+final class RegistryClient implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Manifest media types accepted, manifest lists and OCI indexes being copied as is.
+     */
+    static final String ACCEPT = "application/vnd.docker.distribution.manifest.list.v2+json, "
+            + "application/vnd.oci.image.index.v1+json, "
+            + "application/vnd.docker.distribution.manifest.v2+json, "
+            + "application/vnd.oci.image.manifest.v1+json";
+
+    private static final Pattern CHALLENGE_PARAM = Pattern.compile("(\\w+)=\"([^\"]*)\"");
+
+    private static final int TIMEOUT = 60 * 1000;
+
+    private final String endpoint;
+    @CheckForNull
+    private final String basicToken;
+    /** Authorization header obtained from the last challenge. */
+    private transient String authorization;
+
+    /**
+     * @param endpoint Registry base URL, ie. {@code https://docker.acme.com}
+     * @param basicToken Base64 encoded {@code user:password}, null for anonymous access
+     */
+    RegistryClient(@Nonnull String endpoint, @CheckForNull String basicToken) {
+        this.endpoint = endpoint.endsWith("/") ? endpoint.substring(0, endpoint.length() - 1) : endpoint;
+        this.basicToken = basicToken;
+    }
+
+    /**
+     * Resolves the registry API endpoint from the registry URL configured in a step.
+     * @param registryUrl Effective registry URL, ie. {@code https://index.docker.io/v1/} for Docker Hub
+     */
+    @Nonnull
+    static String endpoint(@Nonnull URL registryUrl) {
+        if (registryUrl.getHost().equals("index.docker.io")) {
+            return "https://registry-1.docker.io";
+        }
+        return registryUrl.getProtocol() + "://" + registryUrl.getAuthority();
+    }
+
+    /**
+     * Gets the repository path in the registry of an image name.
+     * @param repo Image name without tag, possibly prefixed by the registry host
+     * @param registryUrl Effective registry URL
+     */
+    @Nonnull
+    static String repository(@Nonnull String repo, @Nonnull URL registryUrl) {
+        String host = registryUrl.getAuthority();
+        if (repo.startsWith(host + "/")) {
+            return repo.substring(host.length() + 1);
+        }
+        if (registryUrl.getHost().equals("index.docker.io") && repo.indexOf('/') < 0) {
+            // official images
+            return "library/" + repo;
+        }
+        return repo;
+    }
+
+    /**
+     * @return Reference of the manifest of a tag in its repository, {@code latest} when the tag is implicit
+     */
+    @Nonnull
+    static String reference(@Nonnull ImageTag tag) {
+        return tag.getTag() != null ? tag.getTag() : "latest";
+    }
+
+    /**
+     * A manifest as stored in the registry, kept byte for byte so its digest does not change.
+     */
+    static final class Manifest implements Serializable {
+        private static final long serialVersionUID = 1L;
+        final String mediaType;
+        final byte[] content;
+        @CheckForNull
+        final String digest;
+
+        Manifest(@Nonnull String mediaType, @Nonnull byte[] content, @CheckForNull String digest) {
+            this.mediaType = mediaType;
+            this.content = content;
+            this.digest = digest;
+        }
+    }
+
+    /**
+     * Gets a manifest.
+     * @param repository Repository path, ie. {@code jdoe/busybox}
+     * @param reference Tag or digest
+     * @return Manifest or null if there is no such manifest
+     */
+    @CheckForNull
+    Manifest getManifest(@Nonnull String repository, @Nonnull String reference) throws IOException {
+        HttpURLConnection c = request("GET", "/v2/" + repository + "/manifests/" + reference, repository, null, null);
+        try {
+            if (c.getResponseCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+                return null;
+            }
+            check(c, HttpURLConnection.HTTP_OK);
+            InputStream in = c.getInputStream();
+            try {
+                return new Manifest(c.getContentType(), IOUtils.toByteArray(in), c.getHeaderField("Docker-Content-Digest"));
+            } finally {
+                in.close();
+            }
+        } finally {
+            c.disconnect();
+        }
+    }
+
+    /**
+     * Gets the digest of a manifest without downloading it.
+     * @param repository Repository path, ie. {@code jdoe/busybox}
+     * @param reference Tag or digest
+     * @return Digest of the manifest or null if there is no such manifest
+     */
+    @CheckForNull
+    String headManifest(@Nonnull String repository, @Nonnull String reference) throws IOException {
+        HttpURLConnection c = request("HEAD", "/v2/" + repository + "/manifests/" + reference, repository, null, null);
+        try {
+            if (c.getResponseCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+                return null;
+            }
+            check(c, HttpURLConnection.HTTP_OK);
+            return c.getHeaderField("Docker-Content-Digest");
+        } finally {
+            c.disconnect();
+        }
+    }
+
+    /**
+     * Stores a manifest under a tag.
+     * @return Digest of the manifest reported by the registry
+     */
+    @CheckForNull
+    String putManifest(@Nonnull String repository, @Nonnull String tag, @Nonnull Manifest manifest) throws IOException {
+        HttpURLConnection c = request("PUT", "/v2/" + repository + "/manifests/" + tag, repository,
+                manifest.mediaType, manifest.content);
+        try {
+            check(c, HttpURLConnection.HTTP_CREATED);
+            return c.getHeaderField("Docker-Content-Digest");
+        } finally {
+            c.disconnect();
+        }
+    }
+
+    /**
+     * Sends a request, authenticating as asked by the registry.
+     */
+    private HttpURLConnection request(String method, String path, String repository,
+                                      @CheckForNull String contentType, @CheckForNull byte[] body) throws IOException {
+        HttpURLConnection c = open(method, path, contentType, body);
+        if (c.getResponseCode() == HttpURLConnection.HTTP_UNAUTHORIZED) {
+            String challenge = c.getHeaderField("WWW-Authenticate");
+            c.disconnect();
+            if (challenge == null) {
+                throw new IOException(method + " " + endpoint + path + " is unauthorized and gave no challenge");
+            }
+            authorization = authenticate(challenge, "repository:" + repository + ":pull,push");
+            c = open(method, path, contentType, body);
+        }
+        return c;
+    }
+
+    private HttpURLConnection open(String method, String path, @CheckForNull String contentType, @CheckForNull byte[] body) throws IOException {
+        HttpURLConnection c = (HttpURLConnection) new URL(endpoint + path).openConnection();
+        c.setRequestMethod(method);
+        c.setConnectTimeout(TIMEOUT);
+        c.setReadTimeout(TIMEOUT);
+        c.setRequestProperty("Accept", ACCEPT);
+        if (authorization != null) {
+            c.setRequestProperty("Authorization", authorization);
+        }
+        if (body != null) {
+            c.setDoOutput(true);
+            c.setRequestProperty("Content-Type", contentType);
+            c.setFixedLengthStreamingMode(body.length);
+            OutputStream out = c.getOutputStream();
+            try {
+                out.write(body);
+            } finally {
+                out.close();
+            }
+        }
+        return c;
+    }
+
+    /**
+     * Answers a {@code WWW-Authenticate} challenge.
+     * @return Value of the {@code Authorization} header
+     */
+    private String authenticate(String challenge, String defaultScope) throws IOException {
+        if (challenge.regionMatches(true, 0, "Basic", 0, 5)) {
+            if (basicToken == null) {
+                throw new IOException("Registry " + endpoint + " requires credentials");
+            }
+            return "Basic " + basicToken;
+        }
+        if (!challenge.regionMatches(true, 0, "Bearer", 0, 6)) {
+            throw new IOException("Unsupported authentication challenge from " + endpoint + ": " + challenge);
+        }
+        Map<String, String> params = new LinkedHashMap<String, String>();
+        Matcher m = CHALLENGE_PARAM.matcher(challenge);
+        while (m.find()) {
+            params.put(m.group(1), m.group(2));
+        }
+        String realm = params.remove("realm");
+        if (realm == null) {
+            throw new IOException("No realm in the authentication challenge from " + endpoint + ": " + challenge);
+        }
+        if (!params.containsKey("scope")) {
+            params.put("scope", defaultScope);
+        }
+        StringBuilder url = new StringBuilder(realm);
+        for (Map.Entry<String, String> param : params.entrySet()) {
+            url.append(url.indexOf("?") < 0 ? '?' : '&')
+                    .append(param.getKey()).append('=').append(URLEncoder.encode(param.getValue(), "UTF-8"));
+        }
+        HttpURLConnection c = (HttpURLConnection) new URL(url.toString()).openConnection();
+        c.setConnectTimeout(TIMEOUT);
+        c.setReadTimeout(TIMEOUT);
+        if (basicToken != null) {
+            c.setRequestProperty("Authorization", "Basic " + basicToken);
+        }
+        try {
+            check(c, HttpURLConnection.HTTP_OK);
+            InputStream in = c.getInputStream();
+            JSONObject response;
+            try {
+                response = JSONObject.fromObject(new String(IOUtils.toByteArray(in), StandardCharsets.UTF_8));
+            } finally {
+                in.close();
+            }
+            String token = response.optString("token", null);
+            if (token == null) {
+                token = response.optString("access_token", null);
+            }
+            if (token == null) {
+                throw new IOException("No token returned by " + realm);
+            }
+            return "Bearer " + token;
+        } finally {
+            c.disconnect();
+        }
+    }
+
+    private static void check(HttpURLConnection c, int expected) throws IOException {
+        int status = c.getResponseCode();
+        if (status == expected) {
+            return;
+        }
+        String error = "";
+        InputStream in = c.getErrorStream();
+        if (in != null) {
+            try {
+                error = ": " + new String(IOUtils.toByteArray(in), StandardCharsets.UTF_8);
+            } finally {
+                in.close();
+            }
+        }
+        throw new IOException(c.getRequestMethod() + " " + c.getURL() + " returned " + status + error);
+    }
+
+    /**
+     * Copies the manifest of a tag to other tags, from the node running the build.
+     */
+    static final class Retag extends MasterToSlaveCallable<Map<String, String>, IOException> {
+        private static final long serialVersionUID = 1L;
+        private final RegistryClient registry;
+        private final String repository;
+        private final String source;
+        private final List<String> tags;
+        private final TaskListener listener;
+        private final PushRetry retry;
+
+        /**
+         * @param repository Repository path in the registry
+         * @param source Tag or digest copied
+         * @param tags Tags created or updated
+         */
+        Retag(@Nonnull RegistryClient registry, @Nonnull String repository, @Nonnull String source,
+              @Nonnull List<String> tags, @Nonnull TaskListener listener) {
+            this(registry, repository, source, tags, listener, new PushRetry(0));
+        }
+
+        /**
+         * @param retry Retries of the requests failing because of the registry or the network
+         */
+        Retag(@Nonnull RegistryClient registry, @Nonnull String repository, @Nonnull String source,
+              @Nonnull List<String> tags, @Nonnull TaskListener listener, @Nonnull PushRetry retry) {
+            this.registry = registry;
+            this.repository = repository;
+            this.source = source;
+            this.tags = tags;
+            this.listener = listener;
+            this.retry = retry;
+        }
+
+        /**
+         * @return Digests of the manifests of the tags, the ones the registry did not report being left out,
+         * null if there is no source manifest
+         */
+        @Override
+        public Map<String, String> call() throws IOException {
+            PrintStream logger = listener.getLogger();
+            Manifest manifest = retry.call(new Callable<Manifest>() {
+                @Override
+                public Manifest call() throws IOException {
+                    return registry.getManifest(repository, source);
+                }
+            }, "Getting " + repository + ":" + source, logger);
+            if (manifest == null) {
+                listener.error("No " + repository + ":" + source + " in registry " + registry.endpoint);
+                return null;
+            }
+            Map<String, String> digests = new LinkedHashMap<String, String>();
+            for (final String tag : tags) {
+                if (tag.equals(source)) {
+                    if (manifest.digest != null) {
+                        digests.put(tag, manifest.digest);
+                    }
+                    continue;
+                }
+                final Manifest copied = manifest;
+                String digest = retry.call(new Callable<String>() {
+                    @Override
+                    public String call() throws IOException {
+                        return registry.putManifest(repository, tag, copied);
+                    }
+                }, "Tagging " + repository + ":" + tag, logger);
+                logger.println("Tagged " + repository + ":" + tag + " in registry " + registry.endpoint
+                        + (digest != null ? " as " + digest : ""));
+                if (digest == null) {
+                    digest = manifest.digest;
+                }
+                if (digest != null) {
+                    digests.put(tag, digest);
+                }
+            }
+            return digests;
+        }
+    }
+
+    /**
+     * Gets the digests of the manifests of tags, from the node running the build.
+     * The tags missing from the registry are not part of the result.
+     */
+    static final class Digests extends MasterToSlaveCallable<Map<String, String>, IOException> {
+        private static final long serialVersionUID = 1L;
+        private final RegistryClient registry;
+        private final String repository;
+        private final List<String> tags;
+
+        /**
+         * @param repository Repository path in the registry
+         */
+        Digests(@Nonnull RegistryClient registry, @Nonnull String repository, @Nonnull List<String> tags) {
+            this.registry = registry;
+            this.repository = repository;
+            this.tags = tags;
+        }
+
+        @Override
+        public Map<String, String> call() throws IOException {
+            Map<String, String> digests = new LinkedHashMap<String, String>();
+            for (String tag : tags) {
+                String digest = registry.headManifest(repository, tag);
+                if (digest != null) {
+                    digests.put(tag, digest);
+                }
+            }
+            return digests;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.dockerpublish;
+
+import com.cloudbees.dockerpublish.ServerSelectionStrategy.Candidate;
+import hudson.model.TaskListener;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nonnull;
+import org.jenkinsci.plugins.docker.commons.credentials.DockerServerEndpoint;
+
+/**
+ * Picks a healthy Docker server of a pool, failing over to the next one when a daemon cannot be reached.
+ */
+final class ServerPool {
+
+    /**
+     * How long the outcome of a health check is reused.
+     */
+    static final long HEALTH_TTL_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    /**
+     * Checks that a daemon answers.
+     */
+    interface HealthCheck {
+        boolean isHealthy(@Nonnull DockerServerEndpoint server) throws IOException, InterruptedException;
+    }
+
+    private static final class Health {
+        final boolean healthy;
+        final long checked;
+
+        Health(boolean healthy, long checked) {
+            this.healthy = healthy;
+            this.checked = checked;
+        }
+    }
+
+    /** Last health check of each daemon, shared by all the builds. */
+    private final ConcurrentMap<String, Health> health = new ConcurrentHashMap<String, Health>();
+
+    private static final ServerPool INSTANCE = new ServerPool();
+
+    ServerPool() {
+    }
+
+    @Nonnull
+    static ServerPool get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Selects the server running a build.
+     * @param candidates Servers of the pool, in configuration order, not empty
+     * @param strategy Preference order of the servers
+     * @param repo Repository being built
+     * @param check Health check of a server
+     * @return The first healthy server in preference order, or the preferred one if none is healthy
+     */
+    @Nonnull
+    Candidate select(@Nonnull List<Candidate> candidates, @Nonnull ServerSelectionStrategy strategy, @Nonnull String repo,
+                     @Nonnull HealthCheck check, @Nonnull TaskListener listener) throws IOException, InterruptedException {
+        List<Candidate> ordered = strategy.order(candidates, repo);
+        Candidate selected = null;
+        for (Candidate candidate : ordered) {
+            if (isHealthy(candidate, check)) {
+                selected = candidate;
+                break;
+            }
+            listener.getLogger().println("Docker server " + candidate + " is unreachable, trying the next one");
+        }
+        if (selected == null) {
+            selected = ordered.get(0);
+            listener.getLogger().println("No Docker server of the pool is reachable, using " + selected);
+        } else {
+            listener.getLogger().println("Using Docker server " + selected + " (" + selected.getOutstandingBuilds() + " outstanding builds)");
+        }
+        strategy.selected(selected, repo);
+        return selected;
+    }
+
+    private boolean isHealthy(Candidate candidate, HealthCheck check) throws IOException, InterruptedException {
+        long now = System.currentTimeMillis();
+        Health last = health.get(candidate.getDaemon());
+        if (last != null && now - last.checked < HEALTH_TTL_MILLIS) {
+            return last.healthy;
+        }
+        boolean healthy;
+        try {
+            healthy = check.isHealthy(candidate.getServer());
+        } catch (IOException e) {
+            healthy = false;
+        }
+        health.put(candidate.getDaemon(), new Health(healthy, now));
+        return healthy;
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.dockerpublish;
+
+import hudson.Extension;
+import hudson.ExtensionPoint;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nonnull;
+import org.jenkinsci.plugins.docker.commons.credentials.DockerServerEndpoint;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Decides which Docker server of the pool of a {@link DockerBuilder} runs a build.
+ * The servers are tried in the returned order, unhealthy ones being skipped.
+ */
+public abstract class ServerSelectionStrategy extends AbstractDescribableImpl<ServerSelectionStrategy> implements ExtensionPoint {
+
+    /**
+     * Orders the servers by preference.
+     * @param candidates Servers of the pool, in configuration order
+     * @param repo Repository being built
+     * @return The same candidates, most preferred first
+     */
+    @Nonnull
+    public abstract List<Candidate> order(@Nonnull List<Candidate> candidates, @Nonnull String repo);
+
+    /**
+     * Called once a server was selected to build a repository.
+     */
+    public void selected(@Nonnull Candidate candidate, @Nonnull String repo) {
+    }
+
+    /**
+     * A Docker server of the pool.
+     */
+    public static final class Candidate {
+        private final DockerServerEndpoint server;
+        private final String daemon;
+        private final int outstandingBuilds;
+
+        Candidate(@Nonnull DockerServerEndpoint server, @Nonnull String daemon, int outstandingBuilds) {
+            this.server = server;
+            this.daemon = daemon;
+            this.outstandingBuilds = outstandingBuilds;
+        }
+
+        @Nonnull
+        public DockerServerEndpoint getServer() {
+            return server;
+        }
+
+        /**
+         * @return Key of the daemon, see {@link DaemonGovernor}
+         */
+        @Nonnull
+        public String getDaemon() {
+            return daemon;
+        }
+
+        /**
+         * @return Number of builds running or waiting for a slot on the daemon
+         */
+        public int getOutstandingBuilds() {
+            return outstandingBuilds;
+        }
+
+        @Override
+        public String toString() {
+            return daemon;
+        }
+    }
+
+    /**
+     * Prefers the server with the fewest builds running or waiting, the configuration order breaking ties.
+     */
+    public static class LeastOutstandingBuilds extends ServerSelectionStrategy {
+
+        @DataBoundConstructor
+        public LeastOutstandingBuilds() {
+        }
+
+        @Override
+        public List<Candidate> order(List<Candidate> candidates, String repo) {
+            List<Candidate> result = new ArrayList<Candidate>(candidates);
+            // stable sort
+            Collections.sort(result, new Comparator<Candidate>() {
+                @Override
+                public int compare(Candidate a, Candidate b) {
+                    return Integer.compare(a.outstandingBuilds, b.outstandingBuilds);
+                }
+            });
+            return result;
+        }
+
+        @Extension
+        public static class DescriptorImpl extends Descriptor<ServerSelectionStrategy> {
+            @Override
+            public String getDisplayName() {
+                return "Least outstanding builds";
+            }
+        }
+    }
+
+    /**
+     * Prefers the server which last built the repository, as its layer cache is likely to be reused,
+     * then the least busy one.
+     */
+    public static class CacheAffinity extends ServerSelectionStrategy {
+
+        /**
+         * Number of repositories whose last daemon is remembered, the least recently built or ordered ones being
+         * forgotten first.
+         */
+        static final int MAX_REPOSITORIES = Integer.getInteger(CacheAffinity.class.getName() + ".maxRepositories", 1000);
+
+        /** Daemon which last built each repository. */
+        private static final Map<String, String> LAST_BUILT = Collections.synchronizedMap(
+                new LinkedHashMap<String, String>(16, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                        return size() > MAX_REPOSITORIES;
+                    }
+                });
+
+        @DataBoundConstructor
+        public CacheAffinity() {
+        }
+
+        @Override
+        public List<Candidate> order(List<Candidate> candidates, String repo) {
+            List<Candidate> result = new LeastOutstandingBuilds().order(candidates, repo);
+            String daemon = LAST_BUILT.get(repo);
+            for (int i = 0; daemon != null && i < result.size(); i++) {
+                if (result.get(i).daemon.equals(daemon)) {
+                    result.add(0, result.remove(i));
+                    break;
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public void selected(Candidate candidate, String repo) {
+            LAST_BUILT.put(repo, candidate.daemon);
+        }
+
+        @Extension
+        public static class DescriptorImpl extends Descriptor<ServerSelectionStrategy> {
+            @Override
+            public String getDisplayName() {
+                return "Cache affinity";
+            }
+        }
+    }
+
+    /**
+     * Uses the servers in turn.
+     */
+    public static class RoundRobin extends ServerSelectionStrategy {
+
+        private transient int next;
+
+        @DataBoundConstructor
+        public RoundRobin() {
+        }
+
+        @Override
+        public synchronized List<Candidate> order(List<Candidate> candidates, String repo) {
+            List<Candidate> result = new ArrayList<Candidate>(candidates);
+            if (!result.isEmpty()) {
+                int first = next % result.size();
+                next = first + 1;
+                Collections.rotate(result, -first);
+            }
+            return result;
+        }
+
+        @Extension
+        public static class DescriptorImpl extends Descriptor<ServerSelectionStrategy> {
+            @Override
+            public String getDisplayName() {
+                return "Round robin";
+            }
+        }
+    }
+}
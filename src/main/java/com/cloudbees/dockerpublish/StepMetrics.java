@@ -0,0 +1,253 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.dockerpublish;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nonnull;
+import jenkins.model.Jenkins;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Counters and histograms of the Docker build steps since Jenkins started, named the way the Metrics plugin
+ * names its metrics, ie. {@code docker.phase.build.duration} or {@code docker.push.docker.io.bytes}.
+ * Measurements are forwarded to the {@link StepMetricsListener}s.
+ */
+@Restricted(NoExternalUse.class)
+public final class StepMetrics {
+
+    private static final Logger logger = Logger.getLogger(StepMetrics.class.getName());
+
+    private static final StepMetrics INSTANCE = new StepMetrics();
+
+    private final ConcurrentMap<String, Counter> counters = new ConcurrentSkipListMap<String, Counter>();
+    private final ConcurrentMap<String, Histogram> histograms = new ConcurrentSkipListMap<String, Histogram>();
+
+    StepMetrics() {
+    }
+
+    @Nonnull
+    static StepMetrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Records the duration of a phase of a build step.
+     */
+    void phase(@Nonnull StepPhase phase, long millis) {
+        histogram("docker.phase." + phase.label() + ".duration").update(millis);
+        for (StepMetricsListener l : listeners()) {
+            try {
+                l.onPhase(phase, millis);
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Failed to notify " + l, e);
+            }
+        }
+    }
+
+    /**
+     * Records a push.
+     * @param registry Host of the registry
+     * @param millis Duration of the push
+     * @param layers Number of layers uploaded
+     * @param bytes Number of bytes uploaded, 0 if unknown
+     * @param success Whether the push succeeded
+     */
+    void push(@Nonnull String registry, long millis, int layers, long bytes, boolean success) {
+        String prefix = "docker.push." + registry;
+        histogram(prefix + ".duration").update(millis);
+        counter(prefix + ".layers").inc(layers);
+        counter(prefix + ".bytes").inc(bytes);
+        if (!success) {
+            counter(prefix + ".failures").inc(1);
+        }
+        for (StepMetricsListener l : listeners()) {
+            try {
+                l.onPush(registry, millis, layers, bytes, success);
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Failed to notify " + l, e);
+            }
+        }
+    }
+
+    private static List<StepMetricsListener> listeners() {
+        // not running in Jenkins, ie. in unit tests
+        return Jenkins.getInstanceOrNull() == null ? Collections.<StepMetricsListener>emptyList() : StepMetricsListener.all();
+    }
+
+    @Nonnull
+    Counter counter(@Nonnull String name) {
+        Counter counter = counters.get(name);
+        if (counter == null) {
+            Counter created = new Counter(name);
+            counter = counters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    @Nonnull
+    Histogram histogram(@Nonnull String name) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            Histogram created = new Histogram(name);
+            histogram = histograms.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * @return Counters, ordered by name
+     */
+    @Nonnull
+    List<Counter> getCounters() {
+        return new ArrayList<Counter>(counters.values());
+    }
+
+    /**
+     * @return Histograms, ordered by name
+     */
+    @Nonnull
+    List<Histogram> getHistograms() {
+        return new ArrayList<Histogram>(histograms.values());
+    }
+
+    /**
+     * A value which only grows.
+     */
+    @ExportedBean(defaultVisibility = 2)
+    public static final class Counter {
+        private final String name;
+        private final AtomicLong count = new AtomicLong();
+
+        Counter(@Nonnull String name) {
+            this.name = name;
+        }
+
+        void inc(long n) {
+            count.addAndGet(n);
+        }
+
+        @Exported
+        @Nonnull
+        public String getName() {
+            return name;
+        }
+
+        @Exported
+        public long getCount() {
+            return count.get();
+        }
+    }
+
+    /**
+     * Distribution of a measurement, percentiles being computed over the most recent values.
+     */
+    @ExportedBean(defaultVisibility = 2)
+    public static final class Histogram {
+
+        /**
+         * Number of values the percentiles are computed from, as the default Dropwizard reservoir.
+         */
+        static final int WINDOW = 1028;
+
+        private final String name;
+        private final long[] window = new long[WINDOW];
+        private long count;
+        private long sum;
+        private long max;
+
+        Histogram(@Nonnull String name) {
+            this.name = name;
+        }
+
+        synchronized void update(long value) {
+            window[(int) (count % WINDOW)] = value;
+            count++;
+            sum += value;
+            max = Math.max(max, value);
+        }
+
+        @Exported
+        @Nonnull
+        public String getName() {
+            return name;
+        }
+
+        @Exported
+        public synchronized long getCount() {
+            return count;
+        }
+
+        @Exported
+        public synchronized long getMean() {
+            return count == 0 ? 0 : sum / count;
+        }
+
+        @Exported
+        public synchronized long getMax() {
+            return max;
+        }
+
+        @Exported
+        public long getP50() {
+            return percentile(0.5);
+        }
+
+        @Exported
+        public long getP95() {
+            return percentile(0.95);
+        }
+
+        /**
+         * @param quantile Between 0 and 1
+         * @return Value of the quantile over the recent values, 0 if there are none
+         */
+        synchronized long percentile(double quantile) {
+            int n = (int) Math.min(count, WINDOW);
+            if (n == 0) {
+                return 0;
+            }
+            long[] values = Arrays.copyOf(window, n);
+            Arrays.sort(values);
+            int index = (int) Math.ceil(quantile * n) - 1;
+            return values[Math.max(0, Math.min(n - 1, index))];
+        }
+    }
+}
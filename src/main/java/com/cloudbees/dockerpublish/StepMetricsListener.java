@@ -0,0 +1,60 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.dockerpublish;
+
+import hudson.ExtensionList;
+import hudson.ExtensionPoint;
+import javax.annotation.Nonnull;
+
+/**
+ * Receives the measurements of the Docker build steps, ie. to publish them to a monitoring system.
+ * The measurements are also aggregated in {@link StepMetrics}.
+ * Implementations are called on the build threads and must return quickly.
+ */
+public abstract class StepMetricsListener implements ExtensionPoint {
+
+    /**
+     * Called when a phase of a build step is over.
+     * @param phase Phase which ran
+     * @param millis Duration of the phase
+     */
+    public void onPhase(@Nonnull StepPhase phase, long millis) {
+    }
+
+    /**
+     * Called when a tag was pushed, or failed to be.
+     * @param registry Host of the registry, {@code docker.io} for Docker Hub
+     * @param millis Duration of the push
+     * @param layers Number of layers uploaded, the ones already in the registry are not counted
+     * @param bytes Number of bytes uploaded, 0 if unknown: the docker CLI does not report it
+     * @param success Whether the push succeeded
+     */
+    public void onPush(@Nonnull String registry, long millis, int layers, long bytes, boolean success) {
+    }
+
+    @Nonnull
+    public static ExtensionList<StepMetricsListener> all() {
+        return ExtensionList.lookup(StepMetricsListener.class);
+    }
+}
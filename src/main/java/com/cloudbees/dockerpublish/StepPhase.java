@@ -0,0 +1,54 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.dockerpublish;
+
+import java.util.Locale;
+import javax.annotation.Nonnull;
+
+/**
+ * Phases of a build step, timed by the step and reported to the {@link StepMetricsListener}s.
+ */
+public enum StepPhase {
+    /** Token macro expansion of the configuration. */
+    EXPAND,
+    /** Materialization of the registry and server credentials. */
+    CREDENTIALS,
+    /** Resolution of the docker tool. */
+    TOOL,
+    /** Digest of the build context, see {@link ContextDigest}. */
+    CONTEXT,
+    /** Pull of the base images, concurrent with the build. */
+    PULL,
+    /** Image build, including the upload of the build context. */
+    BUILD,
+    TAG,
+    INSPECT,
+    FINGERPRINT,
+    PUSH;
+
+    @Nonnull
+    String label() {
+        return name().toLowerCase(Locale.ENGLISH);
+    }
+}
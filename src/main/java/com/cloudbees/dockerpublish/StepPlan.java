@@ -0,0 +1,193 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.dockerpublish;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * Configuration of a {@link DockerBuilder} step with all the token macros expanded.
+ * It is resolved once per build step so that every command sees the same values.
+ */
+final class StepPlan implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String repo;
+    private final List<ImageTag> imageTags;
+    private final boolean tagged;
+    @CheckForNull
+    private final String buildContext;
+    @CheckForNull
+    private final String dockerfilePath;
+    private final String buildAdditionalArgs;
+    private final String registryUrl;
+    private final List<String> cacheFrom;
+    private final List<String> cacheTo;
+
+    /**
+     * @param repo Expanded repository name, including the registry
+     * @param repoTag Expanded comma separated list of tags, null if none
+     * @param tagLatest Whether the image is also tagged as latest when there are tags
+     * @param buildContext Expanded build context, null to use the workspace
+     * @param dockerfilePath Expanded Dockerfile path, null for the default one
+     * @param buildAdditionalArgs Expanded additional arguments of docker build
+     * @param registryUrl Expanded registry URL
+     */
+    StepPlan(@Nonnull String repo, @CheckForNull String repoTag, boolean tagLatest,
+             @CheckForNull String buildContext, @CheckForNull String dockerfilePath,
+             @Nonnull String buildAdditionalArgs, @Nonnull String registryUrl) {
+        this(repo, repoTag, tagLatest, buildContext, dockerfilePath, buildAdditionalArgs, registryUrl, null, null);
+    }
+
+    /**
+     * @param cacheFrom Expanded BuildKit cache sources separated by white space, null if none
+     * @param cacheTo Expanded BuildKit cache destinations separated by white space, null if none
+     */
+    StepPlan(@Nonnull String repo, @CheckForNull String repoTag, boolean tagLatest,
+             @CheckForNull String buildContext, @CheckForNull String dockerfilePath,
+             @Nonnull String buildAdditionalArgs, @Nonnull String registryUrl,
+             @CheckForNull String cacheFrom, @CheckForNull String cacheTo) {
+        this.repo = repo;
+        List<ImageTag> tags = new ArrayList<ImageTag>();
+        if (repoTag == null) {
+            tags.add(new ImageTag(repo));
+        } else {
+            for (String rt : repoTag.trim().split(",")) {
+                tags.add(new ImageTag(repo, rt));
+            }
+            if (tagLatest) {
+                tags.add(new ImageTag(repo, "latest"));
+            }
+        }
+        this.imageTags = Collections.unmodifiableList(tags);
+        this.tagged = repoTag != null;
+        this.buildContext = buildContext;
+        this.dockerfilePath = dockerfilePath;
+        this.buildAdditionalArgs = buildAdditionalArgs;
+        this.registryUrl = registryUrl;
+        this.cacheFrom = split(cacheFrom);
+        this.cacheTo = split(cacheTo);
+    }
+
+    private static List<String> split(@CheckForNull String specs) {
+        List<String> result = new ArrayList<String>();
+        if (specs != null) {
+            for (String spec : specs.trim().split("\\s+")) {
+                if (!spec.isEmpty()) {
+                    result.add(spec);
+                }
+            }
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * @return Fully qualified repository name, ie. docker.acme.com/jdoe/busybox
+     */
+    @Nonnull
+    String getRepo() {
+        return repo;
+    }
+
+    /**
+     * These tags are what is used to build, tag and push the registry.
+     */
+    @Nonnull
+    List<ImageTag> getImageTags() {
+        return imageTags;
+    }
+
+    /**
+     * Text appended to the build display name.
+     * @param compact Whether the tags of a repository are grouped, ie. {@code repo:{1.0,latest}}
+     *                rather than {@code repo:1.0 repo:latest}
+     */
+    @Nonnull
+    String getDecoration(boolean compact) {
+        StringBuilder sb = new StringBuilder();
+        if (!compact || imageTags.size() == 1) {
+            for (ImageTag imageTag : imageTags) {
+                sb.append(' ').append(imageTag);
+            }
+            return sb.toString();
+        }
+        // all the tags share the repository
+        sb.append(' ').append(repo).append(":{");
+        for (int i = 0; i < imageTags.size(); i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(imageTags.get(i).getTag());
+        }
+        return sb.append('}').toString();
+    }
+
+    /**
+     * @return Whether tags were configured, otherwise the image is only named after the repository
+     */
+    boolean isTagged() {
+        return tagged;
+    }
+
+    @CheckForNull
+    String getBuildContext() {
+        return buildContext;
+    }
+
+    @CheckForNull
+    String getDockerfilePath() {
+        return dockerfilePath;
+    }
+
+    @Nonnull
+    String getBuildAdditionalArgs() {
+        return buildAdditionalArgs;
+    }
+
+    @Nonnull
+    String getRegistryUrl() {
+        return registryUrl;
+    }
+
+    /**
+     * @return BuildKit cache sources, ie. {@code type=registry,ref=acme/app:cache}
+     */
+    @Nonnull
+    List<String> getCacheFrom() {
+        return cacheFrom;
+    }
+
+    /**
+     * @return BuildKit cache destinations, ie. {@code type=local,dest=/var/cache/buildkit}
+     */
+    @Nonnull
+    List<String> getCacheTo() {
+        return cacheTo;
+    }
+}
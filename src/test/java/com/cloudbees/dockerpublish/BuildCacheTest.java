@@ -0,0 +1,62 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.dockerpublish;
+
+import static org.junit.Assert.*;
+
+import hudson.model.FreeStyleProject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+/**
+ * Tests for {@link BuildCache}.
+ */
+public class BuildCacheTest {
+
+    @Rule
+    public JenkinsRule jenkins = new JenkinsRule();
+
+    @Test
+    public void testLeastRecentlyUsedEvicted() throws Exception {
+        FreeStyleProject job = jenkins.createFreeStyleProject();
+        for (int n = 0; n < BuildCache.MAX_ENTRIES; n++) {
+            BuildCache.put(job, "sha256:" + n, "image" + n);
+        }
+        assertEquals("image0", BuildCache.get(job, "sha256:0"));
+
+        BuildCache.put(job, "sha256:new", "new");
+        assertEquals("image0", BuildCache.get(job, "sha256:0"));
+        assertNull(BuildCache.get(job, "sha256:1"));
+        assertEquals("new", BuildCache.get(job, "sha256:new"));
+    }
+
+    @Test
+    public void testRemove() throws Exception {
+        FreeStyleProject job = jenkins.createFreeStyleProject();
+        BuildCache.put(job, "sha256:0", "image0");
+        BuildCache.remove(job, "sha256:0");
+        assertNull(BuildCache.get(job, "sha256:0"));
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.dockerpublish;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link BuildGraph}.
+ */
+public class BuildGraphTest {
+
+    @Test
+    public void testDependencies() {
+        BuildGraph graph = BuildGraph.infer(
+                Arrays.asList(
+                        Arrays.asList("acme/base:1.0", "acme/base:latest"),
+                        Arrays.asList("acme/app:1.0"),
+                        Arrays.asList("acme/tools:latest"),
+                        Arrays.asList("docker.acme.com/acme/worker:latest")),
+                Arrays.asList(
+                        Arrays.asList("ubuntu:20.04"),
+                        Arrays.asList("acme/base:latest", "docker.io/acme/tools:latest"),
+                        Arrays.asList("acme/base:0.9"),
+                        Arrays.asList("docker.acme.com/acme/worker:latest", "acme/base:1.0")));
+        assertEquals(Collections.<Integer>emptySet(), graph.getDependencies(0));
+        assertEquals(set(0, 2), graph.getDependencies(1));
+        // another version of the image is not built by the matrix
+        assertEquals(Collections.<Integer>emptySet(), graph.getDependencies(2));
+        // built from a previous version of itself
+        assertEquals(set(0), graph.getDependencies(3));
+        assertNull(graph.findCycle());
+    }
+
+    @Test
+    public void testCycle() {
+        BuildGraph graph = BuildGraph.infer(
+                Arrays.asList(
+                        Arrays.asList("acme/a:latest"),
+                        Arrays.asList("acme/b:latest"),
+                        Arrays.asList("acme/c:latest")),
+                Arrays.asList(
+                        Arrays.asList("alpine:latest"),
+                        Arrays.asList("acme/c:latest"),
+                        Arrays.asList("acme/b:latest")));
+        assertEquals(Arrays.asList(1, 2), graph.findCycle());
+    }
+
+    @Test
+    public void testNormalize() {
+        assertEquals("ubuntu:20.04", BuildGraph.normalize("docker.io/library/ubuntu:20.04"));
+        assertEquals("ubuntu:20.04", BuildGraph.normalize("library/ubuntu:20.04"));
+        assertEquals("jdoe/app:latest", BuildGraph.normalize("index.docker.io/jdoe/app:latest"));
+        assertEquals("docker.acme.com/app:latest", BuildGraph.normalize("docker.acme.com/app:latest"));
+    }
+
+    private static Set<Integer> set(Integer... values) {
+        return new TreeSet<Integer>(Arrays.asList(values));
+    }
+}
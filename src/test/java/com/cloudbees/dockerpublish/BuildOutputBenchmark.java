@@ -0,0 +1,117 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.dockerpublish;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import jenkins.benchmark.jmh.JmhBenchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks finding the image built in the output of {@code docker build}, both on a buffered log
+ * with {@link DockerBuilder#getImageBuiltFromStdout(CharSequence)} and streamed through {@link DockerOutputParser}.
+ */
+@JmhBenchmark
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class BuildOutputBenchmark {
+
+    private static final int MEGABYTE = 1024 * 1024;
+
+    /**
+     * Buffered log, larger sizes not fitting in a default heap as a String.
+     */
+    @State(Scope.Benchmark)
+    public static class BufferedLog {
+        @Param({"1", "16", "128"})
+        public int megabytes;
+
+        String log;
+
+        @Setup
+        public void setup() {
+            log = syntheticLog(megabytes * MEGABYTE);
+        }
+    }
+
+    /**
+     * Streamed log, made of the same chunk written again and again.
+     */
+    @State(Scope.Benchmark)
+    public static class StreamedLog {
+        @Param({"1", "64", "500"})
+        public int megabytes;
+
+        byte[] chunk;
+
+        @Setup
+        public void setup() {
+            chunk = syntheticLog(MEGABYTE).getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    @Benchmark
+    public String scrapeBufferedLog(BufferedLog state) {
+        return DockerBuilder.getImageBuiltFromStdout(state.log);
+    }
+
+    @Benchmark
+    public String parseStreamedLog(StreamedLog state) throws IOException {
+        DockerOutputParser parser = new DockerOutputParser(StandardCharsets.UTF_8);
+        for (int i = 0; i < state.megabytes; i++) {
+            parser.write(state.chunk, 0, state.chunk.length);
+        }
+        parser.close();
+        return parser.getImageBuilt();
+    }
+
+    /**
+     * Generates the output of successive builds, each one ending with a {@code Successfully built} line.
+     * @param size Approximate size in bytes
+     */
+    static String syntheticLog(int size) {
+        StringBuilder sb = new StringBuilder(size + 256);
+        int build = 0;
+        while (sb.length() < size) {
+            build++;
+            sb.append("Sending build context to Docker daemon 2.048 kB\n");
+            for (int step = 1; step <= 8; step++) {
+                sb.append("Step ").append(step).append("/8 : RUN make -j4 target-").append(step).append('\n');
+                sb.append(" ---> Running in ").append(String.format(Locale.ROOT, "%012x", build * 16L + step)).append('\n');
+                sb.append("gcc -O2 -c src/module").append(step).append(".c -o build/module").append(step).append(".o\n");
+                sb.append(" ---> ").append(String.format(Locale.ROOT, "%012x", build * 32L + step)).append('\n');
+            }
+            sb.append("Successfully built ").append(String.format(Locale.ROOT, "%012x", (long) build)).append('\n');
+        }
+        return sb.toString();
+    }
+}
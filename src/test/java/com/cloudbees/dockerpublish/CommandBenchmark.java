@@ -0,0 +1,98 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.dockerpublish;
+
+import jenkins.benchmark.jmh.JmhBenchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks building the image tags and the docker commands of a step.
+ */
+@JmhBenchmark
+public class CommandBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Tags {
+        @Param({"1", "10", "100"})
+        public int tags;
+
+        String repoTag;
+        StepPlan plan;
+
+        @Setup
+        public void setup() {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < tags; i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append("1.").append(i);
+            }
+            repoTag = sb.toString();
+            plan = newPlan(repoTag);
+        }
+    }
+
+    @Benchmark
+    public String imageTag() {
+        return new ImageTag("docker.acme.com/jdoe/busybox", "1.0").toString();
+    }
+
+    @Benchmark
+    public StepPlan plan(Tags state) {
+        return newPlan(state.repoTag);
+    }
+
+    @Benchmark
+    public void buildCommands(Tags state, Blackhole blackhole) {
+        for (ImageTag tag : state.plan.getImageTags()) {
+            blackhole.consume(DockerBuilder.buildCommand(state.plan, tag, false, true,
+                    "/var/lib/jenkins/workspace/job@tmp/docker-build.iid", "/var/lib/jenkins/workspace/job"));
+        }
+    }
+
+    @Benchmark
+    public void pushCommands(Tags state, Blackhole blackhole) {
+        for (ImageTag tag : state.plan.getImageTags()) {
+            blackhole.consume("push " + tag);
+        }
+    }
+
+    @Benchmark
+    public String decoration(Tags state) {
+        return state.plan.getDecoration(false);
+    }
+
+    static StepPlan newPlan(String repoTag) {
+        return new StepPlan("docker.acme.com/jdoe/busybox", repoTag, true, null, "docker/Dockerfile",
+                "--build-arg VERSION=1.0 --label org.opencontainers.image.source=https://github.com/jdoe/busybox",
+                "https://docker.acme.com/");
+    }
+}
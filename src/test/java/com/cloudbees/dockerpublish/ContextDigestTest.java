@@ -0,0 +1,110 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.dockerpublish;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for {@link ContextDigest}.
+ */
+public class ContextDigestTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File context;
+    private File index;
+
+    @Before
+    public void setUp() throws IOException {
+        context = tmp.newFolder();
+        index = new File(tmp.newFolder(), "context.index");
+        write("Dockerfile", "FROM scratch\nCOPY app.sh /\n");
+        write(".dockerignore", "*.log\n");
+        write("app.sh", "echo\n");
+        new File(context, "lib").mkdir();
+        write("lib/util.sh", "true\n");
+    }
+
+    @Test
+    public void testIncremental() throws Exception {
+        ContextDigest first = ContextDigest.compute(context, null, "", "", index);
+        assertEquals(4, first.getFiles());
+        assertEquals(4, first.getHashed());
+
+        ContextDigest second = ContextDigest.compute(context, null, "", "", index);
+        assertEquals(first.getDigest(), second.getDigest());
+        assertEquals(0, second.getHashed());
+
+        write("lib/util.sh", "false\n");
+        ContextDigest third = ContextDigest.compute(context, null, "", "", index);
+        assertNotEquals(first.getDigest(), third.getDigest());
+        assertEquals(1, third.getHashed());
+    }
+
+    @Test
+    public void testIgnoredFiles() throws Exception {
+        String digest = ContextDigest.compute(context, null, "", "", index).getDigest();
+        write("build.log", "not sent to the daemon");
+        assertEquals(digest, ContextDigest.compute(context, null, "", "", index).getDigest());
+        write("other.sh", "sent to the daemon");
+        assertNotEquals(digest, ContextDigest.compute(context, null, "", "", index).getDigest());
+    }
+
+    @Test
+    public void testArguments() throws Exception {
+        String digest = ContextDigest.compute(context, null, "", "", null).getDigest();
+        assertEquals(digest, ContextDigest.compute(context, "Dockerfile", "", "", null).getDigest());
+        assertNotEquals(digest, ContextDigest.compute(context, null, "--build-arg A=1", "", null).getDigest());
+        assertNotEquals(digest, ContextDigest.compute(context, null, "", "buildkit", null).getDigest());
+        write("Dockerfile.dev", "FROM scratch\n");
+        assertNotEquals(digest, ContextDigest.compute(context, "Dockerfile.dev", "", "", null).getDigest());
+    }
+
+    @Test
+    public void testSameSizeAndTime() throws Exception {
+        File file = new File(context, "app.sh");
+        String digest = ContextDigest.compute(context, null, "", "", index).getDigest();
+        long modified = file.lastModified();
+        write("app.sh", "exit\n");
+        assertTrue(file.setLastModified(modified));
+        // the index is trusted while size and modification time match
+        assertEquals(digest, ContextDigest.compute(context, null, "", "", index).getDigest());
+        assertNotEquals(digest, ContextDigest.compute(context, null, "", "", null).getDigest());
+    }
+
+    private void write(String path, String content) throws IOException {
+        Files.write(new File(context, path).toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.dockerpublish;
+
+import static org.junit.Assert.*;
+
+import com.cloudbees.dockerpublish.DaemonGovernor.Operation;
+
+import hudson.util.StreamTaskListener;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link DaemonGovernor}.
+ */
+public class DaemonGovernorTest {
+
+    private final DaemonGovernor governor = new DaemonGovernor();
+    private final ByteArrayOutputStream log = new ByteArrayOutputStream();
+    private final StreamTaskListener listener = new StreamTaskListener(log);
+
+    @Test
+    public void testUnlimited() throws Exception {
+        DaemonGovernor.Slot a = governor.acquire("tcp://docker:2375", Operation.BUILD, 0, listener);
+        DaemonGovernor.Slot b = governor.acquire("tcp://docker:2375", Operation.BUILD, 0, listener);
+        DaemonGovernor.Lane lane = governor.getLanes().get(0);
+        assertEquals(2, lane.getRunning());
+        a.close();
+        b.close();
+        b.close();
+        assertEquals(0, lane.getRunning());
+        assertEquals(2, lane.getAcquisitions());
+        assertEquals("", log.toString("UTF-8"));
+    }
+
+    @Test
+    public void testFifo() throws Exception {
+        final String daemon = "tcp://docker:2375";
+        DaemonGovernor.Slot first = governor.acquire(daemon, Operation.PUSH, 1, listener);
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 3; i++) {
+            final int n = i;
+            Thread t = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        DaemonGovernor.Slot slot = governor.acquire(daemon, Operation.PUSH, 1, listener);
+                        order.add(n);
+                        slot.close();
+                    } catch (InterruptedException e) {
+                        // test fails on the order
+                    }
+                }
+            };
+            t.start();
+            threads.add(t);
+            // wait for the thread to be queued so that arrival order is known
+            awaitQueued(governor.getLanes().get(0), i + 1);
+            // the counter is updated just before blocking
+            Thread.sleep(50);
+        }
+        DaemonGovernor.Lane lane = governor.getLanes().get(0);
+        assertEquals(1, lane.getRunning());
+        assertEquals(3, lane.getQueued());
+        first.close();
+        for (Thread t : threads) {
+            t.join(10000);
+        }
+        assertEquals(asList(0, 1, 2), order);
+        assertEquals(0, lane.getQueued());
+        assertEquals(4, lane.getAcquisitions());
+        assertTrue(log.toString("UTF-8").contains("Waiting for daemon slot: 1 push(s) running"));
+    }
+
+    @Test
+    public void testLimitChange() throws Exception {
+        String daemon = "unix:///var/run/docker.sock on agent";
+        DaemonGovernor.Slot a = governor.acquire(daemon, Operation.BUILD, 2, listener);
+        DaemonGovernor.Slot b = governor.acquire(daemon, Operation.BUILD, 2, listener);
+        DaemonGovernor.Lane lane = governor.getLanes().get(0);
+        // lowering the limit does not affect running builds
+        lane.setLimit(1);
+        a.close();
+        assertEquals(1, lane.getRunning());
+        lane.setLimit(3);
+        DaemonGovernor.Slot c = governor.acquire(daemon, Operation.BUILD, 3, listener);
+        DaemonGovernor.Slot d = governor.acquire(daemon, Operation.BUILD, 3, listener);
+        assertEquals(3, lane.getRunning());
+        b.close();
+        c.close();
+        d.close();
+        assertEquals(0, lane.getRunning());
+        assertEquals("", log.toString("UTF-8"));
+    }
+
+    @Test
+    public void testLimitRemovedWhileQueued() throws Exception {
+        String daemon = "tcp://docker:2375";
+        DaemonGovernor.Slot a = governor.acquire(daemon, Operation.BUILD, 1, listener);
+        DaemonGovernor.Lane lane = governor.getLanes().get(0);
+        Thread waiting = acquireLater(daemon, 1);
+        awaitQueued(lane, 1);
+        lane.setLimit(0);
+        waiting.join(10000);
+        assertFalse("the waiting build was not started", waiting.isAlive());
+        assertEquals(2, lane.getRunning());
+        assertEquals(0, lane.getQueued());
+        a.close();
+    }
+
+    @Test
+    public void testLimitSetWhileUnlimitedBuildsRun() throws Exception {
+        String daemon = "tcp://docker:2375";
+        List<DaemonGovernor.Slot> slots = new ArrayList<DaemonGovernor.Slot>();
+        for (int i = 0; i < 3; i++) {
+            slots.add(governor.acquire(daemon, Operation.BUILD, 0, listener));
+        }
+        DaemonGovernor.Lane lane = governor.getLanes().get(0);
+        // the builds started without a limit count against the new one
+        Thread waiting = acquireLater(daemon, 2);
+        awaitQueued(lane, 1);
+        slots.get(0).close();
+        waiting.join(200);
+        assertTrue("more builds than the limit are running", waiting.isAlive());
+        assertEquals(2, lane.getRunning());
+        slots.get(1).close();
+        waiting.join(10000);
+        assertFalse("the waiting build was not started", waiting.isAlive());
+        assertEquals(2, lane.getRunning());
+        slots.get(2).close();
+    }
+
+    @Test
+    public void testIdleLaneRemoved() throws Exception {
+        String daemon = "unix:///var/run/docker.sock on agent-1";
+        DaemonGovernor.Slot a = governor.acquire(daemon, Operation.BUILD, 1, listener);
+        DaemonGovernor.Lane lane = governor.getLanes().get(0);
+        Thread waiting = acquireLater(daemon, 1);
+        awaitQueued(lane, 1);
+        a.close();
+        waiting.join(10000);
+        // the build which waited still runs
+        assertEquals(Collections.singletonList(lane), governor.getLanes());
+        assertEquals(1, governor.getOutstanding(daemon, Operation.BUILD));
+
+        DaemonGovernor.Slot b = governor.acquire("tcp://docker:2375", Operation.PUSH, 0, listener);
+        b.close();
+        assertEquals(Collections.singletonList(lane), governor.getLanes());
+        DaemonGovernor.Slot c = governor.acquire("tcp://docker:2375", Operation.PUSH, 0, listener);
+        assertEquals(2, governor.getLanes().size());
+        c.close();
+        assertEquals(Collections.singletonList(lane), governor.getLanes());
+    }
+
+    @Test
+    public void testInterruptedWaitLeavesLane() throws Exception {
+        String daemon = "tcp://docker:2375";
+        DaemonGovernor.Slot a = governor.acquire(daemon, Operation.BUILD, 1, listener);
+        DaemonGovernor.Lane lane = governor.getLanes().get(0);
+        Thread waiting = acquireLater(daemon, 1);
+        awaitQueued(lane, 1);
+        waiting.interrupt();
+        waiting.join(10000);
+        assertEquals(0, lane.getQueued());
+        a.close();
+        assertTrue(governor.getLanes().isEmpty());
+        assertEquals(0, governor.getOutstanding(daemon, Operation.BUILD));
+    }
+
+    /**
+     * Acquires a build slot in another thread, which ends once the slot is acquired.
+     */
+    private Thread acquireLater(final String daemon, final int limit) {
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    governor.acquire(daemon, Operation.BUILD, limit, listener);
+                } catch (InterruptedException e) {
+                    // test fails on the thread still running
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    private static void awaitQueued(DaemonGovernor.Lane lane, int queued) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (lane.getQueued() < queued) {
+            assertTrue("timed out waiting for " + queued + " queued", System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static List<Integer> asList(Integer... values) {
+        List<Integer> list = new ArrayList<Integer>();
+        Collections.addAll(list, values);
+        return list;
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.dockerpublish;
+
+import static org.junit.Assert.*;
+
+import hudson.Functions;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Result;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+
+/**
+ * Tests for {@link DockerBuildMatrix}.
+ */
+public class DockerBuildMatrixTest {
+
+    @Rule
+    public JenkinsRule jenkins = new JenkinsRule();
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testRoundtrip() throws Exception {
+        FreeStyleProject project = jenkins.createFreeStyleProject();
+
+        DockerImageSpec base = new DockerImageSpec("acme/base");
+        base.setBuildContext("base");
+        DockerImageSpec app = new DockerImageSpec("acme/app");
+        app.setRepoTag("1.0");
+        app.setBuildContext("app");
+        app.setDockerfilePath("Dockerfile.app");
+        app.setBuildAdditionalArgs("--build-arg A=1");
+        DockerBuildMatrix before = new DockerBuildMatrix(Arrays.asList(base, app));
+        before.setMaxParallelBuilds(3);
+        before.setSkipPush(true);
+        before.setForcePull(true);
+        before.setSkipTagLatest(true);
+        before.setUseBuildKit(true);
+
+        project.getBuildersList().add(before);
+        jenkins.configRoundtrip(project);
+
+        jenkins.assertEqualDataBoundBeans(before, project.getBuildersList().get(DockerBuildMatrix.class));
+    }
+
+    @Test
+    public void testDependencyWait() throws Exception {
+        FakeDocker docker = fakeDocker();
+        // the base image takes longer to build
+        docker.hook("build", "case \"$3\" in acme/base:*) sleep 2 ;; esac\n");
+        FreeStyleBuild build = jenkins.buildAndAssertSuccess(project(matrix(
+                image("acme/app", "FROM acme/base\n"), image("acme/base", "FROM scratch\n"))));
+
+        List<String> builds = docker.commands("build ");
+        assertEquals(2, builds.size());
+        assertTrue(builds.get(0), builds.get(0).startsWith("build -t acme/base:latest "));
+        assertTrue(builds.get(1), builds.get(1).startsWith("build -t acme/app:latest "));
+        jenkins.assertLogContains("acme/app:latest is built after [acme/base:latest]", build);
+    }
+
+    @Test
+    public void testFailedParentSkipped() throws Exception {
+        FakeDocker docker = fakeDocker();
+        docker.hook("build", "case \"$3\" in acme/base:*) echo 'broken base' >&2; exit 1 ;; esac\n");
+        FreeStyleProject project = project(matrix(
+                image("acme/base", "FROM scratch\n"), image("acme/app", "FROM acme/base\n"), image("acme/tool", "FROM scratch\n")));
+        FreeStyleBuild build = jenkins.assertBuildStatus(Result.FAILURE, project.scheduleBuild2(0));
+
+        List<String> builds = docker.commands("build ");
+        assertEquals(2, builds.size());
+        assertFalse(builds.toString(), builds.toString().contains("acme/app"));
+        jenkins.assertLogContains("[acme/app:latest] ERROR: Not built as an image it is built from failed", build);
+        jenkins.assertLogContains("acme/base:latest failed", build);
+    }
+
+    @Test
+    public void testSlotReleasedOnceBuilt() throws Exception {
+        FakeDocker docker = fakeDocker();
+        // the base image is pushed once the next image is built, which needs the only build slot
+        docker.hook("build", "case \"$3\" in acme/app:*) touch \"$DIR/app-built\" ;; esac\n");
+        docker.hook("push", "case \"$2\" in acme/base:*)\n"
+                + "  i=0\n"
+                + "  while [ ! -f \"$DIR/app-built\" ]; do\n"
+                + "    i=$((i + 1)); if [ $i -gt 30 ]; then echo 'timed out' >&2; exit 1; fi; sleep 1\n"
+                + "  done ;;\n"
+                + "esac\n");
+        DockerBuildMatrix matrix = matrix(image("acme/base", "FROM scratch\n"), image("acme/app", "FROM acme/base\n"));
+        matrix.setMaxParallelBuilds(1);
+        matrix.setSkipPush(false);
+        jenkins.buildAndAssertSuccess(project(matrix));
+
+        assertEquals(2, docker.commands("push ").size());
+    }
+
+    private FakeDocker fakeDocker() throws Exception {
+        Assume.assumeFalse("Runs a shell script as docker", Functions.isWindows());
+        return new FakeDocker(jenkins, tmp.newFolder());
+    }
+
+    private DockerImageSpec image(String repoName, String dockerfile) throws IOException {
+        File context = tmp.newFolder();
+        FileUtils.writeStringToFile(new File(context, "Dockerfile"), dockerfile, StandardCharsets.UTF_8);
+        DockerImageSpec spec = new DockerImageSpec(repoName);
+        spec.setBuildContext(context.getAbsolutePath());
+        return spec;
+    }
+
+    private static DockerBuildMatrix matrix(DockerImageSpec... images) {
+        DockerBuildMatrix matrix = new DockerBuildMatrix(Arrays.asList(images));
+        matrix.setDockerToolName(FakeDocker.TOOL);
+        matrix.setSkipPush(true);
+        matrix.setCreateFingerprint(false);
+        return matrix;
+    }
+
+    private FreeStyleProject project(DockerBuildMatrix matrix) throws IOException {
+        FreeStyleProject project = jenkins.createFreeStyleProject();
+        project.getBuildersList().add(matrix);
+        return project;
+    }
+}
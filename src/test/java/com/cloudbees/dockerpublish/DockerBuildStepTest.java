@@ -0,0 +1,163 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.dockerpublish;
+
+import hudson.Functions;
+import hudson.model.Result;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.jenkinsci.plugins.workflow.steps.StepConfigTester;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link DockerBuildStep}.
+ */
+public class DockerBuildStepTest {
+
+    @Rule
+    public JenkinsRule jenkins = new JenkinsRule();
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testRoundtrip() throws Exception {
+        DockerBuildStep before = new DockerBuildStep("acme/app");
+        before.setRepoTag("1.0");
+        before.setBuildContext("app");
+        before.setDockerfilePath("Dockerfile.app");
+        before.setBuildAdditionalArgs("--build-arg A=1");
+        before.setNoCache(true);
+        before.setSkipTagLatest(true);
+        before.setCreateFingerprint(false);
+        before.setUseBuildKit(true);
+        before.setCacheFrom("type=registry,ref=acme/app:cache");
+        before.setCacheTo("type=inline");
+        before.setPushRetries(1);
+
+        DockerBuildStep after = new StepConfigTester(jenkins).configRoundTrip(before);
+        jenkins.assertEqualBeans(before, after,
+                "repoName,repoTag,buildContext,dockerfilePath,buildAdditionalArgs,noCache,forcePull,skipPush,skipTagLatest,createFingerprint,useBuildKit,cacheFrom,cacheTo,pushRetries");
+    }
+
+    @Test
+    public void testDefaults() {
+        DockerBuildStep step = new DockerBuildStep("acme/app");
+        step.setRepoTag(" ");
+        step.setDockerToolName("");
+        assertNull(step.getRepoTag());
+        assertNull(step.getDockerToolName());
+        assertEquals("", step.getBuildAdditionalArgs());
+        assertTrue(step.isCreateFingerprint());
+        assertFalse(step.isSkipPush());
+    }
+
+    @Test
+    public void testBuild() throws Exception {
+        FakeDocker docker = fakeDocker();
+        WorkflowRun run = jenkins.buildAndAssertSuccess(pipeline(
+                "def image = dockerBuildPublish repoName: 'acme/app', repoTag: '1.0', skipPush: true, dockerToolName: '"
+                + FakeDocker.TOOL + "'\necho \"built ${image.imageId} as ${image.tags}\""));
+        jenkins.assertLogContains("built " + FakeDocker.IMAGE_ID + " as [acme/app:1.0, acme/app:latest]", run);
+        assertEquals(1, docker.commands("build ").size());
+        assertEquals(1, docker.commands("tag ").size());
+        assertEquals(0, docker.commands("push ").size());
+    }
+
+    @Test
+    public void testPushRetried() throws Exception {
+        FakeDocker docker = fakeDocker();
+        docker.hook("push", "if [ ! -f \"$DIR/failed\" ]; then\n"
+                + "  touch \"$DIR/failed\"; echo 'received unexpected HTTP status: 503 Service Unavailable' >&2; exit 1\n"
+                + "fi\n");
+        WorkflowRun run = jenkins.buildAndAssertSuccess(pipeline(
+                "def image = dockerBuildPublish repoName: 'acme/app', repoTag: '1.0', skipTagLatest: true, pushRetries: 1, "
+                + "dockerToolName: '" + FakeDocker.TOOL + "'\necho \"digests ${image.digests}\""));
+        jenkins.assertLogContains("Push of acme/app:1.0 failed with a transient error", run);
+        jenkins.assertLogContains("digests [acme/app:1.0:sha256:", run);
+        assertEquals(2, docker.commands("push ").size());
+    }
+
+    @Test
+    public void testCacheFrom() throws Exception {
+        FakeDocker docker = fakeDocker();
+        docker.hook("buildx", "while [ $# -gt 0 ]; do\n"
+                + "  if [ \"$1\" = --metadata-file ]; then shift; "
+                + "echo '{\"containerimage.config.digest\": \"" + FakeDocker.IMAGE_ID + "\"}' > \"$1\"; fi\n"
+                + "  shift\n"
+                + "done\n"
+                + "exit 0\n");
+        jenkins.buildAndAssertSuccess(pipeline(
+                "dockerBuildPublish repoName: 'acme/app', skipPush: true, useBuildKit: true, "
+                + "cacheFrom: 'type=registry,ref=acme/app:cache', dockerToolName: '" + FakeDocker.TOOL + "'"));
+        assertTrue(docker.commands("buildx ").get(0).contains("--cache-from type=registry,ref=acme/app:cache"));
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        FakeDocker docker = fakeDocker();
+        docker.hook("build", "echo 'unknown instruction: FORM' >&2; exit 1\n");
+        WorkflowJob job = pipeline("dockerBuildPublish repoName: 'acme/app', dockerToolName: '" + FakeDocker.TOOL + "'");
+        WorkflowRun run = jenkins.assertBuildStatus(Result.FAILURE, job.scheduleBuild2(0));
+        jenkins.assertLogContains("unknown instruction: FORM", run);
+        jenkins.assertLogContains("Docker build and publish of acme/app failed", run);
+        assertEquals(0, docker.commands("tag ").size());
+    }
+
+    @Test
+    public void testStop() throws Exception {
+        FakeDocker docker = fakeDocker();
+        docker.hook("build", "exec sleep 60\n");
+        WorkflowJob job = pipeline("dockerBuildPublish repoName: 'acme/app', dockerToolName: '" + FakeDocker.TOOL + "'");
+        WorkflowRun run = job.scheduleBuild2(0).waitForStart();
+        long deadline = System.currentTimeMillis() + 30000;
+        while (docker.commands("build ").isEmpty()) {
+            assertTrue("docker build was not started", System.currentTimeMillis() < deadline);
+            Thread.sleep(100);
+        }
+        long start = System.currentTimeMillis();
+        run.doStop();
+        jenkins.assertBuildStatus(Result.ABORTED, jenkins.waitForCompletion(run));
+        assertTrue("the build was not interrupted", System.currentTimeMillis() - start < 30000);
+        assertEquals(0, docker.commands("tag ").size());
+    }
+
+    private FakeDocker fakeDocker() throws Exception {
+        Assume.assumeFalse("Runs a shell script as docker", Functions.isWindows());
+        return new FakeDocker(jenkins, tmp.newFolder());
+    }
+
+    private WorkflowJob pipeline(String steps) throws Exception {
+        WorkflowJob job = jenkins.createProject(WorkflowJob.class);
+        job.setDefinition(new CpsFlowDefinition("node {\n" + steps + "\n}", true));
+        return job;
+    }
+}
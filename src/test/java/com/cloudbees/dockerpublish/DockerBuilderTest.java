@@ -25,19 +25,32 @@ package com.cloudbees.dockerpublish;
 
 import static org.junit.Assert.*;
 
+import hudson.Functions;
+import hudson.model.AbstractBuild;
+import hudson.model.FreeStyleBuild;
 import hudson.model.FreeStyleProject;
 import hudson.model.Items;
+import hudson.model.Result;
+import hudson.model.TaskListener;
 
 import java.net.URL;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.jenkinsci.plugins.docker.commons.credentials.DockerServerEndpoint;
+import org.junit.Assume;
 import org.junit.Rule;
+import org.junit.rules.TemporaryFolder;
 import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestExtension;
 
 import org.jenkinsci.plugins.docker.commons.credentials.DockerRegistryEndpoint;
+import org.jenkinsci.plugins.tokenmacro.TokenMacro;
 import org.junit.Test;
 
 import com.google.common.base.Charsets;
+import com.google.common.collect.ListMultimap;
 import com.google.common.io.Resources;
 
 /**
@@ -48,6 +61,9 @@ public class DockerBuilderTest {
     @Rule
     public JenkinsRule jenkins = new JenkinsRule();
 
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
     @Test
     public void testReadResolve() throws Exception {
         assertRegistry("https://index.docker.io/v1/", "acme/test", "acme/test");
@@ -85,6 +101,16 @@ public class DockerBuilderTest {
         assertEquals("cd2a98e19492", image);
     }
 
+    @Test
+    public void testBuildxCommand() throws Exception {
+        StepPlan plan = new StepPlan("acme/app", "1.0", false, null, "docker/Dockerfile", "--build-arg A=1", "",
+                "type=registry,ref=acme/app:cache\n type=local,src=/cache", "type=local,dest=/cache");
+        String cmd = DockerBuilder.buildxCommand(plan, plan.getImageTags().get(0), false, true, true, "/tmp/build.json", "/ws");
+        assertEquals("buildx build --load --progress=plain --build-arg A=1 -t acme/app:1.0 --pull --file=docker/Dockerfile"
+                + " --cache-from 'type=registry,ref=acme/app:cache' --cache-from 'type=local,src=/cache'"
+                + " --cache-to 'type=local,dest=/cache' --cache-to type=inline --metadata-file '/tmp/build.json' '/ws'", cmd);
+    }
+
     @Test
     public void testRoundTrip() throws Exception {
         FreeStyleProject project = jenkins.createFreeStyleProject();
@@ -103,6 +129,25 @@ public class DockerBuilderTest {
         before.setSkipDecorate(true);
         before.setSkipPush(true);
         before.setSkipTagLatest(true);
+        before.setPushConcurrency(3);
+        before.setPushRetries(5);
+        before.setSkipUnchangedBuild(true);
+        before.setSkipUnchangedPush(true);
+        before.setMinimalContext(true);
+        before.setFullProgressLog(true);
+        before.setArchiveRawLog(true);
+        before.setCompactDecorate(true);
+        before.setRegistryRetag(true);
+        before.setRetagSource("${GIT_COMMIT}");
+        before.setUseBuildKit(true);
+        before.setCacheFrom("type=registry,ref=example/test:cache");
+        before.setCacheTo("type=local,dest=/tmp/cache");
+        before.setInlineCache(true);
+        before.setAdditionalServers(Arrays.asList(
+                new DockerServerEndpoint("tcp://docker-2.acme.com:2376", null),
+                new DockerServerEndpoint("tcp://docker-3.acme.com:2376", null)));
+        before.setServerSelection(new ServerSelectionStrategy.CacheAffinity());
+        before.setUseEngineApi(true);
 
         project.getBuildersList().add(before);
 
@@ -116,6 +161,18 @@ public class DockerBuilderTest {
         jenkins.assertEqualDataBoundBeans(before, after);
     }
 
+    @Test
+    public void testGlobalConfigRoundTrip() throws Exception {
+        DockerBuilder.DescriptorImpl descriptor = jenkins.jenkins.getDescriptorByType(DockerBuilder.DescriptorImpl.class);
+        descriptor.setMaxConcurrentBuilds(2);
+        descriptor.setMaxConcurrentPushes(4);
+
+        jenkins.configRoundtrip();
+
+        assertEquals(2, descriptor.getMaxConcurrentBuilds());
+        assertEquals(4, descriptor.getMaxConcurrentPushes());
+    }
+
     @Test
     public void testOptionalFieldsAreNulled() throws Exception {
         FreeStyleProject project = jenkins.createFreeStyleProject();
@@ -137,4 +194,142 @@ public class DockerBuilderTest {
         assertEquals(null, after.getBuildContext());
         assertEquals(null,after.getDockerfilePath());
     }
+
+    @Test
+    public void testImageIdFromIidFile() throws Exception {
+        FakeDocker docker = fakeDocker();
+        FreeStyleProject project = jenkins.createFreeStyleProject();
+        project.getBuildersList().add(builder("1.0,2.0"));
+        jenkins.buildAndAssertSuccess(project);
+
+        assertEquals(1, docker.commands("build ").size());
+        assertTrue(docker.commands("build ").get(0).startsWith("build -t acme/app:1.0 --iidfile "));
+        assertEquals(Arrays.asList(
+                "tag " + FakeDocker.IMAGE_ID + " acme/app:2.0",
+                "tag " + FakeDocker.IMAGE_ID + " acme/app:latest"), docker.commands("tag "));
+    }
+
+    @Test
+    public void testImageIdFromOutputWithoutIidFile() throws Exception {
+        FakeDocker docker = fakeDocker();
+        // older clients do not write the image ID file
+        docker.hook("build", "echo 'Successfully built 0123456789ab'; exit 0\n");
+        FreeStyleProject project = jenkins.createFreeStyleProject();
+        project.getBuildersList().add(builder("1.0"));
+        jenkins.buildAndAssertSuccess(project);
+
+        assertEquals(Arrays.asList("tag 0123456789ab acme/app:latest"), docker.commands("tag "));
+    }
+
+    @Test
+    public void testFailedParallelPushCancelsTheOthers() throws Exception {
+        FakeDocker docker = fakeDocker();
+        docker.hook("push", "case \"$2\" in\n"
+                + "  *:bad) sleep 2; echo 'denied: requested access to the resource is denied' >&2; exit 1 ;;\n"
+                + "  *) echo \"The push refers to repository [$2]\"; exec sleep 60 ;;\n"
+                + "esac\n");
+        FreeStyleProject project = jenkins.createFreeStyleProject();
+        DockerBuilder builder = builder("1.0,bad");
+        builder.setSkipPush(false);
+        builder.setPushConcurrency(3);
+        project.getBuildersList().add(builder);
+
+        long start = System.currentTimeMillis();
+        FreeStyleBuild build = jenkins.assertBuildStatus(Result.FAILURE, project.scheduleBuild2(0));
+        assertTrue("the slow pushes were not interrupted", System.currentTimeMillis() - start < 30000);
+        jenkins.assertLogContains("docker push acme/app:bad failed, cancelling the other pushes", build);
+        // the output of the cancelled pushes is not lost
+        jenkins.assertLogContains("--- docker push acme/app:1.0 (cancelled) ---", build);
+        jenkins.assertLogContains("The push refers to repository [acme/app:1.0]", build);
+    }
+
+    @Test
+    public void testBaseImagePullPrintedWhenComplete() throws Exception {
+        FakeDocker docker = fakeDocker();
+        docker.hook("pull", "echo \"Status: Downloaded newer image for $2\"; touch \"$DIR/pulled\"; exit 0\n");
+        // the build outlives the pull
+        docker.hook("build", "for i in $(seq 100); do [ -f \"$DIR/pulled\" ] && break; sleep 0.1; done\n"
+                + "sleep 1; echo 'Build output end'\n");
+        FreeStyleProject project = jenkins.createFreeStyleProject();
+        jenkins.jenkins.getWorkspaceFor(project).child("Dockerfile").write("FROM busybox\n", "UTF-8");
+        DockerBuilder builder = builder("1.0");
+        builder.setForcePull(true);
+        project.getBuildersList().add(builder);
+        FreeStyleBuild build = jenkins.buildAndAssertSuccess(project);
+
+        assertEquals(1, docker.commands("pull ").size());
+        String log = JenkinsRule.getLog(build);
+        int pulled = log.indexOf("Status: Downloaded newer image for ");
+        assertTrue(log, pulled >= 0);
+        assertTrue("the pull output is printed as it completes", pulled < log.indexOf("Build output end"));
+    }
+
+    @Test
+    public void testTrendLinkHiddenWithoutSteps() throws Exception {
+        FakeDocker docker = fakeDocker();
+        FreeStyleProject project = jenkins.createFreeStyleProject();
+        project.getBuildersList().add(builder("1.0"));
+        BuildTimelineProjectAction trend = new BuildTimelineProjectAction(project);
+        assertNull(trend.getIconFileName());
+        jenkins.buildAndAssertSuccess(project);
+        assertNull("the build printed no Dockerfile step", trend.getIconFileName());
+
+        docker.hook("build", "echo 'Step 1/2 : FROM busybox'; echo ' ---> 4986bf8c1536'\n"
+                + "echo 'Step 2/2 : RUN true'; echo ' ---> Running in 0123456789ab'\n");
+        jenkins.buildAndAssertSuccess(project);
+        assertEquals("notepad.png", trend.getIconFileName());
+    }
+
+    @Test
+    public void testPlanExpandedOnce() throws Exception {
+        FakeDocker docker = fakeDocker();
+        FreeStyleProject project = jenkins.createFreeStyleProject();
+        DockerBuilder builder = builder("${COUNTED}");
+        builder.setDockerfilePath("docker/${COUNTED}");
+        builder.setSkipPush(false);
+        project.getBuildersList().add(builder);
+        CountedMacro.expansions.set(0);
+        jenkins.buildAndAssertSuccess(project);
+
+        // the repository tag and Dockerfile path, for the build, the tags and the pushes
+        assertEquals(2, CountedMacro.expansions.get());
+        assertEquals(1, docker.commands("build ").size());
+        assertTrue(docker.commands("build ").get(0).contains(" --file=docker/1.0 "));
+        assertEquals(Arrays.asList("tag " + FakeDocker.IMAGE_ID + " acme/app:latest"), docker.commands("tag "));
+        assertEquals(Arrays.asList("push acme/app:1.0", "push acme/app:latest"), docker.commands("push "));
+        assertEquals(0, docker.commands("inspect ").size());
+    }
+
+    @TestExtension("testPlanExpandedOnce")
+    public static class CountedMacro extends TokenMacro {
+
+        static final AtomicInteger expansions = new AtomicInteger();
+
+        @Override
+        public boolean acceptsMacroName(String macroName) {
+            return "COUNTED".equals(macroName);
+        }
+
+        @Override
+        public String evaluate(AbstractBuild<?, ?> context, TaskListener listener, String macroName,
+                               Map<String, String> arguments, ListMultimap<String, String> argumentMultimap) {
+            expansions.incrementAndGet();
+            return "1.0";
+        }
+    }
+
+    private FakeDocker fakeDocker() throws Exception {
+        Assume.assumeFalse("Runs a shell script as docker", Functions.isWindows());
+        return new FakeDocker(jenkins, tmp.newFolder());
+    }
+
+    private static DockerBuilder builder(String repoTag) {
+        DockerBuilder builder = new DockerBuilder("acme/app");
+        builder.setRepoTag(repoTag);
+        builder.setSkipPush(true);
+        builder.setSkipDecorate(true);
+        builder.setCreateFingerprint(false);
+        builder.setDockerToolName(FakeDocker.TOOL);
+        return builder;
+    }
 }
@@ -26,7 +26,11 @@ package com.cloudbees.dockerpublish;
 import static org.junit.Assert.*;
 
 import com.google.common.base.Charsets;
+import java.io.IOException;
 import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import org.junit.Test;
 import com.google.common.io.Resources;
 
@@ -44,4 +48,51 @@ public class DockerCLIHelperTest {
         assertEquals("5366517d611967756a43c63a3223dbf645c5e9be66d594d86802dee143aad93a", rsp.getId());
         assertEquals("4300417211ebb75b48b06ed5640d641778f312072d24b37978682345cbb362b1", rsp.getParent());
     }
+
+    @Test
+    public void parseMultipleImages() throws Exception {
+        URL url = Resources.getResource("dockerInspectImage_response.json");
+        String fixture = Resources.toString(url, Charsets.UTF_8).trim();
+        String image = fixture.substring(1, fixture.length() - 1).trim();
+        List<DockerCLIHelper.InspectImageResponse> images = DockerCLIHelper.parseInspectImageResponses("[" + image + "," + image + "]");
+        assertEquals(2, images.size());
+        assertEquals("5366517d611967756a43c63a3223dbf645c5e9be66d594d86802dee143aad93a", images.get(1).getId());
+        assertEquals(0, DockerCLIHelper.parseInspectImageResponses("[]\n").size());
+        assertNull(DockerCLIHelper.parseInspectImageResponse("[]"));
+    }
+
+    @Test
+    public void parseFormattedOutput() throws Exception {
+        String stdout = "{\"Id\":\"sha256:aa\",\"Parent\":\"\",\"RepoDigests\":[\"jdoe/busybox@sha256:bb\"],\"Size\":1234,"
+                + "\"RootFS\":{\"Layers\":[\"sha256:cc\",\"sha256:dd\"]}}\n"
+                + "{\"Id\":\"sha256:ee\",\"Parent\":\"sha256:aa\",\"RepoDigests\":null,\"Size\":1.5e3,\"RootFS\":{\"Layers\":null}}\n";
+        List<DockerCLIHelper.InspectImageResponse> images = DockerCLIHelper.parseInspectImageResponses(stdout);
+        assertEquals(2, images.size());
+        DockerCLIHelper.InspectImageResponse first = images.get(0);
+        assertEquals("sha256:aa", first.getId());
+        assertEquals("", first.getParent());
+        assertEquals(Arrays.asList("jdoe/busybox@sha256:bb"), first.getRepoDigests());
+        assertEquals(1234, first.getSize());
+        assertEquals(Arrays.asList("sha256:cc", "sha256:dd"), first.getLayers());
+        DockerCLIHelper.InspectImageResponse second = images.get(1);
+        assertEquals("sha256:aa", second.getParent());
+        assertEquals(Collections.<String>emptyList(), second.getRepoDigests());
+        assertEquals(1500, second.getSize());
+        assertEquals(Collections.<String>emptyList(), second.getLayers());
+    }
+
+    @Test
+    public void skipUnreadFields() throws Exception {
+        String json = "{\"Config\":{\"Cmd\":[\"sh\",\"-c\",\"echo \\\"}]\\\"\"],\"Tty\":false,\"Labels\":null},"
+                + "\"Id\":\"sha256:aa\",\"Parent\":null,\"Comment\":\"caf\\u00e9\",\"VirtualSize\":-1}";
+        DockerCLIHelper.InspectImageResponse rsp = DockerCLIHelper.parseInspectImageResponse(json);
+        assertNotNull(rsp);
+        assertEquals("sha256:aa", rsp.getId());
+        assertEquals("", rsp.getParent());
+    }
+
+    @Test(expected = IOException.class)
+    public void parseTruncatedOutput() throws Exception {
+        DockerCLIHelper.parseInspectImageResponses("[{\"Id\":\"sha256:aa\",\"Config\":{");
+    }
 }
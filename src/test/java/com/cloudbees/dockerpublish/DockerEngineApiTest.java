@@ -0,0 +1,284 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.dockerpublish;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for {@link DockerEngineApi} against a fake daemon listening on TCP.
+ */
+public class DockerEngineApiTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private FakeEngine engine;
+    private DockerEngineApi api;
+
+    @Before
+    public void setUp() throws IOException {
+        engine = new FakeEngine();
+        api = new DockerEngineApi("tcp://127.0.0.1:" + engine.server.getLocalPort());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        engine.server.close();
+    }
+
+    @Test
+    public void testPing() throws Exception {
+        engine.respond(200, "OK");
+        assertTrue(api.ping());
+        assertEquals("GET /_ping HTTP/1.1", engine.requestLine);
+    }
+
+    @Test
+    public void testPingTimeout() throws Exception {
+        // accepted by the backlog but never answered
+        ServerSocket silent = new ServerSocket(0);
+        try {
+            DockerEngineApi slow = new DockerEngineApi("tcp://127.0.0.1:" + silent.getLocalPort(), 1000, 200);
+            long start = System.currentTimeMillis();
+            try {
+                slow.ping();
+                fail("expected a timeout");
+            } catch (SocketTimeoutException e) {
+                assertTrue(System.currentTimeMillis() - start < 10000);
+            }
+        } finally {
+            silent.close();
+        }
+    }
+
+    @Test
+    public void testTag() throws Exception {
+        engine.respond(201, "");
+        assertTrue(api.tag("sha256:abc", "acme/app", "1.0", new ByteArrayOutputStream()));
+        assertEquals("POST /images/sha256:abc/tag?repo=acme%2Fapp&tag=1.0 HTTP/1.1", engine.requestLine);
+    }
+
+    @Test
+    public void testInspectMissing() throws Exception {
+        engine.respond(404, "{\"message\":\"No such image\"}");
+        assertNull(api.inspect("acme/app"));
+    }
+
+    @Test
+    public void testBuild() throws Exception {
+        File context = tmp.newFolder();
+        write(context, "Dockerfile", "FROM scratch\n");
+        write(context, ".dockerignore", "*.log\ntarget\n");
+        write(context, "app.sh", "echo\n");
+        write(context, "build.log", "ignored\n");
+        new File(context, "target").mkdir();
+        write(context, "target/app.jar", "ignored\n");
+        engine.respond(200, "{\"stream\":\"Step 1/1 : FROM scratch\\n\"}\n"
+                + "{\"aux\":{\"ID\":\"sha256:1234\"}}\n"
+                + "{\"stream\":\"Successfully built 1234\\n\"}\n");
+
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        DockerClient.BuildResult result = api.build(context, null, Collections.singletonMap("t", "acme/app:1.0"), null, log);
+        assertTrue(result.result);
+        assertEquals("sha256:1234", result.imageId);
+        assertEquals("POST /build?t=acme%2Fapp%3A1.0&dockerfile=Dockerfile HTTP/1.1", engine.requestLine);
+        assertTrue(log.toString("UTF-8").contains("Successfully built 1234"));
+        assertEquals(asList(".dockerignore", "Dockerfile", "app.sh"), entries(engine.requestBody));
+    }
+
+    @Test
+    public void testPushError() throws Exception {
+        engine.respond(200, "{\"status\":\"The push refers to repository [docker.io/acme/app]\"}\n"
+                + "{\"status\":\"Pushing\",\"progress\":\"[==>   ]\",\"id\":\"abc\"}\n"
+                + "{\"errorDetail\":{\"message\":\"denied\"},\"error\":\"denied\"}\n");
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        assertFalse(api.push("acme/app", "1.0", null, log));
+        assertEquals("The push refers to repository [docker.io/acme/app]\ndenied\n", log.toString("UTF-8"));
+    }
+
+    @Test
+    public void testPushNotJson() throws Exception {
+        engine.respond(200, "{\"status\":\"The push refers to repository [docker.io/acme/app]\"}\n"
+                + "<html><body>502 Bad Gateway</body></html>\n");
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        try {
+            api.push("acme/app", "1.0", null, log);
+            fail("non JSON output accepted");
+        } catch (IOException e) {
+            assertEquals("Unexpected output from the Docker daemon: <html><body>502 Bad Gateway</body></html>", e.getMessage());
+        }
+        assertEquals("The push refers to repository [docker.io/acme/app]\n", log.toString("UTF-8"));
+    }
+
+    @Test
+    public void testReadProgressBytesPushed() throws Exception {
+        InputStream body = new ByteArrayInputStream(("{\"status\":\"Preparing\",\"progressDetail\":{},\"id\":\"5f70bf18a086\"}\n"
+                + "{\"status\":\"Pushing\",\"progressDetail\":{\"current\":512,\"total\":2048},\"progress\":\"[=>  ]\",\"id\":\"5f70bf18a086\"}\n"
+                + "{\"status\":\"Pushed\",\"progressDetail\":{},\"id\":\"5f70bf18a086\"}\n"
+                + "{\"status\":\"Layer already exists\",\"progressDetail\":{},\"id\":\"e2eb06d8af82\"}\n")
+                .getBytes(StandardCharsets.UTF_8));
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        DockerEngineApi.Progress progress = DockerEngineApi.readProgress(body, log);
+        assertEquals(2048, progress.bytesPushed);
+        assertEquals("5f70bf18a086: Preparing\n5f70bf18a086: Pushed (2048 bytes)\ne2eb06d8af82: Layer already exists\n",
+                log.toString("UTF-8"));
+
+        DockerOutputParser parser = new DockerOutputParser(StandardCharsets.UTF_8);
+        log.writeTo(parser);
+        parser.close();
+        assertEquals(1, parser.getLayersPushed());
+        assertEquals(2048, parser.getBytesPushed());
+    }
+
+    @Test
+    public void testReadProgressDigest() throws Exception {
+        InputStream body = new ByteArrayInputStream(("{\"status\":\"1.0: digest: sha256:abc size: 527\"}\n"
+                + "{\"progressDetail\":{},\"aux\":{\"Tag\":\"1.0\",\"Digest\":\"sha256:abc\",\"Size\":527}}\n")
+                .getBytes(StandardCharsets.UTF_8));
+        DockerEngineApi.Progress progress = DockerEngineApi.readProgress(body, new ByteArrayOutputStream());
+        assertNull(progress.error);
+        assertEquals("sha256:abc", progress.digest);
+    }
+
+    private static void write(File dir, String path, String content) throws IOException {
+        Files.write(new File(dir, path).toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static List<String> asList(String... values) {
+        List<String> list = new ArrayList<String>();
+        Collections.addAll(list, values);
+        return list;
+    }
+
+    private static List<String> entries(byte[] tar) throws IOException {
+        List<String> names = new ArrayList<String>();
+        TarArchiveInputStream in = new TarArchiveInputStream(new ByteArrayInputStream(tar));
+        try {
+            for (TarArchiveEntry entry = in.getNextTarEntry(); entry != null; entry = in.getNextTarEntry()) {
+                names.add(entry.getName());
+            }
+        } finally {
+            in.close();
+        }
+        return names;
+    }
+
+    /**
+     * Answers a single request with a canned chunked response, recording the request.
+     */
+    private static final class FakeEngine implements Runnable {
+        final ServerSocket server;
+        private int status;
+        private String response;
+        private Thread thread;
+        volatile String requestLine;
+        volatile byte[] requestBody;
+
+        FakeEngine() throws IOException {
+            server = new ServerSocket(0);
+        }
+
+        void respond(int status, String response) {
+            this.status = status;
+            this.response = response;
+            thread = new Thread(this, "fake docker engine");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public void run() {
+            try {
+                Socket socket = server.accept();
+                try {
+                    InputStream in = socket.getInputStream();
+                    requestLine = readLine(in);
+                    boolean chunked = false;
+                    for (String line = readLine(in); !line.isEmpty(); line = readLine(in)) {
+                        chunked |= line.equalsIgnoreCase("Transfer-Encoding: chunked");
+                    }
+                    ByteArrayOutputStream body = new ByteArrayOutputStream();
+                    if (chunked) {
+                        for (int size = Integer.parseInt(readLine(in), 16); size > 0; size = Integer.parseInt(readLine(in), 16)) {
+                            for (int i = 0; i < size; i++) {
+                                body.write(in.read());
+                            }
+                            readLine(in);
+                        }
+                        readLine(in);
+                    }
+                    requestBody = body.toByteArray();
+                    OutputStream out = socket.getOutputStream();
+                    byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+                    out.write(("HTTP/1.1 " + status + " Fake\r\nContent-Type: application/json\r\n"
+                            + "Transfer-Encoding: chunked\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+                    if (bytes.length > 0) {
+                        out.write((Integer.toHexString(bytes.length) + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+                        out.write(bytes);
+                        out.write("\r\n".getBytes(StandardCharsets.ISO_8859_1));
+                    }
+                    out.write("0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+                    out.flush();
+                } finally {
+                    socket.close();
+                }
+            } catch (IOException e) {
+                // the test fails on the client side
+            }
+        }
+
+        private static String readLine(InputStream in) throws IOException {
+            StringBuilder sb = new StringBuilder();
+            for (int b = in.read(); b != '\n' && b != -1; b = in.read()) {
+                if (b != '\r') {
+                    sb.append((char) b);
+                }
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.dockerpublish;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link DockerIgnore}.
+ */
+public class DockerIgnoreTest {
+
+    @Test
+    public void testClean() {
+        assertEquals("a/b", DockerIgnore.clean("./a//b/"));
+        assertEquals("b", DockerIgnore.clean("/a/../b"));
+        assertEquals("", DockerIgnore.clean("."));
+    }
+
+    @Test
+    public void testPatterns() {
+        DockerIgnore ignore = DockerIgnore.parse("# comment\n"
+                + "*.log\n"
+                + "target\n"
+                + "**/*.tmp\n"
+                + "docs/**\n"
+                + "!docs/README.md\n");
+        assertTrue(ignore.isIgnored("build.log"));
+        assertFalse(ignore.isIgnored("logs/build.log"));
+        assertTrue(ignore.isIgnored("target"));
+        assertTrue(ignore.isIgnored("target/classes/Foo.class"));
+        assertTrue(ignore.isIgnored("a.tmp"));
+        assertTrue(ignore.isIgnored("src/main/a.tmp"));
+        assertTrue(ignore.isIgnored("docs/index.md"));
+        assertFalse(ignore.isIgnored("docs/README.md"));
+        assertFalse(ignore.isIgnored("src/main/Foo.java"));
+        assertTrue(ignore.hasExceptions());
+    }
+
+    @Test
+    public void testLastMatchWins() {
+        DockerIgnore ignore = DockerIgnore.parse("!keep.txt\n*.txt\n");
+        assertTrue(ignore.isIgnored("keep.txt"));
+        ignore = DockerIgnore.parse("*.txt\n!keep.txt\n");
+        assertFalse(ignore.isIgnored("keep.txt"));
+        assertTrue(ignore.isIgnored("other.txt"));
+    }
+
+    @Test
+    public void testEmpty() {
+        DockerIgnore ignore = DockerIgnore.parse("\n# nothing\n\n");
+        assertTrue(ignore.isEmpty());
+        assertFalse(ignore.isIgnored("Dockerfile"));
+    }
+}
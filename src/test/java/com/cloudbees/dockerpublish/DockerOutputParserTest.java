@@ -0,0 +1,163 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.dockerpublish;
+
+import static org.junit.Assert.*;
+
+import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Resources;
+
+/**
+ * Tests for {@link DockerOutputParser}.
+ */
+public class DockerOutputParserTest {
+
+    @Test
+    public void testImageBuilt() throws Exception {
+        assertEquals("5b4f9edeb8d4", parse("docker-build-stdout-1.txt", 7).getImageBuilt());
+        assertEquals("1234567890abcdef1234567890abcdef1234567890abcdef1234567890abcdef",
+                parse("docker-build-stdout-2.txt", 7).getImageBuilt());
+        assertEquals("cd2a98e19492", parse("docker-build-stdout-3.txt", 7).getImageBuilt());
+    }
+
+    @Test
+    public void testSteps() throws Exception {
+        DockerOutputParser parser = parse("docker-build-stdout-3.txt", 13);
+        assertEquals(6, parser.getStepCount());
+        assertEquals("CMD /code/scrape.sh", parser.getLastStep());
+    }
+
+    @Test
+    public void testTimeline() throws Exception {
+        BuildTimeline timeline = parse("docker-build-stdout-3.txt", 13).getTimeline();
+        List<BuildTimeline.Step> steps = timeline.getSteps();
+        assertEquals(6, steps.size());
+        assertEquals(0, steps.get(0).getNumber());
+        assertEquals("FROM python:2.7", steps.get(0).getInstruction());
+        assertEquals("7a0ad2450c23", steps.get(0).getLayer());
+        assertTrue(steps.get(1).isCached());
+        assertEquals("b0739d45941e", steps.get(1).getLayer());
+        assertFalse(steps.get(3).isCached());
+        assertEquals("RUN pip install -r /code/requirements.txt", steps.get(3).getInstruction());
+        assertEquals("9cc859624a2a", steps.get(3).getLayer());
+        assertEquals("cd2a98e19492", steps.get(5).getLayer());
+        assertEquals(1, timeline.getCacheHits());
+        assertEquals(1.0 / 6, timeline.getCacheHitRatio(), 0.001);
+    }
+
+    @Test
+    public void testStepDurations() throws Exception {
+        final long[] clock = { 0 };
+        DockerOutputParser parser = new DockerOutputParser(Charsets.UTF_8) {
+            @Override
+            protected long currentTimeMillis() {
+                return clock[0];
+            }
+        };
+        parser.write("Step 1/2 : FROM busybox\n ---> 4986bf8c1536\n".getBytes(Charsets.UTF_8));
+        clock[0] = 100;
+        parser.write("Step 2/2 : RUN make\n ---> Running in cf274a28ba95\n".getBytes(Charsets.UTF_8));
+        clock[0] = 1100;
+        parser.write(" ---> cd2a98e19492\nSuccessfully built cd2a98e19492\n".getBytes(Charsets.UTF_8));
+        clock[0] = 5000;
+        parser.close();
+        BuildTimeline timeline = parser.getTimeline();
+        assertEquals(100, timeline.getSteps().get(0).getDurationMillis());
+        assertEquals(1000, timeline.getSteps().get(1).getDurationMillis());
+        assertEquals(1100, timeline.getDurationMillis());
+        assertEquals("RUN make", timeline.getSlowestStep().getInstruction());
+        assertEquals(1, BuildTimeline.slowestInstructions(Arrays.asList(timeline, timeline), 1).size());
+        BuildTimeline.InstructionStats slowest = BuildTimeline.slowestInstructions(Arrays.asList(timeline, timeline), 1).get(0);
+        assertEquals("RUN make", slowest.getInstruction());
+        assertEquals(2, slowest.getCount());
+        assertEquals(1000, slowest.getMaxMillis());
+    }
+
+    @Test
+    public void testBuildKitTimeline() throws Exception {
+        DockerOutputParser parser = new DockerOutputParser(Charsets.UTF_8);
+        parser.write(("#1 [internal] load build definition from Dockerfile\n"
+                + "#1 DONE 0.1s\n"
+                + "#5 [build 1/3] FROM docker.io/library/golang:1.21\n"
+                + "#6 [stage-1 1/2] FROM docker.io/library/alpine:3.18\n"
+                + "#6 CACHED\n"
+                + "#5 CACHED\n"
+                + "#7 [build 2/3] RUN go build ./...\n"
+                + "#7 0.512 compiling\n"
+                + "#7 [build 2/3] RUN go build ./...\n"
+                + "#7 DONE 12.5s\n").getBytes(Charsets.UTF_8));
+        parser.close();
+        List<BuildTimeline.Step> steps = parser.getTimeline().getSteps();
+        assertEquals(3, steps.size());
+        assertEquals("FROM docker.io/library/golang:1.21", steps.get(0).getInstruction());
+        assertTrue(steps.get(0).isCached());
+        assertTrue(steps.get(1).isCached());
+        assertEquals(2, steps.get(2).getNumber());
+        assertFalse(steps.get(2).isCached());
+        assertEquals(12500, steps.get(2).getDurationMillis());
+    }
+
+    @Test
+    public void testBoundedTail() throws Exception {
+        DockerOutputParser parser = new DockerOutputParser(Charsets.UTF_8, 2);
+        for (int i = 0; i < 1000; i++) {
+            parser.write(("line " + i + "\r\n").getBytes(Charsets.UTF_8));
+        }
+        parser.write("last".getBytes(Charsets.UTF_8));
+        parser.close();
+        assertEquals(1001, parser.getLineCount());
+        assertTrue(parser.isTruncated());
+        assertEquals("line 999\nlast\n", parser.getTail());
+    }
+
+    @Test
+    public void testDigest() throws Exception {
+        DockerOutputParser parser = new DockerOutputParser(Charsets.UTF_8);
+        parser.write(("latest: digest: sha256:" + "0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef"
+                + " size: 1234\n").getBytes(Charsets.UTF_8));
+        parser.close();
+        assertEquals(1, parser.getDigests().size());
+        assertEquals("sha256:0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef", parser.getDigests().get(0));
+    }
+
+    /**
+     * Feeds a resource to a parser in small chunks, the way process output arrives.
+     */
+    private static DockerOutputParser parse(String resource, int chunk) throws Exception {
+        URL url = Resources.getResource(resource);
+        byte[] bytes = Resources.toByteArray(url);
+        DockerOutputParser parser = new DockerOutputParser(Charsets.UTF_8);
+        for (int off = 0; off < bytes.length; off += chunk) {
+            parser.write(bytes, off, Math.min(chunk, bytes.length - off));
+        }
+        parser.close();
+        return parser;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.dockerpublish;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link Dockerfile}.
+ */
+public class DockerfileTest {
+
+    @Test
+    public void testInstructions() {
+        Dockerfile dockerfile = Dockerfile.parse("# syntax=docker/dockerfile:1\n"
+                + "FROM alpine:3.18\n"
+                + "\n"
+                + "RUN apk add \\\n"
+                + "    # comment between continuation lines\n"
+                + "    curl \\\n"
+                + "    git\n"
+                + "copy app.sh /usr/local/bin/\n");
+        List<Dockerfile.Instruction> instructions = dockerfile.getInstructions();
+        assertEquals(3, instructions.size());
+        assertEquals("RUN", instructions.get(1).getKeyword());
+        assertEquals("apk add  curl  git", instructions.get(1).getArguments());
+        assertEquals("COPY", instructions.get(2).getKeyword());
+    }
+
+    @Test
+    public void testEscapeDirective() {
+        Dockerfile dockerfile = Dockerfile.parse("# escape=`\r\n"
+                + "FROM mcr.microsoft.com/windows/servercore:ltsc2022\r\n"
+                + "COPY app `\r\n"
+                + "  C:\\app\\\r\n");
+        List<Dockerfile.Instruction> instructions = dockerfile.getInstructions();
+        assertEquals(2, instructions.size());
+        assertEquals("app  C:\\app\\", instructions.get(1).getArguments());
+    }
+
+    @Test
+    public void testBaseImages() {
+        Dockerfile dockerfile = Dockerfile.parse("ARG VERSION=1.21\n"
+                + "FROM --platform=$BUILDPLATFORM golang:${VERSION} AS build\n"
+                + "FROM golang AS test\n"
+                + "FROM build as package\n"
+                + "FROM docker.acme.com:5000/base@sha256:0123\n"
+                + "FROM scratch\n"
+                + "FROM golang:latest\n"
+                + "COPY --from=package /app /app\n");
+        assertEquals(Arrays.asList("golang:latest", "docker.acme.com:5000/base@sha256:0123"), dockerfile.getBaseImages());
+        assertEquals(Collections.emptyList(), Dockerfile.parse("FROM scratch\n").getBaseImages());
+    }
+
+    @Test
+    public void testQualify() {
+        assertEquals("alpine:latest", Dockerfile.qualify("alpine"));
+        assertEquals("alpine:3.18", Dockerfile.qualify("alpine:3.18"));
+        assertEquals("docker.acme.com:5000/base:latest", Dockerfile.qualify("docker.acme.com:5000/base"));
+        assertEquals("base@sha256:0123", Dockerfile.qualify("base@sha256:0123"));
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.dockerpublish;
+
+import static org.junit.Assert.*;
+
+import hudson.tools.ToolProperty;
+import java.util.Collections;
+import org.jenkinsci.plugins.docker.commons.tools.DockerTool;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+/**
+ * Tests for {@link ExecutableCache}.
+ */
+public class ExecutableCacheTest {
+
+    @Rule
+    public JenkinsRule jenkins = new JenkinsRule();
+
+    @Test
+    public void testInvalidatedByToolConfiguration() throws Exception {
+        DockerTool.DescriptorImpl descriptor = jenkins.jenkins.getDescriptorByType(DockerTool.DescriptorImpl.class);
+        descriptor.setInstallations(tool("/opt/docker"));
+        assertNull(ExecutableCache.get("docker", jenkins.jenkins));
+
+        ExecutableCache.put("docker", jenkins.jenkins, "/opt/docker/bin/docker");
+        assertEquals("/opt/docker/bin/docker", ExecutableCache.get("docker", jenkins.jenkins));
+        assertNull(ExecutableCache.get("other", jenkins.jenkins));
+
+        descriptor.setInstallations(tool("/usr/local/docker"));
+        assertNull(ExecutableCache.get("docker", jenkins.jenkins));
+    }
+
+    @Test
+    public void testEnvironmentDependentHome() throws Exception {
+        jenkins.jenkins.getDescriptorByType(DockerTool.DescriptorImpl.class).setInstallations(tool("${DOCKER_HOME}"));
+        ExecutableCache.put("docker", jenkins.jenkins, "/opt/docker/bin/docker");
+        assertNull(ExecutableCache.get("docker", jenkins.jenkins));
+    }
+
+    private static DockerTool tool(String home) {
+        return new DockerTool("docker", home, Collections.<ToolProperty<?>>emptyList());
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.dockerpublish;
+
+import hudson.tools.ToolProperty;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.jenkinsci.plugins.docker.commons.tools.DockerTool;
+import org.jvnet.hudson.test.JenkinsRule;
+
+/**
+ * Fake docker CLI installed as the {@link #TOOL} Docker tool: records the commands it runs and answers them as
+ * a daemon would, {@code build} writing {@link #IMAGE_ID} to its {@code --iidfile}.
+ * A command is customized by a shell script sourced before the default behavior, see {@link #hook}.
+ */
+final class FakeDocker {
+
+    static final String TOOL = "fake-docker";
+
+    static final String IMAGE_ID = "sha256:1234567890abcdef1234567890abcdef1234567890abcdef1234567890abcdef";
+
+    private final File dir;
+
+    FakeDocker(JenkinsRule jenkins, File dir) throws IOException {
+        this.dir = dir;
+        File docker = new File(dir, "bin/docker");
+        FileUtils.writeStringToFile(docker, "#!/bin/sh\n"
+                + "DIR='" + dir.getAbsolutePath() + "'\n"
+                + "echo \"$*\" >> \"$DIR/commands\"\n"
+                + "if [ -f \"$DIR/$1.sh\" ]; then . \"$DIR/$1.sh\"; fi\n"
+                + "case \"$1\" in\n"
+                + "  build)\n"
+                + "    while [ $# -gt 0 ]; do\n"
+                + "      if [ \"$1\" = --iidfile ]; then shift; printf '%s' '" + IMAGE_ID + "' > \"$1\"; fi\n"
+                + "      shift\n"
+                + "    done ;;\n"
+                + "  inspect)\n"
+                + "    echo '{\"Id\":\"" + IMAGE_ID + "\",\"Parent\":\"\",\"RepoDigests\":[],\"Size\":1,\"RootFS\":{\"Layers\":[]}}' ;;\n"
+                + "  push)\n"
+                + "    echo \"${2##*:}: digest: sha256:0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef size: 528\" ;;\n"
+                + "esac\n"
+                + "exit 0\n", StandardCharsets.UTF_8);
+        if (!docker.setExecutable(true)) {
+            throw new IOException("Cannot make " + docker + " executable");
+        }
+        jenkins.jenkins.getDescriptorByType(DockerTool.DescriptorImpl.class).setInstallations(
+                new DockerTool(TOOL, dir.getAbsolutePath(), Collections.<ToolProperty<?>>emptyList()));
+    }
+
+    /**
+     * Runs a script before the default behavior of a command, with the arguments of the command.
+     * The script can {@code exit} to replace the default behavior.
+     * @param command Docker command, ie. {@code push}
+     */
+    void hook(String command, String script) throws IOException {
+        FileUtils.writeStringToFile(new File(dir, command + ".sh"), script, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return Commands run so far, without the executable
+     */
+    List<String> commands() throws IOException {
+        File file = new File(dir, "commands");
+        return file.isFile() ? FileUtils.readLines(file, StandardCharsets.UTF_8) : new ArrayList<String>();
+    }
+
+    /**
+     * @return Commands run so far starting with a prefix, ie. {@code tag }
+     */
+    List<String> commands(String prefix) throws IOException {
+        List<String> matching = new ArrayList<String>();
+        for (String command : commands()) {
+            if (command.startsWith(prefix)) {
+                matching.add(command);
+            }
+        }
+        return matching;
+    }
+}
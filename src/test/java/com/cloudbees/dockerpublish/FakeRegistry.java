@@ -0,0 +1,172 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.dockerpublish;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-process registry storing manifests by {@code repository:reference}, reporting the SHA-256 of a manifest
+ * as its digest.
+ * Unless {@link #anonymous}, it requires a bearer token obtained with the basic authentication {@link #BASIC}.
+ * The first {@link #failures} manifest uploads fail as if the registry was unavailable.
+ */
+final class FakeRegistry implements HttpHandler {
+
+    static final String MEDIA_TYPE = "application/vnd.docker.distribution.manifest.v2+json";
+    // base64 of user:secret
+    static final String BASIC = "dXNlcjpzZWNyZXQ=";
+
+    final HttpServer server;
+    final Map<String, byte[]> manifests = Collections.synchronizedMap(new HashMap<String, byte[]>());
+    final Map<String, String> mediaTypes = Collections.synchronizedMap(new HashMap<String, String>());
+    final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+    final AtomicInteger failures = new AtomicInteger();
+    volatile boolean anonymous;
+
+    FakeRegistry() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", this);
+        server.start();
+    }
+
+    /**
+     * @return URL of the registry, ie. {@code http://127.0.0.1:5000}
+     */
+    String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    void stop() {
+        server.stop(0);
+    }
+
+    static String digest(byte[] manifest) {
+        try {
+            StringBuilder digest = new StringBuilder("sha256:");
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(manifest)) {
+                digest.append(String.format("%02x", b));
+            }
+            return digest.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        String path = exchange.getRequestURI().getPath();
+        requests.add(method + " " + path);
+        try {
+            if (path.equals("/token")) {
+                if (!("Basic " + BASIC).equals(exchange.getRequestHeaders().getFirst("Authorization"))) {
+                    respond(exchange, 401, "{\"errors\":[{\"code\":\"UNAUTHORIZED\"}]}");
+                    return;
+                }
+                respond(exchange, 200, "{\"token\":\"t0k3n\"}");
+                return;
+            }
+            if (!anonymous && !"Bearer t0k3n".equals(exchange.getRequestHeaders().getFirst("Authorization"))) {
+                exchange.getResponseHeaders().add("WWW-Authenticate",
+                        "Bearer realm=\"" + getUrl() + "/token\",service=\"fake\"");
+                respond(exchange, 401, "{\"errors\":[{\"code\":\"UNAUTHORIZED\"}]}");
+                return;
+            }
+            String prefix = "/v2/";
+            int manifestsAt = path.indexOf("/manifests/");
+            if (!path.startsWith(prefix) || manifestsAt < 0) {
+                respond(exchange, 404, "");
+                return;
+            }
+            String key = path.substring(prefix.length(), manifestsAt) + ":" + path.substring(manifestsAt + "/manifests/".length());
+            if (method.equals("GET") || method.equals("HEAD")) {
+                byte[] manifest = manifests.get(key);
+                if (manifest == null) {
+                    respond(exchange, 404, "{\"errors\":[{\"code\":\"MANIFEST_UNKNOWN\"}]}");
+                    return;
+                }
+                exchange.getResponseHeaders().add("Content-Type", MEDIA_TYPE);
+                exchange.getResponseHeaders().add("Docker-Content-Digest", digest(manifest));
+                if (method.equals("HEAD")) {
+                    exchange.sendResponseHeaders(200, -1);
+                    return;
+                }
+                exchange.sendResponseHeaders(200, manifest.length);
+                exchange.getResponseBody().write(manifest);
+            } else if (method.equals("PUT")) {
+                if (failures.getAndDecrement() > 0) {
+                    read(exchange.getRequestBody());
+                    respond(exchange, 503, "{\"errors\":[{\"code\":\"UNAVAILABLE\"}]}");
+                    return;
+                }
+                failures.set(0);
+                byte[] manifest = read(exchange.getRequestBody());
+                manifests.put(key, manifest);
+                mediaTypes.put(key, exchange.getRequestHeaders().getFirst("Content-Type"));
+                exchange.getResponseHeaders().add("Docker-Content-Digest", digest(manifest));
+                exchange.sendResponseHeaders(201, -1);
+            } else {
+                respond(exchange, 405, "");
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        if (bytes.length > 0) {
+            OutputStream out = exchange.getResponseBody();
+            out.write(bytes);
+        }
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.dockerpublish;
+
+import static org.junit.Assert.*;
+
+import com.cloudbees.dockerpublish.DockerCLIHelper.InspectImageResponse;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link FingerprintBatch}.
+ */
+public class FingerprintBatchTest {
+
+    private static final String ID = "sha256:0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef";
+    private static final String PARENT = "sha256:fedcba9876543210fedcba9876543210fedcba9876543210fedcba9876543210";
+
+    private static class RecordingBatch extends FingerprintBatch {
+        final List<String> inspected = new ArrayList<String>();
+        final List<String> recorded = new ArrayList<String>();
+
+        RecordingBatch() {
+            super("test fingerprints");
+        }
+
+        @Override
+        protected InspectImageResponse inspect(String image) {
+            inspected.add(image);
+            if (image.startsWith("missing")) {
+                return null;
+            }
+            return new InspectImageResponse(PARENT, ID);
+        }
+
+        @Override
+        protected void record(InspectImageResponse image) {
+            recorded.add(image.getId() + " " + image.getParent());
+        }
+    }
+
+    @Test
+    public void testKnownParent() throws Exception {
+        RecordingBatch batch = new RecordingBatch();
+        batch.add(ID, "");
+        assertEquals(1, batch.finish());
+        assertEquals(Arrays.<String>asList(), batch.inspected);
+        assertEquals(Arrays.asList(ID + " "), batch.recorded);
+    }
+
+    @Test
+    public void testDeduplicated() throws Exception {
+        RecordingBatch batch = new RecordingBatch();
+        batch.add("0123456789ab", null);
+        batch.add("0123456789ab", null);
+        batch.add("example/test:latest", null);
+        batch.add("missing/test", null);
+        assertEquals(1, batch.finish());
+        assertEquals(Arrays.asList("0123456789ab", "example/test:latest", "missing/test"), batch.inspected);
+        assertEquals(Arrays.asList(ID + " " + PARENT), batch.recorded);
+    }
+
+    @Test
+    public void testInspectFailure() throws Exception {
+        final List<String> failed = new ArrayList<String>();
+        final List<String> recorded = new ArrayList<String>();
+        FingerprintBatch batch = new FingerprintBatch("test fingerprints") {
+            @Override
+            protected InspectImageResponse inspect(String image) throws IOException {
+                if (image.equals("example/test")) {
+                    throw new IOException("daemon unavailable");
+                }
+                return new InspectImageResponse("", image);
+            }
+
+            @Override
+            protected void record(InspectImageResponse image) {
+                recorded.add(image.getId());
+            }
+
+            @Override
+            protected void failed(String image, IOException e) {
+                failed.add(image + ": " + e.getMessage());
+            }
+        };
+        batch.add("example/test", null);
+        batch.add("example/other", null);
+        // the image is already pushed, the build goes on without its fingerprint
+        assertEquals(1, batch.finish());
+        assertEquals(Collections.singletonList("example/test: daemon unavailable"), failed);
+        assertEquals(Collections.singletonList("example/other"), recorded);
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.dockerpublish;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.List;
+
+import jenkins.benchmark.jmh.JmhBenchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Resources;
+
+/**
+ * Benchmarks {@link DockerCLIHelper#parseInspectImageResponse(String)} and
+ * {@link DockerCLIHelper#parseInspectImageResponses(String)} on the output of {@code docker inspect}
+ * for one image and for many images.
+ */
+@JmhBenchmark
+public class InspectImageBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Response {
+        @Param({"1", "100", "1000"})
+        public int images;
+
+        String json;
+
+        @Setup
+        public void setup() throws IOException {
+            URL url = Resources.getResource("dockerInspectImage_response.json");
+            String fixture = Resources.toString(url, Charsets.UTF_8).trim();
+            // the fixture is an array holding one image
+            String image = fixture.substring(1, fixture.length() - 1).trim();
+            StringBuilder sb = new StringBuilder("[");
+            for (int i = 0; i < images; i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append(image);
+            }
+            json = sb.append(']').toString();
+        }
+    }
+
+    @Benchmark
+    public DockerCLIHelper.InspectImageResponse parse(Response state) throws IOException {
+        return DockerCLIHelper.parseInspectImageResponse(state.json);
+    }
+
+    @Benchmark
+    public List<DockerCLIHelper.InspectImageResponse> parseAll(Response state) throws IOException {
+        return DockerCLIHelper.parseInspectImageResponses(state.json);
+    }
+}
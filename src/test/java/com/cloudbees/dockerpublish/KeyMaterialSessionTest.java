@@ -0,0 +1,136 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.dockerpublish;
+
+import static org.junit.Assert.*;
+
+import hudson.EnvVars;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jenkinsci.plugins.docker.commons.credentials.KeyMaterial;
+import org.jenkinsci.plugins.docker.commons.credentials.KeyMaterialFactory;
+import org.junit.Test;
+
+/**
+ * Tests for {@link KeyMaterialSession}.
+ */
+public class KeyMaterialSessionTest {
+
+    private final AtomicInteger factories = new AtomicInteger();
+    private final AtomicInteger materializations = new AtomicInteger();
+    private final AtomicInteger closes = new AtomicInteger();
+
+    private final KeyMaterialSession session = new KeyMaterialSession() {
+        @Override
+        protected KeyMaterialFactory newKeyMaterialFactory() {
+            factories.incrementAndGet();
+            return new KeyMaterialFactory() {
+                @Override
+                public KeyMaterial materialize() throws IOException, InterruptedException {
+                    materializations.incrementAndGet();
+                    // leave time for concurrent callers to pile up
+                    Thread.sleep(50);
+                    return new KeyMaterial(new EnvVars("DOCKER_CONFIG", "/tmp/config")) {
+                        @Override
+                        public void close() {
+                            closes.incrementAndGet();
+                        }
+                    };
+                }
+            };
+        }
+    };
+
+    @Test
+    public void testLazy() throws Exception {
+        assertEquals(0, factories.get());
+        session.close();
+        assertEquals(0, factories.get());
+        assertEquals(0, closes.get());
+    }
+
+    @Test
+    public void testMaterializedOnce() throws Exception {
+        KeyMaterial first = session.get();
+        KeyMaterial second = session.get();
+        KeyMaterial third = session.get();
+        assertSame(first, second);
+        assertSame(first, third);
+        assertEquals("/tmp/config", first.env().get("DOCKER_CONFIG"));
+        assertEquals(1, factories.get());
+        assertEquals(1, materializations.get());
+        assertEquals(2, session.getMaterializationsAvoided());
+    }
+
+    @Test
+    public void testConcurrentGet() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final CountDownLatch start = new CountDownLatch(1);
+            List<Future<KeyMaterial>> results = new ArrayList<Future<KeyMaterial>>();
+            for (int n = 0; n < 8; n++) {
+                results.add(executor.submit(new Callable<KeyMaterial>() {
+                    @Override
+                    public KeyMaterial call() throws Exception {
+                        start.await();
+                        return session.get();
+                    }
+                }));
+            }
+            start.countDown();
+            KeyMaterial material = results.get(0).get();
+            for (Future<KeyMaterial> result : results) {
+                assertSame(material, result.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, materializations.get());
+        assertEquals(7, session.getMaterializationsAvoided());
+    }
+
+    @Test
+    public void testCloseThenGet() throws Exception {
+        session.get();
+        session.close();
+        session.close();
+        assertEquals(1, closes.get());
+        try {
+            session.get();
+            fail("expected the closed session to be unusable");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(1, materializations.get());
+    }
+}
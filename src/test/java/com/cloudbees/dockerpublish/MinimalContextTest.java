@@ -0,0 +1,115 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.dockerpublish;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for {@link MinimalContext}.
+ */
+public class MinimalContextTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File context;
+
+    @Before
+    public void setUp() throws IOException {
+        context = tmp.newFolder();
+        write("Dockerfile", "FROM scratch\nCOPY app.sh /\nCOPY lib /lib\n");
+        write(".dockerignore", "**/*.log\n");
+        write("app.sh", "echo\n");
+        new File(context, "lib").mkdir();
+        write("lib/util.sh", "true\n");
+        write("lib/debug.log", "not sent to the daemon");
+        new File(context, "data").mkdir();
+        write("data/large.bin", "not copied by the Dockerfile");
+    }
+
+    @Test
+    public void testSources() {
+        assertEquals(Arrays.asList("app.sh", "lib"), sources("FROM scratch\nCOPY app.sh /\nCOPY lib /lib\n"));
+        assertEquals(Arrays.asList("src/*.py", "conf"),
+                sources("FROM python\nCOPY --chown=app:app src/*.py ./conf/ /app/\nADD https://example.com/a.tgz /tmp/\n"));
+        assertEquals(Arrays.asList("my file"), sources("FROM scratch\nCOPY [\"my file\", \"/dest/\"]\n"));
+        assertEquals(Arrays.asList("app.sh"), sources("FROM maven AS build\nRUN mvn package\n"
+                + "FROM scratch\nCOPY --from=build /target/app.jar /\nCOPY app.sh /\n"));
+        assertEquals(Arrays.<String>asList(), sources("FROM scratch\nRUN --mount=type=cache,target=/root/.m2 mvn\n"));
+    }
+
+    @Test
+    public void testWholeContext() {
+        assertNull(sources("FROM scratch\nCOPY . /app\n"));
+        assertNull(sources("FROM scratch\nARG DIR\nCOPY $DIR /app\n"));
+        assertNull(sources("FROM scratch\nCOPY <<EOF /app/run.sh\n"));
+        assertNull(sources("FROM scratch\nRUN --mount=type=bind,target=/src make\n"));
+    }
+
+    @Test
+    public void testCreate() throws Exception {
+        File target = new File(tmp.newFolder(), "context");
+        MinimalContext minimal = MinimalContext.create(context, null, Arrays.asList("app.sh", "lib"), target);
+        assertEquals(4, minimal.getFiles());
+        assertEquals(5, minimal.getContextFiles());
+        assertEquals(minimal.getContextBytes() - "not copied by the Dockerfile".length(), minimal.getBytes());
+        assertTrue(new File(target, "Dockerfile").isFile());
+        assertTrue(new File(target, ".dockerignore").isFile());
+        assertTrue(new File(target, "app.sh").isFile());
+        assertTrue(new File(target, "lib/util.sh").isFile());
+        assertFalse(new File(target, "lib/debug.log").exists());
+        assertFalse(new File(target, "data").exists());
+    }
+
+    @Test
+    public void testCreateWildcard() throws Exception {
+        write("Dockerfile.dev", "FROM scratch\nCOPY **/*.sh /\n");
+        File target = new File(tmp.newFolder(), "context");
+        MinimalContext minimal = MinimalContext.create(context, "Dockerfile.dev", Arrays.asList("**/*.sh"), target);
+        assertEquals(4, minimal.getFiles());
+        assertTrue(new File(target, "Dockerfile.dev").isFile());
+        assertFalse(new File(target, "Dockerfile").exists());
+        assertTrue(new File(target, "lib/util.sh").isFile());
+    }
+
+    private static List<String> sources(String dockerfile) {
+        return MinimalContext.sources(Dockerfile.parse(dockerfile));
+    }
+
+    private void write(String path, String content) throws IOException {
+        Files.write(new File(context, path).toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.dockerpublish;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+/**
+ * Tests for {@link ProgressLog}.
+ */
+public class ProgressLogTest {
+
+    private long now;
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    private ProgressLog log(int maxLines) {
+        return log(null, maxLines);
+    }
+
+    private ProgressLog log(ByteArrayOutputStream raw, int maxLines) {
+        return new ProgressLog(out, StandardCharsets.UTF_8, raw, 1000, maxLines) {
+            @Override
+            long now() {
+                return now;
+            }
+        };
+    }
+
+    private static void write(ProgressLog log, String s) throws IOException {
+        log.write(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testProgressSummarized() throws Exception {
+        ProgressLog log = log(100);
+        write(log, "The push refers to repository [docker.io/acme/app]\n");
+        write(log, "5f70bf18a086: Preparing\n5f70bf18a086: Waiting\n");
+        for (int i = 1; i <= 20; i++) {
+            write(log, "5f70bf18a086: Pushing [==>    ]  " + i + "MB/40MB\r");
+        }
+        now = 2000;
+        write(log, "5f70bf18a086: Pushing [=====>  ]  30MB/40MB\r");
+        write(log, "5f70bf18a086: Pushed\n1.0: digest: sha256:0123 size: 1234\n");
+        log.close();
+
+        assertEquals("The push refers to repository [docker.io/acme/app]\n"
+                + "Progress: 1 layer, 30.0 MB of 40.0 MB at 15.0 MB/s (5f70bf18a086 Pushing 30.0 MB/40.0 MB)\n"
+                + "5f70bf18a086: Pushed\n"
+                + "1.0: digest: sha256:0123 size: 1234\n", out.toString("UTF-8"));
+        assertEquals(23, log.getProgressLines());
+    }
+
+    @Test
+    public void testLinesCapped() throws Exception {
+        ProgressLog log = log(2);
+        write(log, "a\r\nb\nc\nd\n");
+        now = 1000;
+        write(log, "e\nf");
+        log.close();
+        assertEquals("a\nb\n[2 lines of output omitted]\ne\nf\n", out.toString("UTF-8"));
+    }
+
+    @Test
+    public void testRawOutputKept() throws Exception {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        String output = "abc123def456: Downloading [>  ]  512kB/2MB\rabc123def456: Pull complete\n";
+        ProgressLog log = new ProgressLog(out, StandardCharsets.UTF_8, new GZIPOutputStream(compressed));
+        write(log, output);
+        log.close();
+        IOUtils.copy(new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray())), raw);
+        assertEquals(output, raw.toString("UTF-8"));
+        assertEquals("abc123def456: Pull complete\n", out.toString("UTF-8"));
+    }
+
+    @Test
+    public void testSizes() {
+        assertEquals(512, ProgressLog.parseSize("512B"));
+        assertEquals(1500, ProgressLog.parseSize("1.5kB"));
+        assertEquals(30000000, ProgressLog.parseSize("30MB"));
+        assertEquals("512 B", ProgressLog.formatSize(512));
+        assertEquals("1.5 kB", ProgressLog.formatSize(1500));
+        assertEquals("2.3 GB", ProgressLog.formatSize(2300000000L));
+    }
+}
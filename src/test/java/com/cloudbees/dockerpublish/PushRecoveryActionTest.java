@@ -0,0 +1,178 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.dockerpublish;
+
+import static org.junit.Assert.*;
+
+import hudson.Functions;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Result;
+import hudson.model.queue.QueueTaskFuture;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.jenkinsci.plugins.docker.commons.credentials.DockerRegistryEndpoint;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+
+/**
+ * Tests for {@link PushRecoveryAction} with a fake docker CLI and a fake registry.
+ */
+public class PushRecoveryActionTest {
+
+    private static final String DENIED = "echo 'denied: requested access to the resource is denied' >&2; exit 1\n";
+
+    @Rule
+    public JenkinsRule jenkins = new JenkinsRule();
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private FakeRegistry registry;
+    private String repo;
+
+    @Before
+    public void setUp() throws Exception {
+        registry = new FakeRegistry();
+        registry.anonymous = true;
+        repo = registry.getUrl().substring("http://".length()) + "/acme/app";
+    }
+
+    @After
+    public void tearDown() {
+        registry.stop();
+    }
+
+    @Test
+    public void testPushOnlyOwnedTags() throws Exception {
+        FakeDocker docker = fakeDocker();
+        docker.hook("push", DENIED);
+        registry.manifests.put("acme/app:2.0", "{\"build\": 1}".getBytes(StandardCharsets.UTF_8));
+        FreeStyleProject project = jenkins.createFreeStyleProject();
+        project.getBuildersList().add(builder("1.0,2.0"));
+        FreeStyleBuild build = jenkins.assertBuildStatus(Result.FAILURE, project.scheduleBuild2(0));
+        PushRecoveryAction action = build.getAction(PushRecoveryAction.class);
+        assertNotNull(action);
+        assertEquals(FakeDocker.IMAGE_ID, action.getImageId());
+        assertEquals(Arrays.asList(repo + ":1.0", repo + ":2.0", repo + ":latest"), action.getTags());
+
+        // another build moved 2.0 since
+        registry.manifests.put("acme/app:2.0", "{\"build\": 2}".getBytes(StandardCharsets.UTF_8));
+        assertNull("the registry is only checked on demand", action.getTagStatuses());
+        List<PushRecoveryAction.TagStatus> statuses = action.checkTags();
+        assertSame(statuses, action.getTagStatuses());
+        assertEquals(3, statuses.size());
+        assertTrue(statuses.get(0).isPushable());
+        assertFalse(statuses.get(1).isPushable());
+        assertFalse(statuses.get(2).isPushable());
+
+        docker.hook("push", "");
+        int pushes = docker.commands("push ").size();
+        action.push();
+        assertTrue(action.getLog(), action.isPushed());
+        List<String> pushed = docker.commands("push ");
+        assertEquals(Collections.singletonList("push " + repo + ":1.0"), pushed.subList(pushes, pushed.size()));
+        assertTrue(action.getLog(), action.getLog().contains("Not pushing " + repo + ":2.0"));
+        assertTrue(action.getLog(), action.getLog().contains("Not pushing " + repo + ":latest"));
+    }
+
+    @Test
+    public void testNothingLeftToPush() throws Exception {
+        FakeDocker docker = fakeDocker();
+        docker.hook("push", DENIED);
+        FreeStyleProject project = jenkins.createFreeStyleProject();
+        project.getBuildersList().add(builder(null));
+        FreeStyleBuild build = jenkins.assertBuildStatus(Result.FAILURE, project.scheduleBuild2(0));
+        PushRecoveryAction action = build.getAction(PushRecoveryAction.class);
+        assertNotNull(action);
+
+        docker.hook("push", "");
+        int pushes = docker.commands("push ").size();
+        action.push();
+        assertFalse(action.isPushed());
+        assertEquals(pushes, docker.commands("push ").size());
+        assertTrue(action.getLog(), action.getLog().contains("No tag left to push"));
+    }
+
+    @Test
+    public void testAbortedPushOffersRecovery() throws Exception {
+        FakeDocker docker = fakeDocker();
+        docker.hook("push", "exec sleep 60\n");
+        FreeStyleProject project = jenkins.createFreeStyleProject();
+        project.getBuildersList().add(builder("1.0"));
+        QueueTaskFuture<FreeStyleBuild> future = project.scheduleBuild2(0);
+        FreeStyleBuild build = future.waitForStart();
+        while (docker.commands("push ").isEmpty()) {
+            Thread.sleep(100);
+        }
+        build.getExecutor().interrupt();
+        jenkins.waitForCompletion(build);
+        assertNotNull(build.getAction(PushRecoveryAction.class));
+    }
+
+    @Test
+    public void testStatuses() throws Exception {
+        List<ImageTag> tags = Arrays.asList(new ImageTag("acme/app", "1.0"), new ImageTag("acme/app", "2.0"),
+                new ImageTag("acme/app", null));
+        List<PushRecoveryAction.TagStatus> statuses = PushRecoveryAction.statuses(tags,
+                Collections.singletonMap("2.0", "sha256:1"), Collections.singletonMap("2.0", "sha256:1"), null);
+        assertTrue(statuses.get(0).isPushable());
+        assertTrue(statuses.get(1).isPushable());
+        assertFalse(statuses.get(2).isPushable());
+
+        // the registry could not be read when the push failed: only the missing tags are pushed
+        statuses = PushRecoveryAction.statuses(tags, null, Collections.singletonMap("2.0", "sha256:1"), null);
+        assertTrue(statuses.get(0).isPushable());
+        assertFalse(statuses.get(1).isPushable());
+
+        statuses = PushRecoveryAction.statuses(tags, Collections.<String, String>emptyMap(), null, "Connection refused");
+        assertFalse(statuses.get(0).isPushable());
+        assertTrue(statuses.get(0).getReason(), statuses.get(0).getReason().contains("Connection refused"));
+    }
+
+    private FakeDocker fakeDocker() throws Exception {
+        Assume.assumeFalse("Runs a shell script as docker", Functions.isWindows());
+        return new FakeDocker(jenkins, tmp.newFolder());
+    }
+
+    private DockerBuilder builder(String repoTag) {
+        DockerBuilder builder = new DockerBuilder("acme/app");
+        builder.setRepoTag(repoTag);
+        builder.setRegistry(new DockerRegistryEndpoint(registry.getUrl(), null));
+        builder.setSkipDecorate(true);
+        builder.setCreateFingerprint(false);
+        builder.setPushRetries(0);
+        builder.setDockerToolName(FakeDocker.TOOL);
+        return builder;
+    }
+}
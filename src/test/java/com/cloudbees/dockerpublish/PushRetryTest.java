@@ -0,0 +1,169 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.dockerpublish;
+
+import static org.junit.Assert.*;
+
+import com.cloudbees.dockerpublish.DockerCLIHelper.InspectImageResponse;
+import hudson.FilePath;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link PushRetry}.
+ */
+public class PushRetryTest {
+
+    @Test
+    public void testTransient() {
+        assertTrue(PushRetry.isTransient("received unexpected HTTP status: 503 Service Unavailable"));
+        assertTrue(PushRetry.isTransient("error parsing HTTP 502 response body: unexpected end of JSON input: \"\"\n"
+                + "502 Bad Gateway"));
+        assertTrue(PushRetry.isTransient("Put https://docker.acme.com/v2/app/blobs/uploads/1: read tcp 10.0.0.1:4242->10.0.0.2:443: read: connection reset by peer"));
+        assertTrue(PushRetry.isTransient("net/http: TLS handshake timeout"));
+        assertTrue(PushRetry.isTransient("toomanyrequests: too many requests"));
+        assertTrue(PushRetry.isTransient("PUT https://docker.acme.com/v2/app/manifests/1.0 returned 503: {\"errors\":[{\"code\":\"UNAVAILABLE\"}]}"));
+        assertFalse(PushRetry.isTransient("denied: requested access to the resource is denied"));
+        assertFalse(PushRetry.isTransient("unauthorized: authentication required"));
+        assertFalse(PushRetry.isTransient("An image does not exist locally with the tag: acme/app"));
+        assertFalse(PushRetry.isTransient((String) null));
+        assertTrue(PushRetry.isTransient(new SocketException("Connection reset")));
+        assertFalse(PushRetry.isTransient(new IOException("GET https://docker.acme.com/v2/app/manifests/1.0 returned 401")));
+    }
+
+    @Test
+    public void testDelay() {
+        PushRetry retry = new PushRetry(10, 1000, 8000);
+        assertEquals(11, retry.getAttempts());
+        for (int n = 0; n < 100; n++) {
+            assertBetween(500, 1000, retry.delay(1));
+            assertBetween(1000, 2000, retry.delay(2));
+            assertBetween(4000, 8000, retry.delay(4));
+            // capped
+            assertBetween(4000, 8000, retry.delay(10));
+        }
+        assertEquals(1, new PushRetry(-1).getAttempts());
+    }
+
+    private static void assertBetween(long min, long max, long value) {
+        assertTrue(value + " not in [" + min + ", " + max + "]", value >= min && value <= max);
+    }
+
+    @Test
+    public void testRetriesTransientFailures() throws Exception {
+        FakeClient client = new FakeClient("received unexpected HTTP status: 503 Service Unavailable",
+                "write tcp 10.0.0.1:4242->10.0.0.2:443: write: broken pipe");
+        RecordingRetry retry = new RecordingRetry(3);
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+
+        assertTrue(retry.push(client, new ImageTag("acme/app", "1.0"), log, StandardCharsets.UTF_8));
+        assertEquals(3, client.pushes);
+        assertEquals(2, retry.sleeps.size());
+        assertTrue(log.toString("UTF-8"), log.toString("UTF-8").contains("retrying in " + retry.sleeps.get(0) + " ms (attempt 2 of 4)"));
+    }
+
+    @Test
+    public void testGivesUp() throws Exception {
+        FakeClient client = new FakeClient("503 Service Unavailable", "503 Service Unavailable", "503 Service Unavailable");
+        RecordingRetry retry = new RecordingRetry(2);
+        assertFalse(retry.push(client, new ImageTag("acme/app", "1.0"), new ByteArrayOutputStream(), StandardCharsets.UTF_8));
+        assertEquals(3, client.pushes);
+    }
+
+    @Test
+    public void testPermanentFailureNotRetried() throws Exception {
+        FakeClient client = new FakeClient("denied: requested access to the resource is denied");
+        RecordingRetry retry = new RecordingRetry(3);
+        assertFalse(retry.push(client, new ImageTag("acme/app", "1.0"), new ByteArrayOutputStream(), StandardCharsets.UTF_8));
+        assertEquals(1, client.pushes);
+        assertTrue(retry.sleeps.isEmpty());
+    }
+
+    private static final class RecordingRetry extends PushRetry {
+        final List<Long> sleeps = new ArrayList<Long>();
+
+        RecordingRetry(int retries) {
+            super(retries);
+        }
+
+        @Override
+        void sleep(long millis) {
+            sleeps.add(millis);
+        }
+    }
+
+    /**
+     * Client whose pushes fail with the given errors, then succeed.
+     */
+    private static final class FakeClient implements DockerClient {
+        final LinkedList<String> errors;
+        int pushes;
+
+        FakeClient(String... errors) {
+            this.errors = new LinkedList<String>(Arrays.asList(errors));
+        }
+
+        @Override
+        public boolean push(ImageTag tag, OutputStream log) throws IOException {
+            pushes++;
+            log.write(("The push refers to repository [docker.io/" + tag.getName() + "]\n").getBytes(StandardCharsets.UTF_8));
+            if (!errors.isEmpty()) {
+                log.write((errors.removeFirst() + "\n").getBytes(StandardCharsets.UTF_8));
+                return false;
+            }
+            log.write((tag.getTag() + ": digest: sha256:0123 size: 1234\n").getBytes(StandardCharsets.UTF_8));
+            return true;
+        }
+
+        @Override
+        public BuildResult build(FilePath context, ImageTag tag) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean tag(String image, ImageTag tag) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean pull(String image, OutputStream log) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public InspectImageResponse inspect(String image) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
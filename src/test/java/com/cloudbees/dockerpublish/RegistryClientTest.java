@@ -0,0 +1,157 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.dockerpublish;
+
+import static org.junit.Assert.*;
+
+import hudson.util.StreamTaskListener;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link RegistryClient} against an in-process fake registry.
+ */
+public class RegistryClientTest {
+
+    private FakeRegistry registry;
+    private String endpoint;
+
+    @Before
+    public void setUp() throws IOException {
+        registry = new FakeRegistry();
+        endpoint = registry.getUrl();
+    }
+
+    @After
+    public void tearDown() {
+        registry.stop();
+    }
+
+    @Test
+    public void testEndpoint() throws Exception {
+        assertEquals("https://registry-1.docker.io", RegistryClient.endpoint(new URL("https://index.docker.io/v1/")));
+        assertEquals("https://docker.acme.com:5000", RegistryClient.endpoint(new URL("https://docker.acme.com:5000/")));
+    }
+
+    @Test
+    public void testRepository() throws Exception {
+        URL hub = new URL("https://index.docker.io/v1/");
+        assertEquals("library/busybox", RegistryClient.repository("busybox", hub));
+        assertEquals("jdoe/busybox", RegistryClient.repository("jdoe/busybox", hub));
+        assertEquals("jdoe/busybox", RegistryClient.repository("docker.acme.com:5000/jdoe/busybox",
+                new URL("https://docker.acme.com:5000/")));
+    }
+
+    @Test
+    public void testRetagWithBearerToken() throws Exception {
+        byte[] manifest = "{\"schemaVersion\": 2, \"layers\": []}".getBytes(StandardCharsets.UTF_8);
+        registry.manifests.put("acme/app:latest", manifest);
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+
+        RegistryClient client = new RegistryClient(endpoint, FakeRegistry.BASIC);
+        Map<String, String> digests = new RegistryClient.Retag(client, "acme/app", "latest", Arrays.asList("1.0", "latest"),
+                new StreamTaskListener(log)).call();
+        assertNotNull(digests);
+        assertEquals(FakeRegistry.digest(manifest), digests.get("1.0"));
+        assertEquals(FakeRegistry.digest(manifest), digests.get("latest"));
+
+        assertArrayEquals(manifest, registry.manifests.get("acme/app:1.0"));
+        assertEquals(FakeRegistry.MEDIA_TYPE, registry.mediaTypes.get("acme/app:1.0"));
+        // one token request, then only manifest requests
+        assertEquals(Arrays.asList("GET /v2/acme/app/manifests/latest", "GET /token",
+                "GET /v2/acme/app/manifests/latest", "PUT /v2/acme/app/manifests/1.0"), registry.requests);
+        assertTrue(log.toString("UTF-8").contains("Tagged acme/app:1.0"));
+    }
+
+    @Test
+    public void testDigests() throws Exception {
+        byte[] manifest = {'{', '}'};
+        registry.manifests.put("acme/app:1.0", manifest);
+        RegistryClient client = new RegistryClient(endpoint, FakeRegistry.BASIC);
+        Map<String, String> digests = new RegistryClient.Digests(client, "acme/app", Arrays.asList("1.0", "2.0")).call();
+        assertEquals(Collections.singletonMap("1.0", FakeRegistry.digest(manifest)), digests);
+        assertTrue(registry.requests.contains("HEAD /v2/acme/app/manifests/2.0"));
+        assertFalse(registry.requests.contains("GET /v2/acme/app/manifests/1.0"));
+    }
+
+    @Test
+    public void testMissingSource() throws Exception {
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        RegistryClient client = new RegistryClient(endpoint, FakeRegistry.BASIC);
+        assertNull(new RegistryClient.Retag(client, "acme/app", "latest", Collections.singletonList("1.0"),
+                new StreamTaskListener(log)).call());
+        assertNull(registry.manifests.get("acme/app:1.0"));
+    }
+
+    @Test
+    public void testBadCredentials() throws Exception {
+        registry.manifests.put("acme/app:latest", new byte[] {'{', '}'});
+        try {
+            new RegistryClient(endpoint, "bm9ib2R5Og==").getManifest("acme/app", "latest");
+            fail("expected an authentication failure");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("401"));
+        }
+    }
+
+    @Test
+    public void testRetagRetriesUnavailableRegistry() throws Exception {
+        registry.manifests.put("acme/app:latest", new byte[] {'{', '}'});
+        registry.failures.set(2);
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+
+        RegistryClient client = new RegistryClient(endpoint, FakeRegistry.BASIC);
+        assertNotNull(new RegistryClient.Retag(client, "acme/app", "latest", Collections.singletonList("1.0"),
+                new StreamTaskListener(log), new PushRetry(2, 1, 1)).call());
+
+        assertNotNull(registry.manifests.get("acme/app:1.0"));
+        assertEquals(0, registry.failures.get());
+        assertTrue(log.toString("UTF-8"), log.toString("UTF-8").contains("Tagging acme/app:1.0 failed"));
+    }
+
+    @Test
+    public void testRetagGivesUp() throws Exception {
+        registry.manifests.put("acme/app:latest", new byte[] {'{', '}'});
+        registry.failures.set(3);
+        RegistryClient client = new RegistryClient(endpoint, FakeRegistry.BASIC);
+        try {
+            new RegistryClient.Retag(client, "acme/app", "latest", Collections.singletonList("1.0"),
+                    new StreamTaskListener(new ByteArrayOutputStream()), new PushRetry(2, 1, 1)).call();
+            fail("expected the registry to be unavailable");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("503"));
+        }
+        assertNull(registry.manifests.get("acme/app:1.0"));
+    }
+}
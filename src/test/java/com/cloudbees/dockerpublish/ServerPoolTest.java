@@ -0,0 +1,157 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.dockerpublish;
+
+import static org.junit.Assert.*;
+
+import com.cloudbees.dockerpublish.ServerSelectionStrategy.Candidate;
+
+import hudson.util.StreamTaskListener;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.jenkinsci.plugins.docker.commons.credentials.DockerServerEndpoint;
+import org.junit.Test;
+
+/**
+ * Tests for {@link ServerPool} and the {@link ServerSelectionStrategy} implementations.
+ */
+public class ServerPoolTest {
+
+    private final ServerPool pool = new ServerPool();
+    private final ByteArrayOutputStream log = new ByteArrayOutputStream();
+    private final StreamTaskListener listener = new StreamTaskListener(log);
+
+    private final Candidate a = candidate("tcp://a:2375", 2);
+    private final Candidate b = candidate("tcp://b:2375", 0);
+    private final Candidate c = candidate("tcp://c:2375", 1);
+    private final List<Candidate> candidates = Arrays.asList(a, b, c);
+
+    private static Candidate candidate(String uri, int outstanding) {
+        return new Candidate(new DockerServerEndpoint(uri, null), uri, outstanding);
+    }
+
+    /** Health check failing for the given servers and counting the checks. */
+    private static class FakeCheck implements ServerPool.HealthCheck {
+        final Set<String> down = new HashSet<String>();
+        final List<String> checked = new ArrayList<String>();
+
+        FakeCheck(String... down) {
+            this.down.addAll(Arrays.asList(down));
+        }
+
+        @Override
+        public boolean isHealthy(DockerServerEndpoint server) throws IOException {
+            checked.add(server.getUri());
+            if (server.getUri().equals("tcp://c:2375")) {
+                throw new IOException("connection refused");
+            }
+            return !down.contains(server.getUri());
+        }
+    }
+
+    @Test
+    public void testLeastOutstandingBuilds() throws Exception {
+        List<Candidate> ordered = new ServerSelectionStrategy.LeastOutstandingBuilds().order(candidates, "repo");
+        assertEquals(Arrays.asList(b, c, a), ordered);
+        Candidate d = candidate("tcp://d:2375", 0);
+        assertEquals(Arrays.asList(b, d, c, a),
+                new ServerSelectionStrategy.LeastOutstandingBuilds().order(Arrays.asList(a, b, c, d), "repo"));
+    }
+
+    @Test
+    public void testRoundRobin() throws Exception {
+        ServerSelectionStrategy strategy = new ServerSelectionStrategy.RoundRobin();
+        assertEquals(a, strategy.order(candidates, "repo").get(0));
+        assertEquals(b, strategy.order(candidates, "repo").get(0));
+        assertEquals(Arrays.asList(c, a, b), strategy.order(candidates, "repo"));
+        assertEquals(a, strategy.order(candidates, "repo").get(0));
+    }
+
+    @Test
+    public void testCacheAffinity() throws Exception {
+        ServerSelectionStrategy strategy = new ServerSelectionStrategy.CacheAffinity();
+        assertEquals(Arrays.asList(b, c, a), strategy.order(candidates, "test/affinity"));
+        strategy.selected(a, "test/affinity");
+        assertEquals(Arrays.asList(a, b, c), strategy.order(candidates, "test/affinity"));
+        assertEquals(Arrays.asList(b, c, a), strategy.order(candidates, "test/other"));
+    }
+
+    @Test
+    public void testCacheAffinityForgetsOldRepositories() throws Exception {
+        ServerSelectionStrategy strategy = new ServerSelectionStrategy.CacheAffinity();
+        strategy.selected(a, "test/old");
+        strategy.selected(a, "test/recent");
+        for (int i = 0; i < ServerSelectionStrategy.CacheAffinity.MAX_REPOSITORIES - 1; i++) {
+            // ordering counts as a use
+            strategy.order(candidates, "test/recent");
+            strategy.selected(c, "test/repo-" + i);
+        }
+        assertEquals(Arrays.asList(b, c, a), strategy.order(candidates, "test/old"));
+        assertEquals(Arrays.asList(a, b, c), strategy.order(candidates, "test/recent"));
+    }
+
+    @Test
+    public void testSelectHealthy() throws Exception {
+        FakeCheck check = new FakeCheck();
+        Candidate selected = pool.select(candidates, new ServerSelectionStrategy.LeastOutstandingBuilds(), "repo", check, listener);
+        assertSame(b, selected);
+        assertEquals(Arrays.asList("tcp://b:2375"), check.checked);
+        assertTrue(log.toString("UTF-8").contains("Using Docker server tcp://b:2375 (0 outstanding builds)"));
+    }
+
+    @Test
+    public void testFailover() throws Exception {
+        FakeCheck check = new FakeCheck("tcp://b:2375");
+        Candidate selected = pool.select(candidates, new ServerSelectionStrategy.LeastOutstandingBuilds(), "repo", check, listener);
+        assertSame(a, selected);
+        assertEquals(Arrays.asList("tcp://b:2375", "tcp://c:2375", "tcp://a:2375"), check.checked);
+        String output = log.toString("UTF-8");
+        assertTrue(output, output.contains("Docker server tcp://b:2375 is unreachable, trying the next one"));
+        assertTrue(output, output.contains("Docker server tcp://c:2375 is unreachable, trying the next one"));
+    }
+
+    @Test
+    public void testNoneHealthy() throws Exception {
+        FakeCheck check = new FakeCheck("tcp://a:2375", "tcp://b:2375");
+        Candidate selected = pool.select(candidates, new ServerSelectionStrategy.LeastOutstandingBuilds(), "repo", check, listener);
+        assertSame(b, selected);
+        assertTrue(log.toString("UTF-8").contains("No Docker server of the pool is reachable, using tcp://b:2375"));
+    }
+
+    @Test
+    public void testHealthIsCached() throws Exception {
+        FakeCheck check = new FakeCheck("tcp://b:2375");
+        ServerSelectionStrategy strategy = new ServerSelectionStrategy.LeastOutstandingBuilds();
+        pool.select(candidates, strategy, "repo", check, listener);
+        pool.select(candidates, strategy, "repo", check, listener);
+        assertEquals(3, check.checked.size());
+    }
+}
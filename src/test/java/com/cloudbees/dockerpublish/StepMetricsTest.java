@@ -0,0 +1,101 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.dockerpublish;
+
+import static org.junit.Assert.*;
+
+import java.net.URL;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link StepMetrics} and {@link PhaseTimer}.
+ */
+public class StepMetricsTest {
+
+    private final StepMetrics metrics = new StepMetrics();
+
+    @Test
+    public void testHistogram() throws Exception {
+        StepMetrics.Histogram histogram = metrics.histogram("docker.phase.build.duration");
+        assertSame(histogram, metrics.histogram("docker.phase.build.duration"));
+        assertEquals(0, histogram.getP95());
+        for (int i = 1; i <= 100; i++) {
+            histogram.update(i);
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(50, histogram.getMean());
+        assertEquals(50, histogram.getP50());
+        assertEquals(95, histogram.getP95());
+        assertEquals(100, histogram.getMax());
+    }
+
+    @Test
+    public void testHistogramWindow() throws Exception {
+        StepMetrics.Histogram histogram = metrics.histogram("docker.push.docker.io.duration");
+        for (int i = 0; i < StepMetrics.Histogram.WINDOW; i++) {
+            histogram.update(1000);
+        }
+        for (int i = 0; i < StepMetrics.Histogram.WINDOW; i++) {
+            histogram.update(10);
+        }
+        // percentiles only reflect the recent values
+        assertEquals(10, histogram.getP95());
+        assertEquals(1000, histogram.getMax());
+    }
+
+    @Test
+    public void testPush() throws Exception {
+        metrics.push("registry.acme.com", 1200, 3, 4096, true);
+        metrics.push("registry.acme.com", 800, 0, 0, false);
+        List<StepMetrics.Counter> counters = metrics.getCounters();
+        assertEquals(3, counters.size());
+        assertEquals("registry.acme.com.bytes", counters.get(0).getName().substring("docker.push.".length()));
+        assertEquals(4096, counters.get(0).getCount());
+        assertEquals(1, metrics.counter("docker.push.registry.acme.com.failures").getCount());
+        assertEquals(3, metrics.counter("docker.push.registry.acme.com.layers").getCount());
+        assertEquals(1000, metrics.histogram("docker.push.registry.acme.com.duration").getMean());
+    }
+
+    @Test
+    public void testPhaseTimer() throws Exception {
+        PhaseTimer timer = new PhaseTimer();
+        timer.recordMillis(StepPhase.PUSH, 300);
+        timer.recordMillis(StepPhase.BUILD, 2000);
+        timer.recordMillis(StepPhase.PUSH, 200);
+        List<PhaseTimer.Timing> timings = timer.getTimings();
+        assertEquals(2, timings.size());
+        assertEquals(StepPhase.BUILD, timings.get(0).getPhase());
+        assertEquals(StepPhase.PUSH, timings.get(1).getPhase());
+        assertEquals(2, timings.get(1).getCount());
+        assertEquals(500, timings.get(1).getMillis());
+    }
+
+    @Test
+    public void testRegistryHost() throws Exception {
+        assertEquals("docker.io", MeteredClient.registryHost(new URL("https://index.docker.io/v1/")));
+        assertEquals("docker.acme.com:8080", MeteredClient.registryHost(new URL("https://docker.acme.com:8080")));
+    }
+}
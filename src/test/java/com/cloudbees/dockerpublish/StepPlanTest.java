@@ -0,0 +1,54 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.dockerpublish;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link StepPlan}.
+ */
+public class StepPlanTest {
+
+    @Test
+    public void testImageTags() {
+        StepPlan plan = new StepPlan("acme/app", "1.0,1", true, null, null, "", "");
+        assertEquals(3, plan.getImageTags().size());
+        assertEquals("acme/app:latest", plan.getImageTags().get(2).toString());
+        assertTrue(plan.isTagged());
+        assertEquals(1, new StepPlan("acme/app", null, true, null, null, "", "").getImageTags().size());
+    }
+
+    @Test
+    public void testDecoration() {
+        StepPlan plan = new StepPlan("acme/app", "1.0,1", true, null, null, "", "");
+        assertEquals(" acme/app:1.0 acme/app:1 acme/app:latest", plan.getDecoration(false));
+        assertEquals(" acme/app:{1.0,1,latest}", plan.getDecoration(true));
+        plan = new StepPlan("acme/app", "1.0", false, null, null, "", "");
+        assertEquals(" acme/app:1.0", plan.getDecoration(true));
+        plan = new StepPlan("acme/app", null, true, null, null, "", "");
+        assertEquals(" acme/app", plan.getDecoration(true));
+    }
+}